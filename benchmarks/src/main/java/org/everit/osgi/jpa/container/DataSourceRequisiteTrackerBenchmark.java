@@ -0,0 +1,150 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Measures the registration of persistence units to the DataSource tracker, which compiles the filter of their
+ * DataSource expression, and the matching of DataSource services against the persistence units.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DataSourceRequisiteTrackerBenchmark {
+
+    private static final RequisiteListener<ParsedPersistenceUnit> NOOP_LISTENER =
+            new RequisiteListener<ParsedPersistenceUnit>() {
+
+                @Override
+                public void requisiteAvailable(final ParsedPersistenceUnit dependentObject,
+                        final ServiceReference reference) {
+                }
+
+                @Override
+                public void requisiteRemoved(final ParsedPersistenceUnit dependentObject,
+                        final ServiceReference reference) {
+                }
+            };
+
+    @Param({ "10", "100" })
+    private int unitCount;
+
+    @Param({ "10", "100" })
+    private int referenceCount;
+
+    private List<ParsedPersistenceUnit> persistenceUnits;
+
+    private List<ServiceReference> references;
+
+    /**
+     * The tracker that the persistence units are registered to during the whole trial. It is used to measure the
+     * matching.
+     */
+    private DataSourceRequisiteTracker matchingTracker;
+
+    /**
+     * The tracker that the persistence units are registered to and removed from in each invocation.
+     */
+    private DataSourceRequisiteTracker registrationTracker;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InvalidSyntaxException {
+        Bundle bundle = StubBundles.createBundle(1, "org.everit.osgi.jpa.container.benchmark.bundle1");
+        persistenceUnits = SyntheticPersistenceBundles.createPersistenceUnits(bundle, unitCount, 1);
+
+        references = new ArrayList<ServiceReference>();
+        for (int i = 0; i < referenceCount; i++) {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put(SyntheticPersistenceBundles.DATASOURCE_NAME_PROPERTY,
+                    SyntheticPersistenceBundles.getDataSourceName(i % unitCount));
+            references.add(new StubServiceReference(i + 1, DataSource.class.getName(), properties, bundle));
+        }
+
+        ContainerMetrics containerMetrics = new ContainerMetrics(false, null, null);
+        matchingTracker = new DataSourceRequisiteTracker(bundle.getBundleContext(), false, containerMetrics, null,
+                null);
+        for (ParsedPersistenceUnit ppu : persistenceUnits) {
+            matchingTracker.addDependentObject(ppu, NOOP_LISTENER);
+        }
+        registrationTracker = new DataSourceRequisiteTracker(bundle.getBundleContext(), false, containerMetrics,
+                null, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (ParsedPersistenceUnit ppu : persistenceUnits) {
+            matchingTracker.removeDependentObject(ppu);
+        }
+    }
+
+    @Benchmark
+    public int isReferenceSuitable() {
+        int result = 0;
+        for (ParsedPersistenceUnit ppu : persistenceUnits) {
+            for (ServiceReference reference : references) {
+                if (matchingTracker.isReferenceSuitable(ppu, reference)) {
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public void addAndRemoveDependentObjects() {
+        for (ParsedPersistenceUnit ppu : persistenceUnits) {
+            registrationTracker.addDependentObject(ppu, NOOP_LISTENER);
+        }
+        for (ParsedPersistenceUnit ppu : persistenceUnits) {
+            registrationTracker.removeDependentObject(ppu);
+        }
+    }
+}
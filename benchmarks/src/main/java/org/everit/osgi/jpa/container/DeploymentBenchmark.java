@@ -0,0 +1,506 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+
+/**
+ * Measures the end-to-end time-to-ready of a synthetic deployment in an embedded OSGi framework. The harness starts
+ * the framework that is found on the classpath, installs and starts the bundles of a directory (the container, its
+ * dependencies, a persistence provider and a JDBC driver that registers a DataSourceFactory), then generates,
+ * installs and starts the persistence bundles and waits until all of their EntityManagerFactories are registered.
+ * In the churn scenario the bundles that register DataSourceFactory services are restarted repeatedly while load
+ * threads create EntityManagers.
+ *
+ * <p>
+ * Usage: <code>java -cp target/benchmarks.jar org.everit.osgi.jpa.container.DeploymentBenchmark [options]</code>.
+ * The options are:
+ * </p>
+ * <ul>
+ * <li>--bundles: The directory of the bundles of the environment (default: target/deployment-bundles)</li>
+ * <li>--bundle-count: The number of persistence bundles (default: 100)</li>
+ * <li>--unit-count: The number of persistence units in each bundle (default: 2)</li>
+ * <li>--entity-count: The number of entities in each persistence unit (default: 10)</li>
+ * <li>--provider: The class name of the persistence provider (default: OpenJPA)</li>
+ * <li>--jdbc-driver: The driver class that selects the DataSourceFactory (default: org.h2.Driver)</li>
+ * <li>--jdbc-url: The pattern of the JDBC URLs, formatted with the index of the bundle and the unit (default: an
+ * in-memory H2 database per persistence unit)</li>
+ * <li>--unit-property: A name=value pair that is added to the properties of every persistence unit. Can be repeated.
+ * If not specified, the settings that OpenJPA needs for unenhanced entities are used.</li>
+ * <li>--churn-cycles: The number of DataSourceFactory restarts (default: 5, 0 switches the scenario off)</li>
+ * <li>--load-threads: The number of threads that create EntityManagers during the churn (default: 4)</li>
+ * <li>--timeout: The maximum time to wait for the EntityManagerFactories in seconds (default: 300)</li>
+ * <li>--work-dir: The directory of the generated bundles and the framework storage (default: a temporary
+ * directory that is deleted at the end)</li>
+ * </ul>
+ * <p>
+ * The system properties that start with org.everit.osgi.jpa.container. are passed to the framework so the
+ * container can be configured the same way as in production.
+ * </p>
+ */
+public final class DeploymentBenchmark {
+
+    /**
+     * Samples the heap usage and the threads of the JVM during a phase of the benchmark.
+     */
+    private static class ResourceMonitor implements Runnable {
+
+        private static final long SAMPLE_PERIOD = 50;
+
+        private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+
+        private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(runnable, "deployment-benchmark-monitor");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        private volatile long peakHeap;
+
+        private volatile int peakContainerThreads;
+
+        @Override
+        public void run() {
+            peakHeap = Math.max(peakHeap, memoryMXBean.getHeapMemoryUsage().getUsed());
+            int containerThreads = 0;
+            for (ThreadInfo threadInfo : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), 0)) {
+                if ((threadInfo != null) && threadInfo.getThreadName().startsWith(CONTAINER_THREAD_PREFIX)) {
+                    containerThreads++;
+                }
+            }
+            peakContainerThreads = Math.max(peakContainerThreads, containerThreads);
+        }
+
+        public void start() {
+            threadMXBean.resetPeakThreadCount();
+            peakHeap = 0;
+            peakContainerThreads = 0;
+            executor.scheduleAtFixedRate(this, 0, SAMPLE_PERIOD, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Stops the sampling and adds the results of the phase to the report.
+         */
+        public void stop(final Map<String, Object> report, final String phase) {
+            executor.shutdownNow();
+            run();
+            report.put(phase + ".peakHeapMB", peakHeap / (1024 * 1024));
+            report.put(phase + ".peakThreads", threadMXBean.getPeakThreadCount());
+            report.put(phase + ".liveThreads", threadMXBean.getThreadCount());
+            report.put(phase + ".peakContainerThreads", peakContainerThreads);
+        }
+    }
+
+    /**
+     * Creates and closes EntityManagers with the registered EntityManagerFactories. The API of the
+     * EntityManagerFactories is called reflectively as the JPA classes of the framework are not the ones on the
+     * classpath of the harness. A lookup that finds no EntityManagerFactory counts as a failure and the thread sleeps
+     * a little before the next lookup, so it does not take the CPU from the container while the services are gone.
+     */
+    private static class LoadGenerator implements Runnable {
+
+        /**
+         * The time in milliseconds that the thread sleeps after a lookup that found no EntityManagerFactory.
+         */
+        private static final long EMPTY_LOOKUP_SLEEP = 5;
+
+        private final BundleContext context;
+
+        private final AtomicBoolean running;
+
+        private final AtomicLong operationCount;
+
+        private final AtomicLong failureCount;
+
+        public LoadGenerator(final BundleContext context, final AtomicBoolean running,
+                final AtomicLong operationCount, final AtomicLong failureCount) {
+            this.context = context;
+            this.running = running;
+            this.operationCount = operationCount;
+            this.failureCount = failureCount;
+        }
+
+        private void createEntityManager(final ServiceReference reference) {
+            Object entityManagerFactory = context.getService(reference);
+            if (entityManagerFactory == null) {
+                // Unregistered in the meantime
+                failureCount.incrementAndGet();
+                return;
+            }
+            try {
+                Class<?> emfInterface = findInterface(entityManagerFactory.getClass(),
+                        "javax.persistence.EntityManagerFactory");
+                Object entityManager = emfInterface.getMethod("createEntityManager").invoke(entityManagerFactory);
+                Method closeMethod = emfInterface.getMethod("createEntityManager").getReturnType()
+                        .getMethod("close");
+                closeMethod.invoke(entityManager);
+                operationCount.incrementAndGet();
+            } catch (Exception e) {
+                failureCount.incrementAndGet();
+            } finally {
+                context.ungetService(reference);
+            }
+        }
+
+        @Override
+        public void run() {
+            int index = 0;
+            while (running.get()) {
+                ServiceReference[] references;
+                try {
+                    references = context.getServiceReferences(null, EntityManagerFactoryCounter.FILTER);
+                } catch (InvalidSyntaxException e) {
+                    throw new IllegalStateException(e);
+                }
+                if ((references == null) || (references.length == 0)) {
+                    failureCount.incrementAndGet();
+                    try {
+                        Thread.sleep(EMPTY_LOOKUP_SLEEP);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                } else {
+                    createEntityManager(references[index % references.length]);
+                    index++;
+                }
+            }
+        }
+    }
+
+    /**
+     * The prefix of the names of the threads that the container starts.
+     */
+    private static final String CONTAINER_THREAD_PREFIX = "jpa-container-";
+
+    private static final String CONTAINER_PROPERTY_PREFIX = "org.everit.osgi.jpa.container.";
+
+    private static final String DATA_SOURCE_FACTORY_CLASS = "org.osgi.service.jdbc.DataSourceFactory";
+
+    private static final Map<String, String> DEFAULT_OPTIONS = new LinkedHashMap<String, String>();
+
+    /**
+     * The properties that OpenJPA needs to use the generated entities that are not enhanced at build time.
+     */
+    private static final Map<String, String> DEFAULT_UNIT_PROPERTIES = new LinkedHashMap<String, String>();
+
+    static {
+        DEFAULT_OPTIONS.put("bundles", "target/deployment-bundles");
+        DEFAULT_OPTIONS.put("bundle-count", "100");
+        DEFAULT_OPTIONS.put("unit-count", "2");
+        DEFAULT_OPTIONS.put("entity-count", "10");
+        DEFAULT_OPTIONS.put("provider", "org.apache.openjpa.persistence.PersistenceProviderImpl");
+        DEFAULT_OPTIONS.put("jdbc-driver", "org.h2.Driver");
+        DEFAULT_OPTIONS.put("jdbc-url", "jdbc:h2:mem:bundle%d_unit%d;DB_CLOSE_DELAY=-1");
+        DEFAULT_OPTIONS.put("churn-cycles", "5");
+        DEFAULT_OPTIONS.put("load-threads", "4");
+        DEFAULT_OPTIONS.put("timeout", "300");
+        DEFAULT_OPTIONS.put("work-dir", null);
+
+        DEFAULT_UNIT_PROPERTIES.put("openjpa.RuntimeUnenhancedClasses", "supported");
+        DEFAULT_UNIT_PROPERTIES.put("openjpa.DynamicEnhancementAgent", "false");
+    }
+
+    private static Class<?> findInterface(final Class<?> clazz, final String interfaceName) {
+        if (clazz == null) {
+            throw new IllegalArgumentException("The service does not implement " + interfaceName);
+        }
+        for (Class<?> implementedInterface : clazz.getInterfaces()) {
+            if (implementedInterface.getName().equals(interfaceName)) {
+                return implementedInterface;
+            }
+            try {
+                return findInterface(implementedInterface, interfaceName);
+            } catch (IllegalArgumentException e) {
+                // Not in the hierarchy of this interface
+                continue;
+            }
+        }
+        return findInterface(clazz.getSuperclass(), interfaceName);
+    }
+
+    private static Set<Bundle> getDataSourceFactoryBundles(final BundleContext context) throws InvalidSyntaxException {
+        Set<Bundle> result = new LinkedHashSet<Bundle>();
+        ServiceReference[] references = context.getServiceReferences(DATA_SOURCE_FACTORY_CLASS, null);
+        if (references != null) {
+            for (ServiceReference reference : references) {
+                result.add(reference.getBundle());
+            }
+        }
+        return result;
+    }
+
+    private static int getIntOption(final Map<String, String> options, final String name) {
+        try {
+            return Integer.parseInt(options.get(name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + name + " must be a number: " + options.get(name), e);
+        }
+    }
+
+    private static List<Bundle> installBundles(final BundleContext context, final List<File> bundleFiles)
+            throws BundleException {
+        List<Bundle> result = new ArrayList<Bundle>();
+        for (File bundleFile : bundleFiles) {
+            result.add(context.installBundle(bundleFile.toURI().toString()));
+        }
+        return result;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>(DEFAULT_OPTIONS);
+        Map<String, String> unitProperties = new LinkedHashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : args[i];
+            if (!DEFAULT_OPTIONS.containsKey(name) && !"unit-property".equals(name)) {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value of option " + args[i]);
+            }
+            i++;
+            if ("unit-property".equals(name)) {
+                int separatorIndex = args[i].indexOf('=');
+                if (separatorIndex < 1) {
+                    throw new IllegalArgumentException("Unit properties must be in name=value form: " + args[i]);
+                }
+                unitProperties.put(args[i].substring(0, separatorIndex), args[i].substring(separatorIndex + 1));
+            } else {
+                options.put(name, args[i]);
+            }
+        }
+        if (unitProperties.isEmpty()) {
+            unitProperties.putAll(DEFAULT_UNIT_PROPERTIES);
+        }
+
+        boolean temporaryWorkDirectory = (options.get("work-dir") == null);
+        File workDirectory = temporaryWorkDirectory ? SyntheticPersistenceBundles
+                .createTempDirectory("deployment-benchmark") : new File(options.get("work-dir"));
+        try {
+            Map<String, Object> report = run(options, unitProperties, workDirectory);
+            for (Entry<String, Object> entry : report.entrySet()) {
+                System.out.println(entry.getKey() + ": " + entry.getValue());
+            }
+        } finally {
+            if (temporaryWorkDirectory) {
+                SyntheticPersistenceBundles.delete(workDirectory);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Framework newFramework(final File storageDirectory) {
+        Map<String, String> configuration = new HashMap<String, String>();
+        configuration.put(Constants.FRAMEWORK_STORAGE, storageDirectory.getAbsolutePath());
+        configuration.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        for (String propertyName : System.getProperties().stringPropertyNames()) {
+            if (propertyName.startsWith(CONTAINER_PROPERTY_PREFIX)) {
+                configuration.put(propertyName, System.getProperty(propertyName));
+            }
+        }
+        Iterator<FrameworkFactory> frameworkFactories = ServiceLoader.load(FrameworkFactory.class).iterator();
+        if (!frameworkFactories.hasNext()) {
+            throw new IllegalStateException("No OSGi framework found on the classpath");
+        }
+        return frameworkFactories.next().newFramework(configuration);
+    }
+
+    private static Map<String, Object> run(final Map<String, String> options,
+            final Map<String, String> unitProperties, final File workDirectory) throws Exception {
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        long timeout = TimeUnit.SECONDS.toMillis(getIntOption(options, "timeout"));
+
+        SyntheticDeployment deployment = new SyntheticDeployment(workDirectory, getIntOption(options,
+                "bundle-count"), getIntOption(options, "unit-count"), getIntOption(options, "entity-count"),
+                options.get("provider"), options.get("jdbc-driver"), options.get("jdbc-url"), unitProperties);
+        long startTime = System.currentTimeMillis();
+        List<File> persistenceBundleFiles = deployment.generate();
+        int expectedCount = deployment.getExpectedEntityManagerFactoryCount();
+        report.put("persistenceBundles", persistenceBundleFiles.size());
+        report.put("entityManagerFactories", expectedCount);
+        report.put("generation.timeMs", System.currentTimeMillis() - startTime);
+
+        File[] environmentBundleFiles = new File(options.get("bundles")).listFiles();
+        if ((environmentBundleFiles == null) || (environmentBundleFiles.length == 0)) {
+            throw new IllegalArgumentException("No bundles found in " + options.get("bundles"));
+        }
+        Arrays.sort(environmentBundleFiles);
+
+        Framework framework = newFramework(new File(workDirectory, "framework"));
+        ResourceMonitor resourceMonitor = new ResourceMonitor();
+        resourceMonitor.start();
+        startTime = System.currentTimeMillis();
+        framework.start();
+        BundleContext context = framework.getBundleContext();
+        try {
+            startBundles(installBundles(context, Arrays.asList(environmentBundleFiles)));
+            report.put("framework.startTimeMs", System.currentTimeMillis() - startTime);
+            resourceMonitor.stop(report, "framework");
+
+            EntityManagerFactoryCounter counter = new EntityManagerFactoryCounter();
+            context.addServiceListener(counter, EntityManagerFactoryCounter.FILTER);
+
+            resourceMonitor = new ResourceMonitor();
+            resourceMonitor.start();
+            counter.reset(expectedCount);
+            startBundles(installBundles(context, persistenceBundleFiles));
+            boolean ready = counter.awaitCount(expectedCount, timeout);
+            report.put("deployment.timeToFirstEmfMs", counter.getTimeToFirst());
+            report.put("deployment.timeToAllEmfsMs", ready ? counter.getTimeToAll() : "TIMEOUT (" + counter.getCount()
+                    + "/" + expectedCount + ")");
+            resourceMonitor.stop(report, "deployment");
+
+            int churnCycles = getIntOption(options, "churn-cycles");
+            if (ready && (churnCycles > 0)) {
+                runChurn(context, counter, expectedCount, churnCycles, getIntOption(options, "load-threads"),
+                        timeout, report);
+            }
+        } finally {
+            framework.stop();
+            framework.waitForStop(timeout);
+        }
+        return report;
+    }
+
+    private static void runChurn(final BundleContext context, final EntityManagerFactoryCounter counter,
+            final int expectedCount, final int cycles, final int loadThreads, final long timeout,
+            final Map<String, Object> report) throws Exception {
+        Set<Bundle> dataSourceFactoryBundles = getDataSourceFactoryBundles(context);
+        if (dataSourceFactoryBundles.isEmpty()) {
+            report.put("churn", "No DataSourceFactory bundles found");
+            return;
+        }
+        report.put("churn.dataSourceFactoryBundles", dataSourceFactoryBundles.size());
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong operationCount = new AtomicLong();
+        AtomicLong failureCount = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < loadThreads; i++) {
+            Thread thread = new Thread(new LoadGenerator(context, running, operationCount, failureCount),
+                    "deployment-benchmark-load-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        ResourceMonitor resourceMonitor = new ResourceMonitor();
+        resourceMonitor.start();
+        long startTime = System.currentTimeMillis();
+        List<Long> stopTimes = new ArrayList<Long>();
+        List<Long> recoveryTimes = new ArrayList<Long>();
+        try {
+            for (int cycle = 0; cycle < cycles; cycle++) {
+                long stopStartedAt = System.currentTimeMillis();
+                for (Bundle bundle : dataSourceFactoryBundles) {
+                    bundle.stop();
+                }
+                if (!counter.awaitCount(0, timeout)) {
+                    report.put("churn.cycle" + cycle, "TIMEOUT while stopping (" + counter.getCount() + " left)");
+                    break;
+                }
+                stopTimes.add(System.currentTimeMillis() - stopStartedAt);
+
+                counter.reset(expectedCount);
+                for (Bundle bundle : dataSourceFactoryBundles) {
+                    bundle.start();
+                }
+                if (!counter.awaitCount(expectedCount, timeout)) {
+                    report.put("churn.cycle" + cycle, "TIMEOUT while starting (" + counter.getCount() + "/"
+                            + expectedCount + ")");
+                    break;
+                }
+                recoveryTimes.add(counter.getTimeToAll());
+            }
+        } finally {
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        long duration = System.currentTimeMillis() - startTime;
+        report.put("churn.cycles", recoveryTimes.size());
+        report.put("churn.stopTimesMs", stopTimes);
+        report.put("churn.timeToAllEmfsMs", recoveryTimes);
+        report.put("churn.loadOperations", operationCount.get());
+        report.put("churn.loadOperationsPerSecond", (duration == 0) ? 0 : operationCount.get() * 1000 / duration);
+        report.put("churn.loadFailures", failureCount.get());
+        resourceMonitor.stop(report, "churn");
+    }
+
+    /**
+     * Starts the bundles that are not fragments. A bundle that cannot be started is reported and skipped so the
+     * measurement shows the effect of the missing bundle.
+     */
+    private static void startBundles(final List<Bundle> bundles) {
+        for (Bundle bundle : bundles) {
+            if (bundle.getHeaders().get(Constants.FRAGMENT_HOST) == null) {
+                try {
+                    bundle.start();
+                } catch (BundleException e) {
+                    System.err.println("Cannot start bundle " + bundle.getLocation() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private DeploymentBenchmark() {
+    }
+}
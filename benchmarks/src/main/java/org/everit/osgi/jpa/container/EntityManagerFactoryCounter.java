@@ -0,0 +1,119 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+
+/**
+ * Counts the registered EntityManagerFactory services and records when the first and when the expected number of
+ * services became available since the last reset.
+ */
+class EntityManagerFactoryCounter implements ServiceListener {
+
+    /**
+     * The filter of the services that are counted.
+     */
+    public static final String FILTER = "(objectClass=javax.persistence.EntityManagerFactory)";
+
+    private static final long NOT_REACHED = -1;
+
+    private int count = 0;
+
+    private int expectedCount;
+
+    private long startedAt;
+
+    private long firstRegisteredAt = NOT_REACHED;
+
+    private long allRegisteredAt = NOT_REACHED;
+
+    /**
+     * Waits until the number of the registered services is the target count.
+     *
+     * @param targetCount
+     *            The number of services to wait for.
+     * @param timeout
+     *            The maximum time to wait in milliseconds.
+     * @return Whether the target count was reached.
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting.
+     */
+    public synchronized boolean awaitCount(final int targetCount, final long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while ((count != targetCount) && (remaining > 0)) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return count == targetCount;
+    }
+
+    /**
+     * The time between the last reset and the registration of the expected number of services or -1 if it was not
+     * reached.
+     */
+    public synchronized long getTimeToAll() {
+        return (allRegisteredAt == NOT_REACHED) ? NOT_REACHED : allRegisteredAt - startedAt;
+    }
+
+    /**
+     * The time between the last reset and the first registration or -1 if no service was registered since then.
+     */
+    public synchronized long getTimeToFirst() {
+        return (firstRegisteredAt == NOT_REACHED) ? NOT_REACHED : firstRegisteredAt - startedAt;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Starts a new measurement.
+     *
+     * @param newExpectedCount
+     *            The number of services that should be registered.
+     */
+    public synchronized void reset(final int newExpectedCount) {
+        expectedCount = newExpectedCount;
+        startedAt = System.currentTimeMillis();
+        firstRegisteredAt = NOT_REACHED;
+        allRegisteredAt = NOT_REACHED;
+    }
+
+    @Override
+    public synchronized void serviceChanged(final ServiceEvent event) {
+        if (event.getType() == ServiceEvent.REGISTERED) {
+            count++;
+            long now = System.currentTimeMillis();
+            if (firstRegisteredAt == NOT_REACHED) {
+                firstRegisteredAt = now;
+            }
+            if ((count == expectedCount) && (allRegisteredAt == NOT_REACHED)) {
+                allRegisteredAt = now;
+            }
+        } else if (event.getType() == ServiceEvent.UNREGISTERING) {
+            count--;
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,117 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.apache.aries.jpa.container.parsing.impl.PersistenceDescriptorParserImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+
+/**
+ * Measures the search and the parsing of the persistence descriptors of a bundle with and without the persistence
+ * descriptor cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParseBundleBenchmark {
+
+    @Param({ "1", "10", "50" })
+    private int unitCount;
+
+    @Param({ "10", "100" })
+    private int classCount;
+
+    /**
+     * Whether the persistence units are loaded from the persistence descriptor cache.
+     */
+    @Param({ "false", "true" })
+    private boolean cached;
+
+    private File workDirectory;
+
+    private Bundle bundle;
+
+    private PersistenceBundleManager persistenceBundleManager;
+
+    private static void setField(final Object target, final String fieldName, final Object value) {
+        try {
+            Field field = PersistenceBundleManager.class.getDeclaredField(fieldName);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDirectory = SyntheticPersistenceBundles.createTempDirectory("parse-bundle-benchmark");
+        bundle = SyntheticPersistenceBundles.createBundle(1, new File(workDirectory, "bundle"), unitCount,
+                classCount);
+
+        persistenceBundleManager = new PersistenceBundleManager();
+        setField(persistenceBundleManager, "persistenceDescriptorParser", new PersistenceDescriptorParserImpl());
+        File cacheDirectory = cached ? new File(workDirectory, "cache") : null;
+        setField(persistenceBundleManager, "persistenceDescriptorCache", new PersistenceDescriptorCache(
+                cacheDirectory));
+
+        Collection<ParsedPersistenceUnit> pUnits = persistenceBundleManager.parseBundle(bundle);
+        if (pUnits.size() != unitCount) {
+            throw new IllegalStateException("Expected " + unitCount + " persistence units but parsed "
+                    + pUnits.size());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticPersistenceBundles.delete(workDirectory);
+    }
+
+    @Benchmark
+    public Collection<ParsedPersistenceUnit> parseBundle() {
+        return persistenceBundleManager.parseBundle(bundle);
+    }
+}
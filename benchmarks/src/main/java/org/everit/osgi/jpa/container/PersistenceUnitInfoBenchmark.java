@@ -0,0 +1,89 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.spi.PersistenceProvider;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Measures the construction of the PersistenceUnitInfo that is passed to the persistence provider when a
+ * persistence unit starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PersistenceUnitInfoBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    private int classCount;
+
+    private ParsedPersistenceUnit persistenceUnit;
+
+    private ServiceReference providerReference;
+
+    private ManagedClassIndex managedClassIndex;
+
+    private Properties properties;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Bundle bundle = StubBundles.createBundle(1, "org.everit.osgi.jpa.container.benchmark.bundle1");
+        persistenceUnit = SyntheticPersistenceBundles.createPersistenceUnits(bundle, 1, classCount).get(0);
+
+        Map<String, Object> providerProperties = new HashMap<String, Object>();
+        providerProperties.put("javax.persistence.provider", StubPersistenceProvider.class.getName());
+        providerReference = new StubServiceReference(1, PersistenceProvider.class.getName(), providerProperties,
+                bundle);
+
+        managedClassIndex = new ManagedClassIndex(null);
+        properties = (Properties) persistenceUnit.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.PROPERTIES);
+    }
+
+    @Benchmark
+    public PersistenceUnitInfoImpl createPersistenceUnitInfo() {
+        return new PersistenceUnitInfoImpl(persistenceUnit, providerReference, null, null, managedClassIndex,
+                properties);
+    }
+}
@@ -0,0 +1,91 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.aries.jpa.container.impl.InvalidRangeCombination;
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.apache.aries.util.VersionRange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * Measures the resolution of the persistence provider name and of the combined provider version range of the
+ * persistence units of a bundle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProviderNameBenchmark {
+
+    @Param({ "1", "10", "100" })
+    private int unitCount;
+
+    private List<ParsedPersistenceUnit> persistenceUnits;
+
+    private List<VersionRange> versionRanges;
+
+    private PersistenceProviderRequisiteTracker tracker;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InvalidSyntaxException {
+        Bundle bundle = StubBundles.createBundle(1, "org.everit.osgi.jpa.container.benchmark.bundle1");
+        persistenceUnits = SyntheticPersistenceBundles.createPersistenceUnits(bundle, unitCount, 1);
+        versionRanges = new ArrayList<VersionRange>();
+        for (int i = 0; i < unitCount; i++) {
+            versionRanges.add(VersionRange.parseVersionRange(SyntheticPersistenceBundles.getProviderVersionRange(i,
+                    unitCount)));
+        }
+        tracker = new PersistenceProviderRequisiteTracker(bundle.getBundleContext(), null);
+        if (tracker.getProviderName(persistenceUnits) == null) {
+            throw new IllegalStateException("The provider of the synthetic persistence units cannot be resolved");
+        }
+    }
+
+    @Benchmark
+    public VersionRange combineVersionRanges() throws InvalidRangeCombination {
+        return tracker.combineVersionRanges(versionRanges);
+    }
+
+    @Benchmark
+    public ProviderNameWithVersionRange getProviderName() {
+        return tracker.getProviderName(persistenceUnits);
+    }
+}
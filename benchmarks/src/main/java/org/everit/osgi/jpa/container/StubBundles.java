@@ -0,0 +1,205 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Vector;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.Version;
+
+/**
+ * Creates bundles and bundle contexts for the benchmarks without an OSGi framework. The entries of a stub bundle are
+ * served from a directory and its bundle context can only create filters.
+ */
+final class StubBundles {
+
+    /**
+     * The last modification time of every stub bundle, so the results do not depend on the time of the run.
+     */
+    private static final long LAST_MODIFIED = 1000000000000L;
+
+    private static final Version VERSION = new Version(1, 0, 0);
+
+    private static class BundleHandler implements InvocationHandler {
+
+        private final long bundleId;
+
+        private final String symbolicName;
+
+        private final File root;
+
+        private final Dictionary<String, String> headers;
+
+        private final BundleContext bundleContext;
+
+        public BundleHandler(final long bundleId, final String symbolicName, final File root,
+                final Dictionary<String, String> headers) {
+            this.bundleId = bundleId;
+            this.symbolicName = symbolicName;
+            this.root = root;
+            this.headers = headers;
+            bundleContext = (BundleContext) Proxy.newProxyInstance(StubBundles.class.getClassLoader(),
+                    new Class<?>[] { BundleContext.class }, new BundleContextHandler());
+        }
+
+        private URL getEntry(final String path) throws MalformedURLException {
+            File file = new File(root, path.startsWith("/") ? path.substring(1) : path);
+            return file.exists() ? file.toURI().toURL() : null;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            String methodName = method.getName();
+            if ("getBundleId".equals(methodName)) {
+                return bundleId;
+            }
+            if ("getSymbolicName".equals(methodName)) {
+                return symbolicName;
+            }
+            if ("getVersion".equals(methodName)) {
+                return VERSION;
+            }
+            if ("getHeaders".equals(methodName)) {
+                return headers;
+            }
+            if ("getEntry".equals(methodName) || "getResource".equals(methodName)) {
+                return getEntry((String) args[0]);
+            }
+            if ("getResources".equals(methodName)) {
+                URL entry = getEntry((String) args[0]);
+                return (entry == null) ? null : Collections.enumeration(Collections.singletonList(entry));
+            }
+            if ("findEntries".equals(methodName) || "getEntryPaths".equals(methodName)) {
+                return findEntries((String) args[0]);
+            }
+            if ("getLastModified".equals(methodName)) {
+                return LAST_MODIFIED;
+            }
+            if ("getState".equals(methodName)) {
+                return Bundle.ACTIVE;
+            }
+            if ("getLocation".equals(methodName)) {
+                return "stub:" + symbolicName;
+            }
+            if ("getBundleContext".equals(methodName)) {
+                return bundleContext;
+            }
+            if ("loadClass".equals(methodName)) {
+                return StubBundles.class.getClassLoader().loadClass((String) args[0]);
+            }
+            if ("compareTo".equals(methodName)) {
+                long otherBundleId = ((Bundle) args[0]).getBundleId();
+                return (bundleId < otherBundleId) ? -1 : ((bundleId == otherBundleId) ? 0 : 1);
+            }
+            if ("equals".equals(methodName)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(methodName)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(methodName)) {
+                return symbolicName + "_" + VERSION;
+            }
+            return null;
+        }
+
+        private Enumeration<URL> findEntries(final String path) throws MalformedURLException {
+            File directory = new File(root, path.startsWith("/") ? path.substring(1) : path);
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return null;
+            }
+            List<URL> result = new Vector<URL>();
+            for (File file : files) {
+                result.add(file.toURI().toURL());
+            }
+            return Collections.enumeration(result);
+        }
+    }
+
+    private static class BundleContextHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            String methodName = method.getName();
+            if ("createFilter".equals(methodName)) {
+                return FrameworkUtil.createFilter((String) args[0]);
+            }
+            if ("getProperty".equals(methodName)) {
+                return System.getProperty((String) args[0]);
+            }
+            if ("equals".equals(methodName)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(methodName)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(methodName)) {
+                return "Stub bundle context";
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Creates a stub bundle.
+     *
+     * @param bundleId
+     *            The id of the bundle.
+     * @param symbolicName
+     *            The symbolic name of the bundle.
+     * @param root
+     *            The directory that holds the entries of the bundle.
+     * @param headers
+     *            The manifest headers of the bundle.
+     * @return The bundle.
+     */
+    public static Bundle createBundle(final long bundleId, final String symbolicName, final File root,
+            final Dictionary<String, String> headers) {
+        return (Bundle) Proxy.newProxyInstance(StubBundles.class.getClassLoader(), new Class<?>[] { Bundle.class },
+                new BundleHandler(bundleId, symbolicName, root, headers));
+    }
+
+    /**
+     * Creates a stub bundle that has no entries.
+     */
+    public static Bundle createBundle(final long bundleId, final String symbolicName) {
+        return createBundle(bundleId, symbolicName, new File(System.getProperty("java.io.tmpdir"), "nonexistent-"
+                + symbolicName), new Hashtable<String, String>());
+    }
+
+    private StubBundles() {
+    }
+}
@@ -0,0 +1,53 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceUnitInfo;
+import javax.persistence.spi.ProviderUtil;
+
+/**
+ * A persistence provider that does not create EntityManagerFactories. The benchmarks only need its class name and
+ * its service reference.
+ */
+public class StubPersistenceProvider implements PersistenceProvider {
+
+    @Override
+    public EntityManagerFactory createContainerEntityManagerFactory(final PersistenceUnitInfo info,
+            @SuppressWarnings("rawtypes") final Map map) {
+        return null;
+    }
+
+    @Override
+    public EntityManagerFactory createEntityManagerFactory(final String emName,
+            @SuppressWarnings("rawtypes") final Map map) {
+        return null;
+    }
+
+    @Override
+    public ProviderUtil getProviderUtil() {
+        return null;
+    }
+}
@@ -0,0 +1,114 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * A service reference that only holds service properties. The references are ordered the same way as the framework
+ * orders them: by ranking and then by service id.
+ */
+final class StubServiceReference implements ServiceReference {
+
+    /**
+     * The properties of the service with case insensitive keys.
+     */
+    private final Map<String, Object> properties = new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER);
+
+    private final Bundle bundle;
+
+    /**
+     * Constructor.
+     *
+     * @param serviceId
+     *            The id of the service.
+     * @param objectClass
+     *            The interface that the service is registered with.
+     * @param properties
+     *            The additional properties of the service.
+     * @param bundle
+     *            The bundle that registered the service.
+     */
+    public StubServiceReference(final long serviceId, final String objectClass, final Map<String, Object> properties,
+            final Bundle bundle) {
+        this.properties.putAll(properties);
+        this.properties.put(Constants.SERVICE_ID, serviceId);
+        this.properties.put(Constants.OBJECTCLASS, new String[] { objectClass });
+        this.bundle = bundle;
+    }
+
+    @Override
+    public int compareTo(final Object other) {
+        ServiceReference otherReference = (ServiceReference) other;
+        int ranking = getRanking(this);
+        int otherRanking = getRanking(otherReference);
+        if (ranking != otherRanking) {
+            return (ranking < otherRanking) ? -1 : 1;
+        }
+        long serviceId = (Long) getProperty(Constants.SERVICE_ID);
+        long otherServiceId = (Long) otherReference.getProperty(Constants.SERVICE_ID);
+        if (serviceId == otherServiceId) {
+            return 0;
+        }
+        return (serviceId > otherServiceId) ? -1 : 1;
+    }
+
+    @Override
+    public Bundle getBundle() {
+        return bundle;
+    }
+
+    @Override
+    public Object getProperty(final String key) {
+        return properties.get(key);
+    }
+
+    @Override
+    public String[] getPropertyKeys() {
+        return properties.keySet().toArray(new String[properties.size()]);
+    }
+
+    private static int getRanking(final ServiceReference reference) {
+        Object ranking = reference.getProperty(Constants.SERVICE_RANKING);
+        return (ranking instanceof Integer) ? (Integer) ranking : 0;
+    }
+
+    @Override
+    public Bundle[] getUsingBundles() {
+        return null;
+    }
+
+    @Override
+    public boolean isAssignableTo(final Bundle otherBundle, final String className) {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "StubServiceReference" + properties;
+    }
+}
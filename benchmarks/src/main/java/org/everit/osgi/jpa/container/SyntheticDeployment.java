@@ -0,0 +1,333 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import javax.persistence.EntityManagerFactory;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Generates persistence bundles for the deployment benchmark. Every bundle has the same number of persistence units
+ * and every persistence unit has its own entity classes and its own database. The entities are compiled with the
+ * system Java compiler so the harness must run on a JDK.
+ */
+class SyntheticDeployment {
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final String PACKAGE_PREFIX = "org.everit.osgi.jpa.container.benchmark.deployment";
+
+    /**
+     * The number of bundles whose entities are compiled in one run of the compiler.
+     */
+    private static final int COMPILE_BATCH_SIZE = 50;
+
+    private final File workDirectory;
+
+    private final int bundleCount;
+
+    private final int unitCount;
+
+    private final int entityCount;
+
+    private final String providerClassName;
+
+    private final String jdbcDriver;
+
+    /**
+     * The pattern of the JDBC URL of the persistence units. It is formatted with the index of the bundle and the
+     * index of the persistence unit.
+     */
+    private final String jdbcUrlPattern;
+
+    private final Map<String, String> unitProperties;
+
+    /**
+     * Constructor.
+     *
+     * @param workDirectory
+     *            The directory where the sources, the classes and the bundles are generated.
+     * @param bundleCount
+     *            The number of persistence bundles.
+     * @param unitCount
+     *            The number of persistence units in each bundle.
+     * @param entityCount
+     *            The number of entities in each persistence unit.
+     * @param providerClassName
+     *            The persistence provider of the persistence units.
+     * @param jdbcDriver
+     *            The JDBC driver that the DataSourceFactory of the persistence units is selected by.
+     * @param jdbcUrlPattern
+     *            The pattern of the JDBC URLs.
+     * @param unitProperties
+     *            Additional properties of the persistence units, typically provider specific settings.
+     */
+    public SyntheticDeployment(final File workDirectory, final int bundleCount, final int unitCount,
+            final int entityCount, final String providerClassName, final String jdbcDriver,
+            final String jdbcUrlPattern, final Map<String, String> unitProperties) {
+        this.workDirectory = workDirectory;
+        this.bundleCount = bundleCount;
+        this.unitCount = unitCount;
+        this.entityCount = entityCount;
+        this.providerClassName = providerClassName;
+        this.jdbcDriver = jdbcDriver;
+        this.jdbcUrlPattern = jdbcUrlPattern;
+        this.unitProperties = unitProperties;
+    }
+
+    private static void addDirectory(final JarOutputStream out, final File directory, final String path)
+            throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String entryName = path + file.getName();
+            if (file.isDirectory()) {
+                out.putNextEntry(new JarEntry(entryName + "/"));
+                out.closeEntry();
+                addDirectory(out, file, entryName + "/");
+            } else {
+                addFile(out, file, entryName);
+            }
+        }
+    }
+
+    private static void addFile(final JarOutputStream out, final File file, final String entryName)
+            throws IOException {
+        out.putNextEntry(new JarEntry(entryName));
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read = in.read(buffer);
+            while (read >= 0) {
+                out.write(buffer, 0, read);
+                read = in.read(buffer);
+            }
+        } finally {
+            in.close();
+        }
+        out.closeEntry();
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), ENCODING);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void compile(final List<File> sourceFiles, final File classesDirectory) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("The deployment benchmark must run on a JDK to compile the entities");
+        }
+        String persistenceApiLocation = new File(EntityManagerFactory.class.getProtectionDomain().getCodeSource()
+                .getLocation().getPath()).getAbsolutePath();
+
+        List<String> arguments = new ArrayList<String>();
+        arguments.add("-nowarn");
+        arguments.add("-classpath");
+        arguments.add(persistenceApiLocation);
+        arguments.add("-d");
+        arguments.add(classesDirectory.getAbsolutePath());
+        for (File sourceFile : sourceFiles) {
+            arguments.add(sourceFile.getAbsolutePath());
+        }
+        int result = compiler.run(null, null, null, arguments.toArray(new String[arguments.size()]));
+        if (result != 0) {
+            throw new IllegalStateException("Compilation of the generated entities failed");
+        }
+    }
+
+    private String createEntitySource(final String packageName, final String className) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(packageName).append(";\n\n");
+        sb.append("@javax.persistence.Entity\n");
+        sb.append("public class ").append(className).append(" {\n\n");
+        sb.append("    @javax.persistence.Id\n");
+        sb.append("    private Long id;\n\n");
+        sb.append("    private String name;\n\n");
+        sb.append("    private int counter;\n\n");
+        sb.append("    public Long getId() {\n        return id;\n    }\n\n");
+        sb.append("    public void setId(Long id) {\n        this.id = id;\n    }\n\n");
+        sb.append("    public String getName() {\n        return name;\n    }\n\n");
+        sb.append("    public void setName(String name) {\n        this.name = name;\n    }\n\n");
+        sb.append("    public int getCounter() {\n        return counter;\n    }\n\n");
+        sb.append("    public void setCounter(int counter) {\n        this.counter = counter;\n    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private String createPersistenceXml(final int bundleIndex) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"" + ENCODING + "\"?>\n");
+        sb.append("<persistence xmlns=\"http://java.sun.com/xml/ns/persistence\" version=\"2.0\">\n");
+        for (int unitIndex = 0; unitIndex < unitCount; unitIndex++) {
+            sb.append("  <persistence-unit name=\"").append(getUnitName(bundleIndex, unitIndex))
+                    .append("\" transaction-type=\"RESOURCE_LOCAL\">\n");
+            sb.append("    <provider>").append(providerClassName).append("</provider>\n");
+            for (int entityIndex = 0; entityIndex < entityCount; entityIndex++) {
+                sb.append("    <class>").append(getPackageName(bundleIndex, unitIndex)).append(".")
+                        .append(getEntityClassName(entityIndex)).append("</class>\n");
+            }
+            sb.append("    <exclude-unlisted-classes>true</exclude-unlisted-classes>\n");
+            sb.append("    <properties>\n");
+            appendProperty(sb, "javax.persistence.jdbc.driver", jdbcDriver);
+            appendProperty(sb, "javax.persistence.jdbc.url", String.format(jdbcUrlPattern, bundleIndex, unitIndex));
+            appendProperty(sb, "javax.persistence.jdbc.user", "sa");
+            appendProperty(sb, "javax.persistence.jdbc.password", "");
+            for (Entry<String, String> unitProperty : unitProperties.entrySet()) {
+                appendProperty(sb, unitProperty.getKey(), unitProperty.getValue());
+            }
+            sb.append("    </properties>\n");
+            sb.append("  </persistence-unit>\n");
+        }
+        sb.append("</persistence>\n");
+        return sb.toString();
+    }
+
+    private static void appendProperty(final StringBuilder sb, final String name, final String value) {
+        sb.append("      <property name=\"").append(escape(name)).append("\" value=\"").append(escape(value))
+                .append("\"/>\n");
+    }
+
+    private static String escape(final String value) {
+        return value.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;");
+    }
+
+    private Manifest createManifest(final int bundleIndex) {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Bundle-ManifestVersion", "2");
+        attributes.putValue("Bundle-SymbolicName", PACKAGE_PREFIX + ".bundle" + bundleIndex);
+        attributes.putValue("Bundle-Version", "1.0.0");
+        attributes.putValue("Meta-Persistence", "META-INF/persistence.xml");
+        attributes.putValue("Import-Package", "javax.persistence;version=\"[1.1,3)\"");
+        // The provider may enhance or subclass the entities with its own classes
+        attributes.putValue("DynamicImport-Package", "*");
+        return manifest;
+    }
+
+    /**
+     * Generates the persistence bundles.
+     *
+     * @return The bundle files in the order of their index.
+     * @throws IOException
+     *             if the bundles cannot be written.
+     */
+    public List<File> generate() throws IOException {
+        File sourcesDirectory = new File(workDirectory, "sources");
+        File classesDirectory = new File(workDirectory, "classes");
+        File bundlesDirectory = new File(workDirectory, "bundles");
+        if (!classesDirectory.mkdirs() || !bundlesDirectory.mkdirs()) {
+            throw new IOException("Cannot create directories in " + workDirectory);
+        }
+
+        List<File> sourceFiles = new ArrayList<File>();
+        for (int bundleIndex = 0; bundleIndex < bundleCount; bundleIndex++) {
+            for (int unitIndex = 0; unitIndex < unitCount; unitIndex++) {
+                String packageName = getPackageName(bundleIndex, unitIndex);
+                for (int entityIndex = 0; entityIndex < entityCount; entityIndex++) {
+                    String className = getEntityClassName(entityIndex);
+                    File sourceFile = new File(sourcesDirectory, packageName.replace('.', '/') + "/" + className
+                            + ".java");
+                    write(sourceFile, createEntitySource(packageName, className));
+                    sourceFiles.add(sourceFile);
+                }
+            }
+            if ((((bundleIndex + 1) % COMPILE_BATCH_SIZE) == 0) || (bundleIndex == (bundleCount - 1))) {
+                if (!sourceFiles.isEmpty()) {
+                    compile(sourceFiles, classesDirectory);
+                }
+                sourceFiles.clear();
+            }
+        }
+
+        List<File> bundleFiles = new ArrayList<File>();
+        for (int bundleIndex = 0; bundleIndex < bundleCount; bundleIndex++) {
+            File persistenceXml = new File(workDirectory, "descriptors/bundle" + bundleIndex + "/persistence.xml");
+            write(persistenceXml, createPersistenceXml(bundleIndex));
+
+            File bundleFile = new File(bundlesDirectory, "bundle" + bundleIndex + ".jar");
+            OutputStream fileOut = new FileOutputStream(bundleFile);
+            try {
+                JarOutputStream out = new JarOutputStream(fileOut, createManifest(bundleIndex));
+                addFile(out, persistenceXml, "META-INF/persistence.xml");
+                String bundlePackagePath = getBundlePackageName(bundleIndex).replace('.', '/');
+                addDirectory(out, new File(classesDirectory, bundlePackagePath), bundlePackagePath + "/");
+                out.close();
+            } finally {
+                fileOut.close();
+            }
+            bundleFiles.add(bundleFile);
+        }
+        return bundleFiles;
+    }
+
+    private static String getBundlePackageName(final int bundleIndex) {
+        return PACKAGE_PREFIX + ".bundle" + bundleIndex;
+    }
+
+    private static String getEntityClassName(final int entityIndex) {
+        return "Entity" + entityIndex;
+    }
+
+    private static String getPackageName(final int bundleIndex, final int unitIndex) {
+        return getBundlePackageName(bundleIndex) + ".unit" + unitIndex;
+    }
+
+    private static String getUnitName(final int bundleIndex, final int unitIndex) {
+        return "bundle" + bundleIndex + "unit" + unitIndex;
+    }
+
+    /**
+     * The number of EntityManagerFactories that the deployment should register.
+     */
+    public int getExpectedEntityManagerFactoryCount() {
+        return bundleCount * unitCount;
+    }
+}
@@ -0,0 +1,225 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.osgi.framework.Bundle;
+
+/**
+ * Generates persistence bundles for the benchmarks. The generated content depends only on the parameters so the
+ * results of different runs and different container versions can be compared.
+ */
+final class SyntheticPersistenceBundles {
+
+    /**
+     * The name of the JNDI service name property that the DataSource expressions of the generated units filter on.
+     */
+    public static final String DATASOURCE_NAME_PROPERTY = "osgi.jndi.service.name";
+
+    private static final String ENTITY_PACKAGE = "org.everit.osgi.jpa.container.benchmark.entity";
+
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Returns the name of a generated persistence unit.
+     */
+    public static String getUnitName(final int unitIndex) {
+        return "unit" + unitIndex;
+    }
+
+    /**
+     * Returns the name of the DataSource that a generated persistence unit refers to.
+     */
+    public static String getDataSourceName(final int unitIndex) {
+        return "benchmarkDS" + unitIndex;
+    }
+
+    /**
+     * Returns the DataSource expression of a generated persistence unit.
+     */
+    public static String getDataSourceExpression(final int unitIndex) {
+        return "osgi:service/javax.sql.DataSource/(" + DATASOURCE_NAME_PROPERTY + "=" + getDataSourceName(unitIndex)
+                + ")";
+    }
+
+    /**
+     * Returns the required provider version range of a generated persistence unit. The ranges of the units of a
+     * bundle narrow each other but they always have a common part.
+     */
+    public static String getProviderVersionRange(final int unitIndex, final int unitCount) {
+        return "[1." + unitIndex + ",9." + (unitCount - unitIndex) + ")";
+    }
+
+    private static List<String> getClassNames(final int unitIndex, final int classCount) {
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < classCount; i++) {
+            result.add(ENTITY_PACKAGE + ".Unit" + unitIndex + "Entity" + i);
+        }
+        return result;
+    }
+
+    /**
+     * Creates the content of a persistence.xml.
+     *
+     * @param unitCount
+     *            The number of persistence units in the descriptor.
+     * @param classCount
+     *            The number of listed managed classes in each persistence unit.
+     * @return The persistence descriptor.
+     */
+    public static String createPersistenceXml(final int unitCount, final int classCount) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"" + ENCODING + "\"?>\n");
+        sb.append("<persistence xmlns=\"http://java.sun.com/xml/ns/persistence\" version=\"2.0\">\n");
+        for (int unitIndex = 0; unitIndex < unitCount; unitIndex++) {
+            sb.append("  <persistence-unit name=\"").append(getUnitName(unitIndex))
+                    .append("\" transaction-type=\"RESOURCE_LOCAL\">\n");
+            sb.append("    <provider>").append(StubPersistenceProvider.class.getName()).append("</provider>\n");
+            sb.append("    <non-jta-data-source>").append(getDataSourceExpression(unitIndex))
+                    .append("</non-jta-data-source>\n");
+            for (String className : getClassNames(unitIndex, classCount)) {
+                sb.append("    <class>").append(className).append("</class>\n");
+            }
+            sb.append("    <exclude-unlisted-classes>true</exclude-unlisted-classes>\n");
+            sb.append("    <properties>\n");
+            sb.append("      <property name=\"").append(ParsedPersistenceUnit.JPA_PROVIDER_VERSION)
+                    .append("\" value=\"").append(getProviderVersionRange(unitIndex, unitCount)).append("\"/>\n");
+            sb.append("    </properties>\n");
+            sb.append("  </persistence-unit>\n");
+        }
+        sb.append("</persistence>\n");
+        return sb.toString();
+    }
+
+    /**
+     * Creates a persistence bundle whose META-INF/persistence.xml is written into a directory.
+     *
+     * @param bundleId
+     *            The id of the bundle.
+     * @param root
+     *            The directory of the entries of the bundle.
+     * @param unitCount
+     *            The number of persistence units in the bundle.
+     * @param classCount
+     *            The number of listed managed classes in each persistence unit.
+     * @return The bundle.
+     * @throws IOException
+     *             if the descriptor cannot be written.
+     */
+    public static Bundle createBundle(final long bundleId, final File root, final int unitCount,
+            final int classCount) throws IOException {
+        File metaInf = new File(root, "META-INF");
+        if (!metaInf.exists() && !metaInf.mkdirs()) {
+            throw new IOException("Cannot create directory " + metaInf);
+        }
+        OutputStream out = new FileOutputStream(new File(metaInf, "persistence.xml"));
+        try {
+            out.write(createPersistenceXml(unitCount, classCount).getBytes(ENCODING));
+        } finally {
+            out.close();
+        }
+        Hashtable<String, String> headers = new Hashtable<String, String>();
+        headers.put("Bundle-SymbolicName", getBundleSymbolicName(bundleId));
+        headers.put("Bundle-Version", "1.0.0");
+        headers.put("Meta-Persistence", "META-INF/persistence.xml");
+        return StubBundles.createBundle(bundleId, getBundleSymbolicName(bundleId), root, headers);
+    }
+
+    private static String getBundleSymbolicName(final long bundleId) {
+        return "org.everit.osgi.jpa.container.benchmark.bundle" + bundleId;
+    }
+
+    /**
+     * Creates the persistence units of a bundle without parsing, the same way as they would be parsed from the
+     * descriptor that {@link #createPersistenceXml(int, int)} generates.
+     *
+     * @param bundle
+     *            The defining bundle of the persistence units.
+     * @param unitCount
+     *            The number of persistence units.
+     * @param classCount
+     *            The number of listed managed classes in each persistence unit.
+     * @return The persistence units.
+     */
+    public static List<ParsedPersistenceUnit> createPersistenceUnits(final Bundle bundle, final int unitCount,
+            final int classCount) {
+        List<ParsedPersistenceUnit> result = new ArrayList<ParsedPersistenceUnit>();
+        for (int unitIndex = 0; unitIndex < unitCount; unitIndex++) {
+            Map<String, Object> metadata = new HashMap<String, Object>();
+            metadata.put(ParsedPersistenceUnit.SCHEMA_VERSION, "2.0");
+            metadata.put(ParsedPersistenceUnit.UNIT_NAME, getUnitName(unitIndex));
+            metadata.put(ParsedPersistenceUnit.TRANSACTION_TYPE, "RESOURCE_LOCAL");
+            metadata.put(ParsedPersistenceUnit.PROVIDER_CLASSNAME, StubPersistenceProvider.class.getName());
+            metadata.put(ParsedPersistenceUnit.NON_JTA_DATASOURCE, getDataSourceExpression(unitIndex));
+            metadata.put(ParsedPersistenceUnit.MANAGED_CLASSES, getClassNames(unitIndex, classCount));
+            metadata.put(ParsedPersistenceUnit.MAPPING_FILES, new ArrayList<String>());
+            metadata.put(ParsedPersistenceUnit.JAR_FILES, new ArrayList<String>());
+            metadata.put(ParsedPersistenceUnit.EXCLUDE_UNLISTED_CLASSES, Boolean.TRUE);
+            Properties properties = new Properties();
+            properties.setProperty(ParsedPersistenceUnit.JPA_PROVIDER_VERSION,
+                    getProviderVersionRange(unitIndex, unitCount));
+            metadata.put(ParsedPersistenceUnit.PROPERTIES, properties);
+            result.add(new CachedParsedPersistenceUnit(bundle, metadata));
+        }
+        return result;
+    }
+
+    /**
+     * Deletes a directory that was used as the root of generated bundles or as a cache directory.
+     */
+    public static void delete(final File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Creates a new empty temporary directory.
+     */
+    public static File createTempDirectory(final String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Cannot create temporary directory " + directory);
+        }
+        return directory;
+    }
+
+    private SyntheticPersistenceBundles() {
+    }
+}
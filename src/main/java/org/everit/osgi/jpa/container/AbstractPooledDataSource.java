@@ -0,0 +1,585 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class of the connection pools of the container. The idle connections are kept in a queue that has separate
+ * locks for its head and tail and the number of borrowed connections is limited by a non-fair semaphore so borrowing
+ * and returning a connection does not serialize the threads on a common lock. The idle and expired connections are
+ * closed by a maintenance task that also keeps the minimum number of connections open. The statistics of the pool are
+ * available via JMX if the pool is registered with {@link #registerMXBean(ContainerMetrics)}.
+ */
+abstract class AbstractPooledDataSource implements DataSource, Closeable, ConnectionPoolMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractPooledDataSource.class);
+
+    /**
+     * Connections that were idle for a shorter time are not validated when they are borrowed.
+     */
+    private static final long VALIDATION_IDLE_THRESHOLD = 1000;
+
+    /**
+     * The timeout in seconds of validating a connection.
+     */
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    /**
+     * The maximum time in milliseconds between two runs of the maintenance task.
+     */
+    private static final long MAX_MAINTENANCE_PERIOD = 30000;
+
+    /**
+     * The maximum time in nanoseconds that a borrower waits for an idle connection before it checks again whether a
+     * new connection can be opened. Closing a connection does not wake up the waiting borrowers.
+     */
+    private static final long IDLE_POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final String name;
+
+    private final ConnectionPoolConfiguration configuration;
+
+    private final ScheduledExecutorService maintenanceExecutor;
+
+    /**
+     * The connections that are not borrowed.
+     */
+    private final BlockingQueue<PooledConnection> idleConnections = new LinkedBlockingQueue<PooledConnection>();
+
+    /**
+     * Permits for the connections that can be borrowed at the same time.
+     */
+    private final Semaphore borrowPermits;
+
+    /**
+     * The number of open physical connections including the ones that are being opened.
+     */
+    private final AtomicInteger totalCount = new AtomicInteger();
+
+    private final AtomicLong borrowCount = new AtomicLong();
+
+    private final AtomicLong createdCount = new AtomicLong();
+
+    private final AtomicLong destroyedCount = new AtomicLong();
+
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    private final PreparedStatementCache.Statistics statementCacheStatistics = new PreparedStatementCache.Statistics();
+
+    private ScheduledFuture<?> maintenanceFuture;
+
+    private ContainerMetrics containerMetrics;
+
+    /**
+     * The name of the MXBean of the pool or null if the pool is not registered in the MBeanServer.
+     */
+    private ObjectName objectName;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param name
+     *            The name of the pool that is used in the log messages.
+     * @param configuration
+     *            The settings of the pool.
+     * @param maintenanceExecutor
+     *            The executor that runs the maintenance task of the pool.
+     */
+    protected AbstractPooledDataSource(final String name, final ConnectionPoolConfiguration configuration,
+            final ScheduledExecutorService maintenanceExecutor) {
+        this.name = name;
+        this.configuration = configuration;
+        this.maintenanceExecutor = maintenanceExecutor;
+        borrowPermits = new Semaphore(configuration.getMaxSize());
+    }
+
+    /**
+     * Borrows a connection from the pool. The connection must be given back by calling
+     * {@link #returnConnection(PooledConnection)}.
+     *
+     * @return The borrowed connection.
+     * @throws SQLException
+     *             if the pool is closed, no connection became available in time or a new connection could not be
+     *             opened.
+     */
+    protected PooledConnection borrowConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool " + name + " is closed");
+        }
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(configuration.getConnectionTimeout());
+        boolean acquired;
+        try {
+            acquired = borrowPermits.tryAcquire(deadline - startTime, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection of pool " + name);
+        }
+        if (!acquired) {
+            timeoutCount.incrementAndGet();
+            throw new SQLException("Timeout while waiting for a connection of pool " + name + ". All of the "
+                    + configuration.getMaxSize() + " connections are in use.");
+        }
+        try {
+            PooledConnection pooledConnection = takeConnection(deadline);
+            borrowCount.incrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - startTime);
+            return pooledConnection;
+        } catch (SQLException e) {
+            borrowPermits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            borrowPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the idle connections and the borrowed connections when they are returned. The pool cannot be used
+     * anymore.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        synchronized (this) {
+            if (maintenanceFuture != null) {
+                maintenanceFuture.cancel(false);
+                maintenanceFuture = null;
+            }
+            if (objectName != null) {
+                containerMetrics.unregister(objectName);
+                objectName = null;
+            }
+        }
+        PooledConnection pooledConnection = idleConnections.poll();
+        while (pooledConnection != null) {
+            destroy(pooledConnection);
+            pooledConnection = idleConnections.poll();
+        }
+        LOGGER.debug("Connection pool " + name + " closed. Borrowed: " + borrowCount.get() + ", created: "
+                + createdCount.get() + ", timeouts: " + timeoutCount.get() + ", wait time: "
+                + TimeUnit.NANOSECONDS.toMillis(waitNanos.get()) + " ms, statement cache hits: "
+                + statementCacheStatistics.getHits() + ", misses: " + statementCacheStatistics.getMisses()
+                + ", evictions: " + statementCacheStatistics.getEvictions());
+    }
+
+    /**
+     * Opens a new physical connection.
+     *
+     * @return The new connection.
+     * @throws SQLException
+     *             if the connection cannot be opened.
+     */
+    protected abstract PooledConnection createPooledConnection() throws SQLException;
+
+    private PooledConnection createPooledConnectionAndCount() throws SQLException {
+        PooledConnection pooledConnection = createPooledConnection();
+        createdCount.incrementAndGet();
+        return pooledConnection;
+    }
+
+    /**
+     * Puts a newly opened connection into the idle queue unless the pool was closed in the meantime.
+     */
+    private void addIdleConnection(final PooledConnection pooledConnection) {
+        idleConnections.offer(pooledConnection);
+        if (closed && idleConnections.remove(pooledConnection)) {
+            destroy(pooledConnection);
+        }
+    }
+
+    private void destroy(final PooledConnection pooledConnection) {
+        totalCount.decrementAndGet();
+        destroyedCount.incrementAndGet();
+        pooledConnection.closePhysicalConnection();
+    }
+
+    /**
+     * Opens new connections until the minimum number of connections are open.
+     */
+    private void fillPool() {
+        while (!closed && (totalCount.get() < configuration.getMinSize()) && tryReserveSlot()) {
+            PooledConnection pooledConnection;
+            try {
+                pooledConnection = createPooledConnectionAndCount();
+            } catch (SQLException e) {
+                totalCount.decrementAndGet();
+                LOGGER.warn("Could not open connection for pool " + name, e);
+                return;
+            }
+            addIdleConnection(pooledConnection);
+        }
+    }
+
+    @Override
+    public int getActiveCount() {
+        return configuration.getMaxSize() - borrowPermits.availablePermits();
+    }
+
+    @Override
+    public double getAverageWaitTime() {
+        long count = borrowCount.get();
+        return (count == 0) ? 0 : (waitNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(count));
+    }
+
+    @Override
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    public ConnectionPoolConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    @Override
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    @Override
+    public long getDestroyedCount() {
+        return destroyedCount.get();
+    }
+
+    @Override
+    public long getEnlistedReuseCount() {
+        return 0;
+    }
+
+    @Override
+    public int getIdleCount() {
+        return idleConnections.size();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return configuration.getMaxSize();
+    }
+
+    @Override
+    public int getMinSize() {
+        return configuration.getMinSize();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Part of JDBC 4.1. Not annotated with Override so the class compiles with older JDBC APIs as well.
+     */
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public long getStatementCacheEvictionCount() {
+        return statementCacheStatistics.getEvictions();
+    }
+
+    @Override
+    public long getStatementCacheHitCount() {
+        return statementCacheStatistics.getHits();
+    }
+
+    @Override
+    public long getStatementCacheMissCount() {
+        return statementCacheStatistics.getMisses();
+    }
+
+    public PreparedStatementCache.Statistics getStatementCacheStatistics() {
+        return statementCacheStatistics;
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    @Override
+    public int getTotalCount() {
+        return totalCount.get();
+    }
+
+    @Override
+    public long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    private boolean isExpired(final PooledConnection pooledConnection, final long now) {
+        long maxLifetime = configuration.getMaxLifetime();
+        return (maxLifetime > 0) && ((now - pooledConnection.getCreatedAt()) > maxLifetime);
+    }
+
+    private boolean isUsable(final PooledConnection pooledConnection) {
+        long now = System.currentTimeMillis();
+        if (pooledConnection.isBroken() || isExpired(pooledConnection, now)) {
+            return false;
+        }
+        if ((now - pooledConnection.getLastReturnedAt()) < VALIDATION_IDLE_THRESHOLD) {
+            return true;
+        }
+        Connection connection = pooledConnection.getPhysicalConnection();
+        String validationQuery = configuration.getValidationQuery();
+        try {
+            if (validationQuery == null) {
+                return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+            }
+            Statement statement = connection.createStatement();
+            try {
+                statement.setQueryTimeout(VALIDATION_TIMEOUT_SECONDS);
+                statement.execute(validationQuery);
+            } finally {
+                statement.close();
+            }
+            return true;
+        } catch (SQLException e) {
+            LOGGER.debug("Validation of connection failed in pool " + name, e);
+            return false;
+        } catch (AbstractMethodError e) {
+            // JDBC 3 driver without isValid
+            return true;
+        }
+    }
+
+    /**
+     * Opens new connections until the given number of connections are open, so the first users of the pool do not
+     * have to wait for the opening of connections. The connections above the minimum size are closed after the idle
+     * timeout as usual.
+     *
+     * @param connectionCount
+     *            The number of connections that should be open. It is limited by the maximum size of the pool.
+     * @return The number of connections that were opened.
+     * @throws SQLException
+     *             if a connection could not be opened.
+     */
+    public int warmUp(final int connectionCount) throws SQLException {
+        int target = Math.min(connectionCount, configuration.getMaxSize());
+        int openedCount = 0;
+        while (!closed && (totalCount.get() < target) && tryReserveSlot()) {
+            PooledConnection pooledConnection;
+            try {
+                pooledConnection = createPooledConnectionAndCount();
+            } catch (SQLException e) {
+                totalCount.decrementAndGet();
+                throw e;
+            }
+            addIdleConnection(pooledConnection);
+            openedCount++;
+        }
+        return openedCount;
+    }
+
+    /**
+     * Closes the connections that were idle for too long or that reached their maximum lifetime and opens new ones if
+     * there are less connections than the minimum.
+     */
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        long idleTimeout = configuration.getIdleTimeout();
+        int idleCount = idleConnections.size();
+        for (int i = 0; (i < idleCount) && !closed; i++) {
+            PooledConnection pooledConnection = idleConnections.poll();
+            if (pooledConnection == null) {
+                break;
+            }
+            boolean idleTooLong = (idleTimeout > 0) && ((now - pooledConnection.getLastReturnedAt()) > idleTimeout)
+                    && (totalCount.get() > configuration.getMinSize());
+            if (idleTooLong || isExpired(pooledConnection, now)) {
+                destroy(pooledConnection);
+            } else {
+                idleConnections.offer(pooledConnection);
+            }
+        }
+        fillPool();
+    }
+
+    /**
+     * Registers the pool as an MXBean. The MXBean is unregistered when the pool is closed.
+     *
+     * @param containerMetrics
+     *            The metrics of the container that registers the MXBean.
+     */
+    public synchronized void registerMXBean(final ContainerMetrics containerMetrics) {
+        if (closed || (objectName != null)) {
+            return;
+        }
+        this.containerMetrics = containerMetrics;
+        objectName = containerMetrics.registerConnectionPool(this);
+    }
+
+    /**
+     * Gives back a borrowed connection to the pool. The logical connections that were created for the borrowed
+     * connection cannot be used anymore.
+     */
+    void returnConnection(final PooledConnection pooledConnection) {
+        try {
+            pooledConnection.invalidateHandles();
+            boolean reusable = !closed && !pooledConnection.isBroken()
+                    && !isExpired(pooledConnection, System.currentTimeMillis());
+            if (reusable) {
+                try {
+                    pooledConnection.reset();
+                } catch (SQLException e) {
+                    LOGGER.debug("Could not reset connection of pool " + name, e);
+                    reusable = false;
+                }
+            }
+            if (reusable) {
+                idleConnections.offer(pooledConnection);
+                if (closed && idleConnections.remove(pooledConnection)) {
+                    destroy(pooledConnection);
+                }
+            } else {
+                destroy(pooledConnection);
+            }
+        } finally {
+            borrowPermits.release();
+        }
+    }
+
+    /**
+     * Schedules the maintenance task of the pool. The minimum number of connections are opened in the background.
+     */
+    public synchronized void start() {
+        long period = MAX_MAINTENANCE_PERIOD;
+        long idleTimeout = configuration.getIdleTimeout();
+        if ((idleTimeout > 0) && (idleTimeout < period)) {
+            period = idleTimeout;
+        }
+        try {
+            maintenanceFuture = maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        maintain();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Error during the maintenance of connection pool " + name, e);
+                    }
+                }
+            }, 0, period, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Could not schedule the maintenance of connection pool " + name, e);
+        }
+    }
+
+    /**
+     * Takes an idle connection or opens a new one. The caller must hold a borrow permit so there is always a
+     * connection that is idle, that is being returned or that can be opened.
+     */
+    private PooledConnection takeConnection(final long deadline) throws SQLException {
+        while (true) {
+            PooledConnection pooledConnection = idleConnections.poll();
+            if (pooledConnection == null) {
+                if (tryReserveSlot()) {
+                    try {
+                        return createPooledConnectionAndCount();
+                    } catch (SQLException e) {
+                        totalCount.decrementAndGet();
+                        throw e;
+                    } catch (RuntimeException e) {
+                        totalCount.decrementAndGet();
+                        throw e;
+                    }
+                }
+                // A connection is being returned or checked by the maintenance task
+                pooledConnection = waitForIdleConnection(deadline);
+            }
+            if (pooledConnection != null) {
+                if (isUsable(pooledConnection)) {
+                    return pooledConnection;
+                }
+                destroy(pooledConnection);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [name=" + name + ", active=" + getActiveCount() + ", idle="
+                + getIdleCount() + ", total=" + getTotalCount() + "]";
+    }
+
+    private boolean tryReserveSlot() {
+        int maxSize = configuration.getMaxSize();
+        while (true) {
+            int current = totalCount.get();
+            if (current >= maxSize) {
+                return false;
+            }
+            if (totalCount.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Waits until a connection is returned to the pool, but at most {@link #IDLE_POLL_INTERVAL_NANOS} so the caller
+     * notices if a connection was closed and a new one can be opened.
+     *
+     * @return The returned connection or null if no connection was returned in the interval.
+     * @throws SQLException
+     *             if the deadline passed or the thread was interrupted.
+     */
+    private PooledConnection waitForIdleConnection(final long deadline) throws SQLException {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            timeoutCount.incrementAndGet();
+            throw new SQLException("Timeout while waiting for a connection of pool " + name);
+        }
+        try {
+            return idleConnections.poll(Math.min(remaining, IDLE_POLL_INTERVAL_NANOS), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection of pool " + name);
+        }
+    }
+}
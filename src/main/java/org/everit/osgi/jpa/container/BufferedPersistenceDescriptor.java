@@ -0,0 +1,86 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.aries.jpa.container.parsing.PersistenceDescriptor;
+
+/**
+ * A persistence descriptor that holds the content of the descriptor in memory. The input stream of the descriptors
+ * found in the bundles can be read only once, while the content is needed both for the checksum of the descriptor
+ * cache and for the parsing.
+ */
+class BufferedPersistenceDescriptor implements PersistenceDescriptor {
+
+    /**
+     * Reads the whole content of a persistence descriptor.
+     *
+     * @param descriptor
+     *            The descriptor found in a bundle.
+     * @return The buffered descriptor.
+     * @throws IOException
+     *             if the content of the descriptor cannot be read.
+     */
+    public static BufferedPersistenceDescriptor read(final PersistenceDescriptor descriptor) throws IOException {
+        InputStream is = descriptor.getInputStream();
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int r = is.read(buffer);
+            while (r >= 0) {
+                bout.write(buffer, 0, r);
+                r = is.read(buffer);
+            }
+            return new BufferedPersistenceDescriptor(descriptor.getLocation(), bout.toByteArray());
+        } finally {
+            is.close();
+        }
+    }
+
+    private final String location;
+
+    private final byte[] content;
+
+    public BufferedPersistenceDescriptor(final String location, final byte[] content) {
+        this.location = location;
+        this.content = content;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public String getLocation() {
+        return location;
+    }
+
+}
@@ -0,0 +1,59 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Map;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.osgi.framework.Bundle;
+
+/**
+ * A parsed persistence unit that was restored from the {@link PersistenceDescriptorCache} instead of parsing the
+ * persistence descriptor of the bundle.
+ */
+class CachedParsedPersistenceUnit implements ParsedPersistenceUnit {
+
+    private final Bundle definingBundle;
+
+    private final Map<String, Object> persistenceXmlMetadata;
+
+    public CachedParsedPersistenceUnit(final Bundle definingBundle, final Map<String, Object> persistenceXmlMetadata) {
+        this.definingBundle = definingBundle;
+        this.persistenceXmlMetadata = persistenceXmlMetadata;
+    }
+
+    @Override
+    public Bundle getDefiningBundle() {
+        return definingBundle;
+    }
+
+    @Override
+    public Map<String, Object> getPersistenceXmlMetadata() {
+        return persistenceXmlMetadata;
+    }
+
+    @Override
+    public String toString() {
+        return "Persistence unit " + persistenceXmlMetadata.get(UNIT_NAME) + " in bundle "
+                + definingBundle.getSymbolicName() + "_" + definingBundle.getVersion();
+    }
+}
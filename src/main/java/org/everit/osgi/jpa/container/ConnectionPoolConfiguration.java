@@ -0,0 +1,186 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Settings of the connection pool that the container creates around the DataSources got from a
+ * {@link org.osgi.service.jdbc.DataSourceFactory}. The settings are read from the properties of the persistence unit.
+ */
+class ConnectionPoolConfiguration {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPoolConfiguration.class);
+
+    /**
+     * The prefix of the persistence unit properties that configure the connection pool.
+     */
+    public static final String PROPERTY_PREFIX = "org.everit.osgi.jpa.container.pool.";
+
+    /**
+     * Whether the container should pool the connections. Default is true.
+     */
+    public static final String ENABLED = PROPERTY_PREFIX + "enabled";
+
+    /**
+     * The number of connections that the pool keeps open even if they are idle. Default is 0.
+     */
+    public static final String MIN_SIZE = PROPERTY_PREFIX + "minSize";
+
+    /**
+     * The maximum number of open connections. Default is 10.
+     */
+    public static final String MAX_SIZE = PROPERTY_PREFIX + "maxSize";
+
+    /**
+     * The time in milliseconds after an idle connection is closed if there are more than minSize connections. Default
+     * is 10 minutes.
+     */
+    public static final String IDLE_TIMEOUT = PROPERTY_PREFIX + "idleTimeout";
+
+    /**
+     * The time in milliseconds after a connection is closed when it is returned to the pool or found idle. 0 means
+     * unlimited lifetime. Default is 30 minutes.
+     */
+    public static final String MAX_LIFETIME = PROPERTY_PREFIX + "maxLifetime";
+
+    /**
+     * The time in milliseconds while a caller waits for a connection if all of them are in use. Default is 30 seconds.
+     */
+    public static final String CONNECTION_TIMEOUT = PROPERTY_PREFIX + "connectionTimeout";
+
+    /**
+     * The SQL query that is used to check whether an idle connection is still usable. If not specified,
+     * {@link java.sql.Connection#isValid(int)} is used.
+     */
+    public static final String VALIDATION_QUERY = PROPERTY_PREFIX + "validationQuery";
+
+    /**
+     * The maximum number of prepared statements that are cached for each connection. 0 switches off statement
+     * caching. Default is 0.
+     */
+    public static final String STATEMENT_CACHE_SIZE = PROPERTY_PREFIX + "statementCacheSize";
+
+    private static final long DEFAULT_IDLE_TIMEOUT = 600000;
+
+    private static final long DEFAULT_MAX_LIFETIME = 1800000;
+
+    private static final long DEFAULT_CONNECTION_TIMEOUT = 30000;
+
+    private static final int DEFAULT_MAX_SIZE = 10;
+
+    /**
+     * Reads a non-negative number from the properties of a persistence unit.
+     */
+    static long getLong(final Properties props, final String key, final long defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long result = Long.parseLong(value.trim());
+            if (result >= 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.debug("Invalid number format of persistence unit property " + key, e);
+        }
+        LOGGER.warn("Persistence unit property " + key + " must be a non-negative number. Using default value: "
+                + defaultValue);
+        return defaultValue;
+    }
+
+    private final boolean enabled;
+
+    private final int minSize;
+
+    private final int maxSize;
+
+    private final long idleTimeout;
+
+    private final long maxLifetime;
+
+    private final long connectionTimeout;
+
+    private final String validationQuery;
+
+    private final int statementCacheSize;
+
+    /**
+     * Reads the settings from the properties of a persistence unit.
+     *
+     * @param props
+     *            The properties of the persistence unit.
+     */
+    public ConnectionPoolConfiguration(final Properties props) {
+        enabled = !"false".equalsIgnoreCase(props.getProperty(ENABLED, "true").trim());
+        int max = (int) getLong(props, MAX_SIZE, DEFAULT_MAX_SIZE);
+        if (max < 1) {
+            LOGGER.warn("Persistence unit property " + MAX_SIZE + " must be at least 1. Using default value: "
+                    + DEFAULT_MAX_SIZE);
+            max = DEFAULT_MAX_SIZE;
+        }
+        maxSize = max;
+        minSize = Math.min((int) getLong(props, MIN_SIZE, 0), maxSize);
+        idleTimeout = getLong(props, IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+        maxLifetime = getLong(props, MAX_LIFETIME, DEFAULT_MAX_LIFETIME);
+        connectionTimeout = getLong(props, CONNECTION_TIMEOUT, DEFAULT_CONNECTION_TIMEOUT);
+        String query = props.getProperty(VALIDATION_QUERY);
+        validationQuery = ((query == null) || (query.trim().length() == 0)) ? null : query.trim();
+        statementCacheSize = (int) getLong(props, STATEMENT_CACHE_SIZE, 0);
+    }
+
+    public long getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public String getValidationQuery() {
+        return validationQuery;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+}
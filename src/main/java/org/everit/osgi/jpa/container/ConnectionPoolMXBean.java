@@ -0,0 +1,97 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+/**
+ * Management interface of a connection pool of the container. All of the times are in milliseconds and all of the
+ * counters are summed up since the pool was created.
+ */
+public interface ConnectionPoolMXBean {
+
+    /**
+     * The number of connections that are borrowed at the moment.
+     */
+    int getActiveCount();
+
+    /**
+     * The average time that a caller waited for a connection.
+     */
+    double getAverageWaitTime();
+
+    long getBorrowCount();
+
+    long getCreatedCount();
+
+    long getDestroyedCount();
+
+    /**
+     * The number of connection requests that got the connection that was already enlisted in the current transaction.
+     * Always 0 if the pool does not enlist its connections in JTA transactions.
+     */
+    long getEnlistedReuseCount();
+
+    /**
+     * The number of connections that are open but not borrowed at the moment.
+     */
+    int getIdleCount();
+
+    int getMaxSize();
+
+    int getMinSize();
+
+    /**
+     * The name of the persistence unit that the pool was created for with the suffix " (jta)" for the pool of the JTA
+     * DataSource and " (built)" for the pools of the EntityManagerFactoryBuilder services.
+     */
+    String getName();
+
+    /**
+     * The number of prepared statements that were closed because the statement cache of their connection was full.
+     */
+    long getStatementCacheEvictionCount();
+
+    /**
+     * The number of prepared statements that were taken from the statement cache of their connection.
+     */
+    long getStatementCacheHitCount();
+
+    /**
+     * The number of prepared statements that were not in the statement cache of their connection. Always 0 if
+     * statement caching is switched off.
+     */
+    long getStatementCacheMissCount();
+
+    /**
+     * The number of connection requests that failed as no connection became available in time.
+     */
+    long getTimeoutCount();
+
+    /**
+     * The number of open physical connections.
+     */
+    int getTotalCount();
+
+    /**
+     * The sum of the time that the callers spent waiting for a connection.
+     */
+    long getWaitTime();
+}
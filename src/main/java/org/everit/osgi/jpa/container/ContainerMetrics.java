@@ -0,0 +1,331 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the metrics of the persistence units and registers them together with the container level metrics as
+ * MXBeans in the platform MBeanServer.
+ */
+class ContainerMetrics implements JPAContainerMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContainerMetrics.class);
+
+    /**
+     * Framework property that switches off the registration of the MXBeans of the container if its value is false.
+     */
+    public static final String JMX_ENABLED_PROPERTY = "org.everit.osgi.jpa.container.jmx.enabled";
+
+    /**
+     * The domain of the ObjectNames of the MXBeans.
+     */
+    public static final String JMX_DOMAIN = "org.everit.osgi.jpa.container";
+
+    private final MBeanServer mBeanServer;
+
+    private final PersistenceDescriptorCache persistenceDescriptorCache;
+
+    private final PersistenceBundleFilter persistenceBundleFilter;
+
+    /**
+     * The metrics of the persistence units that are tracked by the container.
+     */
+    private final Map<ParsedPersistenceUnit, PersistenceUnitMetrics> metricsByPPU =
+            new ConcurrentHashMap<ParsedPersistenceUnit, PersistenceUnitMetrics>();
+
+    /**
+     * The names of the registered MXBeans of the persistence units.
+     */
+    private final Map<ParsedPersistenceUnit, ObjectName> objectNamesByPPU =
+            new ConcurrentHashMap<ParsedPersistenceUnit, ObjectName>();
+
+    /**
+     * The names of the registered cache MXBeans of the persistence units.
+     */
+    private final Map<ParsedPersistenceUnit, ObjectName> cacheObjectNamesByPPU =
+            new ConcurrentHashMap<ParsedPersistenceUnit, ObjectName>();
+
+    private final AtomicLong descriptorParseTime = new AtomicLong();
+
+    /**
+     * Makes the ObjectNames of the connection pools unique as more pools can have the same name.
+     */
+    private final AtomicLong connectionPoolSequence = new AtomicLong();
+
+    private ObjectName containerObjectName;
+
+    /**
+     * Constructor.
+     *
+     * @param jmxEnabled
+     *            Whether the metrics should be registered as MXBeans.
+     * @param persistenceDescriptorCache
+     *            The cache whose hits and misses are exposed.
+     * @param persistenceBundleFilter
+     *            The filter whose counters are exposed.
+     */
+    public ContainerMetrics(final boolean jmxEnabled, final PersistenceDescriptorCache persistenceDescriptorCache,
+            final PersistenceBundleFilter persistenceBundleFilter) {
+        mBeanServer = jmxEnabled ? ManagementFactory.getPlatformMBeanServer() : null;
+        this.persistenceDescriptorCache = persistenceDescriptorCache;
+        this.persistenceBundleFilter = persistenceBundleFilter;
+    }
+
+    /**
+     * Registers the container level MXBean.
+     */
+    public void open() {
+        if (mBeanServer == null) {
+            return;
+        }
+        try {
+            containerObjectName = new ObjectName(JMX_DOMAIN + ":type=Container");
+            mBeanServer.registerMBean(this, containerObjectName);
+        } catch (JMException e) {
+            LOGGER.warn("Could not register the MXBean of the JPA container", e);
+            containerObjectName = null;
+        }
+    }
+
+    /**
+     * Unregisters all of the MXBeans.
+     */
+    public void close() {
+        for (ParsedPersistenceUnit ppu : metricsByPPU.keySet()) {
+            removePersistenceUnit(ppu);
+        }
+        if (containerObjectName != null) {
+            unregister(containerObjectName);
+            containerObjectName = null;
+        }
+    }
+
+    @Override
+    public int getActivePersistenceUnitCount() {
+        int result = 0;
+        for (PersistenceUnitMetrics unitMetrics : metricsByPPU.values()) {
+            if (unitMetrics.getStateValue() == PersistenceUnitMetrics.State.ACTIVE) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long getDescriptorCacheHitCount() {
+        return persistenceDescriptorCache.getHitCount();
+    }
+
+    @Override
+    public long getDescriptorCacheMissCount() {
+        return persistenceDescriptorCache.getMissCount();
+    }
+
+    @Override
+    public long getDescriptorParseTime() {
+        return descriptorParseTime.get();
+    }
+
+    @Override
+    public int getPersistenceUnitCount() {
+        return metricsByPPU.size();
+    }
+
+    /**
+     * Returns the metrics of a persistence unit.
+     *
+     * @param ppu
+     *            The persistence unit.
+     * @return The metrics or null if the persistence unit is not tracked by the container.
+     */
+    public PersistenceUnitMetrics getPersistenceUnitMetrics(final ParsedPersistenceUnit ppu) {
+        return metricsByPPU.get(ppu);
+    }
+
+    /**
+     * Returns the metrics of all persistence units that are tracked by the container.
+     */
+    public Map<ParsedPersistenceUnit, PersistenceUnitMetrics> getPersistenceUnitMetrics() {
+        return Collections.unmodifiableMap(metricsByPPU);
+    }
+
+    @Override
+    public Map<String, String> getPersistenceUnitStates() {
+        Map<String, String> result = new TreeMap<String, String>();
+        for (PersistenceUnitMetrics unitMetrics : metricsByPPU.values()) {
+            result.put(unitMetrics.getDisplayName(), unitMetrics.getState());
+        }
+        return result;
+    }
+
+    @Override
+    public long getProbedBundleCount() {
+        return persistenceBundleFilter.getProbedCount();
+    }
+
+    @Override
+    public Map<String, Long> getProviderBootstrapTimes() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (PersistenceUnitMetrics unitMetrics : metricsByPPU.values()) {
+            result.put(unitMetrics.getDisplayName(), unitMetrics.getProviderBootstrapTime());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Integer> getRestartCounts() {
+        Map<String, Integer> result = new TreeMap<String, Integer>();
+        for (PersistenceUnitMetrics unitMetrics : metricsByPPU.values()) {
+            result.put(unitMetrics.getDisplayName(), unitMetrics.getRestartCount());
+        }
+        return result;
+    }
+
+    @Override
+    public long getSkippedBundleCount() {
+        return persistenceBundleFilter.getSkippedCount();
+    }
+
+    /**
+     * Starts tracking the metrics of the persistence units of a bundle.
+     *
+     * @param ppus
+     *            The persistence units of the bundle.
+     * @param parseTime
+     *            The time spent with searching and parsing the persistence descriptors of the bundle.
+     */
+    public void addPersistenceUnits(final Collection<ParsedPersistenceUnit> ppus, final long parseTime) {
+        descriptorParseTime.addAndGet(parseTime);
+        for (ParsedPersistenceUnit ppu : ppus) {
+            PersistenceUnitMetrics unitMetrics = new PersistenceUnitMetrics(ppu, parseTime);
+            metricsByPPU.put(ppu, unitMetrics);
+            if (mBeanServer != null) {
+                try {
+                    ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=PersistenceUnit,"
+                            + getPersistenceUnitKeys(unitMetrics));
+                    mBeanServer.registerMBean(unitMetrics, objectName);
+                    objectNamesByPPU.put(ppu, objectName);
+                    ObjectName cacheObjectName = new ObjectName(JMX_DOMAIN + ":type=PersistenceUnitCache,"
+                            + getPersistenceUnitKeys(unitMetrics));
+                    mBeanServer.registerMBean(unitMetrics.getCacheControl(), cacheObjectName);
+                    cacheObjectNamesByPPU.put(ppu, cacheObjectName);
+                } catch (JMException e) {
+                    LOGGER.warn("Could not register the MXBeans of persistence unit " + unitMetrics.getDisplayName(),
+                            e);
+                }
+            }
+        }
+    }
+
+    private String getPersistenceUnitKeys(final PersistenceUnitMetrics unitMetrics) {
+        String keys = "bundle=" + ObjectName.quote(unitMetrics.getBundleSymbolicName()) + ",version="
+                + ObjectName.quote(unitMetrics.getBundleVersion()) + ",name="
+                + ObjectName.quote(String.valueOf(unitMetrics.getUnitName()));
+        if (unitMetrics.getShard() != null) {
+            keys += ",shard=" + ObjectName.quote(unitMetrics.getShard());
+        }
+        return keys;
+    }
+
+    /**
+     * Registers an additional MXBean of the container.
+     *
+     * @param mxBean
+     *            The MXBean.
+     * @param type
+     *            The value of the type key of the ObjectName.
+     * @return The name of the registered MXBean or null if JMX is disabled or the registration failed.
+     */
+    public ObjectName registerMXBean(final Object mxBean, final String type) {
+        if (mBeanServer == null) {
+            return null;
+        }
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type);
+            mBeanServer.registerMBean(mxBean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            LOGGER.warn("Could not register the " + type + " MXBean of the JPA container", e);
+            return null;
+        }
+    }
+
+    /**
+     * Registers the MXBean of a connection pool.
+     *
+     * @param pool
+     *            The connection pool.
+     * @return The name of the registered MXBean or null if JMX is disabled or the registration failed.
+     */
+    public ObjectName registerConnectionPool(final AbstractPooledDataSource pool) {
+        return registerMXBean(pool, "ConnectionPool,name=" + ObjectName.quote(pool.getName()) + ",id="
+                + connectionPoolSequence.incrementAndGet());
+    }
+
+    /**
+     * Records the time of searching a bundle that did not contain any persistence unit.
+     */
+    public void bundleParsed(final long parseTime) {
+        descriptorParseTime.addAndGet(parseTime);
+    }
+
+    /**
+     * Stops tracking the metrics of a persistence unit.
+     */
+    public void removePersistenceUnit(final ParsedPersistenceUnit ppu) {
+        metricsByPPU.remove(ppu);
+        ObjectName objectName = objectNamesByPPU.remove(ppu);
+        if (objectName != null) {
+            unregister(objectName);
+        }
+        ObjectName cacheObjectName = cacheObjectNamesByPPU.remove(ppu);
+        if (cacheObjectName != null) {
+            unregister(cacheObjectName);
+        }
+    }
+
+    /**
+     * Unregisters an MXBean of the container.
+     */
+    public void unregister(final ObjectName objectName) {
+        try {
+            mBeanServer.unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.debug("Could not unregister MXBean " + objectName, e);
+        }
+    }
+}
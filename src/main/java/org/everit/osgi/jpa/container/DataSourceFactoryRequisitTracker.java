@@ -24,7 +24,6 @@ package org.everit.osgi.jpa.container;
 import java.util.Properties;
 
 import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
-import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
@@ -35,12 +34,13 @@ import org.osgi.service.jdbc.DataSourceFactory;
  * Tracking services with {@link DataSourceFactory} interface. If an EntitManagerFactory creation is waiting for a jdbc
  * driver to be present this class notifies it.
  */
-class DataSourceFactoryRequisitTracker extends AbstractRequisiteTracker<ParsedPersistenceUnit> {
+class DataSourceFactoryRequisitTracker extends PersistenceUnitRequisiteTracker {
 
     public DataSourceFactoryRequisitTracker(final BundleContext context,
-            final PersistenceBundleManager persistenceBundleManager)
+            final PersistenceBundleManager persistenceBundleManager, final ContainerMetrics containerMetrics)
             throws InvalidSyntaxException {
-        super(context, "(" + Constants.OBJECTCLASS + "=" + DataSourceFactory.class.getName() + ")");
+        super(context, "(" + Constants.OBJECTCLASS + "=" + DataSourceFactory.class.getName() + ")",
+                PersistenceBundleManager.DATASOURCE_FACTORY_REFERENCE_ID, containerMetrics);
     }
 
     @Override
@@ -58,6 +58,14 @@ class DataSourceFactoryRequisitTracker extends AbstractRequisiteTracker<ParsedPe
         };
     }
 
+    @Override
+    protected String getRequisiteFilter(final ParsedPersistenceUnit ppu) {
+        Properties props = (Properties) ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.PROPERTIES);
+        String requiredDriverClassName = (props == null) ? null : props.getProperty("javax.persistence.jdbc.driver");
+        return "(&" + super.getRequisiteFilter(ppu) + "(" + DataSourceFactory.OSGI_JDBC_DRIVER_CLASS + "="
+                + requiredDriverClassName + "))";
+    }
+
     @Override
     protected boolean isReferenceSuitable(final ParsedPersistenceUnit component, final ServiceReference requirement) {
         Properties props = (Properties) component.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.PROPERTIES);
@@ -0,0 +1,430 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.sql.DataSource;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures periodically how long it takes to get a connection from the DataSource services that the persistence units
+ * can select from, so the DataSource requisite trackers can prefer the fastest healthy DataSource. Only the candidates
+ * of the persistence units that are registered in the trackers are probed. A DataSource that cannot give a connection
+ * within the probe timeout is unhealthy until the next successful probe. The latencies are compared in power of two
+ * buckets so small differences do not change the selection. A DataSource moves to another bucket only if it was
+ * measured there in several probes in a row, so a DataSource whose latency is near the border of two buckets does not
+ * change the selection on every probe.
+ */
+class DataSourceLatencyProbe {
+
+    /**
+     * A user of the probe that tells which DataSources should be probed and that is notified after each probe.
+     */
+    interface ProbeClient {
+
+        /**
+         * The DataSource services that the persistence units of the client can select from.
+         */
+        Collection<ServiceReference> getProbeCandidates();
+
+        /**
+         * Called after the candidates of all clients were probed.
+         */
+        void probed();
+    }
+
+    /**
+     * The bucket that a DataSource was measured in, differing from the bucket that it is compared by.
+     */
+    private static final class BucketChange {
+
+        private final int bucket;
+
+        private int probeCount = 0;
+
+        public BucketChange(final int bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceLatencyProbe.class);
+
+    /**
+     * Framework property that switches on the probing of the DataSource services if its value is true.
+     */
+    public static final String ENABLED_PROPERTY = "org.everit.osgi.jpa.container.datasource.probe.enabled";
+
+    /**
+     * Framework property of the time in milliseconds between two probes of the DataSource services.
+     */
+    public static final String INTERVAL_PROPERTY = "org.everit.osgi.jpa.container.datasource.probe.interval";
+
+    /**
+     * Framework property of the time in milliseconds after a DataSource that did not give a connection is unhealthy.
+     */
+    public static final String TIMEOUT_PROPERTY = "org.everit.osgi.jpa.container.datasource.probe.timeout";
+
+    /**
+     * Framework property of the number of probes in a row that must measure a DataSource in another latency bucket
+     * before the DataSource is compared by the new bucket.
+     */
+    public static final String BUCKET_CHANGE_PROBES_PROPERTY =
+            "org.everit.osgi.jpa.container.datasource.probe.bucket.change.probes";
+
+    /**
+     * Framework property of the minimum time in milliseconds between two rebinds of a persistence unit to a faster
+     * DataSource. A persistence unit whose DataSource is unhealthy is bound again without waiting.
+     */
+    public static final String REBIND_INTERVAL_PROPERTY =
+            "org.everit.osgi.jpa.container.datasource.probe.rebind.interval";
+
+    public static final int DEFAULT_INTERVAL = 30000;
+
+    public static final int DEFAULT_TIMEOUT = 5000;
+
+    public static final int DEFAULT_BUCKET_CHANGE_PROBES = 3;
+
+    public static final int DEFAULT_REBIND_INTERVAL = 300000;
+
+    private static final long UNHEALTHY = -1;
+
+    private static final int UNHEALTHY_SCORE = Integer.MIN_VALUE;
+
+    private static final int NOT_PROBED_SCORE = Integer.MIN_VALUE + 1;
+
+    private final BundleContext context;
+
+    private final long interval;
+
+    private final long timeout;
+
+    private final int bucketChangeProbes;
+
+    private final long rebindInterval;
+
+    /**
+     * The smoothed connection acquire times in microseconds (or {@link #UNHEALTHY}) by the service ids of the
+     * DataSources.
+     */
+    private final Map<Object, Long> latenciesByServiceId = new ConcurrentHashMap<Object, Long>();
+
+    /**
+     * The latency buckets that the healthy DataSources are compared by, by the service ids of the DataSources.
+     */
+    private final Map<Object, Integer> bucketsByServiceId = new ConcurrentHashMap<Object, Integer>();
+
+    /**
+     * The DataSources that were measured in another bucket than the one they are compared by. Accessed only by the
+     * probe thread.
+     */
+    private final Map<Object, BucketChange> bucketChangesByServiceId = new HashMap<Object, BucketChange>();
+
+    /**
+     * The connection requests that did not complete within the timeout by the service ids of the DataSources. A
+     * DataSource is not probed again until its previous request completes, so a hanging DataSource does not hold more
+     * than one thread. Accessed only by the probe thread.
+     */
+    private final Map<Object, Future<Boolean>> pendingProbes = new HashMap<Object, Future<Boolean>>();
+
+    private final List<ProbeClient> probeClients = new CopyOnWriteArrayList<ProbeClient>();
+
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Runs the connection requests so the probe thread can stop waiting for them after the timeout.
+     */
+    private ExecutorService connectionExecutor;
+
+    /**
+     * Constructor.
+     *
+     * @param context
+     *            The context of the container bundle.
+     * @param interval
+     *            The time in milliseconds between two probes.
+     * @param timeout
+     *            The time in milliseconds after a DataSource that did not give a connection is unhealthy.
+     * @param bucketChangeProbes
+     *            The number of probes in a row that must measure a DataSource in another latency bucket before the
+     *            DataSource is compared by the new bucket.
+     * @param rebindInterval
+     *            The minimum time in milliseconds between two rebinds of a persistence unit to a faster DataSource.
+     */
+    public DataSourceLatencyProbe(final BundleContext context, final long interval, final long timeout,
+            final int bucketChangeProbes, final long rebindInterval) {
+        this.context = context;
+        this.interval = interval;
+        this.timeout = timeout;
+        this.bucketChangeProbes = bucketChangeProbes;
+        this.rebindInterval = rebindInterval;
+    }
+
+    public void addProbeClient(final ProbeClient probeClient) {
+        probeClients.add(probeClient);
+    }
+
+    public void removeProbeClient(final ProbeClient probeClient) {
+        probeClients.remove(probeClient);
+    }
+
+    /**
+     * Stops the probing.
+     */
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdownNow();
+            connectionExecutor = null;
+        }
+        latenciesByServiceId.clear();
+        bucketsByServiceId.clear();
+    }
+
+    /**
+     * Compares two DataSource services by their health and latency.
+     *
+     * @return A positive number if the first DataSource is preferred, a negative number if the second one and 0 if
+     *         they are equally good.
+     */
+    public int compare(final ServiceReference reference1, final ServiceReference reference2) {
+        int score1 = getScore(reference1);
+        int score2 = getScore(reference2);
+        return (score1 < score2) ? -1 : ((score1 == score2) ? 0 : 1);
+    }
+
+    /**
+     * The smoothed connection acquire time of a DataSource in microseconds.
+     *
+     * @return The latency, -1 if the DataSource is unhealthy or null if it was not probed yet.
+     */
+    public Long getLatency(final ServiceReference reference) {
+        return latenciesByServiceId.get(reference.getProperty(Constants.SERVICE_ID));
+    }
+
+    public long getRebindInterval() {
+        return rebindInterval;
+    }
+
+    private int getScore(final ServiceReference reference) {
+        Object serviceId = reference.getProperty(Constants.SERVICE_ID);
+        Long latency = latenciesByServiceId.get(serviceId);
+        if (latency == null) {
+            return NOT_PROBED_SCORE;
+        }
+        if (latency.longValue() == UNHEALTHY) {
+            return UNHEALTHY_SCORE;
+        }
+        Integer bucket = bucketsByServiceId.get(serviceId);
+        return -((bucket != null) ? bucket.intValue() : getBucket(latency.longValue()));
+    }
+
+    private static int getBucket(final long latency) {
+        return Long.SIZE - Long.numberOfLeadingZeros(latency);
+    }
+
+    /**
+     * Checks whether the last probe of a DataSource failed.
+     */
+    public boolean isUnhealthy(final ServiceReference reference) {
+        Long latency = getLatency(reference);
+        return (latency != null) && (latency.longValue() == UNHEALTHY);
+    }
+
+    /**
+     * Updates the bucket that a healthy DataSource is compared by. A DataSource that was not probed yet or that was
+     * unhealthy gets the measured bucket immediately.
+     */
+    private void updateBucket(final Object serviceId, final Long previousLatency, final long latency) {
+        int measuredBucket = getBucket(latency);
+        Integer bucket = bucketsByServiceId.get(serviceId);
+        if ((bucket == null) || (previousLatency == null) || (previousLatency.longValue() == UNHEALTHY)
+                || (bucket.intValue() == measuredBucket)) {
+            bucketsByServiceId.put(serviceId, measuredBucket);
+            bucketChangesByServiceId.remove(serviceId);
+            return;
+        }
+        BucketChange bucketChange = bucketChangesByServiceId.get(serviceId);
+        if ((bucketChange == null) || (bucketChange.bucket != measuredBucket)) {
+            bucketChange = new BucketChange(measuredBucket);
+            bucketChangesByServiceId.put(serviceId, bucketChange);
+        }
+        bucketChange.probeCount++;
+        if (bucketChange.probeCount >= bucketChangeProbes) {
+            bucketsByServiceId.put(serviceId, measuredBucket);
+            bucketChangesByServiceId.remove(serviceId);
+        }
+    }
+
+    private void markUnhealthy(final Object serviceId, final String message, final Throwable cause) {
+        if (!Long.valueOf(UNHEALTHY).equals(latenciesByServiceId.put(serviceId, UNHEALTHY))) {
+            LOGGER.warn("DataSource service " + serviceId + " " + message, cause);
+        }
+    }
+
+    /**
+     * Starts probing the DataSource services periodically.
+     */
+    public synchronized void open() {
+        connectionExecutor = Executors.newCachedThreadPool(new ContainerThreadFactory(
+                "jpa-container-datasource-probe-connection-"));
+        executor = new ScheduledThreadPoolExecutor(1, new ContainerThreadFactory("jpa-container-datasource-probe-"));
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                probeAll();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets and closes a connection of a DataSource and updates its latency.
+     *
+     * @return Whether the DataSource service was available.
+     */
+    private boolean probe(final ExecutorService connectionExecutorOfProbe, final ServiceReference reference) {
+        Object serviceId = reference.getProperty(Constants.SERVICE_ID);
+        Future<Boolean> pendingProbe = pendingProbes.get(serviceId);
+        if (pendingProbe != null) {
+            if (!pendingProbe.isDone()) {
+                markUnhealthy(serviceId, "is still getting the connection of a previous probe", null);
+                return true;
+            }
+            pendingProbes.remove(serviceId);
+        }
+        long startTime = System.nanoTime();
+        Future<Boolean> future = connectionExecutorOfProbe.submit(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws SQLException {
+                DataSource dataSource = (DataSource) context.getService(reference);
+                if (dataSource == null) {
+                    return Boolean.FALSE;
+                }
+                try {
+                    Connection connection = dataSource.getConnection();
+                    connection.close();
+                } finally {
+                    context.ungetService(reference);
+                }
+                return Boolean.TRUE;
+            }
+        });
+        try {
+            if (!future.get(timeout, TimeUnit.MILLISECONDS).booleanValue()) {
+                return false;
+            }
+        } catch (TimeoutException e) {
+            pendingProbes.put(serviceId, future);
+            markUnhealthy(serviceId, "did not give a connection in " + timeout + " ms", null);
+            return true;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                markUnhealthy(serviceId, "could not give a connection", cause);
+            } else {
+                latenciesByServiceId.put(serviceId, UNHEALTHY);
+                LOGGER.warn("Probe of DataSource service " + serviceId + " failed", cause);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+        long latency = Math.max(1, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+        Long previousLatency = latenciesByServiceId.get(serviceId);
+        if ((previousLatency != null) && (previousLatency.longValue() != UNHEALTHY)) {
+            latency = (previousLatency.longValue() + latency) / 2;
+        }
+        latenciesByServiceId.put(serviceId, latency);
+        updateBucket(serviceId, previousLatency, latency);
+        return true;
+    }
+
+    private void probeAll() {
+        ExecutorService connectionExecutorOfProbe;
+        synchronized (this) {
+            connectionExecutorOfProbe = connectionExecutor;
+        }
+        if (connectionExecutorOfProbe == null) {
+            return;
+        }
+        Map<Object, ServiceReference> candidatesByServiceId = new LinkedHashMap<Object, ServiceReference>();
+        for (ProbeClient probeClient : probeClients) {
+            for (ServiceReference reference : probeClient.getProbeCandidates()) {
+                candidatesByServiceId.put(reference.getProperty(Constants.SERVICE_ID), reference);
+            }
+        }
+        Set<Object> probedServiceIds = new HashSet<Object>();
+        for (Entry<Object, ServiceReference> entry : candidatesByServiceId.entrySet()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (probe(connectionExecutorOfProbe, entry.getValue())) {
+                probedServiceIds.add(entry.getKey());
+            }
+        }
+        latenciesByServiceId.keySet().retainAll(probedServiceIds);
+        bucketsByServiceId.keySet().retainAll(probedServiceIds);
+        bucketChangesByServiceId.keySet().retainAll(probedServiceIds);
+        pendingProbes.keySet().retainAll(probedServiceIds);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Connection acquire times of the DataSource services in microseconds: "
+                    + latenciesByServiceId);
+        }
+        for (ProbeClient probeClient : probeClients) {
+            try {
+                probeClient.probed();
+            } catch (RuntimeException e) {
+                LOGGER.error("Error during processing the result of the DataSource probe", e);
+            }
+        }
+    }
+}
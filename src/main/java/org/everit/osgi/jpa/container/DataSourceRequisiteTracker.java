@@ -21,8 +21,15 @@ package org.everit.osgi.jpa.container;
  * MA 02110-1301  USA
  */
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.util.regex.Matcher;
@@ -31,15 +38,56 @@ import java.util.regex.Pattern;
 import javax.sql.DataSource;
 
 import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
-import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
 import org.everit.osgi.util.core.requisite.RequisiteListener;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
 
-class DataSourceRequisiteTracker extends AbstractRequisiteTracker<ParsedPersistenceUnit> {
+/**
+ * Tracks the DataSource services that are referenced by the jta-data-source or the non-jta-data-source of the
+ * persistence units. If several services match the expression of a persistence unit, the one with the highest
+ * service ranking is preferred, or the fastest healthy one if the {@link DataSourceLatencyProbe} is switched on. The
+ * persistence unit is bound again if a better DataSource appears or the ranking or the health of the DataSources
+ * changes.
+ */
+class DataSourceRequisiteTracker extends PersistenceUnitRequisiteTracker {
+
+    /**
+     * Notified when a persistence unit should be bound to a better DataSource.
+     */
+    interface RebindListener {
+
+        void rebind(ParsedPersistenceUnit ppu);
+    }
+
+    /**
+     * Records the DataSource that a persistence unit is bound to.
+     */
+    private class BindingRequisiteListener implements RequisiteListener<ParsedPersistenceUnit> {
+
+        private final RequisiteListener<ParsedPersistenceUnit> delegate;
+
+        public BindingRequisiteListener(final RequisiteListener<ParsedPersistenceUnit> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void requisiteAvailable(final ParsedPersistenceUnit dependentObject, final ServiceReference reference) {
+            boundReferencesByPPU.put(dependentObject, reference);
+            bindTimesByPPU.put(dependentObject, System.nanoTime());
+            delegate.requisiteAvailable(dependentObject, reference);
+        }
+
+        @Override
+        public void requisiteRemoved(final ParsedPersistenceUnit dependentObject, final ServiceReference reference) {
+            boundReferencesByPPU.remove(dependentObject);
+            delegate.requisiteRemoved(dependentObject, reference);
+        }
+    }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceRequisiteTracker.class);
 
@@ -50,9 +98,80 @@ class DataSourceRequisiteTracker extends AbstractRequisiteTracker<ParsedPersiste
     private Map<ParsedPersistenceUnit, Filter> dataSourceFiltersByPPUs =
             new ConcurrentHashMap<ParsedPersistenceUnit, Filter>();
 
-    public DataSourceRequisiteTracker(BundleContext context, boolean jta) throws InvalidSyntaxException {
-        super(context, "(" + Constants.OBJECTCLASS + "=" + DataSource.class.getName() + ")");
+    /**
+     * The DataSources that the persistence units are bound to.
+     */
+    private final Map<ParsedPersistenceUnit, ServiceReference> boundReferencesByPPU =
+            new ConcurrentHashMap<ParsedPersistenceUnit, ServiceReference>();
+
+    /**
+     * The {@link System#nanoTime()} when the persistence units were bound to their DataSource.
+     */
+    private final Map<ParsedPersistenceUnit, Long> bindTimesByPPU =
+            new ConcurrentHashMap<ParsedPersistenceUnit, Long>();
+
+    private final BundleContext context;
+
+    /**
+     * The probe of the DataSources or null if the DataSources are selected by their service ranking only.
+     */
+    private final DataSourceLatencyProbe latencyProbe;
+
+    private final RebindListener rebindListener;
+
+    /**
+     * Checks the bindings of the persistence units when a DataSource is registered or its properties change.
+     */
+    private final ServiceListener dataSourceListener = new ServiceListener() {
+
+        @Override
+        public void serviceChanged(final ServiceEvent event) {
+            int type = event.getType();
+            if ((type == ServiceEvent.REGISTERED) || (type == ServiceEvent.MODIFIED)) {
+                checkBindings();
+            }
+        }
+    };
+
+    /**
+     * Gives the DataSources of the persistence units to the probe and checks the bindings of the persistence units
+     * after the DataSources were probed.
+     */
+    private final DataSourceLatencyProbe.ProbeClient probeClient = new DataSourceLatencyProbe.ProbeClient() {
+
+        @Override
+        public Collection<ServiceReference> getProbeCandidates() {
+            List<ServiceReference> result = new ArrayList<ServiceReference>();
+            for (ParsedPersistenceUnit ppu : dataSourceFiltersByPPUs.keySet()) {
+                ServiceReference[] references;
+                try {
+                    references = context.getServiceReferences((String) null, getRequisiteFilter(ppu));
+                } catch (InvalidSyntaxException e) {
+                    LOGGER.error("Invalid DataSource filter of " + ppu, e);
+                    continue;
+                }
+                if (references != null) {
+                    result.addAll(Arrays.asList(references));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void probed() {
+            checkBindings();
+        }
+    };
+
+    public DataSourceRequisiteTracker(BundleContext context, boolean jta, ContainerMetrics containerMetrics,
+            DataSourceLatencyProbe latencyProbe, RebindListener rebindListener) throws InvalidSyntaxException {
+        super(context, "(" + Constants.OBJECTCLASS + "=" + DataSource.class.getName() + ")",
+                jta ? PersistenceBundleManager.XA_DATASOURCE_REFERENCE_ID
+                        : PersistenceBundleManager.DATASOURCE_REFERENCE_ID, containerMetrics);
         this.jta = jta;
+        this.context = context;
+        this.latencyProbe = latencyProbe;
+        this.rebindListener = rebindListener;
     }
 
     @Override
@@ -89,6 +208,10 @@ class DataSourceRequisiteTracker extends AbstractRequisiteTracker<ParsedPersiste
             } else {
                 filterExpression = matcher.group(1);
             }
+            if (!jta && RoutingDataSource.isEnabled(dependentObject)) {
+                filterExpression = "(&" + filterExpression + "(" + RoutingDataSource.ROLE_SERVICE_PROPERTY + "="
+                        + RoutingDataSource.PRIMARY_ROLE + "))";
+            }
             BundleContext bcx = dependentObject.getDefiningBundle().getBundleContext();
             try {
                 Filter filter = bcx.createFilter(filterExpression);
@@ -99,20 +222,104 @@ class DataSourceRequisiteTracker extends AbstractRequisiteTracker<ParsedPersiste
             }
         }
 
-        super.addDependentObject(dependentObject, requisiteListener);
+        super.addDependentObject(dependentObject, new BindingRequisiteListener(requisiteListener));
+    }
+
+    /**
+     * Asks the {@link RebindListener} to bind the persistence units again whose DataSource is not the best suitable
+     * one anymore. If the DataSources are probed, a persistence unit is not bound again within the rebind interval of
+     * the probe unless its DataSource is unhealthy. The skipped rebinds are checked again after the next probe.
+     */
+    private synchronized void checkBindings() {
+        for (Entry<ParsedPersistenceUnit, ServiceReference> entry : new HashMap<ParsedPersistenceUnit,
+                ServiceReference>(boundReferencesByPPU).entrySet()) {
+            ParsedPersistenceUnit ppu = entry.getKey();
+            ServiceReference boundReference = entry.getValue();
+            ServiceReference bestReference = getBestReference(ppu);
+            if ((bestReference != null) && (compareReferences(bestReference, boundReference) > 0)
+                    && boundReferencesByPPU.containsKey(ppu)) {
+                if (isWithinRebindInterval(ppu, boundReference)) {
+                    LOGGER.debug(ppu + " is not bound again to DataSource service "
+                            + bestReference.getProperty(Constants.SERVICE_ID) + " yet as the rebind interval of "
+                            + latencyProbe.getRebindInterval() + " ms has not passed");
+                    continue;
+                }
+                LOGGER.info(ppu + " is bound again to DataSource service "
+                        + bestReference.getProperty(Constants.SERVICE_ID) + " instead of "
+                        + boundReference.getProperty(Constants.SERVICE_ID));
+                rebindListener.rebind(ppu);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (latencyProbe != null) {
+            latencyProbe.removeProbeClient(probeClient);
+        }
+        context.removeServiceListener(dataSourceListener);
+        super.close();
+    }
+
+    /**
+     * Compares two DataSource services.
+     *
+     * @return A positive number if the first DataSource is preferred, a negative number if the second one.
+     */
+    private int compareReferences(final ServiceReference reference1, final ServiceReference reference2) {
+        if (latencyProbe != null) {
+            int result = latencyProbe.compare(reference1, reference2);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return reference1.compareTo(reference2);
     }
 
     @Override
-    protected Comparable<ServiceReference> createComparableFromReference(ServiceReference reference) {
+    protected Comparable<ServiceReference> createComparableFromReference(final ServiceReference reference) {
         return new Comparable<ServiceReference>() {
-            
+
             @Override
-            public int compareTo(ServiceReference o) { 
-                return 0;
+            public int compareTo(final ServiceReference o) {
+                return compareReferences(reference, o);
             }
         };
     }
 
+    /**
+     * Selects the preferred DataSource service among the ones that are suitable for a persistence unit.
+     *
+     * @return The preferred DataSource or null if there is no suitable service.
+     */
+    private ServiceReference getBestReference(final ParsedPersistenceUnit ppu) {
+        ServiceReference[] references;
+        try {
+            references = context.getServiceReferences((String) null, getRequisiteFilter(ppu));
+        } catch (InvalidSyntaxException e) {
+            LOGGER.error("Invalid DataSource filter of " + ppu, e);
+            return null;
+        }
+        ServiceReference result = null;
+        if (references != null) {
+            for (ServiceReference reference : references) {
+                if ((result == null) || (compareReferences(reference, result) > 0)) {
+                    result = reference;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected String getRequisiteFilter(final ParsedPersistenceUnit ppu) {
+        Filter filter = dataSourceFiltersByPPUs.get(ppu);
+        if (filter == null) {
+            return super.getRequisiteFilter(ppu);
+        }
+        return "(&" + super.getRequisiteFilter(ppu) + filter + ")";
+    }
+
     @Override
     protected boolean isReferenceSuitable(ParsedPersistenceUnit dependentObject, ServiceReference reference) {
         Filter filter = dataSourceFiltersByPPUs.get(dependentObject);
@@ -122,10 +329,36 @@ class DataSourceRequisiteTracker extends AbstractRequisiteTracker<ParsedPersiste
         return filter.match(reference);
     }
 
+    @Override
+    public void open() {
+        super.open();
+        try {
+            context.addServiceListener(dataSourceListener, "(" + Constants.OBJECTCLASS + "="
+                    + DataSource.class.getName() + ")");
+        } catch (InvalidSyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+        if (latencyProbe != null) {
+            latencyProbe.addProbeClient(probeClient);
+        }
+    }
+
+    private boolean isWithinRebindInterval(final ParsedPersistenceUnit ppu, final ServiceReference boundReference) {
+        if ((latencyProbe == null) || latencyProbe.isUnhealthy(boundReference)) {
+            return false;
+        }
+        Long bindTime = bindTimesByPPU.get(ppu);
+        return (bindTime != null)
+                && ((System.nanoTime() - bindTime.longValue()) < TimeUnit.MILLISECONDS.toNanos(latencyProbe
+                        .getRebindInterval()));
+    }
+
     @Override
     public void removeDependentObject(ParsedPersistenceUnit dependentObject) {
         super.removeDependentObject(dependentObject);
         dataSourceFiltersByPPUs.remove(dependentObject);
+        boundReferencesByPPU.remove(dependentObject);
+        bindTimesByPPU.remove(dependentObject);
     }
 
 }
@@ -0,0 +1,681 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceUnitTransactionType;
+import javax.sql.DataSource;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.osgi.service.jpa.EntityManagerFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link EntityManagerFactoryBuilder} service of a persistence unit. The built EntityManagerFactories are cached
+ * by their normalized properties, so the requests with the same properties get the same EntityManagerFactory. The
+ * clients get a handle that they have to close when they do not need the EntityManagerFactory anymore. An
+ * EntityManagerFactory that has no open handles is closed after an idle timeout. The builder does not enlist in JTA
+ * transactions, so it refuses the persistence units that need JTA unless the transaction type is overridden to
+ * RESOURCE_LOCAL in the properties of the request.
+ */
+class EntityManagerFactoryBuilderImpl implements EntityManagerFactoryBuilder {
+
+    /**
+     * An EntityManagerFactory in the cache with the resources that were created for it.
+     */
+    private final class CachedEntityManagerFactory {
+
+        private final Map<String, Object> props;
+
+        /**
+         * The built EntityManagerFactory. Volatile so the handles can get it without locking once it is built.
+         */
+        private volatile EntityManagerFactory emf;
+
+        private PersistenceUnitInfoImpl persistenceUnitInfo;
+
+        private final List<Closeable> containerResources = new ArrayList<Closeable>();
+
+        private final List<ServiceReference> holdedReferences = new ArrayList<ServiceReference>();
+
+        /**
+         * Volatile so the handles can check it without waiting for a running build.
+         */
+        private volatile boolean closed = false;
+
+        /**
+         * The number of open handles. Guarded by the builder.
+         */
+        private int referenceCount = 0;
+
+        /**
+         * The time when the last handle was closed. Guarded by the builder.
+         */
+        private long releasedAt;
+
+        public CachedEntityManagerFactory(final Map<String, Object> props) {
+            this.props = props;
+        }
+
+        public synchronized void close() {
+            closed = true;
+            if (emf != null) {
+                try {
+                    emf.close();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error during closing built EntityManagerFactory of persistence unit " + unitName, e);
+                }
+                emf = null;
+            }
+            if (persistenceUnitInfo != null) {
+                persistenceUnitInfo.destroy();
+                persistenceUnitInfo = null;
+            }
+            for (Closeable resource : containerResources) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    LOGGER.error("Error during closing resource " + resource + " of persistence unit " + unitName, e);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error during closing resource " + resource + " of persistence unit " + unitName, e);
+                }
+            }
+            containerResources.clear();
+            for (ServiceReference reference : holdedReferences) {
+                try {
+                    bcx.ungetService(reference);
+                } catch (IllegalStateException e) {
+                    LOGGER.debug("Could not unget service " + reference, e);
+                }
+            }
+            holdedReferences.clear();
+        }
+
+        /**
+         * Returns the EntityManagerFactory and builds it if it is not built yet.
+         */
+        public EntityManagerFactory getEntityManagerFactory() {
+            EntityManagerFactory result = emf;
+            if (result != null) {
+                return result;
+            }
+            return buildEntityManagerFactory();
+        }
+
+        private synchronized EntityManagerFactory buildEntityManagerFactory() {
+            if (closed) {
+                throw new IllegalStateException("EntityManagerFactoryBuilder of persistence unit " + unitName
+                        + " is closed");
+            }
+            if (emf == null) {
+                try {
+                    build();
+                } catch (RuntimeException e) {
+                    close();
+                    closed = false;
+                    throw e;
+                }
+            }
+            return emf;
+        }
+
+        private void build() {
+            Properties mergedProps = new Properties();
+            Properties unitProps = unitConfigurations.getProperties(ppu);
+            if (unitProps != null) {
+                mergedProps.putAll(unitProps);
+            }
+            for (Entry<String, Object> entry : props.entrySet()) {
+                if (entry.getValue() != null) {
+                    mergedProps.put(entry.getKey(), entry.getValue());
+                }
+            }
+            String transactionType = getStringProperty(mergedProps, TRANSACTION_TYPE_PROPERTY);
+            if (PersistenceBundleManager.isJTANecessary(ppu)
+                    && !PersistenceUnitTransactionType.RESOURCE_LOCAL.name().equals(transactionType)) {
+                throw new PersistenceException("Persistence unit " + unitName + " needs JTA, but the "
+                        + "EntityManagerFactoryBuilder service can only build RESOURCE_LOCAL EntityManagerFactories. "
+                        + "Use the EntityManagerFactory service of the persistence unit or set the "
+                        + TRANSACTION_TYPE_PROPERTY + " property to RESOURCE_LOCAL.");
+            }
+            DataSource nonJtaDataSource;
+            String driverClassName = getStringProperty(mergedProps, "javax.persistence.jdbc.driver");
+            if (driverClassName != null) {
+                nonJtaDataSource = createDataSource(driverClassName, mergedProps);
+            } else {
+                nonJtaDataSource = getNonJtaDataSource();
+            }
+            persistenceUnitInfo = new PersistenceUnitInfoImpl(ppu, persistenceProviderSR, null, nonJtaDataSource,
+                    managedClassIndex, unitProps);
+            long bootstrapStartTime = System.currentTimeMillis();
+            emf = persistenceProvider.createContainerEntityManagerFactory(persistenceUnitInfo, props);
+            if (emf == null) {
+                throw new PersistenceException("Persistence provider did not create the EntityManagerFactory of "
+                        + "persistence unit " + unitName);
+            }
+            LOGGER.info("EntityManagerFactory of persistence unit " + unitName + " built in "
+                    + (System.currentTimeMillis() - bootstrapStartTime) + " ms with properties " + props.keySet());
+        }
+
+        /**
+         * Gets the non-jta-data-source of the persistence unit from the service registry or from JNDI.
+         *
+         * @return The DataSource or null if the persistence unit does not have a non-jta-data-source.
+         */
+        private DataSource getNonJtaDataSource() {
+            String expression = (String) ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.NON_JTA_DATASOURCE);
+            if (expression == null) {
+                return null;
+            }
+            if (!expression.startsWith("osgi:service")) {
+                try {
+                    return InitialContext.doLookup(expression);
+                } catch (NamingException e) {
+                    throw new PersistenceException("Cannot get non-jta datasource of persistence unit " + unitName
+                            + " from JNDI: " + expression, e);
+                }
+            }
+            Matcher matcher = Pattern.compile(DataSourceRequisiteTracker.OSGI_DS_SERVICE_PATTERN).matcher(expression);
+            if (!matcher.matches()) {
+                throw new PersistenceException("The non-jta-data-source of persistence unit " + unitName
+                        + " must match the following regex: " + DataSourceRequisiteTracker.OSGI_DS_SERVICE_PATTERN);
+            }
+            String filter = matcher.group(1);
+            ServiceReference dataSourceReference = getBestReference(DataSource.class.getName(),
+                    ((filter == null) || (filter.length() == 0)) ? null : filter);
+            if (dataSourceReference == null) {
+                throw new PersistenceException("No DataSource service is available for persistence unit " + unitName
+                        + ": " + expression);
+            }
+            DataSource dataSource = (DataSource) bcx.getService(dataSourceReference);
+            if (dataSource == null) {
+                throw new PersistenceException("DataSource service of persistence unit " + unitName
+                        + " is not available anymore: " + expression);
+            }
+            holdedReferences.add(dataSourceReference);
+            return dataSource;
+        }
+
+        private DataSource createDataSource(final String driverClassName, final Properties mergedProps) {
+            ServiceReference dsfReference = getDataSourceFactoryReference(driverClassName);
+            final DataSourceFactory dsf = (DataSourceFactory) bcx.getService(dsfReference);
+            if (dsf == null) {
+                throw new PersistenceException("DataSourceFactory of driver " + driverClassName
+                        + " is not available anymore");
+            }
+            holdedReferences.add(dsfReference);
+            final Properties dsfProps = new Properties();
+            setIfNotNull(dsfProps, DataSourceFactory.JDBC_URL, getStringProperty(mergedProps,
+                    "javax.persistence.jdbc.url"));
+            setIfNotNull(dsfProps, DataSourceFactory.JDBC_USER, getStringProperty(mergedProps,
+                    "javax.persistence.jdbc.user"));
+            setIfNotNull(dsfProps, DataSourceFactory.JDBC_PASSWORD, getStringProperty(mergedProps,
+                    "javax.persistence.jdbc.password"));
+            final ConnectionPoolConfiguration poolConfiguration = new ConnectionPoolConfiguration(mergedProps);
+            SharedDataSourceRegistry.DataSourceCreator creator = new SharedDataSourceRegistry.DataSourceCreator() {
+
+                @Override
+                public DataSource createDataSource() throws SQLException {
+                    DataSource dataSource = dsf.createDataSource(dsfProps);
+                    if (!poolConfiguration.isEnabled()) {
+                        return dataSource;
+                    }
+                    PooledDataSource pooledDataSource = new PooledDataSource(unitName + " (built)", dataSource,
+                            poolConfiguration, executor);
+                    pooledDataSource.start();
+                    pooledDataSource.registerMXBean(containerMetrics);
+                    return pooledDataSource;
+                }
+            };
+            try {
+                if (sharedDataSourceRegistry != null) {
+                    SharedDataSourceRegistry.SharedDataSource sharedDataSource = sharedDataSourceRegistry.acquire(
+                            SharedDataSourceRegistry.createKey(dsfReference, dsfProps, mergedProps), creator);
+                    containerResources.add(sharedDataSource);
+                    return sharedDataSource.getDataSource();
+                }
+                DataSource dataSource = creator.createDataSource();
+                if (dataSource instanceof Closeable) {
+                    containerResources.add((Closeable) dataSource);
+                }
+                return dataSource;
+            } catch (SQLException e) {
+                throw new PersistenceException("Could not create DataSource for persistence unit " + unitName, e);
+            }
+        }
+    }
+
+    /**
+     * The EntityManagerFactory that the clients of the builder get. Closing it releases the cached
+     * EntityManagerFactory instead of closing it.
+     */
+    private final class EntityManagerFactoryHandle implements InvocationHandler {
+
+        private final CachedEntityManagerFactory cachedEntityManagerFactory;
+
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        public EntityManagerFactoryHandle(final CachedEntityManagerFactory cachedEntityManagerFactory) {
+            this.cachedEntityManagerFactory = cachedEntityManagerFactory;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            String methodName = method.getName();
+            int argCount = (args == null) ? 0 : args.length;
+            if ("close".equals(methodName) && (argCount == 0)) {
+                if (closed.compareAndSet(false, true)) {
+                    release(cachedEntityManagerFactory);
+                }
+                return null;
+            }
+            if ("isOpen".equals(methodName) && (argCount == 0)) {
+                if (closed.get() || cachedEntityManagerFactory.closed) {
+                    return false;
+                }
+            }
+            if ("equals".equals(methodName) && (argCount == 1)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(methodName) && (argCount == 0)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(methodName) && (argCount == 0)) {
+                return "Built[" + unitName + ", " + cachedEntityManagerFactory.props.keySet() + "]";
+            }
+            if (closed.get()) {
+                throw new IllegalStateException("EntityManagerFactory is closed");
+            }
+            try {
+                return method.invoke(cachedEntityManagerFactory.getEntityManagerFactory(), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EntityManagerFactoryBuilderImpl.class);
+
+    /**
+     * The standard property that overrides the transaction type of the persistence unit.
+     */
+    private static final String TRANSACTION_TYPE_PROPERTY = "javax.persistence.transactionType";
+
+    private static String getStringProperty(final Properties props, final String key) {
+        Object value = props.get(key);
+        return (value == null) ? null : value.toString();
+    }
+
+    private static void setIfNotNull(final Properties props, final String key, final String value) {
+        if (value != null) {
+            props.setProperty(key, value);
+        }
+    }
+
+    private final ParsedPersistenceUnit ppu;
+
+    private final String unitName;
+
+    /**
+     * The context of the persistence bundle that the services are got and registered with.
+     */
+    private final BundleContext bcx;
+
+    private final ServiceReference persistenceProviderSR;
+
+    private final ManagedClassIndex managedClassIndex;
+
+    /**
+     * The executor of the idle eviction and of the maintenance of the connection pools.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * The time in milliseconds after an EntityManagerFactory without open handles is closed.
+     */
+    private final long idleTimeout;
+
+    /**
+     * The cached EntityManagerFactories by their normalized properties. Guarded by this object.
+     */
+    private final Map<Map<String, String>, CachedEntityManagerFactory> cache =
+            new HashMap<Map<String, String>, CachedEntityManagerFactory>();
+
+    /**
+     * The EntityManagerFactories that were removed from the cache by {@link #invalidate()} but still have open
+     * handles. They are closed when their last handle is closed. Guarded by this object.
+     */
+    private final List<CachedEntityManagerFactory> invalidated = new ArrayList<CachedEntityManagerFactory>();
+
+    private boolean closed = false;
+
+    private PersistenceProvider persistenceProvider;
+
+    private ServiceRegistration serviceRegistration;
+
+    /**
+     * The DataSources that are shared with the other persistence units or null if the sharing is switched off.
+     */
+    private final SharedDataSourceRegistry sharedDataSourceRegistry;
+
+    /**
+     * The properties of the persistence units that are overridden at runtime.
+     */
+    private final PersistenceUnitConfigurations unitConfigurations;
+
+    /**
+     * The metrics that the connection pools are registered in.
+     */
+    private final ContainerMetrics containerMetrics;
+
+    private ScheduledFuture<?> evictionFuture;
+
+    /**
+     * Constructor.
+     *
+     * @param ppu
+     *            The persistence unit.
+     * @param persistenceProviderSR
+     *            The reference of the persistence provider of the persistence unit.
+     * @param managedClassIndex
+     *            The index of the managed classes of the persistence bundles.
+     * @param executor
+     *            The executor of the idle eviction and of the maintenance of the connection pools.
+     * @param idleTimeout
+     *            The time in milliseconds after an EntityManagerFactory without open handles is closed.
+     * @param sharedDataSourceRegistry
+     *            The DataSources that are shared with the other persistence units or null if the sharing is switched
+     *            off.
+     * @param unitConfigurations
+     *            The properties of the persistence units that are overridden at runtime.
+     * @param containerMetrics
+     *            The metrics that the connection pools are registered in.
+     */
+    public EntityManagerFactoryBuilderImpl(final ParsedPersistenceUnit ppu,
+            final ServiceReference persistenceProviderSR, final ManagedClassIndex managedClassIndex,
+            final ScheduledExecutorService executor, final long idleTimeout,
+            final SharedDataSourceRegistry sharedDataSourceRegistry,
+            final PersistenceUnitConfigurations unitConfigurations, final ContainerMetrics containerMetrics) {
+        this.ppu = ppu;
+        unitName = (String) ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME);
+        bcx = ppu.getDefiningBundle().getBundleContext();
+        this.persistenceProviderSR = persistenceProviderSR;
+        this.managedClassIndex = managedClassIndex;
+        this.executor = executor;
+        this.idleTimeout = idleTimeout;
+        this.sharedDataSourceRegistry = sharedDataSourceRegistry;
+        this.unitConfigurations = unitConfigurations;
+        this.containerMetrics = containerMetrics;
+    }
+
+    /**
+     * Unregisters the service and closes all of the built EntityManagerFactories, even if they have open handles.
+     */
+    public void close() {
+        List<CachedEntityManagerFactory> cachedEntityManagerFactories;
+        ServiceRegistration registration;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            registration = serviceRegistration;
+            serviceRegistration = null;
+            if (evictionFuture != null) {
+                evictionFuture.cancel(false);
+                evictionFuture = null;
+            }
+            cachedEntityManagerFactories = new ArrayList<CachedEntityManagerFactory>(cache.values());
+            cachedEntityManagerFactories.addAll(invalidated);
+            cache.clear();
+            invalidated.clear();
+        }
+        if (registration != null) {
+            try {
+                registration.unregister();
+            } catch (IllegalStateException e) {
+                LOGGER.debug("EntityManagerFactoryBuilder service is already unregistered: " + unitName, e);
+            }
+        }
+        for (CachedEntityManagerFactory cachedEntityManagerFactory : cachedEntityManagerFactories) {
+            cachedEntityManagerFactory.close();
+        }
+        if (persistenceProvider != null) {
+            try {
+                bcx.ungetService(persistenceProviderSR);
+            } catch (IllegalStateException e) {
+                LOGGER.debug("Could not unget service " + persistenceProviderSR, e);
+            }
+        }
+    }
+
+    @Override
+    public EntityManagerFactory createEntityManagerFactory(final Map<String, Object> props) {
+        Map<String, Object> buildProps = new HashMap<String, Object>();
+        if (props != null) {
+            buildProps.putAll(props);
+        }
+        Map<String, String> key = normalize(buildProps);
+        CachedEntityManagerFactory cachedEntityManagerFactory;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("EntityManagerFactoryBuilder of persistence unit " + unitName
+                        + " is closed");
+            }
+            cachedEntityManagerFactory = cache.get(key);
+            if (cachedEntityManagerFactory == null) {
+                cachedEntityManagerFactory = new CachedEntityManagerFactory(buildProps);
+                cache.put(key, cachedEntityManagerFactory);
+            }
+            cachedEntityManagerFactory.referenceCount++;
+        }
+        try {
+            cachedEntityManagerFactory.getEntityManagerFactory();
+        } catch (RuntimeException e) {
+            release(cachedEntityManagerFactory);
+            throw e;
+        }
+        return (EntityManagerFactory) Proxy.newProxyInstance(EntityManagerFactoryBuilderImpl.class.getClassLoader(),
+                new Class<?>[] { EntityManagerFactory.class }, new EntityManagerFactoryHandle(
+                        cachedEntityManagerFactory));
+    }
+
+    /**
+     * Closes the EntityManagerFactories that had no open handles during the idle timeout.
+     */
+    private void evictIdleEntityManagerFactories() {
+        List<CachedEntityManagerFactory> evicted = new ArrayList<CachedEntityManagerFactory>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<CachedEntityManagerFactory> iterator = cache.values().iterator();
+            while (iterator.hasNext()) {
+                CachedEntityManagerFactory cachedEntityManagerFactory = iterator.next();
+                if ((cachedEntityManagerFactory.referenceCount == 0)
+                        && (now - cachedEntityManagerFactory.releasedAt > idleTimeout)) {
+                    iterator.remove();
+                    evicted.add(cachedEntityManagerFactory);
+                }
+            }
+        }
+        for (CachedEntityManagerFactory cachedEntityManagerFactory : evicted) {
+            LOGGER.info("Closing idle built EntityManagerFactory of persistence unit " + unitName);
+            cachedEntityManagerFactory.close();
+        }
+    }
+
+    /**
+     * Removes all EntityManagerFactories from the cache, so the later requests get EntityManagerFactories that are
+     * built with the current properties of the persistence unit. The EntityManagerFactories without open handles are
+     * closed immediately, the others when their last handle is closed.
+     */
+    public void invalidate() {
+        List<CachedEntityManagerFactory> unused = new ArrayList<CachedEntityManagerFactory>();
+        synchronized (this) {
+            for (CachedEntityManagerFactory cachedEntityManagerFactory : cache.values()) {
+                if (cachedEntityManagerFactory.referenceCount == 0) {
+                    unused.add(cachedEntityManagerFactory);
+                } else {
+                    invalidated.add(cachedEntityManagerFactory);
+                }
+            }
+            cache.clear();
+        }
+        for (CachedEntityManagerFactory cachedEntityManagerFactory : unused) {
+            cachedEntityManagerFactory.close();
+        }
+    }
+
+    /**
+     * Normalizes the properties of a build request so the requests with equal properties get the same
+     * EntityManagerFactory regardless of the type of the property values.
+     */
+    private Map<String, String> normalize(final Map<String, Object> props) {
+        Map<String, String> result = new TreeMap<String, String>();
+        for (Entry<String, Object> entry : props.entrySet()) {
+            result.put(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Registers the builder as a service with the context of the persistence bundle.
+     *
+     * @param serviceProps
+     *            The properties of the service.
+     * @return Whether the service was registered.
+     */
+    public synchronized boolean register(final Dictionary<String, Object> serviceProps) {
+        persistenceProvider = (PersistenceProvider) bcx.getService(persistenceProviderSR);
+        if (persistenceProvider == null) {
+            return false;
+        }
+        try {
+            serviceRegistration = bcx.registerService(EntityManagerFactoryBuilder.class.getName(), this,
+                    serviceProps);
+        } catch (IllegalStateException e) {
+            LOGGER.error("Could not register EntityManagerFactoryBuilder of persistence unit " + unitName, e);
+            return false;
+        }
+        long period = Math.max(1000, idleTimeout / 2);
+        evictionFuture = executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    evictIdleEntityManagerFactories();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error during the eviction of idle EntityManagerFactories of persistence unit "
+                            + unitName, e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Returns the service with the highest ranking that matches the filter.
+     *
+     * @return The reference of the service or null if no service matches.
+     */
+    private ServiceReference getBestReference(final String clazz, final String filter) {
+        ServiceReference[] references;
+        try {
+            references = bcx.getServiceReferences(clazz, filter);
+        } catch (InvalidSyntaxException e) {
+            throw new PersistenceException("Invalid filter in persistence unit " + unitName + ": " + filter, e);
+        }
+        if ((references == null) || (references.length == 0)) {
+            return null;
+        }
+        ServiceReference result = references[0];
+        for (ServiceReference reference : references) {
+            if (reference.compareTo(result) > 0) {
+                result = reference;
+            }
+        }
+        return result;
+    }
+
+    private ServiceReference getDataSourceFactoryReference(final String driverClassName) {
+        ServiceReference result = getBestReference(DataSourceFactory.class.getName(), "("
+                + DataSourceFactory.OSGI_JDBC_DRIVER_CLASS + "=" + driverClassName + ")");
+        if (result == null) {
+            throw new PersistenceException("No DataSourceFactory is available for driver " + driverClassName);
+        }
+        return result;
+    }
+
+    /**
+     * Closes a handle of a cached EntityManagerFactory. The EntityManagerFactory is closed if it was invalidated and
+     * this was its last handle.
+     */
+    private void release(final CachedEntityManagerFactory cachedEntityManagerFactory) {
+        boolean closeInvalidated;
+        synchronized (this) {
+            cachedEntityManagerFactory.referenceCount--;
+            if (cachedEntityManagerFactory.referenceCount == 0) {
+                cachedEntityManagerFactory.releasedAt = System.currentTimeMillis();
+            }
+            closeInvalidated = (cachedEntityManagerFactory.referenceCount == 0)
+                    && invalidated.remove(cachedEntityManagerFactory);
+        }
+        if (closeInvalidated) {
+            LOGGER.info("Closing built EntityManagerFactory of persistence unit " + unitName
+                    + " that was built with outdated properties");
+            cachedEntityManagerFactory.close();
+        }
+    }
+}
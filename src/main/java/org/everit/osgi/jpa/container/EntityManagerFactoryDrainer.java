@@ -0,0 +1,121 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the EntityManagerFactories that were replaced by a new start of their persistence unit open for a drain
+ * period, so the EntityManagers that were created by them can finish their work. The services of the replaced
+ * EntityManagerFactories are unregistered immediately.
+ */
+class EntityManagerFactoryDrainer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EntityManagerFactoryDrainer.class);
+
+    /**
+     * The time in milliseconds while a replaced EntityManagerFactory is kept open.
+     */
+    private final long drainTime;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * The starts of persistence units whose EntityManagerFactory is replaced but not closed yet.
+     */
+    private final Set<PersistenceUnitBootstrap> drainingBootstraps = Collections
+            .newSetFromMap(new ConcurrentHashMap<PersistenceUnitBootstrap, Boolean>());
+
+    /**
+     * Constructor.
+     *
+     * @param drainTime
+     *            The time in milliseconds while a replaced EntityManagerFactory is kept open.
+     */
+    public EntityManagerFactoryDrainer(final long drainTime) {
+        this.drainTime = drainTime;
+        executor = new ScheduledThreadPoolExecutor(1, new ContainerThreadFactory("jpa-container-drain-"));
+    }
+
+    /**
+     * Closes all of the draining EntityManagerFactories immediately.
+     */
+    public void close() {
+        executor.shutdownNow();
+        for (PersistenceUnitBootstrap bootstrap : drainingBootstraps) {
+            if (drainingBootstraps.remove(bootstrap)) {
+                bootstrap.stop();
+            }
+        }
+    }
+
+    /**
+     * Unregisters the EntityManagerFactory service of a start of a persistence unit and stops the start after the
+     * drain period.
+     *
+     * @param bootstrap
+     *            The start of the persistence unit that is replaced.
+     */
+    public void drain(final PersistenceUnitBootstrap bootstrap) {
+        bootstrap.unregisterService();
+        drainingBootstraps.add(bootstrap);
+        Runnable stopTask = new Runnable() {
+
+            @Override
+            public void run() {
+                if (drainingBootstraps.remove(bootstrap)) {
+                    bootstrap.stop();
+                }
+            }
+        };
+        if (schedule(stopTask, drainTime) == null) {
+            stopTask.run();
+        }
+    }
+
+    /**
+     * Schedules a task on the thread of the drainer.
+     *
+     * @param task
+     *            The task.
+     * @param delay
+     *            The delay in milliseconds.
+     * @return The future of the task or null if the drainer is closed.
+     */
+    public ScheduledFuture<?> schedule(final Runnable task, final long delay) {
+        try {
+            return executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Drainer is closed, task is not scheduled", e);
+            return null;
+        }
+    }
+}
@@ -21,6 +21,7 @@ package org.everit.osgi.jpa.container;
  * MA 02110-1301  USA
  */
 
+import java.io.Closeable;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Dictionary;
@@ -28,24 +29,33 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
-import javax.persistence.EntityManagerFactory;
 import javax.persistence.spi.PersistenceProvider;
 import javax.sql.DataSource;
 import javax.sql.XADataSource;
+import javax.transaction.TransactionManager;
 
 import org.apache.aries.jpa.container.PersistenceUnitConstants;
 import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
 import org.apache.aries.jpa.container.tx.impl.XADatasourceEnlistingWrapper;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
-import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.jdbc.DataSourceFactory;
 import org.osgi.service.jpa.EntityManagerFactoryBuilder;
 
@@ -57,45 +67,239 @@ public class EntityManagerFactoryManager {
     private static final Logger LOGGER = LoggerFactory.getLogger(EntityManagerFactoryManager.class);
 
     /**
-     * ServiceReferences of Persistence Units using by bundles.
+     * Framework and persistence unit property that switches on the lazy mode if its value is true. In lazy mode the
+     * EntityManagerFactory service is registered as soon as the requisites of the persistence unit are available and
+     * the persistence provider creates the EntityManagerFactory when the service is used for the first time. The
+     * persistence unit property overrides the framework property.
      */
-    private Map<ParsedPersistenceUnit, List<ServiceReference>> holdedReferencesByPPUs =
-            new ConcurrentHashMap<ParsedPersistenceUnit, List<ServiceReference>>();
+    public static final String LAZY_PROPERTY = "org.everit.osgi.jpa.container.lazy";
 
-    private Map<ParsedPersistenceUnit, EntityManagerFactory> emfsByPPU =
-            new ConcurrentHashMap<ParsedPersistenceUnit, EntityManagerFactory>();
+    /**
+     * The time in seconds while the container waits for the running EntityManagerFactory creations at shutdown.
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
 
-    private Map<ParsedPersistenceUnit, ServiceRegistration> emfRegistrationsByPPU =
-            new ConcurrentHashMap<ParsedPersistenceUnit, ServiceRegistration>();
+    /**
+     * The requisites that a persistence unit was started with.
+     */
+    private static final class StartRequest {
 
-    public void startPersistenceUnit(final ParsedPersistenceUnit ppu, ServiceReference persistenceProviderSR,
-            final Map<String, ServiceReference> serviceReferencesByIds) {
-        Bundle bundle = ppu.getDefiningBundle();
-        BundleContext bcx = bundle.getBundleContext();
-        List<ServiceReference> holdedReferences = holdedReferencesByPPUs.get(ppu);
+        private final ServiceReference persistenceProviderSR;
+
+        private final Map<String, ServiceReference> serviceReferencesByIds;
+
+        public StartRequest(final ServiceReference persistenceProviderSR,
+                final Map<String, ServiceReference> serviceReferencesByIds) {
+            this.persistenceProviderSR = persistenceProviderSR;
+            this.serviceReferencesByIds = serviceReferencesByIds;
+        }
+    }
+
+    /**
+     * The key of the registry entries of the XA DataSources that holds the service id of the TransactionManager.
+     */
+    private static final String XA_KEY = "xa";
+
+    /**
+     * The currently running starts of the persistence units.
+     */
+    private Map<ParsedPersistenceUnit, PersistenceUnitBootstrap> bootstrapsByPPU =
+            new ConcurrentHashMap<ParsedPersistenceUnit, PersistenceUnitBootstrap>();
+
+    /**
+     * The requisites of the started persistence units that are used when a persistence unit is rebuilt.
+     */
+    private Map<ParsedPersistenceUnit, StartRequest> startRequestsByPPU =
+            new ConcurrentHashMap<ParsedPersistenceUnit, StartRequest>();
+
+    /**
+     * The starts of the persistence units that were stopped in replacement mode and whose EntityManagerFactory is
+     * still registered, waiting for a new start of the persistence unit that replaces them.
+     */
+    private ConcurrentMap<ParsedPersistenceUnit, PersistenceUnitBootstrap> retiringBootstrapsByPPU =
+            new ConcurrentHashMap<ParsedPersistenceUnit, PersistenceUnitBootstrap>();
+
+    /**
+     * The registered EntityManagerFactoryBuilder services of the persistence units.
+     */
+    private Map<ParsedPersistenceUnit, EntityManagerFactoryBuilderImpl> buildersByPPU =
+            new ConcurrentHashMap<ParsedPersistenceUnit, EntityManagerFactoryBuilderImpl>();
+
+    /**
+     * The time in milliseconds after an EntityManagerFactory that was built by an EntityManagerFactoryBuilder service
+     * and has no open handles is closed or a negative value if the builder services are not registered.
+     */
+    private final long builderIdleTimeout;
+
+    /**
+     * The DataSources that are shared among the persistence units or null if the sharing is switched off.
+     */
+    private final SharedDataSourceRegistry sharedDataSourceRegistry;
+
+    /**
+     * The properties of the persistence units that are overridden at runtime.
+     */
+    private final PersistenceUnitConfigurations unitConfigurations;
 
-        if (holdedReferences == null) {
-            holdedReferences = new ArrayList<ServiceReference>();
-            holdedReferencesByPPUs.put(ppu, holdedReferences);
+    /**
+     * Closes the replaced EntityManagerFactories after the drain period or null if the replacement mode is switched
+     * off.
+     */
+    private final EntityManagerFactoryDrainer drainer;
+
+    /**
+     * The time in milliseconds while the EntityManagerFactory of a stopped persistence unit stays registered in
+     * replacement mode, waiting for a new start of the persistence unit.
+     */
+    private final long replacementWindow;
+
+    /**
+     * Whether the persistence units that do not specify {@link #LAZY_PROPERTY} are started in lazy mode.
+     */
+    private final boolean lazyByDefault;
+
+    /**
+     * The executor that calls the persistence providers to create the EntityManagerFactories. As the persistence
+     * units are independent from each other their bootstrap can run parallel and the thread that delivered the last
+     * requisite of a persistence unit is not blocked.
+     */
+    private final ExecutorService bootstrapExecutor;
+
+    /**
+     * The executor that runs the maintenance tasks of the connection pools of the container.
+     */
+    private final ScheduledExecutorService poolMaintenanceExecutor;
+
+    /**
+     * The index of the managed classes of the persistence bundles.
+     */
+    private final ManagedClassIndex managedClassIndex;
+
+    /**
+     * The metrics that the timings of the persistence unit starts are reported to.
+     */
+    private final ContainerMetrics containerMetrics;
+
+    /**
+     * Constructor.
+     *
+     * @param bootstrapThreads
+     *            The maximum number of persistence units that are bootstrapped parallel.
+     * @param managedClassIndex
+     *            The index of the managed classes of the persistence bundles.
+     * @param containerMetrics
+     *            The metrics that the timings of the persistence unit starts are reported to.
+     * @param replacementDrainTime
+     *            The time in milliseconds while a replaced EntityManagerFactory is kept open or a negative value if
+     *            the EntityManagerFactories should not stay registered until they are replaced.
+     * @param replacementWindow
+     *            The time in milliseconds while the EntityManagerFactory of a stopped persistence unit stays
+     *            registered in replacement mode, waiting for a new start of the persistence unit.
+     * @param lazyByDefault
+     *            Whether the persistence units that do not specify {@link #LAZY_PROPERTY} are started in lazy mode.
+     * @param builderIdleTimeout
+     *            The time in milliseconds after an unused EntityManagerFactory that was built by an
+     *            EntityManagerFactoryBuilder service is closed or a negative value if the builder services should not
+     *            be registered.
+     * @param dataSourceSharingEnabled
+     *            Whether the persistence units with the same DataSourceFactory, connection properties and connection
+     *            pool settings share their DataSources.
+     * @param unitConfigurations
+     *            The properties of the persistence units that are overridden at runtime.
+     */
+    public EntityManagerFactoryManager(final int bootstrapThreads, final ManagedClassIndex managedClassIndex,
+            final ContainerMetrics containerMetrics, final long replacementDrainTime, final long replacementWindow,
+            final boolean lazyByDefault, final long builderIdleTimeout, final boolean dataSourceSharingEnabled,
+            final PersistenceUnitConfigurations unitConfigurations) {
+        this.managedClassIndex = managedClassIndex;
+        this.containerMetrics = containerMetrics;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(bootstrapThreads, bootstrapThreads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ContainerThreadFactory(
+                        "jpa-container-bootstrap-"));
+        executor.allowCoreThreadTimeOut(true);
+        bootstrapExecutor = executor;
+        poolMaintenanceExecutor = new ScheduledThreadPoolExecutor(1, new ContainerThreadFactory(
+                "jpa-container-pool-maintenance-"));
+        drainer = (replacementDrainTime < 0) ? null : new EntityManagerFactoryDrainer(replacementDrainTime);
+        this.replacementWindow = replacementWindow;
+        this.lazyByDefault = lazyByDefault;
+        this.builderIdleTimeout = builderIdleTimeout;
+        sharedDataSourceRegistry = dataSourceSharingEnabled ? new SharedDataSourceRegistry() : null;
+        this.unitConfigurations = unitConfigurations;
+    }
+
+    /**
+     * Registers the EntityManagerFactoryBuilder service of a persistence unit whose persistence provider is
+     * available. Nothing happens if the builder services are switched off.
+     *
+     * @param ppu
+     *            The persistence unit.
+     * @param persistenceProviderSR
+     *            The reference of the persistence provider of the persistence unit.
+     */
+    public void registerEntityManagerFactoryBuilder(final ParsedPersistenceUnit ppu,
+            final ServiceReference persistenceProviderSR) {
+        if (builderIdleTimeout < 0) {
+            return;
+        }
+        EntityManagerFactoryBuilderImpl builder = new EntityManagerFactoryBuilderImpl(ppu, persistenceProviderSR,
+                managedClassIndex, poolMaintenanceExecutor, builderIdleTimeout, sharedDataSourceRegistry,
+                unitConfigurations, containerMetrics);
+        EntityManagerFactoryBuilderImpl previousBuilder = buildersByPPU.put(ppu, builder);
+        if (previousBuilder != null) {
+            previousBuilder.close();
+        }
+        Dictionary<String, Object> builderServiceProps = new Hashtable<String, Object>();
+        builderServiceProps.put(EntityManagerFactoryBuilder.JPA_UNIT_NAME, ppu.getPersistenceXmlMetadata().get(
+                ParsedPersistenceUnit.UNIT_NAME));
+        builderServiceProps.put(EntityManagerFactoryBuilder.JPA_UNIT_VERSION, ppu.getDefiningBundle().getVersion());
+        String providerName = (String) persistenceProviderSR.getProperty("javax.persistence.provider");
+        if (providerName != null) {
+            builderServiceProps.put(EntityManagerFactoryBuilder.JPA_UNIT_PROVIDER, providerName);
+        }
+        if (!builder.register(builderServiceProps)) {
+            buildersByPPU.remove(ppu);
+            builder.close();
         }
+    }
+
+    public synchronized void startPersistenceUnit(final ParsedPersistenceUnit ppu,
+            final ServiceReference persistenceProviderSR, final Map<String, ServiceReference> serviceReferencesByIds) {
+        startRequestsByPPU.put(ppu, new StartRequest(persistenceProviderSR, serviceReferencesByIds));
+        PersistenceUnitBootstrap predecessor = retiringBootstrapsByPPU.remove(ppu);
+        Bundle bundle = ppu.getDefiningBundle();
+        BundleContext bcx = bundle.getBundleContext();
+        List<ServiceReference> holdedReferences = new ArrayList<ServiceReference>();
+        List<Closeable> containerResources = new ArrayList<Closeable>();
+        final String unitName = (String) ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME);
+        final Properties props = unitConfigurations.getProperties(ppu);
+        final PersistenceUnitMetrics unitMetrics = containerMetrics.getPersistenceUnitMetrics(ppu);
+        long dataSourceCreationStartTime = System.currentTimeMillis();
 
         PersistenceProvider persistenceProviderService = (PersistenceProvider) getServiceObject(bcx,
                 persistenceProviderSR, holdedReferences);
 
         DataSource nonJtaDataSource = (DataSource) getServiceObject(bcx,
                 serviceReferencesByIds.get(PersistenceBundleManager.DATASOURCE_REFERENCE_ID), holdedReferences);
+        boolean routingEnabled = RoutingDataSource.isEnabled(ppu);
+        if (routingEnabled != RoutingDataSource.isEnabled(props)) {
+            LOGGER.warn(RoutingDataSource.ROUTING_ENABLED_PROPERTY + " can be set in persistence.xml only, the"
+                    + " runtime override of persistence unit " + unitName + " is ignored");
+        }
+        if ((nonJtaDataSource != null) && routingEnabled) {
+            nonJtaDataSource = createRoutingDataSource(ppu, bcx, nonJtaDataSource, props, containerResources);
+        }
 
         DataSource jtaDataSource = (DataSource) getServiceObject(bcx,
                 serviceReferencesByIds.get(PersistenceBundleManager.XA_DATASOURCE_REFERENCE_ID), holdedReferences);
 
         if (nonJtaDataSource == null && jtaDataSource == null) {
-            DataSourceFactory dsf = (DataSourceFactory) getServiceObject(bcx,
-                    serviceReferencesByIds.get(PersistenceBundleManager.DATASOURCE_FACTORY_REFERENCE_ID),
-                    holdedReferences);
+            ServiceReference dsfReference = serviceReferencesByIds
+                    .get(PersistenceBundleManager.DATASOURCE_FACTORY_REFERENCE_ID);
+            final DataSourceFactory dsf = (DataSourceFactory) getServiceObject(bcx, dsfReference, holdedReferences);
 
             if (dsf != null) {
-                Properties dsfProps = new Properties();
-                Properties props = (Properties) ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.PROPERTIES);
+                final Properties dsfProps = new Properties();
 
                 String url = props.getProperty("javax.persistence.jdbc.url");
                 String user = props.getProperty("javax.persistence.jdbc.user");
@@ -104,14 +308,59 @@ public class EntityManagerFactoryManager {
                 dsfProps.setProperty(DataSourceFactory.JDBC_USER, user);
                 dsfProps.setProperty(DataSourceFactory.JDBC_PASSWORD, password);
                 try {
-                    nonJtaDataSource = dsf.createDataSource(dsfProps);
+                    final ConnectionPoolConfiguration poolConfiguration = new ConnectionPoolConfiguration(props);
+                    Map<String, String> dataSourceKey = SharedDataSourceRegistry.createKey(dsfReference, dsfProps,
+                            props);
+                    nonJtaDataSource = acquireDataSource(dataSourceKey,
+                            new SharedDataSourceRegistry.DataSourceCreator() {
+
+                                @Override
+                                public DataSource createDataSource() throws SQLException {
+                                    DataSource dataSource = dsf.createDataSource(dsfProps);
+                                    if (!poolConfiguration.isEnabled()) {
+                                        return dataSource;
+                                    }
+                                    PooledDataSource pooledDataSource = new PooledDataSource(unitName, dataSource,
+                                            poolConfiguration, poolMaintenanceExecutor);
+                                    pooledDataSource.start();
+                                    pooledDataSource.registerMXBean(containerMetrics);
+                                    return pooledDataSource;
+                                }
+                            }, containerResources);
                     if (PersistenceBundleManager.isJTANecessary(ppu)) {
-                        XADataSource xaDataSource = dsf.createXADataSource(dsfProps);
-                        jtaDataSource = new XADatasourceEnlistingWrapper(xaDataSource);
+                        ServiceReference transactionManagerReference = serviceReferencesByIds
+                                .get(PersistenceBundleManager.TRANSACTION_MANAGER_REFERENCE_ID);
+                        final TransactionManager transactionManager = (TransactionManager) getServiceObject(bcx,
+                                transactionManagerReference, holdedReferences);
+                        Map<String, String> xaDataSourceKey = new TreeMap<String, String>(dataSourceKey);
+                        xaDataSourceKey.put(XA_KEY, (transactionManagerReference == null) ? "" : String
+                                .valueOf(transactionManagerReference.getProperty(Constants.SERVICE_ID)));
+                        jtaDataSource = acquireDataSource(xaDataSourceKey,
+                                new SharedDataSourceRegistry.DataSourceCreator() {
+
+                                    @Override
+                                    public DataSource createDataSource() throws SQLException {
+                                        XADataSource xaDataSource = dsf.createXADataSource(dsfProps);
+                                        if (!poolConfiguration.isEnabled() || (transactionManager == null)) {
+                                            return new XADatasourceEnlistingWrapper(xaDataSource);
+                                        }
+                                        PooledXADataSource pooledXADataSource = new PooledXADataSource(unitName
+                                                + " (jta)", xaDataSource, transactionManager, poolConfiguration,
+                                                poolMaintenanceExecutor);
+                                        pooledXADataSource.start();
+                                        pooledXADataSource.registerMXBean(containerMetrics);
+                                        return pooledXADataSource;
+                                    }
+                                }, containerResources);
                     }
                 } catch (SQLException e) {
                     LOGGER.error("Error during the creation of datasource for Persistence Unit", e);
-                    stopPersistenceUnit(ppu);
+                    if (unitMetrics != null) {
+                        unitMetrics.failed();
+                    }
+                    closeResources(containerResources);
+                    releaseReferences(bcx, holdedReferences);
+                    stopBootstrap(predecessor);
                     return;
                 }
             } else {
@@ -123,7 +372,7 @@ public class EntityManagerFactoryManager {
                     try {
                         jtaDataSource = InitialContext.doLookup(jtaDSJNDIName);
                     } catch (NamingException e) {
-                        LOGGER.error("Cannot get jta datasource from JNDI: " + jtaDSJNDIName);
+                        LOGGER.error("Cannot get jta datasource from JNDI: " + jtaDSJNDIName, e);
                     }
                 }
 
@@ -132,21 +381,33 @@ public class EntityManagerFactoryManager {
                     try {
                         nonJtaDataSource = InitialContext.doLookup(nonJtaDSJNDIName);
                     } catch (NamingException e) {
-                        LOGGER.error("Cannot get jta datasource from JNDI: " + jtaDSJNDIName);
+                        LOGGER.error("Cannot get non-jta datasource from JNDI: " + nonJtaDSJNDIName, e);
                     }
                 }
             }
         }
         if (jtaDataSource != null || nonJtaDataSource != null) {
-            PersistenceUnitInfoImpl info = new PersistenceUnitInfoImpl(ppu, persistenceProviderSR, jtaDataSource,
-                    nonJtaDataSource);
-            EntityManagerFactory emf = persistenceProviderService.createContainerEntityManagerFactory(
-                    info, null);
-            emfsByPPU.put(ppu, emf);
-
-            String unitName = (String) ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME);
-            Dictionary<String, Object> emfServiceProps = new Hashtable<String, Object>() {
-            };
+            if (unitMetrics != null) {
+                unitMetrics.dataSourcesCreated(System.currentTimeMillis() - dataSourceCreationStartTime);
+            }
+            final DataSource unitJtaDataSource = jtaDataSource;
+            final DataSource unitNonJtaDataSource = nonJtaDataSource;
+            PersistenceUnitBootstrap.PersistenceUnitInfoCreator infoCreator =
+                    new PersistenceUnitBootstrap.PersistenceUnitInfoCreator() {
+
+                        @Override
+                        public PersistenceUnitInfoImpl createPersistenceUnitInfo() {
+                            PersistenceUnitInfoImpl info = new PersistenceUnitInfoImpl(ppu, persistenceProviderSR,
+                                    unitJtaDataSource, unitNonJtaDataSource, managedClassIndex, props);
+                            if (unitMetrics != null) {
+                                unitMetrics.jarFilesScanned(managedClassIndex.getJarScanTimes(info
+                                        .getJarFileUrls()));
+                            }
+                            return info;
+                        }
+                    };
+
+            Dictionary<String, Object> emfServiceProps = new Hashtable<String, Object>();
             emfServiceProps.put(EntityManagerFactoryBuilder.JPA_UNIT_NAME, unitName);
             String providerName = (String) persistenceProviderSR.getProperty("javax.persistence.provider");
             if (providerName != null) {
@@ -155,12 +416,103 @@ public class EntityManagerFactoryManager {
 
             emfServiceProps.put(EntityManagerFactoryBuilder.JPA_UNIT_VERSION, bundle.getVersion());
             emfServiceProps.put(PersistenceUnitConstants.CONTAINER_MANAGED_PERSISTENCE_UNIT, Boolean.TRUE);
-            ServiceRegistration emfServiceRegistration = bcx.registerService(EntityManagerFactory.class.getName(), emf,
-                    emfServiceProps);
-            emfRegistrationsByPPU.put(ppu, emfServiceRegistration);
+            if (ppu instanceof ShardParsedPersistenceUnit) {
+                emfServiceProps.put(PersistenceUnitShardTracker.SHARD_SERVICE_PROPERTY,
+                        ((ShardParsedPersistenceUnit) ppu).getShardId());
+            }
+
+            PersistenceUnitBootstrap bootstrap = new PersistenceUnitBootstrap(ppu, bcx, persistenceProviderService,
+                    infoCreator, emfServiceProps, holdedReferences, containerResources, unitMetrics, isLazy(props),
+                    EntityManagerFactoryWarmer.create(unitName, props));
+            if (predecessor != null) {
+                bootstrap.replace(predecessor, drainer);
+            }
+            PersistenceUnitBootstrap previousBootstrap = bootstrapsByPPU.put(ppu, bootstrap);
+            stopBootstrap(previousBootstrap);
+            bootstrap.submit(bootstrapExecutor);
         } else {
             LOGGER.error("Neither jta datasource nor non-jta datasource is available for pu creation: "
                     + ppu.toString());
+            if (unitMetrics != null) {
+                unitMetrics.failed();
+            }
+            closeResources(containerResources);
+            releaseReferences(bcx, holdedReferences);
+            stopBootstrap(predecessor);
+        }
+    }
+
+    /**
+     * Gets a DataSource from the shared registry or creates a DataSource for the persistence unit if the sharing is
+     * switched off.
+     *
+     * @param key
+     *            The key of the DataSource in the registry.
+     * @param creator
+     *            Creates the DataSource if necessary.
+     * @param containerResources
+     *            The resources of the persistence unit that get the handle of the shared DataSource or the created
+     *            DataSource if it has to be closed.
+     * @return The DataSource.
+     * @throws SQLException
+     *             if the creation of the DataSource failed.
+     */
+    private DataSource acquireDataSource(final Map<String, String> key,
+            final SharedDataSourceRegistry.DataSourceCreator creator, final List<Closeable> containerResources)
+            throws SQLException {
+        if (sharedDataSourceRegistry == null) {
+            DataSource dataSource = creator.createDataSource();
+            if (dataSource instanceof Closeable) {
+                containerResources.add((Closeable) dataSource);
+            }
+            return dataSource;
+        }
+        SharedDataSourceRegistry.SharedDataSource sharedDataSource = sharedDataSourceRegistry.acquire(key, creator);
+        containerResources.add(sharedDataSource);
+        return sharedDataSource.getDataSource();
+    }
+
+    /**
+     * Wraps the primary non-jta DataSource of a persistence unit with a {@link RoutingDataSource} that routes the
+     * read-only connections to the replicas.
+     *
+     * @return The routing DataSource or the primary DataSource if the routing cannot be set up.
+     */
+    private DataSource createRoutingDataSource(final ParsedPersistenceUnit ppu, final BundleContext bcx,
+            final DataSource primary, final Properties props, final List<Closeable> containerResources) {
+        Object unitName = ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME);
+        String replicaFilter = RoutingDataSource.createReplicaFilter((String) ppu.getPersistenceXmlMetadata().get(
+                ParsedPersistenceUnit.NON_JTA_DATASOURCE));
+        if (replicaFilter == null) {
+            LOGGER.error("Read/write split of persistence unit " + unitName + " needs a non-jta-data-source that"
+                    + " matches the following regex: " + DataSourceRequisiteTracker.OSGI_DS_SERVICE_PATTERN);
+            return primary;
+        }
+        RoutingDataSource routingDataSource;
+        try {
+            routingDataSource = new RoutingDataSource(String.valueOf(unitName), primary, bcx,
+                    bcx.createFilter(replicaFilter), ReplicaLoadBalancer.create(props
+                            .getProperty(RoutingDataSource.LOAD_BALANCER_PROPERTY)));
+        } catch (InvalidSyntaxException e) {
+            LOGGER.error("Invalid filter of the replicas of persistence unit " + unitName + ": " + replicaFilter, e);
+            return primary;
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Invalid " + RoutingDataSource.LOAD_BALANCER_PROPERTY + " of persistence unit " + unitName,
+                    e);
+            return primary;
+        }
+        routingDataSource.open();
+        containerResources.add(routingDataSource);
+        return routingDataSource;
+    }
+
+    private void closeResources(final List<Closeable> containerResources) {
+        for (Closeable resource : containerResources) {
+            try {
+                resource.close();
+            } catch (Exception e) {
+                LOGGER.error("Error during closing resource " + resource, e);
+            }
         }
     }
 
@@ -175,23 +527,148 @@ public class EntityManagerFactoryManager {
         return service;
     }
 
-    public void stopPersistenceUnit(ParsedPersistenceUnit ppu) {
-        ServiceRegistration serviceRegistration = emfRegistrationsByPPU.get(ppu);
-        if (serviceRegistration != null) {
-            serviceRegistration.unregister();
+    private boolean isLazy(final Properties props) {
+        String value = (props == null) ? null : props.getProperty(LAZY_PROPERTY);
+        if (value == null) {
+            return lazyByDefault;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    private void releaseReferences(final BundleContext bcx, final List<ServiceReference> holdedReferences) {
+        for (ServiceReference serviceReference : holdedReferences) {
+            bcx.ungetService(serviceReference);
+        }
+    }
+
+    /**
+     * Stops a persistence unit whose requisites changed. In replacement mode the EntityManagerFactory of the
+     * persistence unit stays registered for a short time so the next start of the persistence unit can replace it
+     * without a period when there is no EntityManagerFactory service. Otherwise the persistence unit is stopped
+     * immediately.
+     *
+     * @param ppu
+     *            The persistence unit.
+     */
+    public synchronized void retirePersistenceUnit(final ParsedPersistenceUnit ppu) {
+        startRequestsByPPU.remove(ppu);
+        final PersistenceUnitBootstrap bootstrap = bootstrapsByPPU.remove(ppu);
+        if (bootstrap == null) {
+            return;
+        }
+        if ((drainer == null) || !bootstrap.isServiceRegistered()) {
+            bootstrap.stop();
+            return;
         }
+        stopBootstrap(retiringBootstrapsByPPU.put(ppu, bootstrap));
+        Runnable stopTask = new Runnable() {
 
-        EntityManagerFactory emf = emfsByPPU.get(ppu);
-        if (emf != null) {
-            emf.close();
+            @Override
+            public void run() {
+                if (retiringBootstrapsByPPU.remove(ppu, bootstrap)) {
+                    LOGGER.warn("No new start of persistence unit "
+                            + ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME) + " arrived within "
+                            + replacementWindow + " ms, stopping it without replacement");
+                    bootstrap.stop();
+                }
+            }
+        };
+        if (drainer.schedule(stopTask, replacementWindow) == null) {
+            stopTask.run();
         }
+    }
 
-        List<ServiceReference> holdedReferences = holdedReferencesByPPUs.get(ppu);
-        if (holdedReferences != null) {
-            BundleContext bcx = ppu.getDefiningBundle().getBundleContext();
-            for (ServiceReference serviceReference : holdedReferences) {
-                bcx.ungetService(serviceReference);
+    /**
+     * Starts a running persistence unit again with the same requisites, so the changed property overrides of the
+     * persistence unit are applied. In replacement mode the current EntityManagerFactory stays registered until the
+     * new one replaces it. Nothing happens if the persistence unit is not running.
+     *
+     * @param ppu
+     *            The persistence unit.
+     */
+    public synchronized void rebuildPersistenceUnit(final ParsedPersistenceUnit ppu) {
+        StartRequest startRequest = startRequestsByPPU.get(ppu);
+        if (startRequest == null) {
+            return;
+        }
+        LOGGER.info("Rebuilding persistence unit "
+                + ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME));
+        retirePersistenceUnit(ppu);
+        startPersistenceUnit(ppu, startRequest.persistenceProviderSR, startRequest.serviceReferencesByIds);
+    }
+
+    /**
+     * Stops all persistence units and waits until the running EntityManagerFactory creations finish.
+     */
+    public void shutdown() {
+        for (ParsedPersistenceUnit ppu : buildersByPPU.keySet()) {
+            unregisterEntityManagerFactoryBuilder(ppu);
+        }
+        for (ParsedPersistenceUnit ppu : bootstrapsByPPU.keySet()) {
+            stopPersistenceUnit(ppu);
+        }
+        for (ParsedPersistenceUnit ppu : retiringBootstrapsByPPU.keySet()) {
+            stopPersistenceUnit(ppu);
+        }
+        if (drainer != null) {
+            drainer.close();
+        }
+        bootstrapExecutor.shutdown();
+        try {
+            if (!bootstrapExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warn("EntityManagerFactory creations did not finish in " + SHUTDOWN_TIMEOUT_SECONDS
+                        + " seconds during the shutdown of the container");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        poolMaintenanceExecutor.shutdownNow();
+    }
+
+    private void stopBootstrap(final PersistenceUnitBootstrap bootstrap) {
+        if (bootstrap != null) {
+            bootstrap.stop();
+        }
+    }
+
+    /**
+     * Stops a persistence unit immediately, including its EntityManagerFactory that waits for a replacement.
+     *
+     * @param ppu
+     *            The persistence unit.
+     */
+    public synchronized void stopPersistenceUnit(final ParsedPersistenceUnit ppu) {
+        startRequestsByPPU.remove(ppu);
+        stopBootstrap(bootstrapsByPPU.remove(ppu));
+        stopBootstrap(retiringBootstrapsByPPU.remove(ppu));
+    }
+
+    /**
+     * Makes the EntityManagerFactoryBuilder service of a persistence unit build new EntityManagerFactories for the
+     * later requests, as the properties of the persistence unit changed. The EntityManagerFactories that were built
+     * before are closed when their handles are closed.
+     *
+     * @param ppu
+     *            The persistence unit.
+     */
+    public void invalidateBuiltEntityManagerFactories(final ParsedPersistenceUnit ppu) {
+        EntityManagerFactoryBuilderImpl builder = buildersByPPU.get(ppu);
+        if (builder != null) {
+            builder.invalidate();
+        }
+    }
+
+    /**
+     * Unregisters the EntityManagerFactoryBuilder service of a persistence unit and closes the EntityManagerFactories
+     * that were built by it.
+     *
+     * @param ppu
+     *            The persistence unit.
+     */
+    public void unregisterEntityManagerFactoryBuilder(final ParsedPersistenceUnit ppu) {
+        EntityManagerFactoryBuilderImpl builder = buildersByPPU.remove(ppu);
+        if (builder != null) {
+            builder.close();
         }
     }
 }
@@ -0,0 +1,274 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NamedNativeQueries;
+import javax.persistence.NamedNativeQuery;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.metamodel.ManagedType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warms up a newly created EntityManagerFactory before it is registered as a service, so the first users do not pay
+ * for the lazy initializations of the persistence provider. The steps are opening connections of the pools of the
+ * container, creating an EntityManager, initializing the metamodel and creating the named queries of the managed
+ * classes. The steps run in a separate thread and the caller waits for them until the timeout. After the timeout the
+ * EntityManagerFactory is registered anyway, the running step finishes in the background and no more steps are
+ * started.
+ */
+class EntityManagerFactoryWarmer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EntityManagerFactoryWarmer.class);
+
+    /**
+     * The prefix of the persistence unit properties that configure the warm-up.
+     */
+    public static final String PROPERTY_PREFIX = "org.everit.osgi.jpa.container.warmup.";
+
+    /**
+     * Whether the EntityManagerFactory should be warmed up before it is registered. Default is false.
+     */
+    public static final String ENABLED = PROPERTY_PREFIX + "enabled";
+
+    /**
+     * The number of connections that are opened in each connection pool of the persistence unit. Default is 1.
+     */
+    public static final String CONNECTIONS = PROPERTY_PREFIX + "connections";
+
+    /**
+     * The time in milliseconds after the EntityManagerFactory is registered even if the warm-up did not finish. Default
+     * is 30 seconds.
+     */
+    public static final String TIMEOUT = PROPERTY_PREFIX + "timeout";
+
+    public static final String STEP_CONNECTIONS = "connections";
+
+    public static final String STEP_ENTITY_MANAGER = "entityManager";
+
+    public static final String STEP_METAMODEL = "metamodel";
+
+    public static final String STEP_NAMED_QUERIES = "namedQueries";
+
+    private static final long DEFAULT_TIMEOUT = 30000;
+
+    private static final ContainerThreadFactory THREAD_FACTORY = new ContainerThreadFactory("jpa-container-warmup-");
+
+    /**
+     * Creates a warmer if the warm-up is enabled for a persistence unit.
+     *
+     * @param unitName
+     *            The name of the persistence unit.
+     * @param props
+     *            The properties of the persistence unit.
+     * @return The warmer or null if the warm-up is not enabled.
+     */
+    public static EntityManagerFactoryWarmer create(final String unitName, final Properties props) {
+        if ((props == null) || !"true".equalsIgnoreCase(props.getProperty(ENABLED, "false").trim())) {
+            return null;
+        }
+        return new EntityManagerFactoryWarmer(unitName, (int) ConnectionPoolConfiguration.getLong(props,
+                CONNECTIONS, 1), ConnectionPoolConfiguration.getLong(props, TIMEOUT, DEFAULT_TIMEOUT));
+    }
+
+    private final String unitName;
+
+    private final int connectionCount;
+
+    private final long timeout;
+
+    private EntityManagerFactoryWarmer(final String unitName, final int connectionCount, final long timeout) {
+        this.unitName = unitName;
+        this.connectionCount = connectionCount;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Creates the named queries that are defined by the annotations of a managed class.
+     *
+     * @return The number of named queries that could not be created.
+     */
+    private int createNamedQueries(final EntityManager em, final Class<?> managedClass) {
+        List<String> queryNames = new ArrayList<String>();
+        NamedQuery namedQuery = managedClass.getAnnotation(NamedQuery.class);
+        if (namedQuery != null) {
+            queryNames.add(namedQuery.name());
+        }
+        NamedQueries namedQueries = managedClass.getAnnotation(NamedQueries.class);
+        if (namedQueries != null) {
+            for (NamedQuery query : namedQueries.value()) {
+                queryNames.add(query.name());
+            }
+        }
+        NamedNativeQuery namedNativeQuery = managedClass.getAnnotation(NamedNativeQuery.class);
+        if (namedNativeQuery != null) {
+            queryNames.add(namedNativeQuery.name());
+        }
+        NamedNativeQueries namedNativeQueries = managedClass.getAnnotation(NamedNativeQueries.class);
+        if (namedNativeQueries != null) {
+            for (NamedNativeQuery query : namedNativeQueries.value()) {
+                queryNames.add(query.name());
+            }
+        }
+        int failedCount = 0;
+        for (String queryName : queryNames) {
+            try {
+                em.createNamedQuery(queryName);
+            } catch (RuntimeException e) {
+                failedCount++;
+                LOGGER.warn("Invalid named query " + queryName + " in persistence unit " + unitName, e);
+            }
+        }
+        return failedCount;
+    }
+
+    /**
+     * Runs the warm-up steps in a separate thread and waits for them at most until the timeout.
+     *
+     * @param emf
+     *            The EntityManagerFactory.
+     * @param containerResources
+     *            The resources that the container created for the persistence unit. The connection pools among them
+     *            are filled.
+     * @return The time in milliseconds that each step took that finished before the timeout.
+     */
+    public Map<String, Long> warmUp(final EntityManagerFactory emf, final List<Closeable> containerResources) {
+        final Map<String, Long> stepTimes = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+
+            @Override
+            public void run() {
+                runSteps(emf, containerResources, stepTimes, cancelled);
+            }
+        }, null);
+        THREAD_FACTORY.newThread(task).start();
+        try {
+            task.get(timeout, TimeUnit.MILLISECONDS);
+            LOGGER.info("Persistence unit " + unitName + " warmed up: " + stepTimes);
+        } catch (TimeoutException e) {
+            cancelled.set(true);
+            LOGGER.warn("Warm-up of persistence unit " + unitName + " did not finish in " + timeout
+                    + " ms, the EntityManagerFactory is registered and the remaining steps are skipped");
+        } catch (ExecutionException e) {
+            LOGGER.error("Error during the warm-up of persistence unit " + unitName, e.getCause());
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+        }
+        synchronized (stepTimes) {
+            return new LinkedHashMap<String, Long>(stepTimes);
+        }
+    }
+
+    /**
+     * Runs the warm-up steps until all of them are finished or the warm-up is cancelled.
+     */
+    private void runSteps(final EntityManagerFactory emf, final List<Closeable> containerResources,
+            final Map<String, Long> stepTimes, final AtomicBoolean cancelled) {
+        long stepStartTime = System.currentTimeMillis();
+        for (Closeable resource : containerResources) {
+            Object dataSource = resource;
+            if (resource instanceof SharedDataSourceRegistry.SharedDataSource) {
+                dataSource = ((SharedDataSourceRegistry.SharedDataSource) resource).getDataSource();
+            }
+            if (dataSource instanceof AbstractPooledDataSource) {
+                AbstractPooledDataSource pool = (AbstractPooledDataSource) dataSource;
+                try {
+                    pool.warmUp(connectionCount);
+                } catch (SQLException e) {
+                    LOGGER.warn("Could not open connections of pool " + pool.getName() + " during warm-up", e);
+                }
+            }
+        }
+        stepTimes.put(STEP_CONNECTIONS, System.currentTimeMillis() - stepStartTime);
+        if (cancelled.get()) {
+            return;
+        }
+
+        stepStartTime = System.currentTimeMillis();
+        EntityManager em;
+        try {
+            em = emf.createEntityManager();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not create EntityManager during warm-up of persistence unit " + unitName, e);
+            return;
+        }
+        try {
+            stepTimes.put(STEP_ENTITY_MANAGER, System.currentTimeMillis() - stepStartTime);
+            if (cancelled.get()) {
+                return;
+            }
+
+            stepStartTime = System.currentTimeMillis();
+            List<Class<?>> managedClasses = new ArrayList<Class<?>>();
+            try {
+                for (ManagedType<?> managedType : emf.getMetamodel().getManagedTypes()) {
+                    managedType.getAttributes();
+                    if (managedType.getJavaType() != null) {
+                        managedClasses.add(managedType.getJavaType());
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Could not initialize the metamodel during warm-up of persistence unit " + unitName, e);
+            }
+            stepTimes.put(STEP_METAMODEL, System.currentTimeMillis() - stepStartTime);
+
+            stepStartTime = System.currentTimeMillis();
+            int failedCount = 0;
+            for (Class<?> managedClass : managedClasses) {
+                if (cancelled.get()) {
+                    return;
+                }
+                failedCount += createNamedQueries(em, managedClass);
+            }
+            stepTimes.put(STEP_NAMED_QUERIES, System.currentTimeMillis() - stepStartTime);
+            if (failedCount > 0) {
+                LOGGER.warn(failedCount + " named queries of persistence unit " + unitName + " are invalid");
+            }
+        } finally {
+            try {
+                em.close();
+            } catch (RuntimeException e) {
+                LOGGER.debug("Could not close EntityManager after warm-up of persistence unit " + unitName, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Map;
+
+/**
+ * Management interface of the JPA container. The persistence units are identified by the symbolic name and version of
+ * their bundle and by their name (e.g. my.bundle:1.0.0/myUnit). All of the times are in milliseconds.
+ */
+public interface JPAContainerMXBean {
+
+    int getActivePersistenceUnitCount();
+
+    /**
+     * The time that the container spent with searching and parsing the persistence descriptors of all bundles.
+     */
+    long getDescriptorParseTime();
+
+    long getDescriptorCacheHitCount();
+
+    long getDescriptorCacheMissCount();
+
+    /**
+     * The number of bundles that were searched for persistence descriptors.
+     */
+    long getProbedBundleCount();
+
+    /**
+     * The time that the persistence providers spent with creating the EntityManagerFactory of each persistence unit
+     * during their last start.
+     */
+    Map<String, Long> getProviderBootstrapTimes();
+
+    int getPersistenceUnitCount();
+
+    Map<String, String> getPersistenceUnitStates();
+
+    /**
+     * The number of restarts of each persistence unit. Units that are restarted often have flapping requisites.
+     */
+    Map<String, Integer> getRestartCounts();
+
+    /**
+     * The number of bundles that were not searched for persistence descriptors as they did not have the necessary
+     * headers or they were known to be without persistence units.
+     */
+    long getSkippedBundleCount();
+}
@@ -24,17 +24,18 @@ package org.everit.osgi.jpa.container;
 import javax.transaction.TransactionManager;
 
 import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
-import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 
-public class JTARequisiteTracker extends AbstractRequisiteTracker<ParsedPersistenceUnit> {
+public class JTARequisiteTracker extends PersistenceUnitRequisiteTracker {
 
     public JTARequisiteTracker(final BundleContext context,
-            final PersistenceBundleManager persistenceBundleManager) throws InvalidSyntaxException {
-        super(context, "(" + Constants.OBJECTCLASS + "=" + TransactionManager.class.getName() + ")");
+            final PersistenceBundleManager persistenceBundleManager, final ContainerMetrics containerMetrics)
+            throws InvalidSyntaxException {
+        super(context, "(" + Constants.OBJECTCLASS + "=" + TransactionManager.class.getName() + ")",
+                PersistenceBundleManager.TRANSACTION_MANAGER_REFERENCE_ID, containerMetrics);
     }
 
     @Override
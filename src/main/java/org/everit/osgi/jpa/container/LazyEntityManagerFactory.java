@@ -0,0 +1,155 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * The EntityManagerFactory service of a persistence unit in lazy mode. The service is a proxy and the persistence
+ * provider creates the real EntityManagerFactory when the proxy is used for the first time. Concurrent first callers
+ * wait for the same creation. If the creation fails, the exception is thrown to the caller and the next call tries
+ * again.
+ */
+class LazyEntityManagerFactory implements InvocationHandler {
+
+    /**
+     * The start of the persistence unit that creates the real EntityManagerFactory.
+     */
+    private final PersistenceUnitBootstrap bootstrap;
+
+    private final EntityManagerFactory proxy;
+
+    /**
+     * Serializes the creations of the real EntityManagerFactory. The state fields are guarded by the monitor of this
+     * object, so the container can close the proxy while a creation is running.
+     */
+    private final Object creationLock = new Object();
+
+    private volatile EntityManagerFactory entityManagerFactory;
+
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param bootstrap
+     *            The start of the persistence unit that creates the real EntityManagerFactory.
+     */
+    public LazyEntityManagerFactory(final PersistenceUnitBootstrap bootstrap) {
+        this.bootstrap = bootstrap;
+        proxy = (EntityManagerFactory) Proxy.newProxyInstance(LazyEntityManagerFactory.class.getClassLoader(),
+                new Class<?>[] { EntityManagerFactory.class }, this);
+    }
+
+    /**
+     * Closes the real EntityManagerFactory if it was created and makes the proxy unusable. A creation that is running
+     * is not waited for, its result is closed when it is finished.
+     *
+     * @return The real EntityManagerFactory that was closed or null if it was not created.
+     */
+    public EntityManagerFactory close() {
+        EntityManagerFactory createdEntityManagerFactory;
+        synchronized (this) {
+            closed = true;
+            createdEntityManagerFactory = entityManagerFactory;
+            entityManagerFactory = null;
+        }
+        if (createdEntityManagerFactory != null) {
+            bootstrap.closeEntityManagerFactory(createdEntityManagerFactory);
+        }
+        return createdEntityManagerFactory;
+    }
+
+    private EntityManagerFactory getEntityManagerFactory() {
+        EntityManagerFactory result = entityManagerFactory;
+        if (result != null) {
+            return result;
+        }
+        synchronized (creationLock) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("The persistence unit is stopped");
+                }
+                if (entityManagerFactory != null) {
+                    return entityManagerFactory;
+                }
+            }
+            EntityManagerFactory createdEntityManagerFactory = bootstrap.createEntityManagerFactory();
+            synchronized (this) {
+                if (!closed) {
+                    entityManagerFactory = createdEntityManagerFactory;
+                    return createdEntityManagerFactory;
+                }
+            }
+            bootstrap.closeEntityManagerFactory(createdEntityManagerFactory);
+            throw new IllegalStateException("The persistence unit is stopped");
+        }
+    }
+
+    /**
+     * Returns the real EntityManagerFactory without creating it.
+     *
+     * @return The real EntityManagerFactory or null if it is not created yet.
+     */
+    public EntityManagerFactory getCreatedEntityManagerFactory() {
+        return entityManagerFactory;
+    }
+
+    public EntityManagerFactory getProxy() {
+        return proxy;
+    }
+
+    @Override
+    public Object invoke(final Object proxyObject, final Method method, final Object[] args) throws Throwable {
+        String methodName = method.getName();
+        int argCount = (args == null) ? 0 : args.length;
+        if ("equals".equals(methodName) && (argCount == 1)) {
+            return proxyObject == args[0];
+        }
+        if ("hashCode".equals(methodName) && (argCount == 0)) {
+            return System.identityHashCode(proxyObject);
+        }
+        if ("toString".equals(methodName) && (argCount == 0)) {
+            return "Lazy[" + entityManagerFactory + "]";
+        }
+        if (entityManagerFactory == null) {
+            if ("isOpen".equals(methodName) && (argCount == 0)) {
+                synchronized (this) {
+                    return !closed;
+                }
+            }
+            if ("close".equals(methodName) && (argCount == 0)) {
+                return null;
+            }
+        }
+        try {
+            return method.invoke(getEntityManagerFactory(), args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the managed classes (entities, embeddables, mapped superclasses and converters) of the persistence
+ * bundles and of the jar files referenced by their persistence units. The classes are found by
+ * {@link ManagedClassScanner} and the result is stored for each bundle revision in the data area of the container so
+ * the bundles and jars do not have to be scanned again after a restart of the framework.
+ */
+class ManagedClassIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ManagedClassIndex.class);
+
+    /**
+     * The name of the directory inside the data area of the container bundle.
+     */
+    public static final String INDEX_DIRECTORY_NAME = "managed-class-index";
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final String CLASS_FILE_EXTENSION = ".class";
+
+    private static final String MODULE_INFO_CLASS_FILE = "module-info.class";
+
+    /**
+     * The result of scanning a bundle revision or a jar file.
+     */
+    private static final class IndexEntry {
+
+        /**
+         * The last modification time of the bundle.
+         */
+        private final long lastModified;
+
+        /**
+         * The last modification time of the jar file if it is not packed into the bundle, otherwise 0.
+         */
+        private final long sourceLastModified;
+
+        private final List<String> managedClassNames;
+
+        public IndexEntry(final long lastModified, final long sourceLastModified,
+                final List<String> managedClassNames) {
+            this.lastModified = lastModified;
+            this.sourceLastModified = sourceLastModified;
+            this.managedClassNames = managedClassNames;
+        }
+    }
+
+    /**
+     * Returns the file of a jar URL if the jar is not packed into a bundle.
+     *
+     * @param jarUrl
+     *            The URL of the jar.
+     * @return The file or null if the jar is not available directly on the file system.
+     */
+    private static File getFile(final URL jarUrl) {
+        if (!"file".equals(jarUrl.getProtocol())) {
+            return null;
+        }
+        try {
+            File file = new File(jarUrl.toURI());
+            return file.isFile() ? file : null;
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String readManagedClassName(final InputStream in) throws IOException {
+        return ManagedClassScanner.readManagedClassName(new DataInputStream(new BufferedInputStream(in)));
+    }
+
+    /**
+     * The directory of the index files or null if the framework does not support file system.
+     */
+    private final File indexDirectory;
+
+    /**
+     * The entries that were already read or scanned by the bundle ids and the jar URLs (see
+     * {@link #getEntryKey(Bundle, URL)}).
+     */
+    private final Map<String, IndexEntry> entriesByKey = new ConcurrentHashMap<String, IndexEntry>();
+
+    /**
+     * The time spent with scanning the jar files in milliseconds by the URLs of the jars.
+     */
+    private final Map<String, Long> jarScanTimes = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Constructor.
+     *
+     * @param indexDirectory
+     *            The directory where the index files are stored. If null, the index is kept only in memory.
+     */
+    public ManagedClassIndex(final File indexDirectory) {
+        if ((indexDirectory != null) && !indexDirectory.exists() && !indexDirectory.mkdirs()) {
+            LOGGER.warn("Cannot create directory of managed class index: " + indexDirectory);
+            this.indexDirectory = null;
+        } else {
+            this.indexDirectory = indexDirectory;
+        }
+    }
+
+    private String getEntryKey(final Bundle bundle, final URL jarUrl) {
+        if (jarUrl == null) {
+            return String.valueOf(bundle.getBundleId());
+        }
+        return bundle.getBundleId() + "!" + jarUrl.toExternalForm();
+    }
+
+    private File getIndexFile(final Bundle bundle, final URL jarUrl) {
+        if (jarUrl == null) {
+            return new File(indexDirectory, bundle.getBundleId() + ".bin");
+        }
+        return new File(indexDirectory, bundle.getBundleId() + "-"
+                + Integer.toHexString(jarUrl.toExternalForm().hashCode()) + ".bin");
+    }
+
+    /**
+     * Returns the time spent with scanning jar files since the container was started. Jars whose index was read from
+     * the data area are not listed.
+     *
+     * @param jarUrls
+     *            The URLs of the jars.
+     * @return The scan times in milliseconds by the URLs of the jars.
+     */
+    public Map<String, Long> getJarScanTimes(final List<URL> jarUrls) {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (URL jarUrl : jarUrls) {
+            String externalForm = jarUrl.toExternalForm();
+            Long scanTime = jarScanTimes.get(externalForm);
+            if (scanTime != null) {
+                result.put(externalForm, scanTime);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the managed classes that are packed into a bundle. The bundle is scanned only if there is no index entry
+     * for the current revision of the bundle.
+     *
+     * @param bundle
+     *            The persistence bundle.
+     * @return The binary names of the managed classes.
+     */
+    public List<String> getManagedClassNames(final Bundle bundle) {
+        return getManagedClassNames(bundle, null);
+    }
+
+    /**
+     * Returns the managed classes of a jar file that is referenced by a persistence unit of a bundle. The jar is
+     * scanned only if there is no index entry for the current revision of the bundle and the jar.
+     *
+     * @param bundle
+     *            The persistence bundle.
+     * @param jarUrl
+     *            The URL of the jar file. If null, the classes of the bundle itself are returned.
+     * @return The binary names of the managed classes.
+     */
+    public List<String> getManagedClassNames(final Bundle bundle, final URL jarUrl) {
+        long lastModified = bundle.getLastModified();
+        File jarFile = (jarUrl != null) ? getFile(jarUrl) : null;
+        long sourceLastModified = (jarFile != null) ? jarFile.lastModified() : 0;
+        String entryKey = getEntryKey(bundle, jarUrl);
+
+        IndexEntry entry = entriesByKey.get(entryKey);
+        if ((entry == null) || (entry.lastModified != lastModified)
+                || (entry.sourceLastModified != sourceLastModified)) {
+            entry = readEntry(bundle, jarUrl, sourceLastModified);
+            if (entry == null) {
+                long startTime = System.currentTimeMillis();
+                List<String> managedClassNames;
+                if (jarUrl == null) {
+                    managedClassNames = scanBundle(bundle);
+                } else if (jarFile != null) {
+                    managedClassNames = scanJarFile(jarFile);
+                } else {
+                    managedClassNames = scanJarStream(jarUrl);
+                }
+                long scanTime = System.currentTimeMillis() - startTime;
+                entry = new IndexEntry(lastModified, sourceLastModified, managedClassNames);
+                if (jarUrl != null) {
+                    jarScanTimes.put(jarUrl.toExternalForm(), scanTime);
+                    LOGGER.info("Scanned jar " + jarUrl + " for managed classes in " + scanTime + " ms. Found "
+                            + managedClassNames.size() + " managed classes.");
+                } else if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Scanned bundle " + bundle.getSymbolicName() + " for managed classes in "
+                            + scanTime + " ms. Found: " + managedClassNames);
+                }
+                writeEntry(bundle, jarUrl, entry);
+            }
+            entriesByKey.put(entryKey, entry);
+        }
+        return entry.managedClassNames;
+    }
+
+    /**
+     * Removes the entry of a bundle from the index.
+     *
+     * @param bundle
+     *            The bundle that was updated or uninstalled.
+     */
+    public void invalidate(final Bundle bundle) {
+        final String bundleId = String.valueOf(bundle.getBundleId());
+        for (String entryKey : entriesByKey.keySet()) {
+            if (entryKey.equals(bundleId) || entryKey.startsWith(bundleId + "!")) {
+                entriesByKey.remove(entryKey);
+            }
+        }
+        if (indexDirectory != null) {
+            File[] indexFiles = indexDirectory.listFiles(new FileFilter() {
+
+                @Override
+                public boolean accept(final File file) {
+                    String name = file.getName();
+                    return name.equals(bundleId + ".bin") || (name.startsWith(bundleId + "-") && name.endsWith(".bin"));
+                }
+            });
+            if (indexFiles != null) {
+                for (File indexFile : indexFiles) {
+                    if (!indexFile.delete()) {
+                        LOGGER.warn("Cannot delete managed class index entry " + indexFile);
+                    }
+                }
+            }
+        }
+    }
+
+    private IndexEntry readEntry(final Bundle bundle, final URL jarUrl, final long sourceLastModified) {
+        if (indexDirectory == null) {
+            return null;
+        }
+        File indexFile = getIndexFile(bundle, jarUrl);
+        if (!indexFile.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                long lastModified = bundle.getLastModified();
+                String source = (jarUrl != null) ? jarUrl.toExternalForm() : "";
+                if ((in.readInt() != FORMAT_VERSION) || (in.readLong() != bundle.getBundleId())
+                        || (in.readLong() != lastModified) || (in.readLong() != sourceLastModified)
+                        || !source.equals(in.readUTF())) {
+                    return null;
+                }
+                int size = in.readInt();
+                List<String> managedClassNames = new ArrayList<String>(size);
+                for (int i = 0; i < size; i++) {
+                    managedClassNames.add(in.readUTF());
+                }
+                return new IndexEntry(lastModified, sourceLastModified, Collections
+                        .unmodifiableList(managedClassNames));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read managed class index entry " + indexFile, e);
+            return null;
+        }
+    }
+
+    private List<String> scanBundle(final Bundle bundle) {
+        List<String> result = new ArrayList<String>();
+        @SuppressWarnings("unchecked")
+        Enumeration<URL> classFiles = bundle.findEntries("/", "*" + CLASS_FILE_EXTENSION, true);
+        if (classFiles == null) {
+            return Collections.unmodifiableList(result);
+        }
+        while (classFiles.hasMoreElements()) {
+            URL classFile = classFiles.nextElement();
+            if (classFile.getPath().endsWith(MODULE_INFO_CLASS_FILE)) {
+                continue;
+            }
+            try {
+                InputStream in = classFile.openStream();
+                try {
+                    String className = readManagedClassName(in);
+                    if (className != null) {
+                        result.add(className);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Cannot read class file " + classFile + " during searching managed classes", e);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private boolean isScannedEntry(final ZipEntry entry) {
+        String name = entry.getName();
+        return !entry.isDirectory() && name.endsWith(CLASS_FILE_EXTENSION) && !name.endsWith(MODULE_INFO_CLASS_FILE);
+    }
+
+    /**
+     * Scans a jar that is available on the file system. The entries are read with random access based on the central
+     * directory of the jar so only the class files are inflated.
+     */
+    private List<String> scanJarFile(final File file) {
+        List<String> result = new ArrayList<String>();
+        try {
+            ZipFile zipFile = new ZipFile(file);
+            try {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (isScannedEntry(entry)) {
+                        InputStream in = zipFile.getInputStream(entry);
+                        try {
+                            String className = readManagedClassName(in);
+                            if (className != null) {
+                                result.add(className);
+                            }
+                        } catch (IOException e) {
+                            LOGGER.warn("Cannot read class file " + entry.getName() + " in jar " + file, e);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                }
+            } finally {
+                zipFile.close();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Cannot read jar file " + file + " during searching managed classes", e);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Scans a jar that is packed into a bundle. The jar is read as a stream directly from the bundle so it does not
+     * have to be extracted into a temporary file.
+     */
+    private List<String> scanJarStream(final URL jarUrl) {
+        List<String> result = new ArrayList<String>();
+        try {
+            ZipInputStream zin = new ZipInputStream(new BufferedInputStream(jarUrl.openStream()));
+            try {
+                ZipEntry entry = zin.getNextEntry();
+                while (entry != null) {
+                    if (isScannedEntry(entry)) {
+                        try {
+                            // The entry is read directly from the zip stream that is closed only at the end
+                            String className = ManagedClassScanner.readManagedClassName(new DataInputStream(zin));
+                            if (className != null) {
+                                result.add(className);
+                            }
+                        } catch (IOException e) {
+                            LOGGER.warn("Cannot read class file " + entry.getName() + " in jar " + jarUrl, e);
+                        }
+                    }
+                    entry = zin.getNextEntry();
+                }
+            } finally {
+                zin.close();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Cannot read jar " + jarUrl + " during searching managed classes", e);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private void writeEntry(final Bundle bundle, final URL jarUrl, final IndexEntry entry) {
+        if (indexDirectory == null) {
+            return;
+        }
+        File indexFile = getIndexFile(bundle, jarUrl);
+        try {
+            File tmpFile = File.createTempFile(bundle.getBundleId() + "-", ".tmp", indexDirectory);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(bundle.getBundleId());
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.sourceLastModified);
+                out.writeUTF((jarUrl != null) ? jarUrl.toExternalForm() : "");
+                out.writeInt(entry.managedClassNames.size());
+                for (String managedClassName : entry.managedClassNames) {
+                    out.writeUTF(managedClassName);
+                }
+            } finally {
+                out.close();
+            }
+            if ((indexFile.exists() && !indexFile.delete()) || !tmpFile.renameTo(indexFile)) {
+                LOGGER.warn("Cannot replace managed class index entry " + indexFile);
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write managed class index entry " + indexFile, e);
+        }
+    }
+}
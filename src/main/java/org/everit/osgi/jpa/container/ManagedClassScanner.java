@@ -0,0 +1,242 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the raw bytes of class files to find out whether a class is annotated with one of the JPA managed class
+ * annotations. The classes are never loaded so scanning a bundle does not fill the metaspace and does not trigger the
+ * static initializers of the classes.
+ */
+final class ManagedClassScanner {
+
+    /**
+     * The descriptors of the annotations that make a class a managed class of a persistence unit.
+     */
+    public static final Set<String> MANAGED_CLASS_ANNOTATION_DESCRIPTORS = Collections
+            .unmodifiableSet(new HashSet<String>(Arrays.asList("Ljavax/persistence/Entity;",
+                    "Ljavax/persistence/Embeddable;", "Ljavax/persistence/MappedSuperclass;",
+                    "Ljavax/persistence/Converter;")));
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int CONSTANT_UTF8 = 1;
+
+    private static final int CONSTANT_INTEGER = 3;
+
+    private static final int CONSTANT_FLOAT = 4;
+
+    private static final int CONSTANT_LONG = 5;
+
+    private static final int CONSTANT_DOUBLE = 6;
+
+    private static final int CONSTANT_CLASS = 7;
+
+    private static final int CONSTANT_STRING = 8;
+
+    private static final int CONSTANT_FIELDREF = 9;
+
+    private static final int CONSTANT_METHODREF = 10;
+
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+
+    private static final int CONSTANT_METHOD_TYPE = 16;
+
+    private static final int CONSTANT_DYNAMIC = 17;
+
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+
+    private static final int CONSTANT_MODULE = 19;
+
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private static final String RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
+
+    /**
+     * Reads a class file and returns the name of the class if it is a managed class.
+     *
+     * @param in
+     *            The content of the class file.
+     * @return The binary name of the class (e.g. org.example.MyEntity) or null if the class is not annotated with any
+     *         of the managed class annotations.
+     * @throws IOException
+     *             if the class file cannot be read or it is not a valid class file.
+     */
+    public static String readManagedClassName(final DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Invalid class file magic number");
+        }
+        // minor and major version
+        skip(in, 4);
+
+        int constantPoolCount = in.readUnsignedShort();
+        String[] utf8Constants = new String[constantPoolCount];
+        int[] classNameIndexes = new int[constantPoolCount];
+        for (int i = 1; i < constantPoolCount; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+            case CONSTANT_UTF8:
+                utf8Constants[i] = in.readUTF();
+                break;
+            case CONSTANT_CLASS:
+                classNameIndexes[i] = in.readUnsignedShort();
+                break;
+            case CONSTANT_STRING:
+            case CONSTANT_METHOD_TYPE:
+            case CONSTANT_MODULE:
+            case CONSTANT_PACKAGE:
+                skip(in, 2);
+                break;
+            case CONSTANT_METHOD_HANDLE:
+                skip(in, 3);
+                break;
+            case CONSTANT_INTEGER:
+            case CONSTANT_FLOAT:
+            case CONSTANT_FIELDREF:
+            case CONSTANT_METHODREF:
+            case CONSTANT_INTERFACE_METHODREF:
+            case CONSTANT_NAME_AND_TYPE:
+            case CONSTANT_DYNAMIC:
+            case CONSTANT_INVOKE_DYNAMIC:
+                skip(in, 4);
+                break;
+            case CONSTANT_LONG:
+            case CONSTANT_DOUBLE:
+                skip(in, 8);
+                // Eight byte constants take two entries in the constant pool
+                i++;
+                break;
+            default:
+                throw new IOException("Unknown constant pool tag: " + tag);
+            }
+        }
+
+        // access flags
+        skip(in, 2);
+        int thisClassIndex = in.readUnsignedShort();
+        // super class
+        skip(in, 2);
+        int interfacesCount = in.readUnsignedShort();
+        skip(in, interfacesCount * 2);
+
+        skipMembers(in);
+        skipMembers(in);
+
+        boolean managedClass = false;
+        int attributesCount = in.readUnsignedShort();
+        for (int i = 0; (i < attributesCount) && !managedClass; i++) {
+            String attributeName = utf8Constants[in.readUnsignedShort()];
+            int attributeLength = in.readInt();
+            if (RUNTIME_VISIBLE_ANNOTATIONS.equals(attributeName)) {
+                int annotationCount = in.readUnsignedShort();
+                for (int j = 0; (j < annotationCount) && !managedClass; j++) {
+                    String annotationDescriptor = utf8Constants[in.readUnsignedShort()];
+                    if (MANAGED_CLASS_ANNOTATION_DESCRIPTORS.contains(annotationDescriptor)) {
+                        managedClass = true;
+                    } else {
+                        skipElementValuePairs(in);
+                    }
+                }
+            } else {
+                skip(in, attributeLength);
+            }
+        }
+
+        if (!managedClass) {
+            return null;
+        }
+        return utf8Constants[classNameIndexes[thisClassIndex]].replace('/', '.');
+    }
+
+    private static void skip(final DataInput in, final int n) throws IOException {
+        if (in.skipBytes(n) < n) {
+            throw new EOFException("Unexpected end of class file");
+        }
+    }
+
+    private static void skipAttributes(final DataInput in) throws IOException {
+        int attributesCount = in.readUnsignedShort();
+        for (int i = 0; i < attributesCount; i++) {
+            // name index
+            skip(in, 2);
+            skip(in, in.readInt());
+        }
+    }
+
+    private static void skipElementValue(final DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+        case 'e':
+            skip(in, 4);
+            break;
+        case '@':
+            // type index
+            skip(in, 2);
+            skipElementValuePairs(in);
+            break;
+        case '[':
+            int valueCount = in.readUnsignedShort();
+            for (int i = 0; i < valueCount; i++) {
+                skipElementValue(in);
+            }
+            break;
+        default:
+            // Constant values and class info
+            skip(in, 2);
+        }
+    }
+
+    private static void skipElementValuePairs(final DataInput in) throws IOException {
+        int pairCount = in.readUnsignedShort();
+        for (int i = 0; i < pairCount; i++) {
+            // element name index
+            skip(in, 2);
+            skipElementValue(in);
+        }
+    }
+
+    /**
+     * Skips the fields or the methods of the class file.
+     */
+    private static void skipMembers(final DataInput in) throws IOException {
+        int memberCount = in.readUnsignedShort();
+        for (int i = 0; i < memberCount; i++) {
+            // access flags, name index and descriptor index
+            skip(in, 6);
+            skipAttributes(in);
+        }
+    }
+
+    private ManagedClassScanner() {
+    }
+}
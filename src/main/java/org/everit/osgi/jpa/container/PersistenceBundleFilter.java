@@ -0,0 +1,273 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides whether a bundle has to be searched for persistence descriptors. The decision is made based on the raw
+ * manifest headers of the bundle, the configured symbolic name patterns and an index of bundles that were already
+ * searched without result. The index is persisted in the data area of the container so it is available after a
+ * restart of the framework.
+ */
+class PersistenceBundleFilter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceBundleFilter.class);
+
+    /**
+     * Framework property that holds a comma separated list of symbolic name patterns. If specified, only the matching
+     * bundles are searched for persistence descriptors. The '*' character matches any sequence of characters.
+     */
+    public static final String INCLUDES_PROPERTY = "org.everit.osgi.jpa.container.bundle.includes";
+
+    /**
+     * Framework property that holds a comma separated list of symbolic name patterns. The matching bundles are never
+     * searched for persistence descriptors. The '*' character matches any sequence of characters.
+     */
+    public static final String EXCLUDES_PROPERTY = "org.everit.osgi.jpa.container.bundle.excludes";
+
+    /**
+     * The name of the negative index file inside the data area of the container bundle.
+     */
+    public static final String NEGATIVE_INDEX_FILE_NAME = "negative-bundle-index.bin";
+
+    /**
+     * Manifest header that points to the persistence descriptors of a bundle.
+     */
+    public static final String META_PERSISTENCE_HEADER = "Meta-Persistence";
+
+    /**
+     * Manifest header of web application bundles that may have persistence descriptors in WEB-INF.
+     */
+    public static final String WEB_CONTEXT_PATH_HEADER = "Web-ContextPath";
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static List<Pattern> parsePatterns(final String patternList) {
+        List<Pattern> result = new ArrayList<Pattern>();
+        if (patternList == null) {
+            return result;
+        }
+        for (String pattern : patternList.split(",")) {
+            String trimmedPattern = pattern.trim();
+            if (trimmedPattern.length() > 0) {
+                StringBuilder regex = new StringBuilder();
+                String[] parts = trimmedPattern.split("\\*", -1);
+                for (int i = 0; i < parts.length; i++) {
+                    if (i > 0) {
+                        regex.append(".*");
+                    }
+                    regex.append(Pattern.quote(parts[i]));
+                }
+                result.add(Pattern.compile(regex.toString()));
+            }
+        }
+        return result;
+    }
+
+    private static boolean matchesAny(final List<Pattern> patterns, final String symbolicName) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(symbolicName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final List<Pattern> includePatterns;
+
+    private final List<Pattern> excludePatterns;
+
+    /**
+     * The file of the negative index or null if the framework does not support file system.
+     */
+    private final File negativeIndexFile;
+
+    /**
+     * The last modification time of the bundles by their ids that were searched without finding any persistence
+     * unit.
+     */
+    private final Map<Long, Long> lastModifiedOfNegativeBundles = new ConcurrentHashMap<Long, Long>();
+
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    private final AtomicLong probedCount = new AtomicLong();
+
+    /**
+     * Constructor that reads the configuration and the persisted negative index.
+     *
+     * @param context
+     *            The context of the container bundle.
+     */
+    public PersistenceBundleFilter(final BundleContext context) {
+        includePatterns = parsePatterns(context.getProperty(INCLUDES_PROPERTY));
+        excludePatterns = parsePatterns(context.getProperty(EXCLUDES_PROPERTY));
+        negativeIndexFile = context.getDataFile(NEGATIVE_INDEX_FILE_NAME);
+        loadNegativeIndex();
+    }
+
+    public long getProbedCount() {
+        return probedCount.get();
+    }
+
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * Removes a bundle from the negative index.
+     *
+     * @param bundle
+     *            The bundle that was updated or uninstalled.
+     */
+    public void invalidate(final Bundle bundle) {
+        lastModifiedOfNegativeBundles.remove(bundle.getBundleId());
+    }
+
+    /**
+     * Checks whether the bundle should be searched for persistence descriptors and updates the counters.
+     *
+     * @param bundle
+     *            The bundle.
+     * @return true if the bundle may contain persistence units.
+     */
+    public boolean isProbeNecessary(final Bundle bundle) {
+        boolean result = internalIsProbeNecessary(bundle);
+        if (result) {
+            probedCount.incrementAndGet();
+        } else {
+            skippedCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    private boolean internalIsProbeNecessary(final Bundle bundle) {
+        Long lastModified = lastModifiedOfNegativeBundles.get(bundle.getBundleId());
+        if ((lastModified != null) && (lastModified.longValue() == bundle.getLastModified())) {
+            return false;
+        }
+
+        String symbolicName = bundle.getSymbolicName();
+        if (symbolicName != null) {
+            if (!includePatterns.isEmpty() && !matchesAny(includePatterns, symbolicName)) {
+                return false;
+            }
+            if (matchesAny(excludePatterns, symbolicName)) {
+                return false;
+            }
+        }
+
+        // Raw headers are used as the localization of the headers would need resource lookups
+        Dictionary<?, ?> headers = bundle.getHeaders("");
+        return (headers.get(META_PERSISTENCE_HEADER) != null) || (headers.get(WEB_CONTEXT_PATH_HEADER) != null);
+    }
+
+    private void loadNegativeIndex() {
+        if ((negativeIndexFile == null) || !negativeIndexFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(negativeIndexFile)));
+            try {
+                if (in.readInt() != FORMAT_VERSION) {
+                    return;
+                }
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    long bundleId = in.readLong();
+                    long lastModified = in.readLong();
+                    lastModifiedOfNegativeBundles.put(bundleId, lastModified);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read negative bundle index " + negativeIndexFile, e);
+            lastModifiedOfNegativeBundles.clear();
+        }
+    }
+
+    /**
+     * Records that a bundle was searched for persistence descriptors but no persistence unit was found.
+     *
+     * @param bundle
+     *            The bundle.
+     */
+    public void recordNegativeResult(final Bundle bundle) {
+        lastModifiedOfNegativeBundles.put(bundle.getBundleId(), bundle.getLastModified());
+    }
+
+    /**
+     * Writes the negative index into the data area of the container. Entries of bundles that are not installed
+     * anymore are dropped.
+     *
+     * @param context
+     *            The context of the container bundle.
+     */
+    public void saveNegativeIndex(final BundleContext context) {
+        if (negativeIndexFile == null) {
+            return;
+        }
+        List<Entry<Long, Long>> entries = new ArrayList<Entry<Long, Long>>();
+        for (Entry<Long, Long> entry : lastModifiedOfNegativeBundles.entrySet()) {
+            if (context.getBundle(entry.getKey()) != null) {
+                entries.add(entry);
+            }
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                    negativeIndexFile)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(entries.size());
+                for (Entry<Long, Long> entry : entries) {
+                    out.writeLong(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write negative bundle index " + negativeIndexFile, e);
+        }
+    }
+}
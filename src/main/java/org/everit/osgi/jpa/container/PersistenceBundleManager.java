@@ -21,12 +21,21 @@ package org.everit.osgi.jpa.container;
  * MA 02110-1301  USA
  */
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.sql.DataSource;
 import javax.sql.XADataSource;
@@ -39,6 +48,7 @@ import org.apache.aries.jpa.container.parsing.PersistenceDescriptorParser;
 import org.apache.aries.jpa.container.parsing.PersistenceDescriptorParserException;
 import org.apache.aries.jpa.container.parsing.impl.PersistenceDescriptorParserImpl;
 import org.apache.aries.jpa.container.tx.impl.OSGiTransactionManager;
+import org.everit.osgi.jpa.container.api.RequisiteDiagnosticsMXBean;
 import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
 import org.everit.osgi.util.core.requisite.MultiRequisiteListener;
 import org.everit.osgi.util.core.requisite.MultiRequisiteManager;
@@ -47,7 +57,9 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.jdbc.DataSourceFactory;
 import org.osgi.util.tracker.BundleTracker;
 import org.osgi.util.tracker.BundleTrackerCustomizer;
@@ -79,6 +91,108 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
      */
     public static final String TRANSACTION_MANAGER_REFERENCE_ID = TransactionManager.class.getName();
 
+    /**
+     * Framework property that specifies the maximum number of persistence units that are bootstrapped parallel. The
+     * default value is the number of available processors.
+     */
+    public static final String BOOTSTRAP_THREADS_PROPERTY = "org.everit.osgi.jpa.container.bootstrap.threads";
+
+    /**
+     * Framework property that specifies the number of threads that search and parse the already installed bundles
+     * before the bundle tracker is opened. The value 1 switches off the parallel scan. The default value is the number
+     * of available processors.
+     */
+    public static final String SCAN_THREADS_PROPERTY = "org.everit.osgi.jpa.container.scan.threads";
+
+    /**
+     * Framework property that switches on the replacement mode if its value is true. In replacement mode the
+     * EntityManagerFactory service of a persistence unit stays registered while the persistence unit is restarted due
+     * to a swapped requisite and it is replaced by the new EntityManagerFactory when that is ready.
+     */
+    public static final String REPLACEMENT_ENABLED_PROPERTY = "org.everit.osgi.jpa.container.replacement.enabled";
+
+    /**
+     * Framework property that specifies the time in milliseconds while a replaced EntityManagerFactory is kept open
+     * so the EntityManagers that were created by it can finish their work. The default value is 30 seconds.
+     */
+    public static final String REPLACEMENT_DRAIN_TIME_PROPERTY =
+            "org.everit.osgi.jpa.container.replacement.drain.time";
+
+    private static final int DEFAULT_REPLACEMENT_DRAIN_TIME = 30000;
+
+    /**
+     * Framework property that specifies the time in milliseconds while the EntityManagerFactory of a persistence unit
+     * whose requisite disappeared stays registered in replacement mode, waiting for the requisite that replaces it. If
+     * the replacement arrives later, the persistence unit is stopped and started again. The events are delayed by the
+     * {@link #REQUISITE_QUIET_PERIOD_PROPERTY quiet period} before the window starts, so the old EntityManagerFactory
+     * may stay registered without its requisite for the quiet period plus the window. The default value is 1 second.
+     */
+    public static final String REPLACEMENT_WINDOW_PROPERTY = "org.everit.osgi.jpa.container.replacement.window";
+
+    private static final int DEFAULT_REPLACEMENT_WINDOW = 1000;
+
+    /**
+     * Framework property that specifies the quiet period in milliseconds. A start or a stop of a persistence unit
+     * caused by its requisites is applied only if no other such event arrived for the persistence unit during the
+     * quiet period. By default the events are applied immediately.
+     */
+    public static final String REQUISITE_QUIET_PERIOD_PROPERTY =
+            "org.everit.osgi.jpa.container.requisite.quiet.period";
+
+    /**
+     * Framework property that switches off the registration of the EntityManagerFactoryBuilder services of the
+     * persistence units if its value is false.
+     */
+    public static final String BUILDER_ENABLED_PROPERTY = "org.everit.osgi.jpa.container.builder.enabled";
+
+    /**
+     * Framework property that specifies the time in milliseconds after an EntityManagerFactory that was built by an
+     * EntityManagerFactoryBuilder service is closed if all of its users closed it. The default value is 5 minutes.
+     */
+    public static final String BUILDER_IDLE_TIMEOUT_PROPERTY = "org.everit.osgi.jpa.container.builder.idle.timeout";
+
+    private static final int DEFAULT_BUILDER_IDLE_TIMEOUT = 300000;
+
+    /**
+     * Framework property that switches off the sharing of the DataSources if its value is false. By default the
+     * persistence units whose DataSources are created by the same DataSourceFactory with the same connection
+     * properties and connection pool settings share one DataSource and connection pool.
+     */
+    public static final String DATASOURCE_SHARING_ENABLED_PROPERTY =
+            "org.everit.osgi.jpa.container.datasource.sharing.enabled";
+
+    /**
+     * The states of the bundles that are tracked by the container.
+     */
+    private static final int TRACKED_BUNDLE_STATES = Bundle.INSTALLED | Bundle.RESOLVED | Bundle.STARTING
+            | Bundle.ACTIVE | Bundle.STOPPING;
+
+    /**
+     * The result of scanning a bundle before the bundle tracker was opened.
+     */
+    private static final class ScannedBundle {
+
+        /**
+         * The last modification time of the bundle before the scan started. If the bundle is updated during the scan,
+         * the result is dropped.
+         */
+        private final long lastModified;
+
+        private final Collection<ParsedPersistenceUnit> parsedPersistenceUnits;
+
+        /**
+         * The time in milliseconds that the scan of the bundle took.
+         */
+        private final long scanTime;
+
+        public ScannedBundle(final long lastModified, final Collection<ParsedPersistenceUnit> parsedPersistenceUnits,
+                final long scanTime) {
+            this.lastModified = lastModified;
+            this.parsedPersistenceUnits = parsedPersistenceUnits;
+            this.scanTime = scanTime;
+        }
+    }
+
     /**
      * {@link RequisiteListener} that catches the presence of Persistence Providers. When a persistence provider for a
      * persistence bundle is ready the tarcking of other requisites like DataSourceFactory or DataSource will be
@@ -94,6 +208,13 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
                     LOGGER.info("PersistenceProvider available for bundle " + bundle.getSymbolicName() + ":"
                             + bundle.getVersion().toString());
                     persistenceProviderServiceReferences.put(bundle, reference);
+                    for (ParsedPersistenceUnit ppu : dependentObject.getParsedPersistenceUnits()) {
+                        PersistenceUnitMetrics unitMetrics = containerMetrics.getPersistenceUnitMetrics(ppu);
+                        if (unitMetrics != null) {
+                            unitMetrics.providerAvailable();
+                        }
+                        emfManager.registerEntityManagerFactoryBuilder(ppu, reference);
+                    }
                     addParsedPersistenceUnitsToMultiRequisiteTracker(dependentObject.getParsedPersistenceUnits());
                 }
 
@@ -104,7 +225,11 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
                     LOGGER.info("PersistenceProvider not available anymore for bundle " + bundle.getSymbolicName() + ":"
                             + bundle.getVersion().toString() + ". Removing persistence units.");
                     persistenceProviderServiceReferences.remove(bundle);
+                    for (ParsedPersistenceUnit ppu : dependentObject.getParsedPersistenceUnits()) {
+                        emfManager.unregisterEntityManagerFactoryBuilder(ppu);
+                    }
                     removeParsedPersistenceUnitsFromMultiRequsiteTracker(dependentObject.getParsedPersistenceUnits());
+                    providerWaitStarted(dependentObject.getParsedPersistenceUnits());
                 }
             };
 
@@ -128,7 +253,7 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
     /**
      * When every requisite is ready let the emf manager create the emfs and destroy them if necessary.
      */
-    private EntityManagerFactoryManager emfManager = new EntityManagerFactoryManager();
+    private EntityManagerFactoryManager emfManager;
 
     /**
      * The tracker of persistence providers.
@@ -138,6 +263,34 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
     /** Parser for persistence descriptors. */
     private PersistenceDescriptorParser persistenceDescriptorParser;
 
+    /**
+     * Cache of the parsed persistence units so the descriptors of unchanged bundles are not parsed again after a
+     * restart.
+     */
+    private PersistenceDescriptorCache persistenceDescriptorCache;
+
+    /**
+     * Decides cheaply whether a bundle should be searched for persistence descriptors at all.
+     */
+    private PersistenceBundleFilter persistenceBundleFilter;
+
+    /**
+     * The lifecycle and timing metrics of the container and the persistence units.
+     */
+    private ContainerMetrics containerMetrics;
+
+    /**
+     * Diagnostics of the requisites that the persistence units wait for.
+     */
+    private RequisiteDiagnostics requisiteDiagnostics;
+
+    private ServiceRegistration requisiteDiagnosticsSR;
+
+    /**
+     * Index of the managed classes of the persistence bundles.
+     */
+    private ManagedClassIndex managedClassIndex;
+
     /**
      * The tracker of persistence bundles.
      */
@@ -147,6 +300,25 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
 
     private DataSourceRequisiteTracker nonJtaDataSourceRequisiteTracker = null;
 
+    /**
+     * Measures the connection acquire time of the DataSource services or null if the DataSources are selected by
+     * their service ranking only.
+     */
+    private DataSourceLatencyProbe dataSourceLatencyProbe = null;
+
+    /**
+     * Binds a persistence unit again to its requisites when a better DataSource is available.
+     */
+    private final DataSourceRequisiteTracker.RebindListener dataSourceRebindListener =
+            new DataSourceRequisiteTracker.RebindListener() {
+
+                @Override
+                public void rebind(final ParsedPersistenceUnit ppu) {
+                    parsedPUMultiRequisiteTracker.removeDependentObject(ppu);
+                    addParsedPersistenceUnitsToMultiRequisiteTracker(Collections.singletonList(ppu));
+                }
+            };
+
     /**
      * The service references of persistence providers based on the bundles that need it.
      */
@@ -159,23 +331,116 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
     private JTARequisiteTracker jtaRequisiteTracker = null;
 
     /**
-     * Tracking multiple requisites of a parsed persistence unit. Multiple requisites can be for example
-     * DataSourceFactory and TransactionManager for a persistence unit that needs these two.
+     * Starts and stops the persistence units when their requisites become available or disappear.
      */
-    private MultiRequisiteManager<ParsedPersistenceUnit> parsedPUMultiRequisiteTracker =
-            new MultiRequisiteManager<ParsedPersistenceUnit>(
-                    new MultiRequisiteListener<ParsedPersistenceUnit>() {
-                        @Override
-                        public void startDependentObject(final ParsedPersistenceUnit dependentObject,
-                                final Map<String, ServiceReference> references) {
-                            startPersistenceUnit(dependentObject, references);
-                        }
+    private final MultiRequisiteListener<ParsedPersistenceUnit> persistenceUnitRequisiteListener =
+            new MultiRequisiteListener<ParsedPersistenceUnit>() {
+                @Override
+                public void startDependentObject(final ParsedPersistenceUnit dependentObject,
+                        final Map<String, ServiceReference> references) {
+                    PersistenceUnitMetrics unitMetrics = containerMetrics
+                            .getPersistenceUnitMetrics(dependentObject);
+                    if (unitMetrics != null) {
+                        unitMetrics.requisitesAvailable();
+                    }
+                    startPersistenceUnit(dependentObject, references);
+                }
+
+                @Override
+                public void stopDependentObject(final ParsedPersistenceUnit dependentObject) {
+                    emfManager.retirePersistenceUnit(dependentObject);
+                    PersistenceUnitMetrics unitMetrics = containerMetrics
+                            .getPersistenceUnitMetrics(dependentObject);
+                    if (unitMetrics != null) {
+                        unitMetrics.stopped();
+                    }
+                }
+            };
+
+    /**
+     * Rebuilds the running persistence units whose properties are overridden by a new or changed configuration and
+     * drops the EntityManagerFactories that their builder services built with the previous properties.
+     */
+    private final PersistenceUnitConfigurations.ConfigurationListener unitConfigurationListener =
+            new PersistenceUnitConfigurations.ConfigurationListener() {
 
-                        @Override
-                        public void stopDependentObject(final ParsedPersistenceUnit dependentObject) {
-                            stopPersistenceUnit(dependentObject);
+                @Override
+                public void configurationChanged(final String bundleSymbolicName, final String unitName) {
+                    for (BundleWithParsedPersistenceUnits bundleWithParsedPersistenceUnits : parsedPUByBundle
+                            .values()) {
+                        if (!bundleSymbolicName.equals(bundleWithParsedPersistenceUnits.getBundle()
+                                .getSymbolicName())) {
+                            continue;
                         }
-                    });
+                        for (ParsedPersistenceUnit ppu : bundleWithParsedPersistenceUnits.getParsedPersistenceUnits()) {
+                            if (unitName.equals(ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME))) {
+                                emfManager.rebuildPersistenceUnit(ppu);
+                                emfManager.invalidateBuiltEntityManagerFactories(ppu);
+                                PersistenceUnitShardTracker shardTracker = shardTrackersByPPU.get(ppu);
+                                if (shardTracker != null) {
+                                    for (ShardParsedPersistenceUnit shard : shardTracker.getShards()) {
+                                        emfManager.rebuildPersistenceUnit(shard);
+                                        emfManager.invalidateBuiltEntityManagerFactories(shard);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            };
+
+    /**
+     * Registers the shards of the sharded persistence units as separate persistence units when their DataSource
+     * appears and removes them when the DataSource disappears.
+     */
+    private final PersistenceUnitShardTracker.ShardListener shardListener =
+            new PersistenceUnitShardTracker.ShardListener() {
+
+                @Override
+                public void shardAdded(final ShardParsedPersistenceUnit shard) {
+                    LOGGER.info("DataSource available for " + shard);
+                    Collection<ParsedPersistenceUnit> shards = Collections
+                            .<ParsedPersistenceUnit> singletonList(shard);
+                    containerMetrics.addPersistenceUnits(shards, 0);
+                    PersistenceUnitMetrics unitMetrics = containerMetrics.getPersistenceUnitMetrics(shard);
+                    if (unitMetrics != null) {
+                        unitMetrics.providerAvailable();
+                    }
+                    addParsedPersistenceUnitsToMultiRequisiteTracker(shards);
+                }
+
+                @Override
+                public void shardRemoved(final ShardParsedPersistenceUnit shard) {
+                    LOGGER.info("DataSource not available anymore for " + shard + ". Removing the shard.");
+                    parsedPUMultiRequisiteTracker.removeDependentObject(shard);
+                    stopPersistenceUnit(shard);
+                    containerMetrics.removePersistenceUnit(shard);
+                }
+            };
+
+    /**
+     * The trackers of the DataSources of the sharded persistence units whose persistence provider is available.
+     */
+    private final Map<ParsedPersistenceUnit, PersistenceUnitShardTracker> shardTrackersByPPU =
+            new ConcurrentHashMap<ParsedPersistenceUnit, PersistenceUnitShardTracker>();
+
+    /**
+     * The registration of the ManagedServiceFactory that receives the configurations of the persistence units or
+     * null if the Configuration Admin API is not available.
+     */
+    private ServiceRegistration unitConfigurationFactorySR;
+
+    /**
+     * Collapses the bursts of requisite events of the persistence units before they reach the
+     * {@link #persistenceUnitRequisiteListener}.
+     */
+    private RequisiteEventCoalescer requisiteEventCoalescer;
+
+    /**
+     * Tracking multiple requisites of a parsed persistence unit. Multiple requisites can be for example
+     * DataSourceFactory and TransactionManager for a persistence unit that needs these two.
+     */
+    private MultiRequisiteManager<ParsedPersistenceUnit> parsedPUMultiRequisiteTracker;
 
     /**
      * Parsed persistence units by the bundles that contain them.
@@ -183,6 +448,11 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
     private Map<Bundle, BundleWithParsedPersistenceUnits> parsedPUByBundle =
             new ConcurrentHashMap<Bundle, BundleWithParsedPersistenceUnits>();
 
+    /**
+     * The results of the parallel scan that are not picked up by the bundle tracker yet.
+     */
+    private Map<Bundle, ScannedBundle> scannedBundles = new ConcurrentHashMap<Bundle, ScannedBundle>();
+
     /**
      * Requisite tracker for DataSourceFactory services.
      */
@@ -190,8 +460,21 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
 
     @Override
     public Object addingBundle(final Bundle bundle, final BundleEvent event) {
-        final Collection<ParsedPersistenceUnit> pUnits = parseBundle(bundle);
-        if (!pUnits.isEmpty()) {
+        Collection<ParsedPersistenceUnit> pUnits = null;
+        long scanTime;
+        ScannedBundle scannedBundle = scannedBundles.remove(bundle);
+        if ((scannedBundle != null) && (scannedBundle.lastModified == bundle.getLastModified())) {
+            pUnits = scannedBundle.parsedPersistenceUnits;
+            scanTime = scannedBundle.scanTime;
+        } else {
+            long startTime = System.currentTimeMillis();
+            pUnits = scanBundle(bundle);
+            scanTime = System.currentTimeMillis() - startTime;
+        }
+        if (pUnits.isEmpty()) {
+            containerMetrics.bundleParsed(scanTime);
+        } else {
+            containerMetrics.addPersistenceUnits(pUnits, scanTime);
             final BundleWithParsedPersistenceUnits bundleWithParsedPersistenceUnits =
                     new BundleWithParsedPersistenceUnits(bundle, pUnits);
 
@@ -201,6 +484,7 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
             }
 
             if (bundle.getState() == Bundle.ACTIVE) {
+                providerWaitStarted(pUnits);
                 persistenceProviderRequisiteTracker.addDependentObject(bundleWithParsedPersistenceUnits,
                         persistenceProviderRequisiteListener);
             }
@@ -213,6 +497,12 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
             final Collection<ParsedPersistenceUnit> parsedPersistenceUnits) {
 
         for (ParsedPersistenceUnit pUnit : parsedPersistenceUnits) {
+            if (PersistenceUnitShardTracker.isSharded(pUnit)) {
+                PersistenceUnitShardTracker shardTracker = new PersistenceUnitShardTracker(ctx, pUnit, shardListener);
+                shardTrackersByPPU.put(pUnit, shardTracker);
+                shardTracker.open();
+                continue;
+            }
             Map<String, Object> persistenceXmlMetadata = pUnit.getPersistenceXmlMetadata();
             Map<String, AbstractRequisiteTracker<ParsedPersistenceUnit>> parsedPUTrackers =
                     new HashMap<String, AbstractRequisiteTracker<ParsedPersistenceUnit>>();
@@ -246,6 +536,33 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
         return ctx;
     }
 
+    /**
+     * Reads a positive integer framework property.
+     *
+     * @param key
+     *            The name of the framework property.
+     * @param defaultValue
+     *            The value that is used if the property is not specified or invalid.
+     * @return The value of the property.
+     */
+    private int getIntProperty(final String key, final int defaultValue) {
+        String value = ctx.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int result = Integer.parseInt(value.trim());
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.debug("Invalid number format of framework property " + key, e);
+        }
+        LOGGER.warn("Framework property " + key + " must be a positive integer. Using default value: "
+                + defaultValue);
+        return defaultValue;
+    }
+
     @Override
     public void modifiedBundle(final Bundle bundle, final BundleEvent event, final Object object) {
 
@@ -254,53 +571,184 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
             persistenceProviderRequisiteTracker.removeDependentObject(bundleWithParsedPersistenceUnits);
             Collection<ParsedPersistenceUnit> ppus = bundleWithParsedPersistenceUnits.getParsedPersistenceUnits();
             removeParsedPersistenceUnitsFromMultiRequsiteTracker(ppus);
+            for (ParsedPersistenceUnit ppu : ppus) {
+                stopPersistenceUnit(ppu);
+                PersistenceUnitMetrics unitMetrics = containerMetrics.getPersistenceUnitMetrics(ppu);
+                if (unitMetrics != null) {
+                    unitMetrics.installed();
+                }
+            }
 
         }
         if (event.getType() == BundleEvent.UPDATED) {
+            persistenceDescriptorCache.invalidate(bundle);
+            persistenceBundleFilter.invalidate(bundle);
+            managedClassIndex.invalidate(bundle);
+            long startTime = System.currentTimeMillis();
             Collection<ParsedPersistenceUnit> newPUnits = parseBundle(bundle);
+            long parseTime = System.currentTimeMillis() - startTime;
             BundleWithParsedPersistenceUnits bundleWithParsedPersistenceUnits = new BundleWithParsedPersistenceUnits(
                     bundle,
                     newPUnits);
-            parsedPUByBundle.put(bundle, bundleWithParsedPersistenceUnits);
+            BundleWithParsedPersistenceUnits oldBundleWithParsedPersistenceUnits = parsedPUByBundle.put(bundle,
+                    bundleWithParsedPersistenceUnits);
+            if (oldBundleWithParsedPersistenceUnits != null) {
+                for (ParsedPersistenceUnit ppu : oldBundleWithParsedPersistenceUnits.getParsedPersistenceUnits()) {
+                    containerMetrics.removePersistenceUnit(ppu);
+                }
+            }
+            containerMetrics.addPersistenceUnits(newPUnits, parseTime);
         }
 
         if (event.getType() == BundleEvent.STARTED) {
-            persistenceProviderRequisiteTracker.addDependentObject(parsedPUByBundle.get(bundle),
+            BundleWithParsedPersistenceUnits bundleWithParsedPersistenceUnits = parsedPUByBundle.get(bundle);
+            providerWaitStarted(bundleWithParsedPersistenceUnits.getParsedPersistenceUnits());
+            persistenceProviderRequisiteTracker.addDependentObject(bundleWithParsedPersistenceUnits,
                     persistenceProviderRequisiteListener);
         }
     }
 
-    private Collection<ParsedPersistenceUnit> parseBundle(final Bundle b) {
+    /**
+     * Searches and parses the persistence descriptors of a bundle if the bundle may contain any.
+     *
+     * @param bundle
+     *            The bundle.
+     * @return The persistence units of the bundle or an empty collection.
+     */
+    private Collection<ParsedPersistenceUnit> scanBundle(final Bundle bundle) {
+        if (!persistenceBundleFilter.isProbeNecessary(bundle)) {
+            return new ArrayList<ParsedPersistenceUnit>();
+        }
+        Collection<ParsedPersistenceUnit> pUnits = parseBundle(bundle);
+        if (pUnits.isEmpty()) {
+            persistenceBundleFilter.recordNegativeResult(bundle);
+        }
+        return pUnits;
+    }
+
+    /**
+     * Searches and parses the persistence descriptors of a bundle. Package visible for the benchmarks.
+     */
+    Collection<ParsedPersistenceUnit> parseBundle(final Bundle b) {
 
         Collection<ParsedPersistenceUnit> pUnits = new ArrayList<ParsedPersistenceUnit>();
 
         Collection<PersistenceDescriptor> persistenceXmls = PersistenceBundleHelper.findPersistenceXmlFiles(b);
 
         // If we have no persistence units then our job is done
-        if (!!!persistenceXmls.isEmpty()) {
-            // Parse each descriptor
-            for (PersistenceDescriptor descriptor : persistenceXmls) {
-                try {
-                    pUnits.addAll(persistenceDescriptorParser.parse(b, descriptor));
-                } catch (PersistenceDescriptorParserException e) {
-                    LOGGER.error("Cannot parse persistence descriptor", e);
-                }
+        if (persistenceXmls.isEmpty()) {
+            return pUnits;
+        }
+
+        List<BufferedPersistenceDescriptor> bufferedDescriptors = new ArrayList<BufferedPersistenceDescriptor>();
+        for (PersistenceDescriptor descriptor : persistenceXmls) {
+            try {
+                bufferedDescriptors.add(BufferedPersistenceDescriptor.read(descriptor));
+            } catch (IOException e) {
+                LOGGER.error("Cannot read persistence descriptor " + descriptor.getLocation(), e);
+            }
+        }
+
+        byte[] checksum = PersistenceDescriptorCache.checksum(bufferedDescriptors);
+        Collection<ParsedPersistenceUnit> cachedPUnits = persistenceDescriptorCache.get(b, checksum);
+        if (cachedPUnits != null) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Persistence units of bundle " + b.getSymbolicName() + " are loaded from cache");
+            }
+            return cachedPUnits;
+        }
+
+        // Parse each descriptor
+        boolean parseFailed = bufferedDescriptors.size() < persistenceXmls.size();
+        for (PersistenceDescriptor descriptor : bufferedDescriptors) {
+            try {
+                pUnits.addAll(persistenceDescriptorParser.parse(b, descriptor));
+            } catch (PersistenceDescriptorParserException e) {
+                LOGGER.error("Cannot parse persistence descriptor", e);
+                parseFailed = true;
             }
         }
+        if (!parseFailed) {
+            persistenceDescriptorCache.put(b, checksum, pUnits);
+        }
         return pUnits;
     }
 
+    /**
+     * Searches and parses the persistence descriptors of the bundles that are already installed parallel. The results
+     * are picked up by the bundle tracker when it is opened so it will still process the bundles and their events
+     * in the right order.
+     *
+     * @param threads
+     *            The number of threads that scan the bundles.
+     */
+    private void prescanBundles(final int threads) {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final Bundle bundle : ctx.getBundles()) {
+            if ((bundle.getState() & TRACKED_BUNDLE_STATES) != 0) {
+                tasks.add(Executors.callable(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        long lastModified = bundle.getLastModified();
+                        long startTime = System.currentTimeMillis();
+                        Collection<ParsedPersistenceUnit> pUnits = scanBundle(bundle);
+                        scannedBundles.put(bundle, new ScannedBundle(lastModified, pUnits, System.currentTimeMillis()
+                                - startTime));
+                    }
+                }));
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ContainerThreadFactory(
+                "jpa-container-scan-"));
+        long startTime = System.currentTimeMillis();
+        try {
+            executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        LOGGER.info("Scanned " + tasks.size() + " bundles with " + threads + " threads in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Notifies the metrics that the persistence units started to wait for their persistence provider.
+     */
+    private void providerWaitStarted(final Collection<ParsedPersistenceUnit> pUnits) {
+        for (ParsedPersistenceUnit ppu : pUnits) {
+            PersistenceUnitMetrics unitMetrics = containerMetrics.getPersistenceUnitMetrics(ppu);
+            if (unitMetrics != null) {
+                unitMetrics.providerWaitStarted();
+            }
+        }
+    }
+
     @Override
     public void removedBundle(final Bundle bundle, final BundleEvent event, final Object object) {
+        if ((event != null) && (event.getType() == BundleEvent.UNINSTALLED)) {
+            persistenceDescriptorCache.invalidate(bundle);
+            persistenceBundleFilter.invalidate(bundle);
+            managedClassIndex.invalidate(bundle);
+        }
         BundleWithParsedPersistenceUnits bundleWithParsedPersistenceUnits = parsedPUByBundle.remove(bundle);
         persistenceProviderRequisiteTracker.removeDependentObject(bundleWithParsedPersistenceUnits);
         Collection<ParsedPersistenceUnit> ppus = bundleWithParsedPersistenceUnits.getParsedPersistenceUnits();
         removeParsedPersistenceUnitsFromMultiRequsiteTracker(ppus);
-
+        for (ParsedPersistenceUnit ppu : ppus) {
+            stopPersistenceUnit(ppu);
+            containerMetrics.removePersistenceUnit(ppu);
+        }
     }
 
     private void removeParsedPersistenceUnitsFromMultiRequsiteTracker(final Collection<ParsedPersistenceUnit> pUnits) {
         for (ParsedPersistenceUnit parsedPersistenceUnit : pUnits) {
+            PersistenceUnitShardTracker shardTracker = shardTrackersByPPU.remove(parsedPersistenceUnit);
+            if (shardTracker != null) {
+                shardTracker.close();
+            }
             parsedPUMultiRequisiteTracker.removeDependentObject(parsedPersistenceUnit);
         }
 
@@ -311,23 +759,87 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
 
         ctx = context;
 
+        managedClassIndex = new ManagedClassIndex(context.getDataFile(ManagedClassIndex.INDEX_DIRECTORY_NAME));
         persistenceDescriptorParser = new PersistenceDescriptorParserImpl();
+        persistenceDescriptorCache = new PersistenceDescriptorCache(
+                context.getDataFile(PersistenceDescriptorCache.CACHE_DIRECTORY_NAME));
+        persistenceBundleFilter = new PersistenceBundleFilter(context);
+        containerMetrics = new ContainerMetrics(!"false".equalsIgnoreCase(context
+                .getProperty(ContainerMetrics.JMX_ENABLED_PROPERTY)), persistenceDescriptorCache,
+                persistenceBundleFilter);
+        containerMetrics.open();
+        PersistenceUnitConfigurations unitConfigurations = new PersistenceUnitConfigurations(
+                unitConfigurationListener);
+        long replacementDrainTime = -1;
+        long replacementWindow = 0;
+        if ("true".equalsIgnoreCase(context.getProperty(REPLACEMENT_ENABLED_PROPERTY))) {
+            replacementDrainTime = getIntProperty(REPLACEMENT_DRAIN_TIME_PROPERTY, DEFAULT_REPLACEMENT_DRAIN_TIME);
+            replacementWindow = getIntProperty(REPLACEMENT_WINDOW_PROPERTY, DEFAULT_REPLACEMENT_WINDOW);
+        }
+        long builderIdleTimeout = -1;
+        if (!"false".equalsIgnoreCase(context.getProperty(BUILDER_ENABLED_PROPERTY))) {
+            builderIdleTimeout = getIntProperty(BUILDER_IDLE_TIMEOUT_PROPERTY, DEFAULT_BUILDER_IDLE_TIMEOUT);
+        }
+        emfManager = new EntityManagerFactoryManager(getIntProperty(BOOTSTRAP_THREADS_PROPERTY, Runtime
+                .getRuntime().availableProcessors()), managedClassIndex, containerMetrics, replacementDrainTime,
+                replacementWindow, "true".equalsIgnoreCase(context
+                        .getProperty(EntityManagerFactoryManager.LAZY_PROPERTY)), builderIdleTimeout,
+                !"false".equalsIgnoreCase(context.getProperty(DATASOURCE_SHARING_ENABLED_PROPERTY)),
+                unitConfigurations);
+        requisiteEventCoalescer = new RequisiteEventCoalescer(persistenceUnitRequisiteListener,
+                getIntProperty(REQUISITE_QUIET_PERIOD_PROPERTY, 0), containerMetrics);
+        parsedPUMultiRequisiteTracker = new MultiRequisiteManager<ParsedPersistenceUnit>(requisiteEventCoalescer);
         persistenceProviderRequisiteTracker = new PersistenceProviderRequisiteTracker(context, null);
-        dataSourceFactoryRequisiteTracker = new DataSourceFactoryRequisitTracker(context, this);
-        jtaRequisiteTracker = new JTARequisiteTracker(context, this);
-        jtaDataSourceRequisiteTracker = new DataSourceRequisiteTracker(context, true);
-        nonJtaDataSourceRequisiteTracker = new DataSourceRequisiteTracker(context, false);
-
-        persistenceBundleTracker = new BundleTracker(ctx, Bundle.INSTALLED | Bundle.RESOLVED | Bundle.STARTING
-                | Bundle.ACTIVE | Bundle.STOPPING, this);
+        dataSourceFactoryRequisiteTracker = new DataSourceFactoryRequisitTracker(context, this, containerMetrics);
+        jtaRequisiteTracker = new JTARequisiteTracker(context, this, containerMetrics);
+        if ("true".equalsIgnoreCase(context.getProperty(DataSourceLatencyProbe.ENABLED_PROPERTY))) {
+            dataSourceLatencyProbe = new DataSourceLatencyProbe(context, getIntProperty(
+                    DataSourceLatencyProbe.INTERVAL_PROPERTY, DataSourceLatencyProbe.DEFAULT_INTERVAL), getIntProperty(
+                    DataSourceLatencyProbe.TIMEOUT_PROPERTY, DataSourceLatencyProbe.DEFAULT_TIMEOUT), getIntProperty(
+                    DataSourceLatencyProbe.BUCKET_CHANGE_PROBES_PROPERTY,
+                    DataSourceLatencyProbe.DEFAULT_BUCKET_CHANGE_PROBES), getIntProperty(
+                    DataSourceLatencyProbe.REBIND_INTERVAL_PROPERTY, DataSourceLatencyProbe.DEFAULT_REBIND_INTERVAL));
+        }
+        jtaDataSourceRequisiteTracker = new DataSourceRequisiteTracker(context, true, containerMetrics,
+                dataSourceLatencyProbe, dataSourceRebindListener);
+        nonJtaDataSourceRequisiteTracker = new DataSourceRequisiteTracker(context, false, containerMetrics,
+                dataSourceLatencyProbe, dataSourceRebindListener);
+
+        requisiteDiagnostics = new RequisiteDiagnostics(containerMetrics, persistenceProviderRequisiteTracker,
+                Arrays.<PersistenceUnitRequisiteTracker> asList(dataSourceFactoryRequisiteTracker,
+                        jtaRequisiteTracker, jtaDataSourceRequisiteTracker, nonJtaDataSourceRequisiteTracker),
+                getIntProperty(RequisiteDiagnostics.WAIT_WARNING_THRESHOLD_PROPERTY,
+                        RequisiteDiagnostics.DEFAULT_WAIT_WARNING_THRESHOLD));
+        requisiteDiagnostics.open();
+        requisiteDiagnosticsSR = context.registerService(RequisiteDiagnosticsMXBean.class.getName(),
+                requisiteDiagnostics, null);
+        registerUnitConfigurationFactory(unitConfigurations);
+
+        persistenceBundleTracker = new BundleTracker(ctx, TRACKED_BUNDLE_STATES, this);
 
         persistenceProviderRequisiteTracker.open();
         dataSourceFactoryRequisiteTracker.open();
         jtaRequisiteTracker.open();
         jtaDataSourceRequisiteTracker.open();
         nonJtaDataSourceRequisiteTracker.open();
-        persistenceBundleTracker.open();
+        if (dataSourceLatencyProbe != null) {
+            dataSourceLatencyProbe.open();
+        }
 
+        int scanThreads = getIntProperty(SCAN_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+        if (scanThreads > 1) {
+            prescanBundles(scanThreads);
+        }
+        persistenceBundleTracker.open();
+        scannedBundles.clear();
+
+        LOGGER.info("Persistence descriptor cache after opening the bundle tracker: "
+                + persistenceDescriptorCache.getHitCount() + " hits, " + persistenceDescriptorCache.getMissCount()
+                + " misses");
+        LOGGER.info("Persistence bundle filter after opening the bundle tracker: "
+                + persistenceBundleFilter.getSkippedCount() + " bundles skipped, "
+                + persistenceBundleFilter.getProbedCount() + " bundles probed");
+        persistenceBundleFilter.saveNegativeIndex(context);
     }
 
     private void startPersistenceUnit(final ParsedPersistenceUnit ppu,
@@ -338,12 +850,48 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
         emfManager.startPersistenceUnit(ppu, persistenceProviderSR, serviceReferencesByIds);
     }
 
+    /**
+     * Registers the ManagedServiceFactory of the configurations of the persistence units if the Configuration Admin
+     * API is available.
+     */
+    private void registerUnitConfigurationFactory(final PersistenceUnitConfigurations unitConfigurations) {
+        try {
+            Class.forName("org.osgi.service.cm.ManagedServiceFactory", false,
+                    PersistenceBundleManager.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            LOGGER.info("Configuration Admin API is not available. Persistence unit properties cannot be overridden.");
+            return;
+        }
+        Dictionary<String, Object> serviceProps = new Hashtable<String, Object>();
+        serviceProps.put(Constants.SERVICE_PID, PersistenceUnitConfigurationFactory.FACTORY_PID);
+        unitConfigurationFactorySR = ctx.registerService("org.osgi.service.cm.ManagedServiceFactory",
+                new PersistenceUnitConfigurationFactory(unitConfigurations), serviceProps);
+    }
+
     @Override
     public void stop(final BundleContext context) throws Exception {
+        if (unitConfigurationFactorySR != null) {
+            unitConfigurationFactorySR.unregister();
+            unitConfigurationFactorySR = null;
+        }
+
+        if (requisiteDiagnosticsSR != null) {
+            requisiteDiagnosticsSR.unregister();
+            requisiteDiagnosticsSR = null;
+        }
+
+        if (requisiteDiagnostics != null) {
+            requisiteDiagnostics.close();
+        }
+
         if (persistenceBundleTracker != null) {
             persistenceBundleTracker.close();
         }
 
+        if (persistenceBundleFilter != null) {
+            persistenceBundleFilter.saveNegativeIndex(context);
+        }
+
         if (persistenceProviderRequisiteTracker != null) {
             persistenceProviderRequisiteTracker.close();
         }
@@ -356,6 +904,10 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
             jtaRequisiteTracker.close();
         }
 
+        if (dataSourceLatencyProbe != null) {
+            dataSourceLatencyProbe.close();
+        }
+
         if (jtaDataSourceRequisiteTracker != null) {
             jtaDataSourceRequisiteTracker.close();
         }
@@ -364,14 +916,28 @@ public class PersistenceBundleManager implements BundleTrackerCustomizer, Bundle
             nonJtaDataSourceRequisiteTracker.close();
         }
 
+        if (requisiteEventCoalescer != null) {
+            requisiteEventCoalescer.close();
+        }
+
+        if (emfManager != null) {
+            emfManager.shutdown();
+        }
+
         OSGiTransactionManager otm = OSGiTransactionManager.get();
 
         if (otm != null) {
             otm.destroy();
         }
+
+        if (containerMetrics != null) {
+            containerMetrics.close();
+        }
     }
 
     private void stopPersistenceUnit(final ParsedPersistenceUnit ppu) {
+        requisiteEventCoalescer.cancel(ppu);
         emfManager.stopPersistenceUnit(ppu);
+        emfManager.unregisterEntityManagerFactoryBuilder(ppu);
     }
 }
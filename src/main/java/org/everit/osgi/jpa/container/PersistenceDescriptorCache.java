@@ -0,0 +1,343 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the parsed persistence units of the bundles in the data area of the container bundle so the persistence
+ * descriptors do not have to be parsed again after a restart of the framework. An entry is valid only if the bundle
+ * id, the last modification time of the bundle and the checksum of the persistence descriptors are the same as they
+ * were when the entry was written.
+ */
+class PersistenceDescriptorCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceDescriptorCache.class);
+
+    /**
+     * The name of the directory inside the data area of the container bundle.
+     */
+    public static final String CACHE_DIRECTORY_NAME = "descriptor-cache";
+
+    /**
+     * Changed every time the binary format changes so old entries are simply treated as misses.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String CHECKSUM_ALGORITHM = "SHA-1";
+
+    private static final byte TYPE_STRING = 'S';
+
+    private static final byte TYPE_BOOLEAN = 'B';
+
+    private static final byte TYPE_LIST = 'L';
+
+    private static final byte TYPE_PROPERTIES = 'P';
+
+    /**
+     * Calculates the checksum of the persistence descriptors of a bundle.
+     *
+     * @param descriptors
+     *            The descriptors found in the bundle.
+     * @return The checksum.
+     */
+    public static byte[] checksum(final Collection<BufferedPersistenceDescriptor> descriptors) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+            for (BufferedPersistenceDescriptor descriptor : descriptors) {
+                digest.update(descriptor.getLocation().getBytes("UTF-8"));
+                digest.update(descriptor.getContent());
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(CHECKSUM_ALGORITHM + " algorithm must be supported by every JVM", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 encoding must be supported by every JVM", e);
+        }
+    }
+
+    /**
+     * The directory of the cache files or null if the framework does not support file system.
+     */
+    private final File cacheDirectory;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param cacheDirectory
+     *            The directory where the cache files are stored. If null, every lookup is a miss.
+     */
+    public PersistenceDescriptorCache(final File cacheDirectory) {
+        if ((cacheDirectory != null) && !cacheDirectory.exists() && !cacheDirectory.mkdirs()) {
+            LOGGER.warn("Cannot create directory of persistence descriptor cache: " + cacheDirectory);
+            this.cacheDirectory = null;
+        } else {
+            this.cacheDirectory = cacheDirectory;
+        }
+    }
+
+    private File getCacheFile(final Bundle bundle) {
+        return new File(cacheDirectory, bundle.getBundleId() + ".bin");
+    }
+
+    /**
+     * Returns the parsed persistence units of a bundle if they are in the cache.
+     *
+     * @param bundle
+     *            The persistence bundle.
+     * @param checksum
+     *            The checksum of the persistence descriptors of the bundle.
+     * @return The persistence units or null if there is no valid entry for the bundle.
+     */
+    public Collection<ParsedPersistenceUnit> get(final Bundle bundle, final byte[] checksum) {
+        Collection<ParsedPersistenceUnit> result = null;
+        if (cacheDirectory != null) {
+            File cacheFile = getCacheFile(bundle);
+            if (cacheFile.exists()) {
+                try {
+                    result = readEntry(bundle, checksum, cacheFile);
+                } catch (IOException e) {
+                    LOGGER.warn("Cannot read persistence descriptor cache entry " + cacheFile, e);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Corrupt persistence descriptor cache entry " + cacheFile, e);
+                }
+            }
+        }
+        if (result == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Removes the entry of a bundle from the cache.
+     *
+     * @param bundle
+     *            The bundle that was updated or uninstalled.
+     */
+    public void invalidate(final Bundle bundle) {
+        if (cacheDirectory != null) {
+            File cacheFile = getCacheFile(bundle);
+            if (cacheFile.exists() && !cacheFile.delete()) {
+                LOGGER.warn("Cannot delete persistence descriptor cache entry " + cacheFile);
+            }
+        }
+    }
+
+    /**
+     * Stores the parsed persistence units of a bundle. If any of the metadata has a type that cannot be stored, the
+     * bundle will not be cached.
+     *
+     * @param bundle
+     *            The persistence bundle.
+     * @param checksum
+     *            The checksum of the persistence descriptors of the bundle.
+     * @param parsedPersistenceUnits
+     *            The persistence units that were parsed from the descriptors.
+     */
+    public void put(final Bundle bundle, final byte[] checksum,
+            final Collection<ParsedPersistenceUnit> parsedPersistenceUnits) {
+        if (cacheDirectory == null) {
+            return;
+        }
+        File cacheFile = getCacheFile(bundle);
+        File tmpFile = new File(cacheDirectory, bundle.getBundleId() + ".tmp");
+        boolean written = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                written = writeEntry(out, bundle, checksum, parsedPersistenceUnits);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write persistence descriptor cache entry " + cacheFile, e);
+        }
+        if (written) {
+            if ((cacheFile.exists() && !cacheFile.delete()) || !tmpFile.renameTo(cacheFile)) {
+                LOGGER.warn("Cannot replace persistence descriptor cache entry " + cacheFile);
+                tmpFile.delete();
+            }
+        } else {
+            tmpFile.delete();
+        }
+    }
+
+    private Collection<ParsedPersistenceUnit> readEntry(final Bundle bundle, final byte[] checksum,
+            final File cacheFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+        try {
+            if ((in.readInt() != FORMAT_VERSION) || (in.readLong() != bundle.getBundleId())
+                    || (in.readLong() != bundle.getLastModified())) {
+                return null;
+            }
+            byte[] storedChecksum = new byte[in.readUnsignedShort()];
+            in.readFully(storedChecksum);
+            if (!Arrays.equals(checksum, storedChecksum)) {
+                return null;
+            }
+            int unitCount = in.readInt();
+            List<ParsedPersistenceUnit> result = new ArrayList<ParsedPersistenceUnit>(unitCount);
+            for (int i = 0; i < unitCount; i++) {
+                int entryCount = in.readInt();
+                Map<String, Object> metadata = new HashMap<String, Object>();
+                for (int j = 0; j < entryCount; j++) {
+                    String key = in.readUTF();
+                    metadata.put(key, readValue(in));
+                }
+                result.add(new CachedParsedPersistenceUnit(bundle, metadata));
+            }
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    private Object readValue(final DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case TYPE_STRING:
+            return in.readUTF();
+        case TYPE_BOOLEAN:
+            return Boolean.valueOf(in.readBoolean());
+        case TYPE_LIST:
+            int size = in.readInt();
+            List<String> list = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(in.readUTF());
+            }
+            return list;
+        case TYPE_PROPERTIES:
+            int propertyCount = in.readInt();
+            Properties properties = new Properties();
+            for (int i = 0; i < propertyCount; i++) {
+                String key = in.readUTF();
+                properties.setProperty(key, in.readUTF());
+            }
+            return properties;
+        default:
+            throw new IOException("Unknown value type in persistence descriptor cache: " + type);
+        }
+    }
+
+    private boolean writeEntry(final DataOutputStream out, final Bundle bundle, final byte[] checksum,
+            final Collection<ParsedPersistenceUnit> parsedPersistenceUnits) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(bundle.getBundleId());
+        out.writeLong(bundle.getLastModified());
+        out.writeShort(checksum.length);
+        out.write(checksum);
+        out.writeInt(parsedPersistenceUnits.size());
+        for (ParsedPersistenceUnit ppu : parsedPersistenceUnits) {
+            Map<String, Object> metadata = ppu.getPersistenceXmlMetadata();
+            int entryCount = 0;
+            for (Object value : metadata.values()) {
+                if (value != null) {
+                    entryCount++;
+                }
+            }
+            out.writeInt(entryCount);
+            for (Entry<String, Object> entry : metadata.entrySet()) {
+                if (entry.getValue() != null) {
+                    out.writeUTF(entry.getKey());
+                    if (!writeValue(out, entry.getValue())) {
+                        LOGGER.debug("Persistence units of bundle " + bundle.getSymbolicName()
+                                + " are not cached as metadata " + entry.getKey() + " has an unsupported type");
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean writeValue(final DataOutputStream out, final Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Properties) {
+            Properties properties = (Properties) value;
+            Set<String> keys = properties.stringPropertyNames();
+            out.writeByte(TYPE_PROPERTIES);
+            out.writeInt(keys.size());
+            for (String key : keys) {
+                out.writeUTF(key);
+                out.writeUTF(properties.getProperty(key));
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(TYPE_LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                if (!(element instanceof String)) {
+                    return false;
+                }
+                out.writeUTF((String) element);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+}
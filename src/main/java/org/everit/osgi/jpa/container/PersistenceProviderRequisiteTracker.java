@@ -84,7 +84,7 @@ class PersistenceProviderRequisiteTracker extends
      * @return
      * @throws InvalidRangeCombination
      */
-    private VersionRange combineVersionRanges(final List<VersionRange> versionRanges) throws InvalidRangeCombination {
+    VersionRange combineVersionRanges(final List<VersionRange> versionRanges) throws InvalidRangeCombination {
 
         Version minVersion = new Version(0, 0, 0);
         Version maxVersion = null;
@@ -177,7 +177,7 @@ class PersistenceProviderRequisiteTracker extends
      * @return A providerNameWithVersion where version range is null if it does not matter, providerName is "*" if it
      *         does not matter and the result is null if there was an error and it was logged.
      */
-    private ProviderNameWithVersionRange getProviderName(
+    ProviderNameWithVersionRange getProviderName(
             final Collection<ParsedPersistenceUnit> parsedPersistenceUnits) {
         Set<String> ppClassNames = new HashSet<String>();
         List<VersionRange> versionRanges = new ArrayList<VersionRange>();
@@ -234,6 +234,32 @@ class PersistenceProviderRequisiteTracker extends
         return result;
     }
 
+    /**
+     * The filter that describes the persistence providers that are suitable for a persistence bundle.
+     *
+     * @param bundle
+     *            The persistence bundle.
+     * @return The filter extended with the accepted version range of the provider bundle or null if the bundle is not
+     *         tracked as its persistence units do not specify a usable provider.
+     */
+    public String getRequisiteFilter(final Bundle bundle) {
+        ProviderNameWithVersionRange providerNameWithVersionRange = providerNamesByBundles.get(bundle);
+        if (providerNameWithVersionRange == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder("(&(").append(Constants.OBJECTCLASS).append("=")
+                .append(PersistenceProvider.class.getName()).append(")");
+        String providerClass = providerNameWithVersionRange.getClassName();
+        if (!"*".equals(providerClass)) {
+            sb.append("(javax.persistence.provider=").append(providerClass).append(")");
+        }
+        sb.append(")");
+        if (providerNameWithVersionRange.getVersionRange() != null) {
+            sb.append(" bundle version ").append(providerNameWithVersionRange.getVersionRange());
+        }
+        return sb.toString();
+    }
+
     @Override
     protected boolean isReferenceSuitable(final BundleWithParsedPersistenceUnits dependentObject,
             final ServiceReference reference) {
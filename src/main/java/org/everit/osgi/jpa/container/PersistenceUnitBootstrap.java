@@ -0,0 +1,513 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.spi.PersistenceProvider;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.everit.osgi.jpa.container.api.PersistenceUnitCacheMXBean;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One start of a persistence unit. The EntityManagerFactory is created by the persistence provider on a worker thread
+ * and it is registered as an OSGi service when the creation is finished. If the persistence unit is stopped while the
+ * provider is still working, the EntityManagerFactory is closed as soon as it is available and it will never be
+ * registered.
+ *
+ * A start can replace a previous start of the same persistence unit. In that case the EntityManagerFactory of the
+ * previous start stays registered until the new EntityManagerFactory is registered and it is closed after a drain
+ * period. If the new start fails, the previous start is stopped immediately.
+ *
+ * The PersistenceUnitInfo is created on the worker thread as well, because finding the managed classes may scan the
+ * classes of the persistence bundle and its jar files.
+ *
+ * If a warmer is set, the EntityManagerFactory is warmed up between its creation and its registration. In lazy mode
+ * the service is registered right away with a {@link LazyEntityManagerFactory} proxy and the persistence
+ * provider is called when the service is used for the first time.
+ */
+class PersistenceUnitBootstrap implements Runnable {
+
+    /**
+     * Creates the PersistenceUnitInfo of a start on the worker thread.
+     */
+    interface PersistenceUnitInfoCreator {
+
+        PersistenceUnitInfoImpl createPersistenceUnitInfo();
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceUnitBootstrap.class);
+
+    private final ParsedPersistenceUnit ppu;
+
+    /**
+     * The context of the persistence bundle that the services are got and registered with.
+     */
+    private final BundleContext bcx;
+
+    private final PersistenceProvider persistenceProvider;
+
+    private final PersistenceUnitInfoCreator persistenceUnitInfoCreator;
+
+    /**
+     * The PersistenceUnitInfo of this start or null if it is not created yet.
+     */
+    private volatile PersistenceUnitInfoImpl persistenceUnitInfo;
+
+    private final Dictionary<String, Object> emfServiceProps;
+
+    /**
+     * The references that were got by this start of the persistence unit and that have to be ungot at the end.
+     */
+    private final List<ServiceReference> holdedReferences;
+
+    /**
+     * The resources that were created by the container for this start of the persistence unit (e.g. connection pools)
+     * and that have to be closed after the EntityManagerFactory.
+     */
+    private final List<Closeable> containerResources;
+
+    /**
+     * The metrics of the persistence unit or null if the persistence unit is not tracked by the container metrics.
+     */
+    private final PersistenceUnitMetrics unitMetrics;
+
+    /**
+     * Whether the EntityManagerFactory is created on the first use of the service.
+     */
+    private final boolean lazy;
+
+    /**
+     * Warms up the EntityManagerFactory before its registration or null if the warm-up is not enabled.
+     */
+    private final EntityManagerFactoryWarmer warmer;
+
+    /**
+     * The proxy that is registered as the service in lazy mode.
+     */
+    private LazyEntityManagerFactory lazyEntityManagerFactory;
+
+    private Future<?> future;
+
+    /**
+     * True if the provider started to create the EntityManagerFactory.
+     */
+    private boolean started = false;
+
+    /**
+     * True if the creation of the EntityManagerFactory finished (successfully or not).
+     */
+    private boolean finished = false;
+
+    private boolean stopRequested = false;
+
+    private EntityManagerFactory emf;
+
+    private ServiceRegistration emfServiceRegistration;
+
+    /**
+     * Manages the shared cache of the persistence unit while the EntityManagerFactory of this start is registered.
+     */
+    private final PersistenceUnitCacheControl cacheControl;
+
+    private ServiceRegistration cacheControlServiceRegistration;
+
+    /**
+     * The previous start of the persistence unit that is replaced by this one or null if there is nothing to replace.
+     */
+    private PersistenceUnitBootstrap predecessor;
+
+    /**
+     * The drainer that closes the EntityManagerFactory of the predecessor.
+     */
+    private EntityManagerFactoryDrainer drainer;
+
+    public PersistenceUnitBootstrap(final ParsedPersistenceUnit ppu, final BundleContext bcx,
+            final PersistenceProvider persistenceProvider,
+            final PersistenceUnitInfoCreator persistenceUnitInfoCreator,
+            final Dictionary<String, Object> emfServiceProps, final List<ServiceReference> holdedReferences,
+            final List<Closeable> containerResources, final PersistenceUnitMetrics unitMetrics, final boolean lazy,
+            final EntityManagerFactoryWarmer warmer) {
+        this.ppu = ppu;
+        this.bcx = bcx;
+        this.persistenceProvider = persistenceProvider;
+        this.persistenceUnitInfoCreator = persistenceUnitInfoCreator;
+        this.emfServiceProps = emfServiceProps;
+        this.holdedReferences = holdedReferences;
+        this.containerResources = containerResources;
+        this.unitMetrics = unitMetrics;
+        this.lazy = lazy;
+        this.warmer = warmer;
+        cacheControl = (unitMetrics != null) ? unitMetrics.getCacheControl() : new PersistenceUnitCacheControl(
+                getUnitName());
+    }
+
+    void closeEntityManagerFactory(final EntityManagerFactory entityManagerFactory) {
+        try {
+            entityManagerFactory.close();
+        } catch (RuntimeException e) {
+            LOGGER.error("Error during closing EntityManagerFactory of persistence unit " + getUnitName(), e);
+        }
+    }
+
+    /**
+     * Calls the persistence provider to create the EntityManagerFactory of the persistence unit. Used by the
+     * {@link LazyEntityManagerFactory} on the thread of the first caller.
+     *
+     * @return The EntityManagerFactory.
+     * @throws PersistenceException
+     *             if the provider could not create the EntityManagerFactory.
+     */
+    EntityManagerFactory createEntityManagerFactory() {
+        EntityManagerFactory createdEmf = null;
+        long bootstrapStartTime = System.currentTimeMillis();
+        try {
+            createdEmf = persistenceProvider.createContainerEntityManagerFactory(persistenceUnitInfo, null);
+        } finally {
+            if (unitMetrics != null) {
+                unitMetrics.bootstrapFinished(System.currentTimeMillis() - bootstrapStartTime, createdEmf != null);
+                if (createdEmf != null) {
+                    unitMetrics.entityManagerFactoryCreated(createdEmf);
+                }
+            }
+        }
+        if (createdEmf == null) {
+            throw new PersistenceException("Persistence provider did not create the EntityManagerFactory of "
+                    + "persistence unit " + getUnitName());
+        }
+        return createdEmf;
+    }
+
+    /**
+     * Returns the EntityManagerFactory that the persistence provider created for this start without creating it in
+     * lazy mode.
+     *
+     * @return The EntityManagerFactory or null if it is not created (yet).
+     */
+    synchronized EntityManagerFactory getCreatedEntityManagerFactory() {
+        if (lazyEntityManagerFactory != null) {
+            return lazyEntityManagerFactory.getCreatedEntityManagerFactory();
+        }
+        return emf;
+    }
+
+    PersistenceUnitInfoImpl getPersistenceUnitInfo() {
+        return persistenceUnitInfo;
+    }
+
+    /**
+     * Returns true if the EntityManagerFactory of this start is registered as a service.
+     */
+    public synchronized boolean isServiceRegistered() {
+        return emfServiceRegistration != null;
+    }
+
+    /**
+     * Closes the EntityManagerFactory of this start. In lazy mode the real EntityManagerFactory is closed only if it
+     * was created.
+     */
+    private void closeCreatedEntityManagerFactory() {
+        EntityManagerFactory providerEmf = emf;
+        if (lazyEntityManagerFactory != null) {
+            providerEmf = lazyEntityManagerFactory.close();
+        } else {
+            closeEntityManagerFactory(emf);
+        }
+        if ((unitMetrics != null) && (providerEmf != null)) {
+            unitMetrics.entityManagerFactoryClosed(providerEmf);
+        }
+    }
+
+    private String getUnitName() {
+        return (String) ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME);
+    }
+
+    /**
+     * Closes the resources that were created by the container for this start of the persistence unit.
+     */
+    private void closeContainerResources() {
+        for (Closeable resource : containerResources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                LOGGER.error("Error during closing resource " + resource + " of persistence unit " + getUnitName(), e);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error during closing resource " + resource + " of persistence unit " + getUnitName(), e);
+            }
+        }
+        containerResources.clear();
+    }
+
+    /**
+     * Removes the weaving hook of the persistence unit, closes the resources of the container and releases the
+     * services that were got by this start of the persistence unit.
+     */
+    private void releaseResources() {
+        if (persistenceUnitInfo != null) {
+            persistenceUnitInfo.destroy();
+        }
+        closeContainerResources();
+        releaseReferences();
+    }
+
+    /**
+     * Hands the predecessor over to the drainer if the EntityManagerFactory of this start is registered, otherwise stops
+     * the predecessor immediately.
+     *
+     * @param replaced
+     *            Whether the EntityManagerFactory of this start is registered in place of the one of the predecessor.
+     */
+    private void releasePredecessor(final boolean replaced) {
+        PersistenceUnitBootstrap previousBootstrap = predecessor;
+        predecessor = null;
+        if (previousBootstrap == null) {
+            return;
+        }
+        if (replaced) {
+            drainer.drain(previousBootstrap);
+        } else {
+            previousBootstrap.stop();
+        }
+    }
+
+    /**
+     * Releases the services that were got by this start of the persistence unit.
+     */
+    private void releaseReferences() {
+        for (ServiceReference serviceReference : holdedReferences) {
+            try {
+                bcx.ungetService(serviceReference);
+            } catch (IllegalStateException e) {
+                // The persistence bundle is not valid anymore so the services are released by the framework.
+                LOGGER.debug("Could not unget service " + serviceReference, e);
+            }
+        }
+        holdedReferences.clear();
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (stopRequested) {
+                return;
+            }
+            started = true;
+        }
+        PersistenceUnitInfoImpl info = null;
+        try {
+            info = persistenceUnitInfoCreator.createPersistenceUnitInfo();
+        } catch (RuntimeException e) {
+            LOGGER.error("Error during the creation of PersistenceUnitInfo for persistence unit " + getUnitName(), e);
+        }
+        boolean create;
+        synchronized (this) {
+            persistenceUnitInfo = info;
+            create = (info != null) && !stopRequested;
+            if ((unitMetrics != null) && (info == null) && !stopRequested) {
+                unitMetrics.failed();
+            }
+        }
+        EntityManagerFactory createdEmf = null;
+        if (create && lazy) {
+            synchronized (this) {
+                lazyEntityManagerFactory = new LazyEntityManagerFactory(this);
+                createdEmf = lazyEntityManagerFactory.getProxy();
+            }
+        } else if (create) {
+            long bootstrapStartTime = System.currentTimeMillis();
+            try {
+                createdEmf = persistenceProvider.createContainerEntityManagerFactory(persistenceUnitInfo, null);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error during the creation of EntityManagerFactory for persistence unit "
+                        + getUnitName(), e);
+            }
+            long bootstrapTime = System.currentTimeMillis() - bootstrapStartTime;
+
+            boolean warmUp;
+            synchronized (this) {
+                if ((unitMetrics != null) && !stopRequested) {
+                    unitMetrics.bootstrapFinished(bootstrapTime, createdEmf != null);
+                }
+                warmUp = (warmer != null) && (createdEmf != null) && !stopRequested;
+            }
+            if (warmUp) {
+                Map<String, Long> warmUpTimes = warmer.warmUp(createdEmf, containerResources);
+                if (unitMetrics != null) {
+                    unitMetrics.warmUpFinished(warmUpTimes);
+                }
+            }
+        }
+
+        synchronized (this) {
+            emf = createdEmf;
+            if (stopRequested || (createdEmf == null)) {
+                finished = true;
+                if (createdEmf != null) {
+                    closeCreatedEntityManagerFactory();
+                    emf = null;
+                }
+                releaseResources();
+                releasePredecessor(false);
+                return;
+            }
+        }
+
+        ServiceRegistration registration = null;
+        long registrationStartTime = System.currentTimeMillis();
+        try {
+            registration = bcx.registerService(EntityManagerFactory.class.getName(), createdEmf, emfServiceProps);
+        } catch (IllegalStateException e) {
+            LOGGER.error("Could not register EntityManagerFactory of persistence unit " + getUnitName(), e);
+        }
+        long registrationTime = System.currentTimeMillis() - registrationStartTime;
+        ServiceRegistration cacheRegistration = null;
+        if (registration != null) {
+            try {
+                cacheRegistration = bcx.registerService(PersistenceUnitCacheMXBean.class.getName(), cacheControl,
+                        emfServiceProps);
+            } catch (IllegalStateException e) {
+                LOGGER.error("Could not register cache control of persistence unit " + getUnitName(), e);
+            }
+        }
+
+        synchronized (this) {
+            if ((unitMetrics != null) && !stopRequested) {
+                if (registration != null) {
+                    unitMetrics.entityManagerFactoryRegistered(lazy ? null : createdEmf, registrationTime);
+                } else {
+                    unitMetrics.failed();
+                }
+            }
+            finished = true;
+            emfServiceRegistration = registration;
+            cacheControlServiceRegistration = cacheRegistration;
+            if (registration != null) {
+                cacheControl.activate(this);
+            }
+            if (stopRequested || (registration == null)) {
+                dispose();
+                releasePredecessor(false);
+            } else {
+                releasePredecessor(true);
+            }
+        }
+    }
+
+    /**
+     * Unregisters the service, closes the EntityManagerFactory and releases the held services.
+     */
+    private void dispose() {
+        unregisterService();
+        if (emf != null) {
+            closeCreatedEntityManagerFactory();
+            emf = null;
+        }
+        releaseResources();
+    }
+
+    /**
+     * Sets the previous start of the persistence unit that is replaced by this one. Must be called before
+     * {@link #submit(ExecutorService)}.
+     *
+     * @param previousBootstrap
+     *            The previous start of the persistence unit whose EntityManagerFactory is registered.
+     * @param entityManagerFactoryDrainer
+     *            The drainer that closes the replaced EntityManagerFactory.
+     */
+    public synchronized void replace(final PersistenceUnitBootstrap previousBootstrap,
+            final EntityManagerFactoryDrainer entityManagerFactoryDrainer) {
+        predecessor = previousBootstrap;
+        drainer = entityManagerFactoryDrainer;
+    }
+
+    /**
+     * Stops this start of the persistence unit. If the creation of the EntityManagerFactory is in progress, the
+     * cleanup will be done by the worker thread when the provider finishes.
+     */
+    public synchronized void stop() {
+        stopRequested = true;
+        if (!started) {
+            if (future != null) {
+                future.cancel(false);
+            }
+            releaseResources();
+        } else if (finished) {
+            dispose();
+        }
+        releasePredecessor(false);
+    }
+
+    /**
+     * Schedules the creation of the EntityManagerFactory.
+     *
+     * @param executor
+     *            The executor that runs the creation.
+     */
+    public synchronized void submit(final ExecutorService executor) {
+        try {
+            future = executor.submit(this);
+        } catch (RejectedExecutionException e) {
+            LOGGER.error("Could not schedule the creation of EntityManagerFactory for persistence unit "
+                    + getUnitName(), e);
+            stopRequested = true;
+            releaseResources();
+            releasePredecessor(false);
+        }
+    }
+
+    /**
+     * Unregisters the EntityManagerFactory service without closing the EntityManagerFactory.
+     */
+    public synchronized void unregisterService() {
+        cacheControl.deactivate(this);
+        if (cacheControlServiceRegistration != null) {
+            try {
+                cacheControlServiceRegistration.unregister();
+            } catch (IllegalStateException e) {
+                LOGGER.debug("Cache control service is already unregistered: " + getUnitName(), e);
+            }
+            cacheControlServiceRegistration = null;
+        }
+        if (emfServiceRegistration != null) {
+            try {
+                emfServiceRegistration.unregister();
+            } catch (IllegalStateException e) {
+                LOGGER.debug("EntityManagerFactory service is already unregistered: " + getUnitName(), e);
+            }
+            emfServiceRegistration = null;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.SharedCacheMode;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Type;
+
+import org.everit.osgi.jpa.container.api.PersistenceUnitCacheMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages the shared cache of the active start of a persistence unit. The object belongs to the persistence unit and
+ * each start that registers its EntityManagerFactory activates it, so the MXBean and the service always manage the
+ * cache of the EntityManagerFactory that is in use. In lazy mode the cache is managed only after the
+ * EntityManagerFactory was created.
+ */
+class PersistenceUnitCacheControl implements PersistenceUnitCacheMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceUnitCacheControl.class);
+
+    private static final String CACHE_PROPERTY_MARKER = "cache";
+
+    /**
+     * The property that overrides the shared-cache-mode element of persistence.xml.
+     */
+    private static final String SHARED_CACHE_MODE_PROPERTY = "javax.persistence.sharedCache.mode";
+
+    /**
+     * The second-level cache counters of the Hibernate statistics that are read reflectively, as the container does
+     * not depend on any persistence provider.
+     */
+    private static final String[] HIBERNATE_CACHE_STATISTICS = { "SecondLevelCacheHitCount",
+            "SecondLevelCacheMissCount", "SecondLevelCachePutCount" };
+
+    private static Object invokeNoArgMethod(final Object target, final String methodName)
+            throws IllegalAccessException, InvocationTargetException {
+        try {
+            Method method = target.getClass().getMethod(methodName);
+            return method.invoke(target);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Converts the string form of an id to the type of the id attribute.
+     */
+    private static Object convertId(final Class<?> idType, final String id) {
+        if ((idType == null) || String.class.equals(idType) || Object.class.equals(idType)) {
+            return id;
+        }
+        String trimmedId = id.trim();
+        if (Long.class.equals(idType) || long.class.equals(idType)) {
+            return Long.valueOf(trimmedId);
+        }
+        if (Integer.class.equals(idType) || int.class.equals(idType)) {
+            return Integer.valueOf(trimmedId);
+        }
+        if (Short.class.equals(idType) || short.class.equals(idType)) {
+            return Short.valueOf(trimmedId);
+        }
+        if (Byte.class.equals(idType) || byte.class.equals(idType)) {
+            return Byte.valueOf(trimmedId);
+        }
+        if (BigInteger.class.equals(idType)) {
+            return new BigInteger(trimmedId);
+        }
+        if (BigDecimal.class.equals(idType)) {
+            return new BigDecimal(trimmedId);
+        }
+        if (UUID.class.equals(idType)) {
+            return UUID.fromString(trimmedId);
+        }
+        try {
+            Method valueOf = idType.getMethod("valueOf", String.class);
+            return valueOf.invoke(null, trimmedId);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Id type " + idType.getName() + " is not supported", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Id type " + idType.getName() + " is not supported", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException("Invalid id " + id + " for type " + idType.getName(), e.getCause());
+        }
+    }
+
+    private final String unitName;
+
+    /**
+     * The start of the persistence unit whose EntityManagerFactory is registered or null if the persistence unit is
+     * not active.
+     */
+    private volatile PersistenceUnitBootstrap activeBootstrap;
+
+    public PersistenceUnitCacheControl(final String unitName) {
+        this.unitName = unitName;
+    }
+
+    /**
+     * Called when a start of the persistence unit registered its EntityManagerFactory.
+     */
+    synchronized void activate(final PersistenceUnitBootstrap bootstrap) {
+        activeBootstrap = bootstrap;
+    }
+
+    @Override
+    public boolean contains(final String entity, final String id) {
+        EntityManagerFactory emf = getEntityManagerFactory();
+        EntityType<?> entityType = getEntityType(emf, entity);
+        return emf.getCache().contains(entityType.getJavaType(), convertId(getIdType(entityType), id));
+    }
+
+    /**
+     * Called when a start of the persistence unit unregistered its EntityManagerFactory. Nothing happens if another
+     * start is active in the meantime.
+     */
+    synchronized void deactivate(final PersistenceUnitBootstrap bootstrap) {
+        if (activeBootstrap == bootstrap) {
+            activeBootstrap = null;
+        }
+    }
+
+    @Override
+    public void evictAll() {
+        getCache().evictAll();
+        LOGGER.info("Shared cache of persistence unit " + unitName + " is cleared");
+    }
+
+    @Override
+    public void evictEntity(final String entity) {
+        EntityManagerFactory emf = getEntityManagerFactory();
+        EntityType<?> entityType = getEntityType(emf, entity);
+        emf.getCache().evict(entityType.getJavaType());
+        LOGGER.info("Entities " + entityType.getJavaType().getName() + " are evicted from the shared cache of "
+                + "persistence unit " + unitName);
+    }
+
+    @Override
+    public void evictEntityById(final String entity, final String id) {
+        EntityManagerFactory emf = getEntityManagerFactory();
+        EntityType<?> entityType = getEntityType(emf, entity);
+        emf.getCache().evict(entityType.getJavaType(), convertId(getIdType(entityType), id));
+    }
+
+    private Cache getCache() {
+        Cache cache = getEntityManagerFactory().getCache();
+        if (cache == null) {
+            throw new IllegalStateException("Persistence unit " + unitName + " does not have a shared cache");
+        }
+        return cache;
+    }
+
+    @Override
+    public Map<String, String> getCacheStatistics() {
+        Map<String, String> result = new TreeMap<String, String>();
+        PersistenceUnitBootstrap bootstrap = activeBootstrap;
+        EntityManagerFactory emf = (bootstrap == null) ? null : bootstrap.getCreatedEntityManagerFactory();
+        if (emf == null) {
+            return result;
+        }
+        try {
+            for (Entry<String, Object> property : emf.getProperties().entrySet()) {
+                String key = property.getKey().toLowerCase();
+                if (key.contains(CACHE_PROPERTY_MARKER) && key.contains("statistic")) {
+                    result.put(property.getKey(), String.valueOf(property.getValue()));
+                }
+            }
+            readHibernateStatistics(emf, result);
+        } catch (IllegalStateException e) {
+            // The EntityManagerFactory was closed in the meantime
+            result.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the EntityManagerFactory of the active start of the persistence unit.
+     *
+     * @throws IllegalStateException
+     *             if the persistence unit is not active or its EntityManagerFactory is not created yet in lazy mode.
+     */
+    private EntityManagerFactory getEntityManagerFactory() {
+        PersistenceUnitBootstrap bootstrap = activeBootstrap;
+        EntityManagerFactory emf = (bootstrap == null) ? null : bootstrap.getCreatedEntityManagerFactory();
+        if (emf == null) {
+            throw new IllegalStateException("Persistence unit " + unitName + " is not active");
+        }
+        return emf;
+    }
+
+    private EntityType<?> getEntityType(final EntityManagerFactory emf, final String entity) {
+        if (entity == null) {
+            throw new IllegalArgumentException("Entity must be specified");
+        }
+        for (EntityType<?> entityType : emf.getMetamodel().getEntities()) {
+            if (entity.equals(entityType.getJavaType().getName()) || entity.equals(entityType.getName())) {
+                return entityType;
+            }
+        }
+        throw new IllegalArgumentException("Persistence unit " + unitName + " does not have entity " + entity);
+    }
+
+    private Class<?> getIdType(final EntityType<?> entityType) {
+        Type<?> idType = entityType.getIdType();
+        if (idType == null) {
+            throw new IllegalArgumentException("Entity " + entityType.getName() + " does not have a simple id");
+        }
+        return idType.getJavaType();
+    }
+
+    @Override
+    public String getSharedCacheMode() {
+        PersistenceUnitBootstrap bootstrap = activeBootstrap;
+        if (bootstrap == null) {
+            return SharedCacheMode.UNSPECIFIED.name();
+        }
+        PersistenceUnitInfoImpl info = bootstrap.getPersistenceUnitInfo();
+        String overriddenMode = (info.getProperties() == null) ? null : info.getProperties().getProperty(
+                SHARED_CACHE_MODE_PROPERTY);
+        if (overriddenMode != null) {
+            return overriddenMode.trim().toUpperCase();
+        }
+        return info.getSharedCacheMode().name();
+    }
+
+    @Override
+    public String getUnitName() {
+        return unitName;
+    }
+
+    @Override
+    public boolean isActive() {
+        PersistenceUnitBootstrap bootstrap = activeBootstrap;
+        return (bootstrap != null) && (bootstrap.getCreatedEntityManagerFactory() != null);
+    }
+
+    /**
+     * Reads the second-level cache counters of Hibernate if the EntityManagerFactory belongs to Hibernate and its
+     * statistics are enabled.
+     */
+    private void readHibernateStatistics(final EntityManagerFactory emf, final Map<String, String> result) {
+        try {
+            Object sessionFactory = invokeNoArgMethod(emf, "getSessionFactory");
+            if (sessionFactory == null) {
+                return;
+            }
+            Object statistics = invokeNoArgMethod(sessionFactory, "getStatistics");
+            if ((statistics == null) || !Boolean.TRUE.equals(invokeNoArgMethod(statistics, "isStatisticsEnabled"))) {
+                return;
+            }
+            for (String counter : HIBERNATE_CACHE_STATISTICS) {
+                Object value = invokeNoArgMethod(statistics, "get" + counter);
+                if (value != null) {
+                    result.put(counter, String.valueOf(value));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            LOGGER.debug("Could not read the cache statistics of persistence unit " + unitName, e);
+        } catch (InvocationTargetException e) {
+            LOGGER.debug("Could not read the cache statistics of persistence unit " + unitName, e.getCause());
+        }
+    }
+}
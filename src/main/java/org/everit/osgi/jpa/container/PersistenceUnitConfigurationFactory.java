@@ -0,0 +1,73 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import org.osgi.service.cm.ConfigurationException;
+import org.osgi.service.cm.ManagedServiceFactory;
+
+/**
+ * Receives the configurations that override the properties of the persistence units from the Configuration Admin.
+ * The class is loaded only if the Configuration Admin API is available.
+ */
+class PersistenceUnitConfigurationFactory implements ManagedServiceFactory {
+
+    /**
+     * The factory pid of the configurations of the persistence units.
+     */
+    public static final String FACTORY_PID = "org.everit.osgi.jpa.container.persistenceunit";
+
+    private final PersistenceUnitConfigurations configurations;
+
+    public PersistenceUnitConfigurationFactory(final PersistenceUnitConfigurations configurations) {
+        this.configurations = configurations;
+    }
+
+    @Override
+    public void deleted(final String pid) {
+        configurations.delete(pid);
+    }
+
+    @Override
+    public String getName() {
+        return "JPA container persistence unit configuration";
+    }
+
+    @Override
+    public void updated(final String pid, final Dictionary properties)
+            throws ConfigurationException {
+        Dictionary<String, Object> typedProperties = new Hashtable<String, Object>();
+        Enumeration<?> keys = properties.keys();
+        while (keys.hasMoreElements()) {
+            Object key = keys.nextElement();
+            typedProperties.put(String.valueOf(key), properties.get(key));
+        }
+        try {
+            configurations.update(pid, typedProperties);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e.getMessage(), "Mandatory property is missing");
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.osgi.framework.Constants;
+import org.osgi.service.jpa.EntityManagerFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The properties of the persistence units that are overridden at runtime. Each configuration belongs to the
+ * persistence unit that is identified by the symbolic name of its bundle and by its name. The other entries of the
+ * configuration override the properties of the persistence unit in persistence.xml, so they are used by the
+ * DataSourceFactory, by the connection pool and by the persistence provider.
+ */
+class PersistenceUnitConfigurations {
+
+    /**
+     * Notified when the overridden properties of a persistence unit change.
+     */
+    interface ConfigurationListener {
+
+        /**
+         * Called when the overridden properties of a persistence unit changed.
+         *
+         * @param bundleSymbolicName
+         *            The symbolic name of the bundle of the persistence unit.
+         * @param unitName
+         *            The name of the persistence unit.
+         */
+        void configurationChanged(String bundleSymbolicName, String unitName);
+    }
+
+    /**
+     * The configuration entry that holds the symbolic name of the bundle of the persistence unit.
+     */
+    public static final String BUNDLE_SYMBOLIC_NAME = "bundle.symbolicName";
+
+    /**
+     * The configuration entry that holds the name of the persistence unit.
+     */
+    public static final String UNIT_NAME = EntityManagerFactoryBuilder.JPA_UNIT_NAME;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceUnitConfigurations.class);
+
+    private static String createKey(final String bundleSymbolicName, final String unitName) {
+        return bundleSymbolicName + "/" + unitName;
+    }
+
+    private static boolean isOverride(final String key) {
+        return !(BUNDLE_SYMBOLIC_NAME.equals(key) || UNIT_NAME.equals(key) || Constants.SERVICE_PID.equals(key)
+                || "service.factoryPid".equals(key) || "service.bundleLocation".equals(key));
+    }
+
+    private final ConfigurationListener listener;
+
+    /**
+     * The overridden properties by the keys of the persistence units.
+     */
+    private final Map<String, Map<String, Object>> overridesByUnitKey =
+            new ConcurrentHashMap<String, Map<String, Object>>();
+
+    /**
+     * The keys of the persistence units by the pids of the configurations. Guarded by this object.
+     */
+    private final Map<String, String> unitKeysByPid = new HashMap<String, String>();
+
+    /**
+     * Constructor.
+     *
+     * @param listener
+     *            The listener that is notified when the overridden properties of a persistence unit change.
+     */
+    public PersistenceUnitConfigurations(final ConfigurationListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Removes a configuration.
+     *
+     * @param pid
+     *            The pid of the configuration.
+     */
+    public void delete(final String pid) {
+        String unitKey;
+        synchronized (this) {
+            unitKey = unitKeysByPid.remove(pid);
+            if ((unitKey == null) || (overridesByUnitKey.remove(unitKey) == null)) {
+                return;
+            }
+        }
+        LOGGER.info("Property overrides of persistence unit " + unitKey + " are removed");
+        notifyListener(unitKey);
+    }
+
+    /**
+     * Returns the overridden properties of a persistence unit.
+     *
+     * @param ppu
+     *            The persistence unit.
+     * @return The overridden properties. Empty if there is no configuration for the persistence unit.
+     */
+    public Map<String, Object> getOverrides(final ParsedPersistenceUnit ppu) {
+        Map<String, Object> overrides = overridesByUnitKey.get(createKey(ppu.getDefiningBundle().getSymbolicName(),
+                (String) ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME)));
+        if (overrides == null) {
+            return Collections.emptyMap();
+        }
+        return overrides;
+    }
+
+    /**
+     * Returns the properties of a persistence unit from persistence.xml merged with the overridden properties.
+     *
+     * @param ppu
+     *            The persistence unit.
+     * @return The properties of the persistence unit.
+     */
+    public Properties getProperties(final ParsedPersistenceUnit ppu) {
+        Properties props = (Properties) ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.PROPERTIES);
+        Map<String, Object> overrides = getOverrides(ppu);
+        if (overrides.isEmpty()) {
+            return props;
+        }
+        Properties result = new Properties();
+        if (props != null) {
+            result.putAll(props);
+        }
+        for (Entry<String, Object> override : overrides.entrySet()) {
+            result.setProperty(override.getKey(), String.valueOf(override.getValue()));
+        }
+        return result;
+    }
+
+    private void notifyListener(final String unitKey) {
+        int separatorIndex = unitKey.indexOf('/');
+        try {
+            listener.configurationChanged(unitKey.substring(0, separatorIndex), unitKey.substring(separatorIndex + 1));
+        } catch (RuntimeException e) {
+            LOGGER.error("Error during applying the property overrides of persistence unit " + unitKey, e);
+        }
+    }
+
+    /**
+     * Adds or updates a configuration.
+     *
+     * @param pid
+     *            The pid of the configuration.
+     * @param configuration
+     *            The entries of the configuration.
+     * @throws IllegalArgumentException
+     *             if the configuration does not identify a persistence unit.
+     */
+    public void update(final String pid, final Dictionary<String, ?> configuration) {
+        Object bundleSymbolicName = configuration.get(BUNDLE_SYMBOLIC_NAME);
+        if (bundleSymbolicName == null) {
+            throw new IllegalArgumentException(BUNDLE_SYMBOLIC_NAME);
+        }
+        Object unitName = configuration.get(UNIT_NAME);
+        if (unitName == null) {
+            throw new IllegalArgumentException(UNIT_NAME);
+        }
+        String unitKey = createKey(String.valueOf(bundleSymbolicName).trim(), String.valueOf(unitName).trim());
+        Map<String, Object> overrides = new HashMap<String, Object>();
+        Enumeration<String> keys = configuration.keys();
+        while (keys.hasMoreElements()) {
+            String key = keys.nextElement();
+            if (isOverride(key)) {
+                overrides.put(key, configuration.get(key));
+            }
+        }
+        overrides = Collections.unmodifiableMap(overrides);
+        String previousUnitKey;
+        Map<String, Object> previousOverrides;
+        synchronized (this) {
+            previousUnitKey = unitKeysByPid.put(pid, unitKey);
+            if ((previousUnitKey != null) && !previousUnitKey.equals(unitKey)) {
+                overridesByUnitKey.remove(previousUnitKey);
+            } else {
+                previousUnitKey = null;
+            }
+            previousOverrides = overridesByUnitKey.put(unitKey, overrides);
+        }
+        if (previousUnitKey != null) {
+            notifyListener(previousUnitKey);
+        }
+        if (!overrides.equals(previousOverrides)) {
+            LOGGER.info("Properties " + overrides.keySet() + " of persistence unit " + unitKey + " are overridden");
+            notifyListener(unitKey);
+        }
+    }
+}
@@ -21,12 +21,18 @@ package org.everit.osgi.jpa.container;
  * MA 02110-1301  USA
  */
 
+import java.io.File;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,12 +46,42 @@ import javax.sql.DataSource;
 import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
 import org.apache.aries.jpa.container.unit.impl.TempBundleDelegatingClassLoader;
 import org.apache.aries.util.AriesFrameworkUtil;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 
 public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceUnitInfoImpl.class);
 
+    /**
+     * Matches the jar-file entries that start with a URL scheme. One letter schemes are not accepted as they are drive
+     * letters on Windows.
+     */
+    private static final Pattern ABSOLUTE_URL_PATTERN = Pattern.compile("[a-zA-Z][a-zA-Z0-9+.\\-]+:.*");
+
+    /**
+     * Whether the framework supports weaving hooks. The weaving hook package is imported optionally.
+     */
+    private static final boolean WEAVING_SUPPORTED = isWeavingSupported();
+
+    /**
+     * Checks whether the weaving hook API is available. This must not be done by a class that implements the API.
+     *
+     * @return true if the weaving hook API is available.
+     */
+    static boolean isWeavingSupported() {
+        try {
+            Class.forName("org.osgi.framework.hooks.weaving.WeavingHook", false,
+                    PersistenceUnitInfoImpl.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
     private final ParsedPersistenceUnit parsedPersistenceUnit;
 
     private final ServiceReference providerRef;
@@ -56,8 +92,28 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
 
     private final List<URL> jarFileUrls;
 
+    /**
+     * The properties of persistence.xml merged with the properties that are overridden at runtime.
+     */
+    private final Properties properties;
+
     private final List<String> managedClassNames;
 
+    /**
+     * The index that is used to find the managed classes of the bundle if unlisted classes are not excluded.
+     */
+    private final ManagedClassIndex managedClassIndex;
+
+    /**
+     * The transformers that the persistence provider added to this persistence unit.
+     */
+    private final List<ClassTransformer> transformers = new CopyOnWriteArrayList<ClassTransformer>();
+
+    /**
+     * The registration of the weaving hook that applies the transformers or null if no transformer was added.
+     */
+    private ServiceRegistration weavingHookRegistration;
+
     /**
      * Lazily initialized classloader of this persistence unit.
      */
@@ -72,11 +128,18 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
      *            The jta datasource if available.
      * @param nonJtaDataSource
      *            The non-jta datasource if available.
+     * @param managedClassIndex
+     *            The index of the managed classes of the persistence bundles.
+     * @param properties
+     *            The properties of the persistence unit with the runtime overrides.
      */
     public PersistenceUnitInfoImpl(final ParsedPersistenceUnit parsedPersistenceUnit,
             final ServiceReference providerRef, final DataSource jtaDataSource,
-            final DataSource nonJtaDataSource) {
+            final DataSource nonJtaDataSource, final ManagedClassIndex managedClassIndex,
+            final Properties properties) {
         this.providerRef = providerRef;
+        this.properties = properties;
+        this.managedClassIndex = managedClassIndex;
         this.parsedPersistenceUnit = parsedPersistenceUnit;
         this.jtaDataSource = jtaDataSource;
         this.nonJtaDataSource = nonJtaDataSource;
@@ -84,9 +147,44 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
         managedClassNames = deriveManagedClassNames();
     }
 
+    /**
+     * Adds a transformer that is applied to the classes of the persistence bundle when they are loaded. The first
+     * transformer registers a weaving hook so only the classes that are loaded after the persistence provider called
+     * this function can be transformed.
+     *
+     * @param pTransformer
+     *            The transformer of the persistence provider.
+     */
     @Override
-    public void addTransformer(final ClassTransformer pTransformer) {
-        // TODO add transformer support that will be built into the classloader retrieved by getClassLoader function.
+    public synchronized void addTransformer(final ClassTransformer pTransformer) {
+        if (!WEAVING_SUPPORTED) {
+            LOGGER.warn("Weaving hooks are not supported by the framework. Transformer is ignored for persistence unit "
+                    + getPersistenceUnitName());
+            return;
+        }
+        transformers.add(pTransformer);
+        if (weavingHookRegistration == null) {
+            Bundle bundle = parsedPersistenceUnit.getDefiningBundle();
+            TransformerWeavingHook weavingHook = new TransformerWeavingHook(bundle, providerRef.getBundle(),
+                    transformers);
+            weavingHookRegistration = weavingHook.register(bundle.getBundleContext());
+        }
+    }
+
+    /**
+     * Unregisters the weaving hook of this persistence unit. Called when the persistence unit is stopped.
+     */
+    public synchronized void destroy() {
+        if (weavingHookRegistration != null) {
+            try {
+                weavingHookRegistration.unregister();
+            } catch (IllegalStateException e) {
+                LOGGER.debug("Weaving hook is already unregistered for persistence unit " + getPersistenceUnitName(),
+                        e);
+            }
+            weavingHookRegistration = null;
+        }
+        transformers.clear();
     }
 
     public List<URL> deriveJarFileUrls() {
@@ -95,32 +193,69 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
         List<URL> urls = new ArrayList<URL>();
         if (jarFiles != null) {
             for (String jarFile : jarFiles) {
-                URL url = parsedPersistenceUnit.getDefiningBundle().getResource(jarFile);
+                URL url = resolveJarFile(jarFile);
                 if (url == null) {
-                    LOGGER.error("Could not find jar file for persistence unit creation at " + url);
+                    LOGGER.error("Could not find jar file for persistence unit creation at " + jarFile);
                 } else {
                     urls.add(url);
                 }
             }
         }
-        // TODO Handle Jar files with Absolute path
         return urls;
     }
 
+    /**
+     * Resolves a jar-file entry of persistence.xml. The entry may be an absolute URL, an absolute path on the file
+     * system or a path relative to the root of the persistence bundle.
+     *
+     * @param jarFile
+     *            The value of the jar-file entry.
+     * @return The URL of the jar or null if it cannot be found.
+     */
+    private URL resolveJarFile(final String jarFile) {
+        if (ABSOLUTE_URL_PATTERN.matcher(jarFile).matches()) {
+            try {
+                return new URL(jarFile);
+            } catch (MalformedURLException e) {
+                LOGGER.debug("Jar file is not a valid URL: " + jarFile, e);
+            }
+        }
+
+        File file = new File(jarFile);
+        if (file.isAbsolute() && file.isFile()) {
+            try {
+                return file.toURI().toURL();
+            } catch (MalformedURLException e) {
+                LOGGER.debug("Cannot convert jar file path to URL: " + jarFile, e);
+            }
+        }
+
+        Bundle bundle = parsedPersistenceUnit.getDefiningBundle();
+        URL url = bundle.getEntry(jarFile);
+        if (url == null) {
+            url = bundle.getResource(jarFile);
+        }
+        return url;
+    }
+
     private List<String> deriveManagedClassNames() {
-        List<String> mcList = new ArrayList<String>((List<String>) parsedPersistenceUnit.getPersistenceXmlMetadata()
-                .get(ParsedPersistenceUnit.MANAGED_CLASSES));
+        Set<String> mcSet = new LinkedHashSet<String>((List<String>) parsedPersistenceUnit
+                .getPersistenceXmlMetadata().get(ParsedPersistenceUnit.MANAGED_CLASSES));
         boolean excludeUnlistedClasses = internalExcludeUnlistedClasses();
+        Bundle bundle = parsedPersistenceUnit.getDefiningBundle();
+        for (URL jarFileUrl : jarFileUrls) {
+            mcSet.addAll(managedClassIndex.getManagedClassNames(bundle, jarFileUrl));
+        }
         if (!excludeUnlistedClasses) {
-            // TODO Read classes from jar files that were provided
-            // TODO Read classes from the current bundle
+            mcSet.addAll(managedClassIndex.getManagedClassNames(bundle));
         }
-        return mcList;
+        return new ArrayList<String>(mcSet);
     }
 
     /**
-     * As we collect every classes in this persistence unit that may be necessary we do not want the persistence
-     * provider to do any annotation scanning. For more information please see
+     * As we collect every classes in this persistence unit that may be necessary (by reading the class files of the
+     * bundle if unlisted classes are not excluded in persistence.xml) we do not want the persistence provider to do
+     * any annotation scanning. For more information please see
      * {@link PersistenceUnitInfo#excludeUnlistedClasses()}
      * 
      * @return Always true.
@@ -199,7 +334,7 @@ public class PersistenceUnitInfoImpl implements PersistenceUnitInfo {
 
     @Override
     public Properties getProperties() {
-        return (Properties) parsedPersistenceUnit.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.PROPERTIES);
+        return properties;
     }
 
     @Override
@@ -0,0 +1,123 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Map;
+
+/**
+ * Management interface of a persistence unit. All of the times are in milliseconds and they are -1 if they were not
+ * measured yet.
+ */
+public interface PersistenceUnitMXBean {
+
+    String getBundleSymbolicName();
+
+    String getBundleVersion();
+
+    /**
+     * The time that the container spent with searching and parsing the persistence descriptors of the bundle.
+     */
+    long getDescriptorParseTime();
+
+    /**
+     * The time that the creation of the DataSources took during the last start of the persistence unit.
+     */
+    long getDataSourceCreationTime();
+
+    /**
+     * The time that the scanning of each jar-file entry of the persistence unit for managed classes took. The jars
+     * whose index was already available are not listed.
+     */
+    Map<String, Long> getJarScanTimes();
+
+    /**
+     * The time that the persistence provider spent with creating the EntityManagerFactory during the last start of the
+     * persistence unit.
+     */
+    long getProviderBootstrapTime();
+
+    /**
+     * The statistics that the persistence provider exposes in the properties of the EntityManagerFactory (the
+     * properties whose name contains "statistics"). Empty if the persistence unit is not active.
+     */
+    Map<String, String> getProviderStatistics();
+
+    /**
+     * The time that the bundle waited for the persistence provider last time.
+     */
+    long getProviderWaitTime();
+
+    /**
+     * The number of times the persistence unit was started again after it had been stopped.
+     */
+    int getRestartCount();
+
+    /**
+     * The time between the availability of the persistence provider and the availability of all requisites during the
+     * last start of the persistence unit.
+     */
+    long getRequisiteWaitTime();
+
+    /**
+     * The time that the persistence unit waited for each of its requisites last time.
+     */
+    Map<String, Long> getRequisiteWaitTimes();
+
+    /**
+     * The time that the registration of the EntityManagerFactory service took during the last start of the
+     * persistence unit.
+     */
+    long getServiceRegistrationTime();
+
+    /**
+     * The identifier of the shard if the persistence unit is instantiated for one of the DataSources of a sharded
+     * persistence unit, otherwise null.
+     */
+    String getShard();
+
+    int getStartCount();
+
+    /**
+     * The number of starts and stops of the persistence unit that were collapsed into a later one or dropped as they
+     * would not have changed anything.
+     */
+    int getSuppressedTransitionCount();
+
+    /**
+     * The state of the persistence unit (INSTALLED, WAITING_FOR_PROVIDER, WAITING_FOR_REQUISITES, BOOTSTRAPPING,
+     * ACTIVE or FAILED).
+     */
+    String getState();
+
+    /**
+     * The time since the persistence unit is in its current state.
+     */
+    long getTimeInState();
+
+    String getUnitName();
+
+    /**
+     * The time that each step of the last warm-up of the EntityManagerFactory took (connections, entityManager,
+     * metamodel, namedQueries). Empty if the warm-up is not enabled.
+     */
+    Map<String, Long> getWarmUpTimes();
+}
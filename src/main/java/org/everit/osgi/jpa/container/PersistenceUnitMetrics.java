@@ -0,0 +1,436 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.osgi.framework.Bundle;
+
+/**
+ * The lifecycle state and the timings of a persistence unit. The container updates the metrics during the lifecycle
+ * of the persistence unit and they are exposed as an MXBean.
+ */
+class PersistenceUnitMetrics implements PersistenceUnitMXBean {
+
+    /**
+     * The states of a persistence unit.
+     */
+    enum State {
+        /**
+         * The persistence bundle is not active.
+         */
+        INSTALLED,
+
+        WAITING_FOR_PROVIDER,
+
+        WAITING_FOR_REQUISITES,
+
+        /**
+         * The EntityManagerFactory is being created.
+         */
+        BOOTSTRAPPING,
+
+        ACTIVE,
+
+        /**
+         * The creation or the registration of the EntityManagerFactory failed.
+         */
+        FAILED
+    }
+
+    private static final String STATISTICS_PROPERTY_MARKER = "statistic";
+
+    private static final long NOT_MEASURED = -1;
+
+    private final String unitName;
+
+    /**
+     * The identifier of the shard if the persistence unit is an instance of a sharded persistence unit.
+     */
+    private final String shard;
+
+    private final String bundleSymbolicName;
+
+    private final String bundleVersion;
+
+    private volatile State state = State.INSTALLED;
+
+    private volatile long stateChangedAt = System.currentTimeMillis();
+
+    private volatile long descriptorParseTime = NOT_MEASURED;
+
+    private volatile long providerWaitStartedAt = NOT_MEASURED;
+
+    private volatile long providerWaitTime = NOT_MEASURED;
+
+    private volatile long requisiteWaitStartedAt = NOT_MEASURED;
+
+    private volatile long requisiteWaitTime = NOT_MEASURED;
+
+    private final Map<String, Long> requisiteWaitTimes = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * The time of the steps of the last warm-up.
+     */
+    private volatile Map<String, Long> warmUpTimes = new TreeMap<String, Long>();
+
+    /**
+     * The time of scanning the jar-file entries of the persistence unit for managed classes.
+     */
+    private volatile Map<String, Long> jarScanTimes = new TreeMap<String, Long>();
+
+    private volatile long dataSourceCreationTime = NOT_MEASURED;
+
+    private volatile long providerBootstrapTime = NOT_MEASURED;
+
+    private volatile long serviceRegistrationTime = NOT_MEASURED;
+
+    private final AtomicInteger startCount = new AtomicInteger();
+
+    private final AtomicInteger suppressedTransitionCount = new AtomicInteger();
+
+    /**
+     * Manages the shared cache of the active start of the persistence unit.
+     */
+    private final PersistenceUnitCacheControl cacheControl;
+
+    /**
+     * The EntityManagerFactory of the persistence unit while it is active.
+     */
+    private volatile EntityManagerFactory entityManagerFactory;
+
+    /**
+     * Constructor.
+     *
+     * @param ppu
+     *            The persistence unit.
+     * @param descriptorParseTime
+     *            The time spent with parsing the persistence descriptors of the bundle.
+     */
+    public PersistenceUnitMetrics(final ParsedPersistenceUnit ppu, final long descriptorParseTime) {
+        Bundle bundle = ppu.getDefiningBundle();
+        unitName = (String) ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME);
+        bundleSymbolicName = bundle.getSymbolicName();
+        bundleVersion = bundle.getVersion().toString();
+        if (ppu instanceof ShardParsedPersistenceUnit) {
+            shard = ((ShardParsedPersistenceUnit) ppu).getShardId();
+        } else {
+            shard = null;
+        }
+        this.descriptorParseTime = descriptorParseTime;
+        cacheControl = new PersistenceUnitCacheControl(unitName);
+    }
+
+    /**
+     * Called when the creation of the EntityManagerFactory finished.
+     *
+     * @param bootstrapTime
+     *            The time that the persistence provider spent with creating the EntityManagerFactory.
+     * @param successful
+     *            Whether the EntityManagerFactory was created.
+     */
+    void bootstrapFinished(final long bootstrapTime, final boolean successful) {
+        providerBootstrapTime = bootstrapTime;
+        if (!successful) {
+            setState(State.FAILED);
+        }
+    }
+
+    /**
+     * Called when the DataSources of a start of the persistence unit are available.
+     */
+    void dataSourcesCreated(final long creationTime) {
+        dataSourceCreationTime = creationTime;
+    }
+
+    /**
+     * Called when the EntityManagerFactory is unregistered and closed.
+     */
+    void entityManagerFactoryClosed(final EntityManagerFactory closedEntityManagerFactory) {
+        if (entityManagerFactory == closedEntityManagerFactory) {
+            entityManagerFactory = null;
+        }
+    }
+
+    /**
+     * Called when the EntityManagerFactory of a persistence unit in lazy mode is created on its first use.
+     */
+    void entityManagerFactoryCreated(final EntityManagerFactory createdEntityManagerFactory) {
+        entityManagerFactory = createdEntityManagerFactory;
+    }
+
+    /**
+     * Called when the EntityManagerFactory service is registered.
+     *
+     * @param registeredEntityManagerFactory
+     *            The EntityManagerFactory or null in lazy mode.
+     * @param registrationTime
+     *            The time that the service registration took.
+     */
+    void entityManagerFactoryRegistered(final EntityManagerFactory registeredEntityManagerFactory,
+            final long registrationTime) {
+        entityManagerFactory = registeredEntityManagerFactory;
+        serviceRegistrationTime = registrationTime;
+        setState(State.ACTIVE);
+    }
+
+    /**
+     * Called when the service registration of the EntityManagerFactory failed.
+     */
+    void failed() {
+        setState(State.FAILED);
+    }
+
+    @Override
+    public String getBundleSymbolicName() {
+        return bundleSymbolicName;
+    }
+
+    @Override
+    public String getBundleVersion() {
+        return bundleVersion;
+    }
+
+    PersistenceUnitCacheControl getCacheControl() {
+        return cacheControl;
+    }
+
+    @Override
+    public long getDataSourceCreationTime() {
+        return dataSourceCreationTime;
+    }
+
+    @Override
+    public long getDescriptorParseTime() {
+        return descriptorParseTime;
+    }
+
+    /**
+     * The name that identifies the persistence unit in the container level metrics.
+     */
+    public String getDisplayName() {
+        if (shard != null) {
+            return bundleSymbolicName + ":" + bundleVersion + "/" + unitName + "[" + shard + "]";
+        }
+        return bundleSymbolicName + ":" + bundleVersion + "/" + unitName;
+    }
+
+    @Override
+    public Map<String, Long> getJarScanTimes() {
+        return new TreeMap<String, Long>(jarScanTimes);
+    }
+
+    @Override
+    public long getProviderBootstrapTime() {
+        return providerBootstrapTime;
+    }
+
+    @Override
+    public Map<String, String> getProviderStatistics() {
+        Map<String, String> result = new TreeMap<String, String>();
+        EntityManagerFactory emf = entityManagerFactory;
+        if (emf == null) {
+            return result;
+        }
+        try {
+            for (Entry<String, Object> property : emf.getProperties().entrySet()) {
+                if (property.getKey().toLowerCase().contains(STATISTICS_PROPERTY_MARKER)) {
+                    result.put(property.getKey(), String.valueOf(property.getValue()));
+                }
+            }
+        } catch (IllegalStateException e) {
+            // The EntityManagerFactory was closed in the meantime
+            result.clear();
+        }
+        return result;
+    }
+
+    @Override
+    public long getProviderWaitTime() {
+        return providerWaitTime;
+    }
+
+    @Override
+    public long getRequisiteWaitTime() {
+        return requisiteWaitTime;
+    }
+
+    @Override
+    public Map<String, Long> getRequisiteWaitTimes() {
+        return new TreeMap<String, Long>(requisiteWaitTimes);
+    }
+
+    @Override
+    public int getRestartCount() {
+        return Math.max(0, startCount.get() - 1);
+    }
+
+    @Override
+    public long getServiceRegistrationTime() {
+        return serviceRegistrationTime;
+    }
+
+    @Override
+    public int getStartCount() {
+        return startCount.get();
+    }
+
+    @Override
+    public int getSuppressedTransitionCount() {
+        return suppressedTransitionCount.get();
+    }
+
+    @Override
+    public String getShard() {
+        return shard;
+    }
+
+    @Override
+    public String getState() {
+        return state.name();
+    }
+
+    long getStateChangedAt() {
+        return stateChangedAt;
+    }
+
+    State getStateValue() {
+        return state;
+    }
+
+    @Override
+    public long getTimeInState() {
+        return System.currentTimeMillis() - stateChangedAt;
+    }
+
+    @Override
+    public String getUnitName() {
+        return unitName;
+    }
+
+    @Override
+    public Map<String, Long> getWarmUpTimes() {
+        return new TreeMap<String, Long>(warmUpTimes);
+    }
+
+    /**
+     * Called when the jar-file entries of the persistence unit were scanned for managed classes.
+     *
+     * @param scanTimes
+     *            The time of scanning each jar that was not in the index.
+     */
+    void jarFilesScanned(final Map<String, Long> scanTimes) {
+        jarScanTimes = new TreeMap<String, Long>(scanTimes);
+    }
+
+    /**
+     * Called when the persistence bundle stopped.
+     */
+    void installed() {
+        setState(State.INSTALLED);
+    }
+
+    /**
+     * Called when the persistence provider of the bundle became available.
+     */
+    void providerAvailable() {
+        long now = System.currentTimeMillis();
+        if (providerWaitStartedAt != NOT_MEASURED) {
+            providerWaitTime = now - providerWaitStartedAt;
+        }
+        waitingForRequisites(now);
+    }
+
+    /**
+     * Called when the persistence bundle started to wait for its persistence provider.
+     */
+    void providerWaitStarted() {
+        providerWaitStartedAt = System.currentTimeMillis();
+        setState(State.WAITING_FOR_PROVIDER);
+    }
+
+    /**
+     * Called when a requisite of the persistence unit became available.
+     *
+     * @param requisiteId
+     *            The id of the requisite.
+     * @param waitTime
+     *            The time that the persistence unit waited for the requisite.
+     */
+    void requisiteAvailable(final String requisiteId, final long waitTime) {
+        requisiteWaitTimes.put(requisiteId, waitTime);
+    }
+
+    /**
+     * Called when all of the requisites are available and the persistence unit is started.
+     */
+    void requisitesAvailable() {
+        long now = System.currentTimeMillis();
+        if (requisiteWaitStartedAt != NOT_MEASURED) {
+            requisiteWaitTime = now - requisiteWaitStartedAt;
+        }
+        startCount.incrementAndGet();
+        setState(State.BOOTSTRAPPING);
+    }
+
+    private void setState(final State newState) {
+        state = newState;
+        stateChangedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Called when a start or a stop of the persistence unit was dropped as it was followed by another one within the
+     * quiet period or it would not have changed anything.
+     */
+    void transitionSuppressed() {
+        suppressedTransitionCount.incrementAndGet();
+    }
+
+    /**
+     * Called when the persistence unit is stopped because one of its requisites is not available anymore.
+     */
+    void stopped() {
+        waitingForRequisites(System.currentTimeMillis());
+    }
+
+    /**
+     * Called when the warm-up of the EntityManagerFactory finished.
+     *
+     * @param stepTimes
+     *            The time that each finished warm-up step took.
+     */
+    void warmUpFinished(final Map<String, Long> stepTimes) {
+        warmUpTimes = new TreeMap<String, Long>(stepTimes);
+    }
+
+    private void waitingForRequisites(final long now) {
+        requisiteWaitStartedAt = now;
+        setState(State.WAITING_FOR_REQUISITES);
+    }
+}
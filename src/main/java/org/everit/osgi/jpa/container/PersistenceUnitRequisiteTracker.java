@@ -0,0 +1,160 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.everit.osgi.jpa.container.api.MissingRequisiteInfo;
+import org.everit.osgi.util.core.requisite.AbstractRequisiteTracker;
+import org.everit.osgi.util.core.requisite.RequisiteListener;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Base class of the trackers of the requisites of persistence units. The time that a persistence unit waits for the
+ * requisite is reported to the metrics of the container and the requisites that a persistence unit still waits for
+ * can be queried for diagnostics.
+ */
+abstract class PersistenceUnitRequisiteTracker extends AbstractRequisiteTracker<ParsedPersistenceUnit> {
+
+    /**
+     * Measures the time between the registration of the persistence unit (or the removal of its last requisite
+     * service) and the appearance of a suitable service.
+     */
+    private class MeasuringRequisiteListener implements RequisiteListener<ParsedPersistenceUnit> {
+
+        private final RequisiteListener<ParsedPersistenceUnit> delegate;
+
+        private volatile boolean available = false;
+
+        private volatile long waitStartedAt = System.currentTimeMillis();
+
+        public MeasuringRequisiteListener(final RequisiteListener<ParsedPersistenceUnit> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void requisiteAvailable(final ParsedPersistenceUnit dependentObject, final ServiceReference reference) {
+            PersistenceUnitMetrics unitMetrics = containerMetrics.getPersistenceUnitMetrics(dependentObject);
+            if (unitMetrics != null) {
+                unitMetrics.requisiteAvailable(requisiteId, System.currentTimeMillis() - waitStartedAt);
+            }
+            available = true;
+            delegate.requisiteAvailable(dependentObject, reference);
+        }
+
+        @Override
+        public void requisiteRemoved(final ParsedPersistenceUnit dependentObject, final ServiceReference reference) {
+            available = false;
+            waitStartedAt = System.currentTimeMillis();
+            delegate.requisiteRemoved(dependentObject, reference);
+        }
+    }
+
+    /**
+     * The id of the requisite that is used in the service reference map of the persistence units.
+     */
+    private final String requisiteId;
+
+    private final String filterString;
+
+    private final ContainerMetrics containerMetrics;
+
+    /**
+     * The listeners of the persistence units that are registered to this tracker.
+     */
+    private final Map<ParsedPersistenceUnit, MeasuringRequisiteListener> listenersByPPU =
+            new ConcurrentHashMap<ParsedPersistenceUnit, MeasuringRequisiteListener>();
+
+    /**
+     * Constructor.
+     *
+     * @param context
+     *            The context of the container bundle.
+     * @param filterString
+     *            The filter of the tracked services.
+     * @param requisiteId
+     *            The id of the requisite that is used in the service reference map of the persistence units.
+     * @param containerMetrics
+     *            The metrics that the wait times are reported to.
+     * @throws InvalidSyntaxException
+     *             if the filter is invalid.
+     */
+    protected PersistenceUnitRequisiteTracker(final BundleContext context, final String filterString,
+            final String requisiteId, final ContainerMetrics containerMetrics) throws InvalidSyntaxException {
+        super(context, filterString);
+        this.requisiteId = requisiteId;
+        this.filterString = filterString;
+        this.containerMetrics = containerMetrics;
+    }
+
+    @Override
+    public void addDependentObject(final ParsedPersistenceUnit dependentObject,
+            final RequisiteListener<ParsedPersistenceUnit> requisiteListener) {
+        MeasuringRequisiteListener measuringRequisiteListener = new MeasuringRequisiteListener(requisiteListener);
+        listenersByPPU.put(dependentObject, measuringRequisiteListener);
+        super.addDependentObject(dependentObject, measuringRequisiteListener);
+    }
+
+    /**
+     * Returns the requisite of a persistence unit if there is no suitable service for it.
+     *
+     * @param ppu
+     *            The persistence unit.
+     * @return The missing requisite or null if the requisite is available or the persistence unit is not registered
+     *         to this tracker.
+     */
+    public MissingRequisiteInfo getMissingRequisite(final ParsedPersistenceUnit ppu) {
+        MeasuringRequisiteListener listener = listenersByPPU.get(ppu);
+        if ((listener == null) || listener.available) {
+            return null;
+        }
+        return new MissingRequisiteInfo(requisiteId, getRequisiteFilter(ppu), System.currentTimeMillis()
+                - listener.waitStartedAt);
+    }
+
+    public String getRequisiteId() {
+        return requisiteId;
+    }
+
+    /**
+     * The filter that describes the services that are suitable for a persistence unit. Subclasses that check further
+     * conditions in {@link #isReferenceSuitable(ParsedPersistenceUnit, ServiceReference)} should extend the filter of
+     * the tracker with them.
+     *
+     * @param ppu
+     *            The persistence unit.
+     * @return The filter of the suitable services.
+     */
+    protected String getRequisiteFilter(final ParsedPersistenceUnit ppu) {
+        return filterString;
+    }
+
+    @Override
+    public void removeDependentObject(final ParsedPersistenceUnit dependentObject) {
+        super.removeDependentObject(dependentObject);
+        listenersByPPU.remove(dependentObject);
+    }
+}
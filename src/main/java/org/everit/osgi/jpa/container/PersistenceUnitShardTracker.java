@@ -0,0 +1,218 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the DataSource services that match the DataSource expression of a sharded persistence unit and creates a
+ * {@link ShardParsedPersistenceUnit} for each of them. The jta-data-source is used for the matching if it is an OSGi
+ * service expression, otherwise the non-jta-data-source.
+ */
+class PersistenceUnitShardTracker implements ServiceTrackerCustomizer {
+
+    /**
+     * Listener of the shards that appear and disappear together with their DataSource.
+     */
+    interface ShardListener {
+
+        void shardAdded(ShardParsedPersistenceUnit shard);
+
+        void shardRemoved(ShardParsedPersistenceUnit shard);
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceUnitShardTracker.class);
+
+    /**
+     * Persistence unit property that makes the container instantiate the persistence unit for each DataSource service
+     * that matches its DataSource expression if its value is true.
+     */
+    public static final String SHARDED_PROPERTY = "org.everit.osgi.jpa.container.sharded";
+
+    /**
+     * Persistence unit property that names the service property of the DataSources that identifies the shards. The
+     * service id of the DataSource is used if the property is not specified or the DataSource does not have it.
+     */
+    public static final String SHARD_KEY_PROPERTY = "org.everit.osgi.jpa.container.shard.key";
+
+    /**
+     * The service property of the EntityManagerFactory services of sharded persistence units that holds the
+     * identifier of the shard.
+     */
+    public static final String SHARD_SERVICE_PROPERTY = "org.everit.osgi.jpa.container.shard";
+
+    /**
+     * Checks whether a persistence unit that is defined in a persistence descriptor should be sharded.
+     */
+    static boolean isSharded(final ParsedPersistenceUnit ppu) {
+        if (ppu instanceof ShardParsedPersistenceUnit) {
+            return false;
+        }
+        Properties props = (Properties) ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.PROPERTIES);
+        return (props != null) && "true".equalsIgnoreCase(props.getProperty(SHARDED_PROPERTY));
+    }
+
+    private final BundleContext context;
+
+    private final ParsedPersistenceUnit template;
+
+    private final ShardListener shardListener;
+
+    private final String shardKey;
+
+    private String dataSourceKey;
+
+    private ServiceTracker serviceTracker;
+
+    /**
+     * The shards by the references of their DataSources.
+     */
+    private final Map<ServiceReference, ShardParsedPersistenceUnit> shardsByReference =
+            new ConcurrentHashMap<ServiceReference, ShardParsedPersistenceUnit>();
+
+    /**
+     * Constructor.
+     *
+     * @param context
+     *            The context of the container bundle.
+     * @param template
+     *            The sharded persistence unit.
+     * @param shardListener
+     *            The listener that is notified about the shards.
+     */
+    public PersistenceUnitShardTracker(final BundleContext context, final ParsedPersistenceUnit template,
+            final ShardListener shardListener) {
+        this.context = context;
+        this.template = template;
+        this.shardListener = shardListener;
+        Properties props = (Properties) template.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.PROPERTIES);
+        shardKey = props.getProperty(SHARD_KEY_PROPERTY, Constants.SERVICE_ID);
+    }
+
+    @Override
+    public Object addingService(final ServiceReference reference) {
+        ShardParsedPersistenceUnit shard = createShard(reference);
+        shardsByReference.put(reference, shard);
+        shardListener.shardAdded(shard);
+        return shard;
+    }
+
+    /**
+     * Stops tracking the DataSources. The listener is notified about the removal of each shard.
+     */
+    public void close() {
+        if (serviceTracker != null) {
+            serviceTracker.close();
+            serviceTracker = null;
+        }
+    }
+
+    private ShardParsedPersistenceUnit createShard(final ServiceReference reference) {
+        Object shardId = reference.getProperty(shardKey);
+        if (shardId == null) {
+            shardId = reference.getProperty(Constants.SERVICE_ID);
+        }
+        return new ShardParsedPersistenceUnit(template, dataSourceKey, reference.getProperty(Constants.SERVICE_ID),
+                String.valueOf(shardId));
+    }
+
+    /**
+     * The shards that belong to the currently available DataSources.
+     */
+    public Collection<ShardParsedPersistenceUnit> getShards() {
+        return new ArrayList<ShardParsedPersistenceUnit>(shardsByReference.values());
+    }
+
+    @Override
+    public void modifiedService(final ServiceReference reference, final Object service) {
+        ShardParsedPersistenceUnit shard = shardsByReference.get(reference);
+        ShardParsedPersistenceUnit newShard = createShard(reference);
+        if ((shard != null) && shard.getShardId().equals(newShard.getShardId())) {
+            return;
+        }
+        removedService(reference, service);
+        shardsByReference.put(reference, newShard);
+        shardListener.shardAdded(newShard);
+    }
+
+    /**
+     * Starts tracking the DataSources that match the DataSource expression of the persistence unit.
+     *
+     * @return Whether the tracking started. False if the persistence unit does not have a DataSource expression that
+     *         refers to OSGi services or the filter of the expression is invalid.
+     */
+    public boolean open() {
+        Map<String, Object> persistenceXmlMetadata = template.getPersistenceXmlMetadata();
+        String dataSourceExpression = (String) persistenceXmlMetadata.get(ParsedPersistenceUnit.JTA_DATASOURCE);
+        dataSourceKey = ParsedPersistenceUnit.JTA_DATASOURCE;
+        if ((dataSourceExpression == null) || !dataSourceExpression.startsWith("osgi:service")) {
+            dataSourceExpression = (String) persistenceXmlMetadata.get(ParsedPersistenceUnit.NON_JTA_DATASOURCE);
+            dataSourceKey = ParsedPersistenceUnit.NON_JTA_DATASOURCE;
+        }
+        Matcher matcher = Pattern.compile(DataSourceRequisiteTracker.OSGI_DS_SERVICE_PATTERN).matcher(
+                String.valueOf(dataSourceExpression));
+        if (!matcher.matches()) {
+            LOGGER.error("Sharded " + template + " has to have a jta-data-source or non-jta-data-source that matches"
+                    + " the following regex: " + DataSourceRequisiteTracker.OSGI_DS_SERVICE_PATTERN);
+            return false;
+        }
+        String filterExpression = "(" + Constants.OBJECTCLASS + "=" + DataSource.class.getName() + ")";
+        String dataSourceFilter = matcher.group(1);
+        if ((dataSourceFilter != null) && (dataSourceFilter.length() > 0)) {
+            filterExpression = "(&" + filterExpression + dataSourceFilter + ")";
+        }
+        try {
+            serviceTracker = new ServiceTracker(context, context.createFilter(filterExpression), this);
+        } catch (InvalidSyntaxException e) {
+            LOGGER.error("Invalid syntax at filter part in dataSource expression: " + dataSourceExpression, e);
+            return false;
+        }
+        serviceTracker.open();
+        return true;
+    }
+
+    @Override
+    public void removedService(final ServiceReference reference, final Object service) {
+        ShardParsedPersistenceUnit shard = shardsByReference.remove(reference);
+        if (shard != null) {
+            shardListener.shardRemoved(shard);
+        }
+    }
+}
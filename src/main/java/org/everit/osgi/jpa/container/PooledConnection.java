@@ -0,0 +1,286 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A physical connection of an {@link AbstractPooledDataSource}. The users of the pool get proxies (logical connections)
+ * of the physical connection. A proxy cannot be used anymore after it was closed or after the physical connection was
+ * returned to the pool even if the physical connection is borrowed again by someone else.
+ */
+class PooledConnection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledConnection.class);
+
+    /**
+     * The prefix of the SQL states that mean that the connection is broken.
+     */
+    private static final String CONNECTION_EXCEPTION_SQL_STATE_PREFIX = "08";
+
+    /**
+     * The logical connection that is handed out to the user of the pool.
+     */
+    private class ConnectionHandle implements InvocationHandler {
+
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        /**
+         * The lease of the physical connection that this handle belongs to.
+         */
+        private final int handleLease = lease;
+
+        /**
+         * Whether closing this handle returns the physical connection to the pool.
+         */
+        private final boolean returnToPoolOnClose;
+
+        public ConnectionHandle(final boolean returnToPoolOnClose) {
+            this.returnToPoolOnClose = returnToPoolOnClose;
+        }
+
+        private boolean isClosed() {
+            return closed.get() || (handleLease != lease);
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            String methodName = method.getName();
+            int argCount = (args == null) ? 0 : args.length;
+            if ("close".equals(methodName) && (argCount == 0)) {
+                if (closed.compareAndSet(false, true) && returnToPoolOnClose && (handleLease == lease)) {
+                    pool.returnConnection(PooledConnection.this);
+                }
+                return null;
+            }
+            if ("isClosed".equals(methodName) && (argCount == 0)) {
+                return isClosed() || physicalConnection.isClosed();
+            }
+            if ("equals".equals(methodName) && (argCount == 1)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(methodName) && (argCount == 0)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(methodName) && (argCount == 0)) {
+                return "Pooled[" + physicalConnection + "]";
+            }
+            if (isClosed()) {
+                throw new SQLException("Connection is closed");
+            }
+            if (methodName.startsWith("set")) {
+                stateChanged = true;
+            }
+            if ((statementCache != null)
+                    && ("prepareStatement".equals(methodName) || "prepareCall".equals(methodName))) {
+                try {
+                    return statementCache.prepare(physicalConnection, (Connection) proxy, method, args);
+                } catch (SQLException e) {
+                    checkBroken(e);
+                    throw e;
+                }
+            }
+            try {
+                return method.invoke(physicalConnection, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    checkBroken((SQLException) cause);
+                }
+                throw cause;
+            }
+        }
+    }
+
+    private final AbstractPooledDataSource pool;
+
+    private final Connection physicalConnection;
+
+    /**
+     * The cache of the prepared statements of the connection or null if statement caching is switched off.
+     */
+    private final PreparedStatementCache statementCache;
+
+    /**
+     * The time when the physical connection was opened.
+     */
+    private final long createdAt;
+
+    /**
+     * The time when the connection was returned to the pool last time.
+     */
+    private volatile long lastReturnedAt;
+
+    private final boolean initialAutoCommit;
+
+    private final boolean initialReadOnly;
+
+    private final int initialTransactionIsolation;
+
+    private final String initialCatalog;
+
+    /**
+     * True if a setter was called on the connection so its state has to be restored when it is returned to the pool.
+     */
+    private volatile boolean stateChanged = false;
+
+    /**
+     * True if the connection threw an exception that means that the physical connection is not usable anymore.
+     */
+    private volatile boolean broken = false;
+
+    /**
+     * Incremented every time the connection is returned to the pool so the handles of the previous borrowers become
+     * invalid.
+     */
+    private volatile int lease = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param pool
+     *            The pool that the connection belongs to.
+     * @param physicalConnection
+     *            The connection got from the underlying DataSource.
+     * @throws SQLException
+     *             if the initial state of the connection cannot be read.
+     */
+    public PooledConnection(final AbstractPooledDataSource pool, final Connection physicalConnection) throws SQLException {
+        this.pool = pool;
+        this.physicalConnection = physicalConnection;
+        createdAt = System.currentTimeMillis();
+        lastReturnedAt = createdAt;
+        initialAutoCommit = physicalConnection.getAutoCommit();
+        initialReadOnly = physicalConnection.isReadOnly();
+        initialTransactionIsolation = physicalConnection.getTransactionIsolation();
+        initialCatalog = physicalConnection.getCatalog();
+        int statementCacheSize = pool.getConfiguration().getStatementCacheSize();
+        statementCache = (statementCacheSize > 0) ? new PreparedStatementCache(statementCacheSize,
+                pool.getStatementCacheStatistics()) : null;
+    }
+
+    private void checkBroken(final SQLException e) {
+        String sqlState = e.getSQLState();
+        if ((sqlState != null) && sqlState.startsWith(CONNECTION_EXCEPTION_SQL_STATE_PREFIX)) {
+            broken = true;
+        }
+    }
+
+    /**
+     * Closes the cached statements and the physical connection.
+     */
+    public void closePhysicalConnection() {
+        if (statementCache != null) {
+            statementCache.close();
+        }
+        try {
+            physicalConnection.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Error during closing pooled connection", e);
+        }
+    }
+
+    /**
+     * Creates a new logical connection that can be handed out to the user of the pool.
+     *
+     * @param returnToPoolOnClose
+     *            Whether closing the logical connection gives back the physical connection to the pool. If false, the
+     *            connection must be returned by the one who borrowed it (e.g. when the transaction completes).
+     * @return The logical connection.
+     */
+    public Connection createHandle(final boolean returnToPoolOnClose) {
+        return (Connection) Proxy.newProxyInstance(PooledConnection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new ConnectionHandle(returnToPoolOnClose));
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getLastReturnedAt() {
+        return lastReturnedAt;
+    }
+
+    public Connection getPhysicalConnection() {
+        return physicalConnection;
+    }
+
+    /**
+     * Makes the logical connections of the current borrower unusable and gives back the prepared statements that the
+     * borrower did not close to the statement cache.
+     */
+    void invalidateHandles() {
+        lease++;
+        if (statementCache != null) {
+            statementCache.closeOpenStatements();
+        }
+    }
+
+    public boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * Marks the connection as unusable so it is closed when it is returned to the pool.
+     */
+    public void markBroken() {
+        broken = true;
+    }
+
+    /**
+     * Rolls back the uncommitted work and restores the state of the connection that it had when it was opened.
+     *
+     * @throws SQLException
+     *             if the state of the connection cannot be restored.
+     */
+    public void reset() throws SQLException {
+        if (!physicalConnection.getAutoCommit()) {
+            physicalConnection.rollback();
+        }
+        if (stateChanged) {
+            if (physicalConnection.getAutoCommit() != initialAutoCommit) {
+                physicalConnection.setAutoCommit(initialAutoCommit);
+            }
+            if (physicalConnection.isReadOnly() != initialReadOnly) {
+                physicalConnection.setReadOnly(initialReadOnly);
+            }
+            if (physicalConnection.getTransactionIsolation() != initialTransactionIsolation) {
+                physicalConnection.setTransactionIsolation(initialTransactionIsolation);
+            }
+            if ((initialCatalog != null) && !initialCatalog.equals(physicalConnection.getCatalog())) {
+                physicalConnection.setCatalog(initialCatalog);
+            }
+            stateChanged = false;
+        }
+        physicalConnection.clearWarnings();
+        lastReturnedAt = System.currentTimeMillis();
+    }
+}
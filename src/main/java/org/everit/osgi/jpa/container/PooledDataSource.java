@@ -0,0 +1,116 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.sql.DataSource;
+
+/**
+ * A connection pool around a DataSource that was created by a {@link org.osgi.service.jdbc.DataSourceFactory}.
+ */
+class PooledDataSource extends AbstractPooledDataSource {
+
+    private final DataSource dataSource;
+
+    /**
+     * Constructor.
+     *
+     * @param name
+     *            The name of the pool that is used in the log messages.
+     * @param dataSource
+     *            The DataSource that creates the physical connections.
+     * @param configuration
+     *            The settings of the pool.
+     * @param maintenanceExecutor
+     *            The executor that runs the maintenance task of the pool.
+     */
+    public PooledDataSource(final String name, final DataSource dataSource,
+            final ConnectionPoolConfiguration configuration, final ScheduledExecutorService maintenanceExecutor) {
+        super(name, configuration, maintenanceExecutor);
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    protected PooledConnection createPooledConnection() throws SQLException {
+        Connection physicalConnection = dataSource.getConnection();
+        try {
+            return new PooledConnection(this, physicalConnection);
+        } catch (SQLException e) {
+            try {
+                physicalConnection.close();
+            } catch (SQLException closeException) {
+                e.setNextException(closeException);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return borrowConnection().createHandle(true);
+    }
+
+    /**
+     * The connections with other credentials than the ones of the persistence unit are not pooled.
+     */
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        return dataSource.getConnection(username, password);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || dataSource.isWrapperFor(iface);
+    }
+
+    @Override
+    public void setLoginTimeout(final int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public void setLogWriter(final PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return dataSource.unwrap(iface);
+    }
+}
@@ -0,0 +1,74 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.sql.SQLException;
+
+import javax.sql.XAConnection;
+import javax.transaction.xa.XAResource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pooled XA connection. The physical connection of the parent class is the connection handle that was got from the
+ * XAConnection once when it was opened.
+ */
+class PooledXAConnection extends PooledConnection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledXAConnection.class);
+
+    private final XAConnection xaConnection;
+
+    private final XAResource xaResource;
+
+    /**
+     * Constructor.
+     *
+     * @param pool
+     *            The pool that the connection belongs to.
+     * @param xaConnection
+     *            The XA connection got from the XADataSource.
+     * @throws SQLException
+     *             if the connection handle or the XAResource cannot be got from the XA connection.
+     */
+    public PooledXAConnection(final AbstractPooledDataSource pool, final XAConnection xaConnection)
+            throws SQLException {
+        super(pool, xaConnection.getConnection());
+        this.xaConnection = xaConnection;
+        xaResource = xaConnection.getXAResource();
+    }
+
+    @Override
+    public void closePhysicalConnection() {
+        super.closePhysicalConnection();
+        try {
+            xaConnection.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Error during closing pooled XA connection", e);
+        }
+    }
+
+    public XAResource getXAResource() {
+        return xaResource;
+    }
+}
@@ -0,0 +1,273 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A DataSource that enlists pooled XA connections in the transaction of the caller. The first connection request of a
+ * transaction borrows a connection from the pool and enlists its XAResource; the later requests of the same
+ * transaction get the same physical connection. The connection is returned to the pool only when the transaction
+ * completes. Without an active transaction the connection is returned to the pool when it is closed.
+ */
+class PooledXADataSource extends AbstractPooledDataSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledXADataSource.class);
+
+    /**
+     * Returns the connection that was enlisted in a transaction to the pool when the transaction completes.
+     */
+    private class ReturnOnCompletion implements Synchronization {
+
+        private final Transaction transaction;
+
+        private final PooledXAConnection pooledConnection;
+
+        public ReturnOnCompletion(final Transaction transaction, final PooledXAConnection pooledConnection) {
+            this.transaction = transaction;
+            this.pooledConnection = pooledConnection;
+        }
+
+        @Override
+        public void afterCompletion(final int status) {
+            enlistedConnections.remove(transaction, pooledConnection);
+            returnConnection(pooledConnection);
+        }
+
+        @Override
+        public void beforeCompletion() {
+            // Nothing to do
+        }
+    }
+
+    private final XADataSource xaDataSource;
+
+    private final TransactionManager transactionManager;
+
+    /**
+     * The connections that are enlisted in the currently running transactions.
+     */
+    private final ConcurrentMap<Transaction, PooledXAConnection> enlistedConnections =
+            new ConcurrentHashMap<Transaction, PooledXAConnection>();
+
+    /**
+     * The number of connection requests that got the connection that was already enlisted in the transaction.
+     */
+    private final AtomicLong enlistedReuseCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param name
+     *            The name of the pool that is used in the log messages.
+     * @param xaDataSource
+     *            The XADataSource that creates the physical connections.
+     * @param transactionManager
+     *            The transaction manager whose transactions the connections are enlisted in.
+     * @param configuration
+     *            The settings of the pool.
+     * @param maintenanceExecutor
+     *            The executor that runs the maintenance task of the pool.
+     */
+    public PooledXADataSource(final String name, final XADataSource xaDataSource,
+            final TransactionManager transactionManager, final ConnectionPoolConfiguration configuration,
+            final ScheduledExecutorService maintenanceExecutor) {
+        super(name, configuration, maintenanceExecutor);
+        this.xaDataSource = xaDataSource;
+        this.transactionManager = transactionManager;
+    }
+
+    @Override
+    public void close() {
+        if (!enlistedConnections.isEmpty()) {
+            LOGGER.warn("Closing pool " + getName() + " while " + enlistedConnections.size()
+                    + " transactions use its connections. The connections are closed when the transactions complete.");
+        }
+        super.close();
+    }
+
+    @Override
+    protected PooledConnection createPooledConnection() throws SQLException {
+        XAConnection xaConnection = xaDataSource.getXAConnection();
+        try {
+            return new PooledXAConnection(this, xaConnection);
+        } catch (SQLException e) {
+            try {
+                xaConnection.close();
+            } catch (SQLException closeException) {
+                e.setNextException(closeException);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Borrows a connection and enlists it in the transaction. If another thread of the same transaction was faster,
+     * the connection of that thread is used.
+     */
+    private PooledXAConnection enlistConnection(final Transaction transaction) throws SQLException {
+        PooledXAConnection pooledConnection = (PooledXAConnection) borrowConnection();
+        PooledXAConnection existing = enlistedConnections.putIfAbsent(transaction, pooledConnection);
+        if (existing != null) {
+            returnConnection(pooledConnection);
+            enlistedReuseCount.incrementAndGet();
+            return existing;
+        }
+        try {
+            if (!transaction.enlistResource(pooledConnection.getXAResource())) {
+                throw new SQLException("Could not enlist connection of pool " + getName() + " in transaction");
+            }
+            transaction.registerSynchronization(new ReturnOnCompletion(transaction, pooledConnection));
+        } catch (RollbackException e) {
+            discardEnlisted(transaction, pooledConnection);
+            throw new SQLException("Transaction is marked for rollback", e);
+        } catch (SystemException e) {
+            discardEnlisted(transaction, pooledConnection);
+            throw new SQLException("Could not enlist connection of pool " + getName() + " in transaction", e);
+        } catch (SQLException e) {
+            discardEnlisted(transaction, pooledConnection);
+            throw e;
+        } catch (RuntimeException e) {
+            discardEnlisted(transaction, pooledConnection);
+            throw e;
+        }
+        return pooledConnection;
+    }
+
+    /**
+     * Closes a connection whose enlistment failed as it may be associated with the transaction.
+     */
+    private void discardEnlisted(final Transaction transaction, final PooledXAConnection pooledConnection) {
+        enlistedConnections.remove(transaction, pooledConnection);
+        pooledConnection.markBroken();
+        returnConnection(pooledConnection);
+    }
+
+    /**
+     * Returns the transaction of the current thread if there is one that connections can be enlisted in.
+     */
+    private Transaction getActiveTransaction() throws SQLException {
+        try {
+            Transaction transaction = transactionManager.getTransaction();
+            if (transaction == null) {
+                return null;
+            }
+            int status = transaction.getStatus();
+            if ((status == Status.STATUS_ACTIVE) || (status == Status.STATUS_MARKED_ROLLBACK)) {
+                return transaction;
+            }
+            return null;
+        } catch (SystemException e) {
+            throw new SQLException("Could not get the transaction of the current thread", e);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Transaction transaction = getActiveTransaction();
+        if (transaction == null) {
+            return borrowConnection().createHandle(true);
+        }
+        PooledXAConnection pooledConnection = enlistedConnections.get(transaction);
+        if (pooledConnection != null) {
+            enlistedReuseCount.incrementAndGet();
+        } else {
+            pooledConnection = enlistConnection(transaction);
+        }
+        return pooledConnection.createHandle(false);
+    }
+
+    /**
+     * Connections with other credentials than the ones of the persistence unit are not supported.
+     */
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        throw new SQLException("Pooled JTA DataSource " + getName()
+                + " does not support connections with other credentials");
+    }
+
+    /**
+     * The number of transactions that have a connection of this pool enlisted.
+     */
+    public int getEnlistedCount() {
+        return enlistedConnections.size();
+    }
+
+    @Override
+    public long getEnlistedReuseCount() {
+        return enlistedReuseCount.get();
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return xaDataSource.getLoginTimeout();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return xaDataSource.getLogWriter();
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || iface.isInstance(xaDataSource);
+    }
+
+    @Override
+    public void setLoginTimeout(final int seconds) throws SQLException {
+        xaDataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public void setLogWriter(final PrintWriter out) throws SQLException {
+        xaDataSource.setLogWriter(out);
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        if (iface.isInstance(xaDataSource)) {
+            return iface.cast(xaDataSource);
+        }
+        throw new SQLException("Pooled JTA DataSource " + getName() + " is not a wrapper for " + iface.getName());
+    }
+}
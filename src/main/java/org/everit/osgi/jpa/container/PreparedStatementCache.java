@@ -0,0 +1,456 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LRU cache of the prepared statements of one physical connection. A statement is removed from the cache while it is
+ * used so it is never shared by two users. When the user closes the statement, it is put back into the cache instead
+ * of being closed. The result sets that the user left open are closed and the parameters, the pending batch and the
+ * settings that the user changed (max rows, fetch size, query timeout, max field size and fetch direction) are reset
+ * before the statement goes back to the cache. The statements whose cursor name, escape processing, poolable flag or
+ * large max rows was changed are not cached. The statements that the user did not close are closed when the
+ * connection is returned to the pool. The statements that are evicted from the
+ * cache or that are open when the physical connection is closed are closed physically.
+ */
+class PreparedStatementCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PreparedStatementCache.class);
+
+    /**
+     * The setters of the settings that are restored when a statement goes back to the cache.
+     */
+    private static final Set<String> RESTORED_SETTERS = new HashSet<String>(Arrays.asList("setMaxRows",
+            "setFetchSize", "setQueryTimeout", "setMaxFieldSize", "setFetchDirection"));
+
+    /**
+     * The methods that change the statement in a way that is not restored, so the statement is closed instead of
+     * being put back to the cache. The large max rows cannot be read with the JDBC 4.0 API that the container is
+     * compiled against, so it cannot be restored either.
+     */
+    private static final Set<String> UNCACHEABLE_METHODS = new HashSet<String>(Arrays.asList("setCursorName",
+            "setEscapeProcessing", "setPoolable", "closeOnCompletion", "setLargeMaxRows"));
+
+    /**
+     * The metrics of the statement caches of a connection pool.
+     */
+    static class Statistics {
+
+        private final AtomicLong hits = new AtomicLong();
+
+        private final AtomicLong misses = new AtomicLong();
+
+        private final AtomicLong evictions = new AtomicLong();
+
+        public long getEvictions() {
+            return evictions.get();
+        }
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+    }
+
+    /**
+     * Identifies a statement by the method that prepared it and the arguments of the method (SQL, result set type,
+     * auto-generated keys, etc.).
+     */
+    private static final class StatementKey {
+
+        private final Method method;
+
+        private final Object[] args;
+
+        private final int hashCode;
+
+        public StatementKey(final Method method, final Object[] args) {
+            this.method = method;
+            this.args = args;
+            hashCode = (31 * method.hashCode()) + Arrays.deepHashCode(args);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof StatementKey)) {
+                return false;
+            }
+            StatementKey other = (StatementKey) obj;
+            return method.equals(other.method) && Arrays.deepEquals(args, other.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * The statement that is handed out to the user. Closing it gives back the physical statement to the cache.
+     */
+    private class StatementHandle implements InvocationHandler {
+
+        private final StatementKey key;
+
+        private final PreparedStatement statement;
+
+        private final Connection connectionHandle;
+
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        /**
+         * The result sets that the statement returned since it was executed last time. Executing the statement closes
+         * the previous result sets, so they are forgotten.
+         */
+        private final List<ResultSet> resultSets = new ArrayList<ResultSet>();
+
+        /**
+         * True if the user called addBatch so the batch has to be cleared.
+         */
+        private boolean batchPending = false;
+
+        /**
+         * False if the user changed the statement in a way that cannot be restored.
+         */
+        private boolean reusable = true;
+
+        /**
+         * True if the settings below were read before the user changed the first of them.
+         */
+        private boolean settingsSaved = false;
+
+        private int initialMaxRows;
+
+        private int initialFetchSize;
+
+        private int initialQueryTimeout;
+
+        private int initialMaxFieldSize;
+
+        private int initialFetchDirection;
+
+        public StatementHandle(final StatementKey key, final PreparedStatement statement,
+                final Connection connectionHandle) {
+            this.key = key;
+            this.statement = statement;
+            this.connectionHandle = connectionHandle;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            String methodName = method.getName();
+            int argCount = (args == null) ? 0 : args.length;
+            if ("close".equals(methodName) && (argCount == 0)) {
+                close();
+                return null;
+            }
+            if ("isClosed".equals(methodName) && (argCount == 0)) {
+                return closed.get() || statement.isClosed();
+            }
+            if ("getConnection".equals(methodName) && (argCount == 0)) {
+                return connectionHandle;
+            }
+            if ("equals".equals(methodName) && (argCount == 1)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(methodName) && (argCount == 0)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(methodName) && (argCount == 0)) {
+                return "Cached[" + statement + "]";
+            }
+            if (closed.get()) {
+                throw new SQLException("Statement is closed");
+            }
+            if (!settingsSaved && RESTORED_SETTERS.contains(methodName)) {
+                initialMaxRows = statement.getMaxRows();
+                initialFetchSize = statement.getFetchSize();
+                initialQueryTimeout = statement.getQueryTimeout();
+                initialMaxFieldSize = statement.getMaxFieldSize();
+                initialFetchDirection = statement.getFetchDirection();
+                settingsSaved = true;
+            } else if ("addBatch".equals(methodName)) {
+                batchPending = true;
+            } else if (UNCACHEABLE_METHODS.contains(methodName)) {
+                reusable = false;
+            } else if (methodName.startsWith("execute")) {
+                synchronized (resultSets) {
+                    resultSets.clear();
+                }
+            }
+            Object result;
+            try {
+                result = method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof ResultSet) {
+                synchronized (resultSets) {
+                    resultSets.add((ResultSet) result);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Gives back the statement to the cache or closes it if it cannot be reused.
+         */
+        private void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (PreparedStatementCache.this) {
+                openHandles.remove(this);
+            }
+            if (reset()) {
+                release(key, statement);
+            } else {
+                closeQuietly(statement);
+            }
+        }
+
+        /**
+         * Closes the result sets that the user left open.
+         */
+        private void closeResultSets() throws SQLException {
+            List<ResultSet> resultSetsToClose;
+            synchronized (resultSets) {
+                resultSetsToClose = new ArrayList<ResultSet>(resultSets);
+                resultSets.clear();
+            }
+            for (ResultSet resultSet : resultSetsToClose) {
+                resultSet.close();
+            }
+        }
+
+        /**
+         * Closes the statement physically unless the handle is already closed.
+         */
+        private void discard() {
+            if (closed.compareAndSet(false, true)) {
+                closeQuietly(statement);
+            }
+        }
+
+        /**
+         * Restores the state of the statement that it had when it was taken from the cache or prepared.
+         *
+         * @return Whether the statement can be put back to the cache.
+         */
+        private boolean reset() {
+            if (!reusable) {
+                return false;
+            }
+            try {
+                closeResultSets();
+                statement.clearParameters();
+                if (batchPending) {
+                    statement.clearBatch();
+                }
+                if (settingsSaved) {
+                    statement.setMaxRows(initialMaxRows);
+                    statement.setFetchSize(initialFetchSize);
+                    statement.setQueryTimeout(initialQueryTimeout);
+                    statement.setMaxFieldSize(initialMaxFieldSize);
+                    statement.setFetchDirection(initialFetchDirection);
+                }
+                statement.clearWarnings();
+                return true;
+            } catch (SQLException e) {
+                LOGGER.debug("Could not reset cached statement, closing it", e);
+                return false;
+            }
+        }
+    }
+
+    private final int maxSize;
+
+    private final Statistics statistics;
+
+    /**
+     * The idle statements in access order.
+     */
+    private final Map<StatementKey, PreparedStatement> statements;
+
+    /**
+     * The handles of the statements that are used by the current borrower of the connection.
+     */
+    private final Set<StatementHandle> openHandles = new HashSet<StatementHandle>();
+
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize
+     *            The maximum number of idle statements that are kept open.
+     * @param statistics
+     *            The metrics that are updated by the cache.
+     */
+    public PreparedStatementCache(final int maxSize, final Statistics statistics) {
+        this.maxSize = maxSize;
+        this.statistics = statistics;
+        statements = new LinkedHashMap<StatementKey, PreparedStatement>(16, 0.75f, true);
+    }
+
+    /**
+     * Closes all of the idle statements and the statements that are in use. The handles of the statements that are in
+     * use cannot be used anymore.
+     */
+    public void close() {
+        List<PreparedStatement> statementsToClose;
+        List<StatementHandle> handlesToDiscard;
+        synchronized (this) {
+            closed = true;
+            statementsToClose = new ArrayList<PreparedStatement>(statements.values());
+            statements.clear();
+            handlesToDiscard = new ArrayList<StatementHandle>(openHandles);
+            openHandles.clear();
+        }
+        for (StatementHandle handle : handlesToDiscard) {
+            handle.discard();
+        }
+        for (PreparedStatement statement : statementsToClose) {
+            closeQuietly(statement);
+        }
+    }
+
+    /**
+     * Closes the statements that the current borrower of the connection did not close, so they go back to the cache
+     * and their handles cannot be used anymore. Called when the connection is returned to the pool.
+     */
+    public void closeOpenStatements() {
+        List<StatementHandle> handlesToClose;
+        synchronized (this) {
+            if (openHandles.isEmpty()) {
+                return;
+            }
+            handlesToClose = new ArrayList<StatementHandle>(openHandles);
+        }
+        for (StatementHandle handle : handlesToClose) {
+            handle.close();
+        }
+    }
+
+    private void closeQuietly(final PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Error during closing cached statement", e);
+        }
+    }
+
+    /**
+     * Returns a statement from the cache or prepares a new one on the physical connection.
+     *
+     * @param physicalConnection
+     *            The connection that prepares the statement if it is not in the cache.
+     * @param connectionHandle
+     *            The logical connection that is returned by {@link PreparedStatement#getConnection()}.
+     * @param method
+     *            The prepareStatement or prepareCall method of {@link Connection} that was called.
+     * @param args
+     *            The arguments of the method.
+     * @return A statement whose close method gives back the statement to the cache.
+     * @throws Throwable
+     *             whatever the physical connection throws.
+     */
+    public Object prepare(final Connection physicalConnection, final Connection connectionHandle,
+            final Method method, final Object[] args) throws Throwable {
+        StatementKey key = new StatementKey(method, args);
+        PreparedStatement statement;
+        synchronized (this) {
+            statement = statements.remove(key);
+        }
+        if (statement != null) {
+            statistics.hits.incrementAndGet();
+        } else {
+            statistics.misses.incrementAndGet();
+            try {
+                statement = (PreparedStatement) method.invoke(physicalConnection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        StatementHandle handle = new StatementHandle(key, statement, connectionHandle);
+        synchronized (this) {
+            openHandles.add(handle);
+        }
+        return Proxy.newProxyInstance(PreparedStatementCache.class.getClassLoader(),
+                new Class<?>[] { method.getReturnType() }, handle);
+    }
+
+    /**
+     * Puts back a statement into the cache after it was closed and reset by the user.
+     */
+    private void release(final StatementKey key, final PreparedStatement statement) {
+        List<PreparedStatement> statementsToClose = new ArrayList<PreparedStatement>();
+        synchronized (this) {
+            if (closed) {
+                statementsToClose.add(statement);
+            } else {
+                PreparedStatement previous = statements.put(key, statement);
+                if (previous != null) {
+                    // The same statement was prepared twice at the same time
+                    statementsToClose.add(previous);
+                }
+                Iterator<Entry<StatementKey, PreparedStatement>> iterator = statements.entrySet().iterator();
+                while (statements.size() > maxSize) {
+                    statementsToClose.add(iterator.next().getValue());
+                    iterator.remove();
+                    statistics.evictions.incrementAndGet();
+                }
+            }
+        }
+        for (PreparedStatement statementToClose : statementsToClose) {
+            closeQuietly(statementToClose);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides the order in which the replicas of a {@link RoutingDataSource} are tried when a read-only connection is
+ * opened. The first replica of the order gets the connection unless it fails, in which case the next one is tried.
+ */
+abstract class ReplicaLoadBalancer {
+
+    /**
+     * Distributes the connections evenly among the replicas in turn.
+     */
+    public static final String ROUND_ROBIN = "roundRobin";
+
+    /**
+     * Starts with a random replica for each connection.
+     */
+    public static final String RANDOM = "random";
+
+    /**
+     * Prefers the replica with the fewest open connections of the persistence unit. Replicas with the same number of
+     * connections are used in turn.
+     */
+    public static final String LEAST_CONNECTIONS = "leastConnections";
+
+    private static final class RoundRobinLoadBalancer extends ReplicaLoadBalancer {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        protected int getFirstIndex(final int replicaCount) {
+            return (counter.getAndIncrement() & Integer.MAX_VALUE) % replicaCount;
+        }
+    }
+
+    private static final class RandomLoadBalancer extends ReplicaLoadBalancer {
+
+        private final Random random = new Random();
+
+        @Override
+        protected int getFirstIndex(final int replicaCount) {
+            return random.nextInt(replicaCount);
+        }
+    }
+
+    private static final class LeastConnectionsLoadBalancer extends ReplicaLoadBalancer {
+
+        private final ReplicaLoadBalancer roundRobin = new RoundRobinLoadBalancer();
+
+        @Override
+        protected int getFirstIndex(final int replicaCount) {
+            return 0;
+        }
+
+        @Override
+        public List<RoutingDataSource.Replica> order(final List<RoutingDataSource.Replica> replicas) {
+            List<RoutingDataSource.Replica> result = roundRobin.order(replicas);
+            Collections.sort(result, new Comparator<RoutingDataSource.Replica>() {
+
+                @Override
+                public int compare(final RoutingDataSource.Replica o1, final RoutingDataSource.Replica o2) {
+                    int activeCount1 = o1.getActiveConnectionCount();
+                    int activeCount2 = o2.getActiveConnectionCount();
+                    return (activeCount1 < activeCount2) ? -1 : ((activeCount1 == activeCount2) ? 0 : 1);
+                }
+            });
+            return result;
+        }
+    }
+
+    /**
+     * Creates a load balancer by its name.
+     *
+     * @param name
+     *            The name of the load balancing strategy or null for the default (round-robin).
+     * @return The new load balancer.
+     * @throws IllegalArgumentException
+     *             if the strategy is unknown.
+     */
+    public static ReplicaLoadBalancer create(final String name) {
+        if ((name == null) || ROUND_ROBIN.equalsIgnoreCase(name.trim())) {
+            return new RoundRobinLoadBalancer();
+        }
+        if (RANDOM.equalsIgnoreCase(name.trim())) {
+            return new RandomLoadBalancer();
+        }
+        if (LEAST_CONNECTIONS.equalsIgnoreCase(name.trim())) {
+            return new LeastConnectionsLoadBalancer();
+        }
+        throw new IllegalArgumentException("Unknown replica load balancer: " + name + ". Supported values: "
+                + ROUND_ROBIN + ", " + RANDOM + ", " + LEAST_CONNECTIONS);
+    }
+
+    /**
+     * Selects the replica that is tried first.
+     *
+     * @param replicaCount
+     *            The number of replicas. Always positive.
+     * @return The index of the first replica.
+     */
+    protected abstract int getFirstIndex(int replicaCount);
+
+    /**
+     * Orders the replicas in which they should be tried.
+     *
+     * @param replicas
+     *            The available replicas.
+     * @return A new list with all of the replicas.
+     */
+    public List<RoutingDataSource.Replica> order(final List<RoutingDataSource.Replica> replicas) {
+        int replicaCount = replicas.size();
+        List<RoutingDataSource.Replica> result = new ArrayList<RoutingDataSource.Replica>(replicaCount);
+        if (replicaCount == 0) {
+            return result;
+        }
+        int firstIndex = getFirstIndex(replicaCount);
+        for (int i = 0; i < replicaCount; i++) {
+            result.add(replicas.get((firstIndex + i) % replicaCount));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,248 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+import javax.persistence.spi.PersistenceProvider;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.everit.osgi.jpa.container.api.MissingRequisiteInfo;
+import org.everit.osgi.jpa.container.api.PersistenceUnitWaitInfo;
+import org.everit.osgi.jpa.container.api.RequisiteDiagnosticsMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the requisites that the persistence units wait for from the trackers of the container and logs a warning
+ * if a persistence unit waits longer than a configured threshold. The diagnostics are registered as an MXBean.
+ */
+class RequisiteDiagnostics implements RequisiteDiagnosticsMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequisiteDiagnostics.class);
+
+    /**
+     * Framework property that specifies the time in milliseconds after a warning is logged about a persistence unit
+     * that waits for its persistence provider or for its requisites. The default value is one minute.
+     */
+    public static final String WAIT_WARNING_THRESHOLD_PROPERTY =
+            "org.everit.osgi.jpa.container.requisite.wait.warning.threshold";
+
+    public static final int DEFAULT_WAIT_WARNING_THRESHOLD = 60000;
+
+    /**
+     * The maximum time in milliseconds between two checks of the waiting persistence units.
+     */
+    private static final long MAX_CHECK_PERIOD = 10000;
+
+    private static final long NOT_WAITING = -1;
+
+    private final ContainerMetrics containerMetrics;
+
+    private final PersistenceProviderRequisiteTracker persistenceProviderRequisiteTracker;
+
+    private final List<PersistenceUnitRequisiteTracker> requisiteTrackers;
+
+    private final long waitWarningThreshold;
+
+    /**
+     * The start of the wait that was reported last time for each persistence unit. Only accessed by the thread of the
+     * executor.
+     */
+    private final Map<PersistenceUnitMetrics, Long> reportedWaitsByMetrics =
+            new HashMap<PersistenceUnitMetrics, Long>();
+
+    private ScheduledThreadPoolExecutor executor;
+
+    private ObjectName objectName;
+
+    /**
+     * Constructor.
+     *
+     * @param containerMetrics
+     *            The metrics that hold the state of the persistence units.
+     * @param persistenceProviderRequisiteTracker
+     *            The tracker of the persistence providers.
+     * @param requisiteTrackers
+     *            The trackers of the other requisites of the persistence units.
+     * @param waitWarningThreshold
+     *            The time in milliseconds after a warning is logged about a waiting persistence unit.
+     */
+    public RequisiteDiagnostics(final ContainerMetrics containerMetrics,
+            final PersistenceProviderRequisiteTracker persistenceProviderRequisiteTracker,
+            final List<PersistenceUnitRequisiteTracker> requisiteTrackers, final long waitWarningThreshold) {
+        this.containerMetrics = containerMetrics;
+        this.persistenceProviderRequisiteTracker = persistenceProviderRequisiteTracker;
+        this.requisiteTrackers = requisiteTrackers;
+        this.waitWarningThreshold = waitWarningThreshold;
+    }
+
+    /**
+     * Logs a warning about the persistence units that wait longer than the threshold. Every wait is reported only
+     * once.
+     */
+    private void checkWaits() {
+        Map<ParsedPersistenceUnit, PersistenceUnitMetrics> metricsByPPU = containerMetrics
+                .getPersistenceUnitMetrics();
+        reportedWaitsByMetrics.keySet().retainAll(metricsByPPU.values());
+        for (Entry<ParsedPersistenceUnit, PersistenceUnitMetrics> entry : metricsByPPU.entrySet()) {
+            PersistenceUnitMetrics unitMetrics = entry.getValue();
+            long waitStartedAt = unitMetrics.getStateChangedAt();
+            if (!isWaiting(unitMetrics) || (System.currentTimeMillis() - waitStartedAt < waitWarningThreshold)) {
+                continue;
+            }
+            Long reportedWait = reportedWaitsByMetrics.get(unitMetrics);
+            if ((reportedWait != null) && (reportedWait.longValue() == waitStartedAt)) {
+                continue;
+            }
+            PersistenceUnitWaitInfo waitInfo = createWaitInfo(entry.getKey(), unitMetrics);
+            if (waitInfo.getMissingRequisites().isEmpty()) {
+                continue;
+            }
+            reportedWaitsByMetrics.put(unitMetrics, waitStartedAt);
+            StringBuilder sb = new StringBuilder("Persistence unit ").append(waitInfo.getPersistenceUnit())
+                    .append(" has been waiting for ").append(waitInfo.getWaitTime()).append(" ms for the following")
+                    .append(" services:");
+            for (MissingRequisiteInfo missingRequisite : waitInfo.getMissingRequisites()) {
+                sb.append("\n    ").append(missingRequisite.getRequisiteId()).append(" matching ")
+                        .append(missingRequisite.getFilter());
+            }
+            LOGGER.warn(sb.toString());
+        }
+    }
+
+    /**
+     * Unregisters the MXBean and stops the checks of the waiting persistence units.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (objectName != null) {
+            containerMetrics.unregister(objectName);
+            objectName = null;
+        }
+        reportedWaitsByMetrics.clear();
+    }
+
+    private PersistenceUnitWaitInfo createWaitInfo(final ParsedPersistenceUnit ppu,
+            final PersistenceUnitMetrics unitMetrics) {
+        List<MissingRequisiteInfo> missingRequisites = new ArrayList<MissingRequisiteInfo>();
+        PersistenceUnitMetrics.State state = unitMetrics.getStateValue();
+        long waitTime = NOT_WAITING;
+        if (state == PersistenceUnitMetrics.State.WAITING_FOR_PROVIDER) {
+            waitTime = unitMetrics.getTimeInState();
+            missingRequisites.add(new MissingRequisiteInfo(PersistenceProvider.class.getName(),
+                    persistenceProviderRequisiteTracker.getRequisiteFilter(ppu.getDefiningBundle()), waitTime));
+        } else if (state == PersistenceUnitMetrics.State.WAITING_FOR_REQUISITES) {
+            waitTime = unitMetrics.getTimeInState();
+            for (PersistenceUnitRequisiteTracker requisiteTracker : requisiteTrackers) {
+                MissingRequisiteInfo missingRequisite = requisiteTracker.getMissingRequisite(ppu);
+                if (missingRequisite != null) {
+                    missingRequisites.add(missingRequisite);
+                }
+            }
+        }
+        return new PersistenceUnitWaitInfo(unitMetrics.getDisplayName(), state.name(), waitTime, missingRequisites);
+    }
+
+    @Override
+    public PersistenceUnitWaitInfo getPersistenceUnitWait(final String persistenceUnit) {
+        for (Entry<ParsedPersistenceUnit, PersistenceUnitMetrics> entry : containerMetrics
+                .getPersistenceUnitMetrics().entrySet()) {
+            if (entry.getValue().getDisplayName().equals(persistenceUnit)) {
+                return createWaitInfo(entry.getKey(), entry.getValue());
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<PersistenceUnitWaitInfo> getPersistenceUnitWaits() {
+        return getPersistenceUnitWaits(false);
+    }
+
+    private List<PersistenceUnitWaitInfo> getPersistenceUnitWaits(final boolean onlyWaiting) {
+        List<PersistenceUnitWaitInfo> result = new ArrayList<PersistenceUnitWaitInfo>();
+        for (Entry<ParsedPersistenceUnit, PersistenceUnitMetrics> entry : containerMetrics
+                .getPersistenceUnitMetrics().entrySet()) {
+            if (!onlyWaiting || isWaiting(entry.getValue())) {
+                result.add(createWaitInfo(entry.getKey(), entry.getValue()));
+            }
+        }
+        Collections.sort(result, new Comparator<PersistenceUnitWaitInfo>() {
+
+            @Override
+            public int compare(final PersistenceUnitWaitInfo o1, final PersistenceUnitWaitInfo o2) {
+                return o1.getPersistenceUnit().compareTo(o2.getPersistenceUnit());
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public List<PersistenceUnitWaitInfo> getWaitingPersistenceUnits() {
+        return getPersistenceUnitWaits(true);
+    }
+
+    @Override
+    public long getWaitWarningThreshold() {
+        return waitWarningThreshold;
+    }
+
+    private boolean isWaiting(final PersistenceUnitMetrics unitMetrics) {
+        PersistenceUnitMetrics.State state = unitMetrics.getStateValue();
+        return (state == PersistenceUnitMetrics.State.WAITING_FOR_PROVIDER)
+                || (state == PersistenceUnitMetrics.State.WAITING_FOR_REQUISITES);
+    }
+
+    /**
+     * Registers the MXBean and starts the periodic check of the waiting persistence units.
+     */
+    public void open() {
+        objectName = containerMetrics.registerMXBean(this, "RequisiteDiagnostics");
+        executor = new ScheduledThreadPoolExecutor(1, new ContainerThreadFactory(
+                "jpa-container-requisite-diagnostics-"));
+        long period = Math.min(waitWarningThreshold, MAX_CHECK_PERIOD);
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    checkWaits();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error during checking the waiting persistence units", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,265 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.everit.osgi.util.core.requisite.MultiRequisiteListener;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collapses the bursts of start and stop events of the persistence units into a single transition. An event is
+ * passed to the delegate listener only if no other event arrived for the same persistence unit during the quiet
+ * period. A start with the same service references that the persistence unit is running with is not passed at all.
+ * The events that do not cause a transition are counted in the metrics of the persistence unit.
+ */
+class RequisiteEventCoalescer implements MultiRequisiteListener<ParsedPersistenceUnit> {
+
+    /**
+     * The transitions of a persistence unit.
+     */
+    private final class UnitTransitions {
+
+        private final ParsedPersistenceUnit ppu;
+
+        /**
+         * The references that the persistence unit was started with or null if it is stopped.
+         */
+        private Map<String, ServiceReference> appliedReferences;
+
+        /**
+         * The references of the pending start or null if the pending transition is a stop.
+         */
+        private Map<String, ServiceReference> pendingReferences;
+
+        /**
+         * The pending transition or null if there is no pending transition.
+         */
+        private ScheduledFuture<?> pendingFuture;
+
+        /**
+         * Incremented by each scheduled transition, so a task that could not be cancelled in time does not apply the
+         * transition that replaced it.
+         */
+        private long sequence = 0;
+
+        public UnitTransitions(final ParsedPersistenceUnit ppu) {
+            this.ppu = ppu;
+        }
+
+        /**
+         * Passes the pending transition to the delegate listener if it is still pending.
+         *
+         * @param transitionSequence
+         *            The sequence number of the transition.
+         */
+        public synchronized void apply(final long transitionSequence) {
+            if ((pendingFuture == null) || (transitionSequence != sequence)) {
+                return;
+            }
+            pendingFuture = null;
+            Map<String, ServiceReference> references = pendingReferences;
+            pendingReferences = null;
+            if (references == null) {
+                if (appliedReferences == null) {
+                    transitionSuppressed(ppu);
+                } else {
+                    appliedReferences = null;
+                    delegate.stopDependentObject(ppu);
+                }
+            } else if (references.equals(appliedReferences)) {
+                transitionSuppressed(ppu);
+            } else {
+                if (appliedReferences != null) {
+                    appliedReferences = null;
+                    delegate.stopDependentObject(ppu);
+                }
+                appliedReferences = references;
+                delegate.startDependentObject(ppu, references);
+            }
+        }
+
+        /**
+         * Drops the pending transition.
+         */
+        public synchronized void cancel() {
+            if (pendingFuture != null) {
+                pendingFuture.cancel(false);
+                pendingFuture = null;
+            }
+            pendingReferences = null;
+        }
+
+        /**
+         * Schedules a transition. The pending transition is replaced.
+         *
+         * @param references
+         *            The references of the start or null if the transition is a stop.
+         */
+        public synchronized void schedule(final Map<String, ServiceReference> references) {
+            if (pendingFuture != null) {
+                pendingFuture.cancel(false);
+                transitionSuppressed(ppu);
+            }
+            pendingReferences = references;
+            final long transitionSequence = ++sequence;
+            try {
+                pendingFuture = executor.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            apply(transitionSequence);
+                        } catch (RuntimeException e) {
+                            LOGGER.error("Error during applying the requisite changes of persistence unit "
+                                    + ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME), e);
+                        }
+                    }
+                }, quietPeriod, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Coalescer is closed, transition is dropped", e);
+                pendingFuture = null;
+                pendingReferences = null;
+            }
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequisiteEventCoalescer.class);
+
+    private final MultiRequisiteListener<ParsedPersistenceUnit> delegate;
+
+    /**
+     * The time in milliseconds without events that has to pass before a transition is applied. If zero, the events
+     * are passed to the delegate immediately.
+     */
+    private final long quietPeriod;
+
+    private final ContainerMetrics containerMetrics;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * The transitions of the persistence units that got events since they were registered.
+     */
+    private final ConcurrentMap<ParsedPersistenceUnit, UnitTransitions> transitionsByPPU =
+            new ConcurrentHashMap<ParsedPersistenceUnit, UnitTransitions>();
+
+    /**
+     * Constructor.
+     *
+     * @param delegate
+     *            The listener that starts and stops the persistence units.
+     * @param quietPeriod
+     *            The time in milliseconds without events that has to pass before a transition is applied. If zero,
+     *            the events are passed to the delegate immediately.
+     * @param containerMetrics
+     *            The metrics that the suppressed transitions are reported to.
+     */
+    public RequisiteEventCoalescer(final MultiRequisiteListener<ParsedPersistenceUnit> delegate,
+            final long quietPeriod, final ContainerMetrics containerMetrics) {
+        this.delegate = delegate;
+        this.quietPeriod = quietPeriod;
+        this.containerMetrics = containerMetrics;
+        if (quietPeriod > 0) {
+            executor = new ScheduledThreadPoolExecutor(1, new ContainerThreadFactory("jpa-container-coalescer-"));
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Drops the pending transition of a persistence unit and forgets its state. Must be called when the persistence
+     * unit is stopped directly (e.g. because its bundle is stopped). If a transition is being applied, this method
+     * waits until it finishes.
+     *
+     * @param ppu
+     *            The persistence unit.
+     */
+    public void cancel(final ParsedPersistenceUnit ppu) {
+        UnitTransitions unitTransitions = transitionsByPPU.remove(ppu);
+        if (unitTransitions != null) {
+            unitTransitions.cancel();
+        }
+    }
+
+    /**
+     * Drops all pending transitions.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (UnitTransitions unitTransitions : transitionsByPPU.values()) {
+            unitTransitions.cancel();
+        }
+        transitionsByPPU.clear();
+    }
+
+    private UnitTransitions getUnitTransitions(final ParsedPersistenceUnit ppu) {
+        UnitTransitions unitTransitions = transitionsByPPU.get(ppu);
+        if (unitTransitions == null) {
+            unitTransitions = new UnitTransitions(ppu);
+            UnitTransitions existing = transitionsByPPU.putIfAbsent(ppu, unitTransitions);
+            if (existing != null) {
+                unitTransitions = existing;
+            }
+        }
+        return unitTransitions;
+    }
+
+    @Override
+    public void startDependentObject(final ParsedPersistenceUnit dependentObject,
+            final Map<String, ServiceReference> references) {
+        if (executor == null) {
+            delegate.startDependentObject(dependentObject, references);
+        } else {
+            getUnitTransitions(dependentObject).schedule(
+                    new HashMap<String, ServiceReference>(references));
+        }
+    }
+
+    @Override
+    public void stopDependentObject(final ParsedPersistenceUnit dependentObject) {
+        if (executor == null) {
+            delegate.stopDependentObject(dependentObject);
+        } else {
+            getUnitTransitions(dependentObject).schedule(null);
+        }
+    }
+
+    private void transitionSuppressed(final ParsedPersistenceUnit ppu) {
+        PersistenceUnitMetrics unitMetrics = containerMetrics.getPersistenceUnitMetrics(ppu);
+        if (unitMetrics != null) {
+            unitMetrics.transitionSuppressed();
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The non-jta DataSource of a persistence unit with a read/write split. The connections are opened lazily: the
+ * physical connection is opened on the first call that needs it, so a connection that is switched to read-only before
+ * its first use is opened on one of the replica DataSource services. The routing is decided only then: a connection
+ * that is switched to read-only after its first use stays on the primary DataSource, and a connection that was opened
+ * on a replica cannot be switched back to read-write. All other connections are opened on the primary DataSource. The
+ * replicas are tracked dynamically and if a replica fails to open a connection the next one is tried and finally the
+ * primary.
+ */
+class RoutingDataSource implements DataSource, Closeable, ServiceTrackerCustomizer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoutingDataSource.class);
+
+    /**
+     * Persistence unit property that switches on the read/write split of the non-jta DataSource if its value is true.
+     * The property is read from persistence.xml only, because it changes the filter of the DataSource requisite of the
+     * persistence unit. The load balancer can be overridden at runtime like the other properties.
+     */
+    public static final String ROUTING_ENABLED_PROPERTY = "org.everit.osgi.jpa.container.routing.enabled";
+
+    /**
+     * Persistence unit property that selects the {@link ReplicaLoadBalancer} of the replicas.
+     */
+    public static final String LOAD_BALANCER_PROPERTY = "org.everit.osgi.jpa.container.routing.loadBalancer";
+
+    /**
+     * The service property of the DataSource services that tells whether the DataSource is the primary or a replica.
+     */
+    public static final String ROLE_SERVICE_PROPERTY = "org.everit.osgi.jpa.container.datasource.role";
+
+    public static final String PRIMARY_ROLE = "primary";
+
+    public static final String REPLICA_ROLE = "replica";
+
+    /**
+     * A replica DataSource service with the number of its connections that are open at the moment.
+     */
+    static final class Replica {
+
+        private final ServiceReference reference;
+
+        private final DataSource dataSource;
+
+        private final AtomicInteger activeConnectionCount = new AtomicInteger();
+
+        public Replica(final ServiceReference reference, final DataSource dataSource) {
+            this.reference = reference;
+            this.dataSource = dataSource;
+        }
+
+        public int getActiveConnectionCount() {
+            return activeConnectionCount.get();
+        }
+
+        @Override
+        public String toString() {
+            return "replica " + reference.getProperty(Constants.SERVICE_ID);
+        }
+    }
+
+    /**
+     * A connection that opens the physical connection on the first call that needs it. The settings that are made
+     * before are recorded and applied on the physical connection.
+     */
+    private class LazyConnectionHandle implements InvocationHandler {
+
+        private final String username;
+
+        private final String password;
+
+        private Boolean readOnly;
+
+        private Boolean autoCommit;
+
+        private Integer transactionIsolation;
+
+        private Connection target;
+
+        private Replica replica;
+
+        private boolean closed = false;
+
+        public LazyConnectionHandle(final String username, final String password) {
+            this.username = username;
+            this.password = password;
+        }
+
+        private void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (target != null) {
+                try {
+                    target.close();
+                } finally {
+                    if (replica != null) {
+                        replica.activeConnectionCount.decrementAndGet();
+                    }
+                }
+            }
+        }
+
+        private Connection getTarget() throws SQLException {
+            if (target != null) {
+                return target;
+            }
+            if (Boolean.TRUE.equals(readOnly)) {
+                openReplicaConnection();
+            }
+            if (target == null) {
+                target = openConnection(primary, username, password);
+                primaryConnectionCount.incrementAndGet();
+            }
+            try {
+                if ((autoCommit != null) && (autoCommit.booleanValue() != target.getAutoCommit())) {
+                    target.setAutoCommit(autoCommit.booleanValue());
+                }
+                if (transactionIsolation != null) {
+                    target.setTransactionIsolation(transactionIsolation.intValue());
+                }
+                if (readOnly != null) {
+                    target.setReadOnly(readOnly.booleanValue());
+                }
+            } catch (SQLException e) {
+                close();
+                throw e;
+            }
+            return target;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            String methodName = method.getName();
+            int argCount = (args == null) ? 0 : args.length;
+            if ("close".equals(methodName) && (argCount == 0)) {
+                close();
+                return null;
+            }
+            if ("isClosed".equals(methodName) && (argCount == 0)) {
+                return closed || ((target != null) && target.isClosed());
+            }
+            if ("equals".equals(methodName) && (argCount == 1)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(methodName) && (argCount == 0)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(methodName) && (argCount == 0)) {
+                return "Routing[" + ((target == null) ? "not opened" : target) + "]";
+            }
+            if (closed) {
+                throw new SQLException("Connection is closed");
+            }
+            if (target == null) {
+                if ("setReadOnly".equals(methodName)) {
+                    readOnly = (Boolean) args[0];
+                    return null;
+                }
+                if ("isReadOnly".equals(methodName)) {
+                    return Boolean.TRUE.equals(readOnly);
+                }
+                if ("setAutoCommit".equals(methodName)) {
+                    autoCommit = (Boolean) args[0];
+                    return null;
+                }
+                if ("getAutoCommit".equals(methodName)) {
+                    return (autoCommit != null) ? autoCommit : getDefaultAutoCommit();
+                }
+                if ("setTransactionIsolation".equals(methodName)) {
+                    transactionIsolation = (Integer) args[0];
+                    return null;
+                }
+                if ("getTransactionIsolation".equals(methodName)) {
+                    return (transactionIsolation != null) ? transactionIsolation : getDefaultTransactionIsolation();
+                }
+                if (("commit".equals(methodName) || "rollback".equals(methodName) || "clearWarnings"
+                        .equals(methodName)) && (argCount == 0)) {
+                    return null;
+                }
+                if ("getWarnings".equals(methodName)) {
+                    return null;
+                }
+            } else if ((replica != null) && "setReadOnly".equals(methodName)
+                    && !Boolean.TRUE.equals(args[0])) {
+                throw new SQLException("The connection of " + name + " was opened on " + replica
+                        + " and cannot be switched to read-write");
+            }
+            try {
+                return method.invoke(getTarget(), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void openReplicaConnection() {
+            for (Replica candidate : loadBalancer.order(new ArrayList<Replica>(replicas))) {
+                try {
+                    target = openConnection(candidate.dataSource, username, password);
+                    replica = candidate;
+                    candidate.activeConnectionCount.incrementAndGet();
+                    replicaConnectionCount.incrementAndGet();
+                    return;
+                } catch (SQLException e) {
+                    failoverCount.incrementAndGet();
+                    LOGGER.warn("Could not open read-only connection on " + candidate + " of " + name
+                            + ". Trying the next DataSource.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the filter of the replica DataSource services of a persistence unit.
+     *
+     * @param dataSourceExpression
+     *            The non-jta-data-source of the persistence unit.
+     * @return The filter or null if the expression does not refer to DataSource services.
+     */
+    static String createReplicaFilter(final String dataSourceExpression) {
+        Matcher matcher = Pattern.compile(DataSourceRequisiteTracker.OSGI_DS_SERVICE_PATTERN).matcher(
+                String.valueOf(dataSourceExpression));
+        if (!matcher.matches()) {
+            return null;
+        }
+        String dataSourceFilter = matcher.group(1);
+        if (dataSourceFilter == null) {
+            dataSourceFilter = "";
+        }
+        return "(&(" + Constants.OBJECTCLASS + "=" + DataSource.class.getName() + ")" + dataSourceFilter + "("
+                + ROLE_SERVICE_PROPERTY + "=" + REPLICA_ROLE + "))";
+    }
+
+    /**
+     * Checks whether the read/write split is switched on in the properties of a persistence unit.
+     */
+    static boolean isEnabled(final Properties props) {
+        return (props != null) && "true".equalsIgnoreCase(props.getProperty(ROUTING_ENABLED_PROPERTY));
+    }
+
+    /**
+     * Checks whether the read/write split is switched on in the persistence.xml of a persistence unit.
+     */
+    static boolean isEnabled(final ParsedPersistenceUnit ppu) {
+        return isEnabled((Properties) ppu.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.PROPERTIES));
+    }
+
+    private static Connection openConnection(final DataSource dataSource, final String username,
+            final String password) throws SQLException {
+        if (username == null) {
+            return dataSource.getConnection();
+        }
+        return dataSource.getConnection(username, password);
+    }
+
+    private final String name;
+
+    private final DataSource primary;
+
+    private final BundleContext context;
+
+    private final Filter replicaFilter;
+
+    private final ReplicaLoadBalancer loadBalancer;
+
+    /**
+     * The replica DataSource services that are available at the moment.
+     */
+    private final List<Replica> replicas = new CopyOnWriteArrayList<Replica>();
+
+    private ServiceTracker replicaTracker;
+
+    private volatile Boolean defaultAutoCommit;
+
+    private volatile Integer defaultTransactionIsolation;
+
+    private final AtomicLong primaryConnectionCount = new AtomicLong();
+
+    private final AtomicLong replicaConnectionCount = new AtomicLong();
+
+    private final AtomicLong failoverCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param name
+     *            The name of the persistence unit that is used in the log messages.
+     * @param primary
+     *            The primary DataSource.
+     * @param context
+     *            The context of the persistence bundle that gets the replica DataSource services.
+     * @param replicaFilter
+     *            The filter of the replica DataSource services.
+     * @param loadBalancer
+     *            The load balancer of the replicas.
+     */
+    public RoutingDataSource(final String name, final DataSource primary, final BundleContext context,
+            final Filter replicaFilter, final ReplicaLoadBalancer loadBalancer) {
+        this.name = name;
+        this.primary = primary;
+        this.context = context;
+        this.replicaFilter = replicaFilter;
+        this.loadBalancer = loadBalancer;
+    }
+
+    @Override
+    public Object addingService(final ServiceReference reference) {
+        DataSource dataSource = (DataSource) context.getService(reference);
+        if (dataSource == null) {
+            return null;
+        }
+        Replica replica = new Replica(reference, dataSource);
+        replicas.add(replica);
+        LOGGER.info("Read-only connections of " + name + " may be routed to " + replica);
+        return replica;
+    }
+
+    /**
+     * Stops tracking the replicas. The connections that are open at the moment are not closed.
+     */
+    @Override
+    public synchronized void close() {
+        if (replicaTracker != null) {
+            replicaTracker.close();
+            replicaTracker = null;
+        }
+        LOGGER.debug("Routing DataSource of " + name + " closed. Primary connections: " + primaryConnectionCount.get()
+                + ", replica connections: " + replicaConnectionCount.get() + ", failovers: " + failoverCount.get());
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return createConnection(null, null);
+    }
+
+    @Override
+    public Connection getConnection(final String username, final String password) throws SQLException {
+        return createConnection(username, password);
+    }
+
+    private Connection createConnection(final String username, final String password) {
+        return (Connection) Proxy.newProxyInstance(RoutingDataSource.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new LazyConnectionHandle(username, password));
+    }
+
+    private Boolean getDefaultAutoCommit() throws SQLException {
+        readDefaults();
+        return defaultAutoCommit;
+    }
+
+    private Integer getDefaultTransactionIsolation() throws SQLException {
+        readDefaults();
+        return defaultTransactionIsolation;
+    }
+
+    public long getFailoverCount() {
+        return failoverCount.get();
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return primary.getLoginTimeout();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return primary.getLogWriter();
+    }
+
+    /**
+     * Part of JDBC 4.1. Not annotated with Override so the class compiles with older JDBC APIs as well.
+     */
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    public long getPrimaryConnectionCount() {
+        return primaryConnectionCount.get();
+    }
+
+    public long getReplicaConnectionCount() {
+        return replicaConnectionCount.get();
+    }
+
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || primary.isWrapperFor(iface);
+    }
+
+    @Override
+    public void modifiedService(final ServiceReference reference, final Object service) {
+        // The replica is selected by the filter only
+    }
+
+    /**
+     * Starts tracking the replicas.
+     */
+    public synchronized void open() {
+        replicaTracker = new ServiceTracker(context, replicaFilter, this);
+        replicaTracker.open();
+    }
+
+    /**
+     * Reads the auto-commit mode and the transaction isolation of the connections of the primary DataSource so they
+     * can be answered without opening a physical connection.
+     */
+    private void readDefaults() throws SQLException {
+        if (defaultTransactionIsolation != null) {
+            return;
+        }
+        Connection connection = primary.getConnection();
+        try {
+            defaultAutoCommit = connection.getAutoCommit();
+            defaultTransactionIsolation = connection.getTransactionIsolation();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Override
+    public void removedService(final ServiceReference reference, final Object service) {
+        replicas.remove(service);
+        context.ungetService(reference);
+        LOGGER.info("Read-only connections of " + name + " are not routed to " + service + " anymore");
+    }
+
+    @Override
+    public void setLoginTimeout(final int seconds) throws SQLException {
+        primary.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public void setLogWriter(final PrintWriter out) throws SQLException {
+        primary.setLogWriter(out);
+    }
+
+    @Override
+    public String toString() {
+        return "Routing DataSource of " + name + " with " + replicas.size() + " replicas";
+    }
+
+    @Override
+    public <T> T unwrap(final Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return primary.unwrap(iface);
+    }
+}
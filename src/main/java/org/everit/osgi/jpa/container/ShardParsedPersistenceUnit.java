@@ -0,0 +1,90 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+/**
+ * One instance of a sharded persistence unit. The instance has the metadata of the persistence unit that is defined
+ * in the persistence descriptor except that its DataSource expression selects one DataSource service by its service
+ * id.
+ */
+class ShardParsedPersistenceUnit implements ParsedPersistenceUnit {
+
+    private final ParsedPersistenceUnit template;
+
+    private final String shardId;
+
+    private final Map<String, Object> persistenceXmlMetadata;
+
+    /**
+     * Constructor.
+     *
+     * @param template
+     *            The sharded persistence unit that is defined in the persistence descriptor.
+     * @param dataSourceKey
+     *            The metadata key of the DataSource expression that is replaced ({@link #JTA_DATASOURCE} or
+     *            {@link #NON_JTA_DATASOURCE}).
+     * @param dataSourceServiceId
+     *            The service id of the DataSource of the shard.
+     * @param shardId
+     *            The identifier of the shard.
+     */
+    public ShardParsedPersistenceUnit(final ParsedPersistenceUnit template, final String dataSourceKey,
+            final Object dataSourceServiceId, final String shardId) {
+        this.template = template;
+        this.shardId = shardId;
+        persistenceXmlMetadata = new HashMap<String, Object>(template.getPersistenceXmlMetadata());
+        persistenceXmlMetadata.put(dataSourceKey, "osgi:service/" + DataSource.class.getName() + "/("
+                + Constants.SERVICE_ID + "=" + dataSourceServiceId + ")");
+    }
+
+    @Override
+    public Bundle getDefiningBundle() {
+        return template.getDefiningBundle();
+    }
+
+    @Override
+    public Map<String, Object> getPersistenceXmlMetadata() {
+        return persistenceXmlMetadata;
+    }
+
+    public String getShardId() {
+        return shardId;
+    }
+
+    public ParsedPersistenceUnit getTemplate() {
+        return template;
+    }
+
+    @Override
+    public String toString() {
+        return template + " (shard " + shardId + ")";
+    }
+}
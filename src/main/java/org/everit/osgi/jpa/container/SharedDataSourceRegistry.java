@@ -0,0 +1,215 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Container level registry of the DataSources that are created with a {@link DataSourceFactory}. The persistence
+ * units whose DataSources would be created by the same DataSourceFactory with the same connection properties and
+ * connection pool settings get the same DataSource, so they share one connection pool instead of opening their own
+ * connections to the database. A shared DataSource is closed when the last persistence unit that uses it releases it.
+ */
+class SharedDataSourceRegistry {
+
+    /**
+     * Creates the DataSource when it is acquired first.
+     */
+    interface DataSourceCreator {
+
+        DataSource createDataSource() throws SQLException;
+    }
+
+    /**
+     * The handle of a persistence unit on a shared DataSource. Closing the handle releases the DataSource and the
+     * DataSource is closed when all of its handles are closed.
+     */
+    final class SharedDataSource implements Closeable {
+
+        private final SharedDataSourceEntry entry;
+
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private SharedDataSource(final SharedDataSourceEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(entry);
+            }
+        }
+
+        public DataSource getDataSource() {
+            return entry.dataSource;
+        }
+
+        @Override
+        public String toString() {
+            return "Shared[" + entry.dataSource + "]";
+        }
+    }
+
+    /**
+     * A DataSource in the registry.
+     */
+    private static final class SharedDataSourceEntry {
+
+        private final Map<String, String> key;
+
+        private DataSource dataSource;
+
+        private SQLException creationFailure;
+
+        /**
+         * The number of open handles. Guarded by the registry.
+         */
+        private int referenceCount = 0;
+
+        public SharedDataSourceEntry(final Map<String, String> key) {
+            this.key = key;
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedDataSourceRegistry.class);
+
+    /**
+     * Creates the key that identifies the DataSources that can be shared.
+     *
+     * @param dataSourceFactoryReference
+     *            The reference of the DataSourceFactory that creates the DataSource.
+     * @param dataSourceFactoryProps
+     *            The properties that are passed to the DataSourceFactory.
+     * @param unitProps
+     *            The properties of the persistence unit whose connection pool settings have to match.
+     * @return The key.
+     */
+    public static Map<String, String> createKey(final ServiceReference dataSourceFactoryReference,
+            final Properties dataSourceFactoryProps, final Properties unitProps) {
+        Map<String, String> key = new TreeMap<String, String>();
+        key.put(Constants.SERVICE_ID, String.valueOf(dataSourceFactoryReference.getProperty(Constants.SERVICE_ID)));
+        key.put(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, String.valueOf(dataSourceFactoryReference
+                .getProperty(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS)));
+        for (String propertyName : dataSourceFactoryProps.stringPropertyNames()) {
+            key.put("jdbc:" + propertyName, dataSourceFactoryProps.getProperty(propertyName).trim());
+        }
+        if (unitProps != null) {
+            for (Entry<Object, Object> property : unitProps.entrySet()) {
+                String propertyName = String.valueOf(property.getKey());
+                if (propertyName.startsWith(ConnectionPoolConfiguration.PROPERTY_PREFIX)) {
+                    key.put(propertyName, String.valueOf(property.getValue()).trim());
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * The DataSources by their keys. Guarded by this object.
+     */
+    private final Map<Map<String, String>, SharedDataSourceEntry> entriesByKey =
+            new HashMap<Map<String, String>, SharedDataSourceEntry>();
+
+    /**
+     * Returns a handle on the DataSource that belongs to the key. The DataSource is created if there is no DataSource
+     * with the same key yet.
+     *
+     * @param key
+     *            The key created by {@link #createKey(ServiceReference, Properties, Properties)} that can be extended
+     *            with further entries.
+     * @param creator
+     *            Creates the DataSource if necessary.
+     * @return The handle that has to be closed when the DataSource is not used anymore.
+     * @throws SQLException
+     *             if the creation of the DataSource failed.
+     */
+    public SharedDataSource acquire(final Map<String, String> key, final DataSourceCreator creator)
+            throws SQLException {
+        SharedDataSourceEntry entry;
+        synchronized (this) {
+            entry = entriesByKey.get(key);
+            if (entry == null) {
+                entry = new SharedDataSourceEntry(new TreeMap<String, String>(key));
+                entriesByKey.put(entry.key, entry);
+            }
+            entry.referenceCount++;
+        }
+        SharedDataSource sharedDataSource = new SharedDataSource(entry);
+        synchronized (entry) {
+            if ((entry.dataSource == null) && (entry.creationFailure == null)) {
+                try {
+                    entry.dataSource = creator.createDataSource();
+                } catch (SQLException e) {
+                    entry.creationFailure = e;
+                }
+            } else if (entry.dataSource != null) {
+                LOGGER.info("Sharing DataSource " + entry.dataSource);
+            }
+            if (entry.creationFailure != null) {
+                sharedDataSource.close();
+                throw entry.creationFailure;
+            }
+        }
+        return sharedDataSource;
+    }
+
+    private void release(final SharedDataSourceEntry entry) {
+        synchronized (this) {
+            entry.referenceCount--;
+            if (entry.referenceCount > 0) {
+                return;
+            }
+            if (entriesByKey.get(entry.key) == entry) {
+                entriesByKey.remove(entry.key);
+            }
+        }
+        synchronized (entry) {
+            if (entry.dataSource instanceof Closeable) {
+                try {
+                    ((Closeable) entry.dataSource).close();
+                } catch (IOException e) {
+                    LOGGER.error("Error during closing shared DataSource " + entry.dataSource, e);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error during closing shared DataSource " + entry.dataSource, e);
+                }
+            }
+            entry.dataSource = null;
+        }
+    }
+}
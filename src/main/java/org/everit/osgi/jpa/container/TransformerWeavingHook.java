@@ -0,0 +1,152 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.spi.ClassTransformer;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.weaving.WeavingHook;
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the {@link ClassTransformer}s of a persistence unit to the classes of the persistence bundle when they are
+ * loaded. The woven classes get dynamic imports to the packages exported by the persistence provider bundle as the
+ * enhanced code usually references the classes of the provider. This class must be loaded only if the weaving hook
+ * package is available in the framework (see {@link PersistenceUnitInfoImpl#isWeavingSupported()}).
+ */
+class TransformerWeavingHook implements WeavingHook {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransformerWeavingHook.class);
+
+    /**
+     * The bundle whose classes are woven.
+     */
+    private final Bundle persistenceBundle;
+
+    /**
+     * The bundle of the persistence provider that the woven classes may reference.
+     */
+    private final Bundle providerBundle;
+
+    private final List<ClassTransformer> transformers;
+
+    /**
+     * The dynamic imports that are added to every woven class. Lazily calculated as the wiring of the provider bundle
+     * is not available before it is resolved.
+     */
+    private volatile List<String> dynamicImports;
+
+    /**
+     * Constructor.
+     *
+     * @param persistenceBundle
+     *            The bundle whose classes are woven.
+     * @param providerBundle
+     *            The bundle of the persistence provider.
+     * @param transformers
+     *            The transformers of the persistence unit. The list may be extended after the hook is registered so it
+     *            has to be thread-safe.
+     */
+    public TransformerWeavingHook(final Bundle persistenceBundle, final Bundle providerBundle,
+            final List<ClassTransformer> transformers) {
+        this.persistenceBundle = persistenceBundle;
+        this.providerBundle = providerBundle;
+        this.transformers = transformers;
+    }
+
+    private List<String> getDynamicImports() {
+        List<String> result = dynamicImports;
+        if (result != null) {
+            return result;
+        }
+        result = new ArrayList<String>();
+        BundleWiring providerWiring = (providerBundle != null) ? providerBundle.adapt(BundleWiring.class) : null;
+        if (providerWiring != null) {
+            String bundleAttributes = ";" + Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE + "=\""
+                    + providerBundle.getSymbolicName() + "\";" + Constants.BUNDLE_VERSION_ATTRIBUTE + "=\"["
+                    + providerBundle.getVersion() + "," + providerBundle.getVersion() + "]\"";
+            for (BundleCapability capability : providerWiring.getCapabilities(BundleRevision.PACKAGE_NAMESPACE)) {
+                Object packageName = capability.getAttributes().get(BundleRevision.PACKAGE_NAMESPACE);
+                if (packageName != null) {
+                    result.add(packageName + bundleAttributes);
+                }
+            }
+        }
+        result = Collections.unmodifiableList(result);
+        dynamicImports = result;
+        return result;
+    }
+
+    /**
+     * Registers this hook as an OSGi service.
+     *
+     * @param bcx
+     *            The context that the hook is registered with.
+     * @return The registration of the hook.
+     */
+    public ServiceRegistration register(final BundleContext bcx) {
+        return bcx.registerService(WeavingHook.class.getName(), this, null);
+    }
+
+    @Override
+    public void weave(final WovenClass wovenClass) {
+        BundleWiring wiring = wovenClass.getBundleWiring();
+        if (!persistenceBundle.equals(wiring.getBundle())) {
+            return;
+        }
+        String className = wovenClass.getClassName().replace('.', '/');
+        byte[] originalBytes = wovenClass.getBytes();
+        byte[] bytes = originalBytes;
+        for (ClassTransformer transformer : transformers) {
+            try {
+                byte[] transformedBytes = transformer.transform(wiring.getClassLoader(), className, null,
+                        wovenClass.getProtectionDomain(), bytes);
+                if (transformedBytes != null) {
+                    bytes = transformedBytes;
+                }
+            } catch (IllegalClassFormatException e) {
+                LOGGER.error("Error during transforming class " + wovenClass.getClassName() + " of bundle "
+                        + persistenceBundle.getSymbolicName(), e);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error during transforming class " + wovenClass.getClassName() + " of bundle "
+                        + persistenceBundle.getSymbolicName(), e);
+            }
+        }
+        if (bytes != originalBytes) {
+            wovenClass.setBytes(bytes);
+            wovenClass.getDynamicImports().addAll(getDynamicImports());
+        }
+    }
+}
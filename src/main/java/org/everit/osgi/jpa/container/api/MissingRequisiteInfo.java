@@ -0,0 +1,79 @@
+package org.everit.osgi.jpa.container.api;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A requisite of a persistence unit that has no suitable service.
+ */
+public class MissingRequisiteInfo {
+
+    /**
+     * The id of the requisite (the name of the service interface).
+     */
+    private final String requisiteId;
+
+    /**
+     * The filter that the services are matched against.
+     */
+    private final String filter;
+
+    /**
+     * The time in milliseconds since the persistence unit waits for the requisite.
+     */
+    private final long waitTime;
+
+    /**
+     * Constructor of the class that sets all fields.
+     *
+     * @param requisiteId
+     *            The id of the requisite.
+     * @param filter
+     *            The filter that the services are matched against.
+     * @param waitTime
+     *            The time in milliseconds since the persistence unit waits for the requisite.
+     */
+    @ConstructorProperties({ "requisiteId", "filter", "waitTime" })
+    public MissingRequisiteInfo(final String requisiteId, final String filter, final long waitTime) {
+        this.requisiteId = requisiteId;
+        this.filter = filter;
+        this.waitTime = waitTime;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    public String getRequisiteId() {
+        return requisiteId;
+    }
+
+    public long getWaitTime() {
+        return waitTime;
+    }
+
+    @Override
+    public String toString() {
+        return requisiteId + " " + filter + " (" + waitTime + " ms)";
+    }
+}
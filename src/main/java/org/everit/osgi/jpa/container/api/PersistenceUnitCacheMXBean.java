@@ -0,0 +1,86 @@
+package org.everit.osgi.jpa.container.api;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.Map;
+
+/**
+ * Management interface of the shared (second-level) cache of a persistence unit. The entities are identified by the
+ * name of their class or by their entity name. The operations throw an IllegalStateException if the persistence unit
+ * is not active.
+ */
+public interface PersistenceUnitCacheMXBean {
+
+    /**
+     * Whether the entity with the id is in the cache.
+     *
+     * @param entity
+     *            The class name or the entity name of the entity.
+     * @param id
+     *            The id of the entity in its string form.
+     */
+    boolean contains(String entity, String id);
+
+    /**
+     * Removes all of the entities from the cache.
+     */
+    void evictAll();
+
+    /**
+     * Removes the entities of a type and of its subtypes from the cache.
+     *
+     * @param entity
+     *            The class name or the entity name of the entity.
+     */
+    void evictEntity(String entity);
+
+    /**
+     * Removes an entity from the cache.
+     *
+     * @param entity
+     *            The class name or the entity name of the entity.
+     * @param id
+     *            The id of the entity in its string form. Only the simple ids that have a string, number or UUID type
+     *            or a type with a static valueOf(String) method are supported.
+     */
+    void evictEntityById(String entity, String id);
+
+    /**
+     * The cache statistics of the persistence provider. Empty if the provider does not expose them or the persistence
+     * unit is not active.
+     */
+    Map<String, String> getCacheStatistics();
+
+    /**
+     * The effective shared cache mode of the persistence unit (ALL, NONE, ENABLE_SELECTIVE, DISABLE_SELECTIVE or
+     * UNSPECIFIED). The javax.persistence.sharedCache.mode property overrides the shared-cache-mode element of
+     * persistence.xml.
+     */
+    String getSharedCacheMode();
+
+    String getUnitName();
+
+    /**
+     * Whether the persistence unit is active so the cache can be managed.
+     */
+    boolean isActive();
+}
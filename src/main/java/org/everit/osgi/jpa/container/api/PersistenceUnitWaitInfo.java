@@ -0,0 +1,93 @@
+package org.everit.osgi.jpa.container.api;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.beans.ConstructorProperties;
+import java.util.List;
+
+/**
+ * The requisites that a persistence unit waits for.
+ */
+public class PersistenceUnitWaitInfo {
+
+    /**
+     * The name that identifies the persistence unit (e.g. my.bundle:1.0.0/myUnit).
+     */
+    private final String persistenceUnit;
+
+    /**
+     * The lifecycle state of the persistence unit.
+     */
+    private final String state;
+
+    /**
+     * The time in milliseconds since the persistence unit waits or -1 if it does not wait for anything.
+     */
+    private final long waitTime;
+
+    /**
+     * The requisites that have no suitable service.
+     */
+    private final List<MissingRequisiteInfo> missingRequisites;
+
+    /**
+     * Constructor of the class that sets all fields.
+     *
+     * @param persistenceUnit
+     *            The name that identifies the persistence unit.
+     * @param state
+     *            The lifecycle state of the persistence unit.
+     * @param waitTime
+     *            The time in milliseconds since the persistence unit waits or -1 if it does not wait for anything.
+     * @param missingRequisites
+     *            The requisites that have no suitable service.
+     */
+    @ConstructorProperties({ "persistenceUnit", "state", "waitTime", "missingRequisites" })
+    public PersistenceUnitWaitInfo(final String persistenceUnit, final String state, final long waitTime,
+            final List<MissingRequisiteInfo> missingRequisites) {
+        this.persistenceUnit = persistenceUnit;
+        this.state = state;
+        this.waitTime = waitTime;
+        this.missingRequisites = missingRequisites;
+    }
+
+    public List<MissingRequisiteInfo> getMissingRequisites() {
+        return missingRequisites;
+    }
+
+    public String getPersistenceUnit() {
+        return persistenceUnit;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public long getWaitTime() {
+        return waitTime;
+    }
+
+    @Override
+    public String toString() {
+        return persistenceUnit + " " + state + " " + missingRequisites;
+    }
+}
@@ -0,0 +1,55 @@
+package org.everit.osgi.jpa.container.api;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.List;
+
+/**
+ * Diagnostics of the requisites of the persistence units. It shows which persistence unit is blocked on which service
+ * and for how long. All of the times are in milliseconds.
+ */
+public interface RequisiteDiagnosticsMXBean {
+
+    /**
+     * The requisites of a persistence unit.
+     *
+     * @param persistenceUnit
+     *            The name that identifies the persistence unit (e.g. my.bundle:1.0.0/myUnit).
+     * @return The missing requisites of the persistence unit or null if there is no such persistence unit.
+     */
+    PersistenceUnitWaitInfo getPersistenceUnitWait(String persistenceUnit);
+
+    /**
+     * The missing requisites of every persistence unit that is tracked by the container.
+     */
+    List<PersistenceUnitWaitInfo> getPersistenceUnitWaits();
+
+    /**
+     * The missing requisites of the persistence units that wait for the persistence provider or for their requisites.
+     */
+    List<PersistenceUnitWaitInfo> getWaitingPersistenceUnits();
+
+    /**
+     * The time after a warning is logged about a persistence unit that waits for its requisites.
+     */
+    long getWaitWarningThreshold();
+}
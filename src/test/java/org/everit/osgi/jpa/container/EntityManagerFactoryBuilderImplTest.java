@@ -0,0 +1,283 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceUnitTransactionType;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests the cache of the built EntityManagerFactories. The idle eviction is scheduled on an executor stub, so the
+ * tests run it when they need it.
+ */
+public class EntityManagerFactoryBuilderImplTest {
+
+    /**
+     * An EntityManagerFactory that records whether it was closed.
+     */
+    private static class EntityManagerFactoryStub implements InvocationHandler {
+
+        private final Map<?, ?> props;
+
+        private boolean closed = false;
+
+        public EntityManagerFactoryStub(final Map<?, ?> props) {
+            this.props = props;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            String methodName = method.getName();
+            if ("close".equals(methodName)) {
+                closed = true;
+                return null;
+            }
+            if ("isOpen".equals(methodName)) {
+                return !closed;
+            }
+            if ("getProperties".equals(methodName)) {
+                return props;
+            }
+            return null;
+        }
+    }
+
+    private static final String TRANSACTION_TYPE_PROPERTY = "javax.persistence.transactionType";
+
+    @SuppressWarnings("unchecked")
+    private static <T> T createProxy(final Class<T> type, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(EntityManagerFactoryBuilderImplTest.class.getClassLoader(),
+                new Class<?>[] { type }, handler);
+    }
+
+    private final List<EntityManagerFactoryStub> createdEntityManagerFactories =
+            new ArrayList<EntityManagerFactoryStub>();
+
+    private final AtomicBoolean unregistered = new AtomicBoolean(false);
+
+    private Runnable evictionTask;
+
+    private Map<String, Object> metadata;
+
+    private ParsedPersistenceUnit ppu;
+
+    @Before
+    public void before() {
+        final PersistenceProvider persistenceProvider = createProxy(PersistenceProvider.class,
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if (!"createContainerEntityManagerFactory".equals(method.getName())) {
+                            return null;
+                        }
+                        EntityManagerFactoryStub entityManagerFactory =
+                                new EntityManagerFactoryStub((Map<?, ?>) args[1]);
+                        createdEntityManagerFactories.add(entityManagerFactory);
+                        return createProxy(EntityManagerFactory.class, entityManagerFactory);
+                    }
+                });
+        final ServiceRegistration registration = createProxy(ServiceRegistration.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("unregister".equals(method.getName())) {
+                    unregistered.set(true);
+                }
+                return null;
+            }
+        });
+        final BundleContext context = createProxy(BundleContext.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getService".equals(method.getName())) {
+                    return persistenceProvider;
+                }
+                if ("registerService".equals(method.getName())) {
+                    return registration;
+                }
+                return JdbcStubs.defaultValue(method.getReturnType());
+            }
+        });
+        final Bundle bundle = createProxy(Bundle.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getBundleContext".equals(method.getName())) {
+                    return context;
+                }
+                return JdbcStubs.defaultValue(method.getReturnType());
+            }
+        });
+        metadata = new HashMap<String, Object>();
+        metadata.put(ParsedPersistenceUnit.UNIT_NAME, "unit");
+        metadata.put(ParsedPersistenceUnit.TRANSACTION_TYPE, PersistenceUnitTransactionType.RESOURCE_LOCAL.name());
+        metadata.put(ParsedPersistenceUnit.MANAGED_CLASSES, Collections.emptyList());
+        metadata.put(ParsedPersistenceUnit.EXCLUDE_UNLISTED_CLASSES, Boolean.TRUE);
+        ppu = createProxy(ParsedPersistenceUnit.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getDefiningBundle".equals(method.getName())) {
+                    return bundle;
+                }
+                if ("getPersistenceXmlMetadata".equals(method.getName())) {
+                    return metadata;
+                }
+                return null;
+            }
+        });
+    }
+
+    private EntityManagerFactoryBuilderImpl createBuilder(final long idleTimeout) {
+        ScheduledExecutorService executor = createProxy(ScheduledExecutorService.class, new InvocationHandler() {
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("scheduleWithFixedDelay".equals(method.getName())) {
+                    evictionTask = (Runnable) args[0];
+                    return createProxy(ScheduledFuture.class, new InvocationHandler() {
+
+                        @Override
+                        public Object invoke(final Object futureProxy, final Method futureMethod,
+                                final Object[] futureArgs) {
+                            return JdbcStubs.defaultValue(futureMethod.getReturnType());
+                        }
+                    });
+                }
+                return JdbcStubs.defaultValue(method.getReturnType());
+            }
+        });
+        EntityManagerFactoryBuilderImpl builder = new EntityManagerFactoryBuilderImpl(ppu, null, null, executor,
+                idleTimeout, null, new PersistenceUnitConfigurations(null), null);
+        Assert.assertTrue(builder.register(new Hashtable<String, Object>()));
+        return builder;
+    }
+
+    @Test
+    public void testEqualPropertiesShareEntityManagerFactory() {
+        EntityManagerFactoryBuilderImpl builder = createBuilder(60000);
+        EntityManagerFactory first = builder.createEntityManagerFactory(Collections.<String, Object> singletonMap(
+                "openjpa.Log", Integer.valueOf(1)));
+        EntityManagerFactory second = builder.createEntityManagerFactory(Collections.<String, Object> singletonMap(
+                "openjpa.Log", "1"));
+        EntityManagerFactory other = builder.createEntityManagerFactory(null);
+        Assert.assertEquals(2, createdEntityManagerFactories.size());
+        Assert.assertEquals(first.getProperties(), second.getProperties());
+
+        first.close();
+        Assert.assertFalse(first.isOpen());
+        Assert.assertTrue(second.isOpen());
+        Assert.assertFalse(createdEntityManagerFactories.get(0).closed);
+        try {
+            first.getProperties();
+            Assert.fail("A closed handle must not be usable");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("EntityManagerFactory is closed", e.getMessage());
+        }
+
+        builder.close();
+        Assert.assertTrue(unregistered.get());
+        Assert.assertTrue(createdEntityManagerFactories.get(0).closed);
+        Assert.assertTrue(createdEntityManagerFactories.get(1).closed);
+        Assert.assertFalse(other.isOpen());
+    }
+
+    @Test
+    public void testOnlyIdleEntityManagerFactoriesAreEvicted() throws InterruptedException {
+        EntityManagerFactoryBuilderImpl builder = createBuilder(0);
+        EntityManagerFactory released = builder.createEntityManagerFactory(null);
+        builder.createEntityManagerFactory(Collections.<String, Object> singletonMap("openjpa.Log", "none"));
+        released.close();
+        Thread.sleep(10);
+
+        evictionTask.run();
+        Assert.assertTrue(createdEntityManagerFactories.get(0).closed);
+        Assert.assertFalse(createdEntityManagerFactories.get(1).closed);
+
+        // An evicted EntityManagerFactory is built again on the next request
+        builder.createEntityManagerFactory(null).close();
+        Assert.assertEquals(3, createdEntityManagerFactories.size());
+        builder.close();
+    }
+
+    @Test
+    public void testInvalidatedEntityManagerFactoryIsClosedWithLastHandle() {
+        EntityManagerFactoryBuilderImpl builder = createBuilder(60000);
+        EntityManagerFactory handle = builder.createEntityManagerFactory(null);
+        builder.createEntityManagerFactory(Collections.<String, Object> singletonMap("openjpa.Log", "none"))
+                .close();
+
+        builder.invalidate();
+        Assert.assertFalse(createdEntityManagerFactories.get(0).closed);
+        Assert.assertTrue(createdEntityManagerFactories.get(1).closed);
+
+        EntityManagerFactory newHandle = builder.createEntityManagerFactory(null);
+        Assert.assertEquals(3, createdEntityManagerFactories.size());
+        handle.close();
+        Assert.assertTrue(createdEntityManagerFactories.get(0).closed);
+        Assert.assertTrue(newHandle.isOpen());
+        builder.close();
+    }
+
+    @Test
+    public void testJtaUnitIsBuiltOnlyWithResourceLocalOverride() {
+        metadata.remove(ParsedPersistenceUnit.TRANSACTION_TYPE);
+        EntityManagerFactoryBuilderImpl builder = createBuilder(60000);
+        try {
+            builder.createEntityManagerFactory(null);
+            Assert.fail("A persistence unit that needs JTA must not be built");
+        } catch (PersistenceException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Persistence unit unit needs JTA"));
+        }
+        Assert.assertTrue(createdEntityManagerFactories.isEmpty());
+
+        EntityManagerFactory handle = builder.createEntityManagerFactory(Collections.<String, Object> singletonMap(
+                TRANSACTION_TYPE_PROPERTY, PersistenceUnitTransactionType.RESOURCE_LOCAL.name()));
+        Assert.assertEquals(1, createdEntityManagerFactories.size());
+        handle.close();
+        builder.close();
+    }
+}
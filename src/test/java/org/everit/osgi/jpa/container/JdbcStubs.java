@@ -0,0 +1,189 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.sql.DataSource;
+
+/**
+ * JDBC objects made of {@link Proxy}s for the tests of the connection pools. The stubs record the calls that the
+ * tests check.
+ */
+final class JdbcStubs {
+
+    /**
+     * A result set that records whether it was closed.
+     */
+    static class ResultSetStub implements InvocationHandler {
+
+        volatile boolean closed = false;
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            if ("close".equals(method.getName())) {
+                closed = true;
+            } else if ("isClosed".equals(method.getName())) {
+                return closed;
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * A prepared statement that keeps the settings that the pool restores and records the other calls.
+     */
+    static class StatementStub implements InvocationHandler {
+
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+        final List<ResultSetStub> resultSets = Collections.synchronizedList(new ArrayList<ResultSetStub>());
+
+        volatile int maxRows = 0;
+
+        volatile int fetchSize = 0;
+
+        volatile boolean closed = false;
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            String methodName = method.getName();
+            calls.add(methodName);
+            if ("setMaxRows".equals(methodName)) {
+                maxRows = (Integer) args[0];
+            } else if ("getMaxRows".equals(methodName)) {
+                return maxRows;
+            } else if ("setFetchSize".equals(methodName)) {
+                fetchSize = (Integer) args[0];
+            } else if ("getFetchSize".equals(methodName)) {
+                return fetchSize;
+            } else if ("getFetchDirection".equals(methodName)) {
+                return ResultSet.FETCH_FORWARD;
+            } else if ("close".equals(methodName)) {
+                closed = true;
+            } else if ("isClosed".equals(methodName)) {
+                return closed;
+            } else if ("executeQuery".equals(methodName)) {
+                ResultSetStub resultSet = new ResultSetStub();
+                resultSets.add(resultSet);
+                return Proxy.newProxyInstance(JdbcStubs.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+                        resultSet);
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * A physical connection that creates {@link StatementStub}s.
+     */
+    static class ConnectionStub implements InvocationHandler {
+
+        final List<StatementStub> statements = Collections.synchronizedList(new ArrayList<StatementStub>());
+
+        volatile boolean closed = false;
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            String methodName = method.getName();
+            if ("getAutoCommit".equals(methodName) || "isValid".equals(methodName)) {
+                return true;
+            }
+            if ("getTransactionIsolation".equals(methodName)) {
+                return Connection.TRANSACTION_READ_COMMITTED;
+            }
+            if ("prepareStatement".equals(methodName)) {
+                StatementStub statement = new StatementStub();
+                statements.add(statement);
+                return Proxy.newProxyInstance(JdbcStubs.class.getClassLoader(),
+                        new Class<?>[] { PreparedStatement.class }, statement);
+            }
+            if ("close".equals(methodName)) {
+                closed = true;
+                return null;
+            }
+            if ("isClosed".equals(methodName)) {
+                return closed;
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * The DataSource of the physical connections.
+     */
+    static class DataSourceStub implements InvocationHandler {
+
+        final List<ConnectionStub> connections = Collections.synchronizedList(new ArrayList<ConnectionStub>());
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            if ("getConnection".equals(method.getName())) {
+                ConnectionStub connection = new ConnectionStub();
+                connections.add(connection);
+                return Proxy.newProxyInstance(JdbcStubs.class.getClassLoader(), new Class<?>[] { Connection.class },
+                        connection);
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /**
+     * Creates a pool whose physical connections are created by a stub.
+     */
+    static PooledDataSource createPool(final DataSourceStub dataSourceStub, final int maxSize,
+            final long connectionTimeout, final int statementCacheSize,
+            final ScheduledExecutorService maintenanceExecutor) {
+        Properties props = new Properties();
+        props.setProperty(ConnectionPoolConfiguration.MAX_SIZE, String.valueOf(maxSize));
+        props.setProperty(ConnectionPoolConfiguration.CONNECTION_TIMEOUT, String.valueOf(connectionTimeout));
+        props.setProperty(ConnectionPoolConfiguration.STATEMENT_CACHE_SIZE, String.valueOf(statementCacheSize));
+        DataSource dataSource = (DataSource) Proxy.newProxyInstance(JdbcStubs.class.getClassLoader(),
+                new Class<?>[] { DataSource.class }, dataSourceStub);
+        return new PooledDataSource("test", dataSource, new ConnectionPoolConfiguration(props), maintenanceExecutor);
+    }
+
+    static Object defaultValue(final Class<?> type) {
+        if (!type.isPrimitive() || (type == void.class)) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return 0;
+    }
+
+    private JdbcStubs() {
+    }
+}
@@ -0,0 +1,183 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.spi.PersistenceProvider;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LazyEntityManagerFactoryTest {
+
+    /**
+     * A persistence provider whose creations wait until {@link #releaseCreation} is counted down.
+     */
+    private static class BlockingProvider implements InvocationHandler {
+
+        private final CountDownLatch creationStarted = new CountDownLatch(1);
+
+        private final CountDownLatch releaseCreation = new CountDownLatch(1);
+
+        private final AtomicInteger creationCount = new AtomicInteger();
+
+        private final AtomicInteger closeCount = new AtomicInteger();
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws InterruptedException {
+            if (!"createContainerEntityManagerFactory".equals(method.getName())) {
+                return null;
+            }
+            creationCount.incrementAndGet();
+            creationStarted.countDown();
+            releaseCreation.await();
+            return Proxy.newProxyInstance(LazyEntityManagerFactoryTest.class.getClassLoader(),
+                    new Class<?>[] { EntityManagerFactory.class }, new InvocationHandler() {
+
+                        @Override
+                        public Object invoke(final Object emfProxy, final Method emfMethod, final Object[] emfArgs) {
+                            if ("close".equals(emfMethod.getName())) {
+                                closeCount.incrementAndGet();
+                                return null;
+                            }
+                            if ("isOpen".equals(emfMethod.getName())) {
+                                return true;
+                            }
+                            return Collections.emptyMap();
+                        }
+                    });
+        }
+    }
+
+    private static final int CALLER_COUNT = 4;
+
+    private static LazyEntityManagerFactory createLazyEntityManagerFactory(final BlockingProvider provider) {
+        ParsedPersistenceUnit ppu = (ParsedPersistenceUnit) Proxy.newProxyInstance(
+                LazyEntityManagerFactoryTest.class.getClassLoader(), new Class<?>[] { ParsedPersistenceUnit.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        return Collections.singletonMap(ParsedPersistenceUnit.UNIT_NAME, "unit");
+                    }
+                });
+        PersistenceProvider persistenceProvider = (PersistenceProvider) Proxy.newProxyInstance(
+                LazyEntityManagerFactoryTest.class.getClassLoader(), new Class<?>[] { PersistenceProvider.class },
+                provider);
+        PersistenceUnitBootstrap bootstrap = new PersistenceUnitBootstrap(ppu, null, persistenceProvider, null, null,
+                null, null, null, true, null);
+        return new LazyEntityManagerFactory(bootstrap);
+    }
+
+    /**
+     * Starts a thread that calls the proxy and stores the exception that the call threw.
+     */
+    private static Thread startCaller(final EntityManagerFactory proxy, final List<Throwable> failures) {
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    Map<String, Object> properties = proxy.getProperties();
+                    Assert.assertNotNull(properties);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testConcurrentFirstCallersShareOneCreation() throws InterruptedException {
+        BlockingProvider provider = new BlockingProvider();
+        LazyEntityManagerFactory lazyEntityManagerFactory = createLazyEntityManagerFactory(provider);
+        EntityManagerFactory proxy = lazyEntityManagerFactory.getProxy();
+        Assert.assertTrue(proxy.isOpen());
+
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> callers = new ArrayList<Thread>();
+        for (int i = 0; i < CALLER_COUNT; i++) {
+            callers.add(startCaller(proxy, failures));
+        }
+        Assert.assertTrue(provider.creationStarted.await(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Assert.assertNull(lazyEntityManagerFactory.getCreatedEntityManagerFactory());
+
+        provider.releaseCreation.countDown();
+        for (Thread caller : callers) {
+            caller.join(1000);
+            Assert.assertFalse(caller.isAlive());
+        }
+        Assert.assertEquals(Collections.emptyList(), failures);
+        Assert.assertEquals(1, provider.creationCount.get());
+        Assert.assertNotNull(lazyEntityManagerFactory.getCreatedEntityManagerFactory());
+
+        Assert.assertSame(lazyEntityManagerFactory.getCreatedEntityManagerFactory(), lazyEntityManagerFactory.close());
+        Assert.assertEquals(1, provider.closeCount.get());
+        Assert.assertFalse(proxy.isOpen());
+    }
+
+    @Test
+    public void testCloseDuringCreationClosesCreatedFactory() throws InterruptedException {
+        BlockingProvider provider = new BlockingProvider();
+        LazyEntityManagerFactory lazyEntityManagerFactory = createLazyEntityManagerFactory(provider);
+        EntityManagerFactory proxy = lazyEntityManagerFactory.getProxy();
+
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread caller = startCaller(proxy, failures);
+        Assert.assertTrue(provider.creationStarted.await(1, TimeUnit.SECONDS));
+
+        // Closing does not wait for the running creation
+        Assert.assertNull(lazyEntityManagerFactory.close());
+        Assert.assertFalse(proxy.isOpen());
+
+        provider.releaseCreation.countDown();
+        caller.join(1000);
+        Assert.assertFalse(caller.isAlive());
+        Assert.assertEquals(1, failures.size());
+        Assert.assertTrue(failures.get(0) instanceof IllegalStateException);
+        Assert.assertEquals(1, provider.closeCount.get());
+        Assert.assertNull(lazyEntityManagerFactory.getCreatedEntityManagerFactory());
+
+        try {
+            proxy.getProperties();
+            Assert.fail("A closed proxy must not create the EntityManagerFactory again");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(1, provider.creationCount.get());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import javax.persistence.Embeddable;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Scans the class files of the nested classes of the test that the compiler generated.
+ */
+public class ManagedClassScannerTest {
+
+    /**
+     * An entity with constants of all sizes and with another annotation before the managed class annotation.
+     */
+    @NamedQueries({ @NamedQuery(name = "all", query = "SELECT e FROM TestEntity e"),
+            @NamedQuery(name = "none", query = "SELECT e FROM TestEntity e WHERE 1 = 0") })
+    @Entity(name = "TestEntity")
+    public static class TestEntity implements Serializable {
+
+        private static final long serialVersionUID = 7162532817634543231L;
+
+        public static final double RATIO = 0.75;
+
+        public static final String QUERY_NAME = "all";
+
+        @Id
+        private long id;
+
+        public long getId() {
+            return id;
+        }
+    }
+
+    @Embeddable
+    public static class TestEmbeddable {
+
+        private int value;
+
+        public int getValue() {
+            return value;
+        }
+    }
+
+    @MappedSuperclass
+    public abstract static class TestMappedSuperclass {
+    }
+
+    /**
+     * A class with JPA and other annotations but without a managed class annotation.
+     */
+    @Deprecated
+    @NamedQuery(name = "notManaged", query = "SELECT 1")
+    public static class NotManagedClass {
+    }
+
+    private static byte[] readClassFile(final Class<?> type) throws IOException {
+        InputStream in = type.getResourceAsStream("/" + type.getName().replace('.', '/') + ".class");
+        Assert.assertNotNull(in);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int length = in.read(buffer);
+            while (length >= 0) {
+                out.write(buffer, 0, length);
+                length = in.read(buffer);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String scan(final byte[] classFile) throws IOException {
+        return ManagedClassScanner.readManagedClassName(new DataInputStream(new ByteArrayInputStream(classFile)));
+    }
+
+    @Test
+    public void testManagedClassesAreFound() throws IOException {
+        Assert.assertEquals(TestEntity.class.getName(), scan(readClassFile(TestEntity.class)));
+        Assert.assertEquals(TestEmbeddable.class.getName(), scan(readClassFile(TestEmbeddable.class)));
+        Assert.assertEquals(TestMappedSuperclass.class.getName(), scan(readClassFile(TestMappedSuperclass.class)));
+    }
+
+    @Test
+    public void testOtherClassesAreSkipped() throws IOException {
+        Assert.assertNull(scan(readClassFile(NotManagedClass.class)));
+        Assert.assertNull(scan(readClassFile(ManagedClassScannerTest.class)));
+    }
+
+    @Test
+    public void testInvalidClassFileIsRejected() throws IOException {
+        try {
+            scan(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+            Assert.fail("A file without the class file magic number must be rejected");
+        } catch (IOException e) {
+            Assert.assertEquals("Invalid class file magic number", e.getMessage());
+        }
+
+        byte[] classFile = readClassFile(TestEntity.class);
+        try {
+            scan(Arrays.copyOf(classFile, classFile.length / 2));
+            Assert.fail("A truncated class file must be rejected");
+        } catch (EOFException e) {
+            // Expected: the class file ends in the middle of a structure
+        }
+    }
+}
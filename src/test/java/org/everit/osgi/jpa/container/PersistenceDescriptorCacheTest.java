@@ -0,0 +1,226 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+public class PersistenceDescriptorCacheTest {
+
+    /**
+     * A bundle whose last modification time can be changed by the tests.
+     */
+    private static class BundleStub implements InvocationHandler {
+
+        private final long bundleId;
+
+        private long lastModified = 1;
+
+        public BundleStub(final long bundleId) {
+            this.bundleId = bundleId;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            String methodName = method.getName();
+            if ("getBundleId".equals(methodName)) {
+                return bundleId;
+            }
+            if ("getLastModified".equals(methodName)) {
+                return lastModified;
+            }
+            if ("getSymbolicName".equals(methodName)) {
+                return "test.bundle";
+            }
+            if ("hashCode".equals(methodName)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("equals".equals(methodName)) {
+                return proxy == args[0];
+            }
+            return null;
+        }
+    }
+
+    private static final byte[] CHECKSUM = PersistenceDescriptorCache.checksum(Collections.singletonList(
+            new BufferedPersistenceDescriptor("META-INF/persistence.xml", new byte[] { 1, 2, 3 })));
+
+    private static void delete(final File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private BundleStub bundleStub;
+
+    private Bundle bundle;
+
+    private File cacheDirectory;
+
+    private PersistenceDescriptorCache cache;
+
+    @After
+    public void after() {
+        delete(cacheDirectory);
+    }
+
+    @Before
+    public void before() throws IOException {
+        cacheDirectory = File.createTempFile("descriptor-cache", "");
+        cacheDirectory.delete();
+        cache = new PersistenceDescriptorCache(cacheDirectory);
+        bundleStub = new BundleStub(42);
+        bundle = (Bundle) Proxy.newProxyInstance(PersistenceDescriptorCacheTest.class.getClassLoader(),
+                new Class<?>[] { Bundle.class }, bundleStub);
+    }
+
+    private ParsedPersistenceUnit createPersistenceUnit(final Map<String, Object> metadata) {
+        return (ParsedPersistenceUnit) Proxy.newProxyInstance(PersistenceDescriptorCacheTest.class.getClassLoader(),
+                new Class<?>[] { ParsedPersistenceUnit.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getPersistenceXmlMetadata".equals(method.getName())) {
+                            return metadata;
+                        }
+                        if ("getDefiningBundle".equals(method.getName())) {
+                            return bundle;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private Map<String, Object> createMetadata(final String unitName) {
+        Properties properties = new Properties();
+        properties.setProperty("openjpa.Log", "none");
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put(ParsedPersistenceUnit.UNIT_NAME, unitName);
+        metadata.put(ParsedPersistenceUnit.EXCLUDE_UNLISTED_CLASSES, Boolean.TRUE);
+        metadata.put(ParsedPersistenceUnit.MANAGED_CLASSES, Arrays.asList("a.Entity1", "a.Entity2"));
+        metadata.put(ParsedPersistenceUnit.PROPERTIES, properties);
+        metadata.put(ParsedPersistenceUnit.JTA_DATASOURCE, null);
+        return metadata;
+    }
+
+    private void putUnits(final String... unitNames) {
+        List<ParsedPersistenceUnit> units = new ArrayList<ParsedPersistenceUnit>();
+        for (String unitName : unitNames) {
+            units.add(createPersistenceUnit(createMetadata(unitName)));
+        }
+        cache.put(bundle, CHECKSUM, units);
+    }
+
+    @Test
+    public void testStoredUnitsAreReadBack() {
+        Assert.assertNull(cache.get(bundle, CHECKSUM));
+        putUnits("unit1", "unit2");
+
+        Collection<ParsedPersistenceUnit> cachedUnits = cache.get(bundle, CHECKSUM);
+        Assert.assertNotNull(cachedUnits);
+        Assert.assertEquals(2, cachedUnits.size());
+        List<String> unitNames = new ArrayList<String>();
+        for (ParsedPersistenceUnit cachedUnit : cachedUnits) {
+            Map<String, Object> metadata = cachedUnit.getPersistenceXmlMetadata();
+            unitNames.add((String) metadata.get(ParsedPersistenceUnit.UNIT_NAME));
+            Assert.assertSame(bundle, cachedUnit.getDefiningBundle());
+            Assert.assertEquals(Boolean.TRUE, metadata.get(ParsedPersistenceUnit.EXCLUDE_UNLISTED_CLASSES));
+            Assert.assertEquals(Arrays.asList("a.Entity1", "a.Entity2"),
+                    metadata.get(ParsedPersistenceUnit.MANAGED_CLASSES));
+            Properties properties = (Properties) metadata.get(ParsedPersistenceUnit.PROPERTIES);
+            Assert.assertEquals("none", properties.getProperty("openjpa.Log"));
+            Assert.assertFalse(metadata.containsKey(ParsedPersistenceUnit.JTA_DATASOURCE));
+        }
+        Assert.assertEquals(Arrays.asList("unit1", "unit2"), unitNames);
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testChangedDescriptorsOrBundleMiss() {
+        putUnits("unit");
+        byte[] otherChecksum = PersistenceDescriptorCache.checksum(Collections.singletonList(
+                new BufferedPersistenceDescriptor("META-INF/persistence.xml", new byte[] { 1, 2, 4 })));
+        Assert.assertNull(cache.get(bundle, otherChecksum));
+
+        bundleStub.lastModified = 2;
+        Assert.assertNull(cache.get(bundle, CHECKSUM));
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidatedEntryMisses() {
+        putUnits("unit");
+        cache.invalidate(bundle);
+        Assert.assertNull(cache.get(bundle, CHECKSUM));
+
+        putUnits("unit");
+        Assert.assertNotNull(cache.get(bundle, CHECKSUM));
+    }
+
+    @Test
+    public void testUnitsWithUnsupportedMetadataAreNotCached() {
+        Map<String, Object> metadata = createMetadata("unit");
+        metadata.put("unsupported", Integer.valueOf(1));
+        cache.put(bundle, CHECKSUM, Collections.singletonList(createPersistenceUnit(metadata)));
+
+        Assert.assertNull(cache.get(bundle, CHECKSUM));
+        Assert.assertEquals(0, cacheDirectory.list().length);
+    }
+
+    @Test
+    public void testCorruptEntryMisses() throws IOException {
+        putUnits("unit");
+        File[] cacheFiles = cacheDirectory.listFiles();
+        Assert.assertEquals(1, cacheFiles.length);
+        FileOutputStream out = new FileOutputStream(cacheFiles[0]);
+        try {
+            out.write(new byte[] { 0, 0, 0 });
+        } finally {
+            out.close();
+        }
+        Assert.assertNull(cache.get(bundle, CHECKSUM));
+    }
+}
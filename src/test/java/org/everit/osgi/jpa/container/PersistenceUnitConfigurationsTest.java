@@ -0,0 +1,177 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+public class PersistenceUnitConfigurationsTest {
+
+    private static final String BUNDLE_SYMBOLIC_NAME = "test.bundle";
+
+    private static Dictionary<String, Object> createConfiguration(final String unitName, final Object... entries) {
+        Dictionary<String, Object> configuration = new Hashtable<String, Object>();
+        configuration.put(PersistenceUnitConfigurations.BUNDLE_SYMBOLIC_NAME, BUNDLE_SYMBOLIC_NAME);
+        configuration.put(PersistenceUnitConfigurations.UNIT_NAME, unitName);
+        configuration.put(Constants.SERVICE_PID, "pid");
+        for (int i = 0; i < entries.length; i += 2) {
+            configuration.put((String) entries[i], entries[i + 1]);
+        }
+        return configuration;
+    }
+
+    private static ParsedPersistenceUnit createPersistenceUnit(final String unitName, final Properties properties) {
+        final Bundle bundle = (Bundle) Proxy.newProxyInstance(PersistenceUnitConfigurationsTest.class.getClassLoader(),
+                new Class<?>[] { Bundle.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getSymbolicName".equals(method.getName())) {
+                            return BUNDLE_SYMBOLIC_NAME;
+                        }
+                        return null;
+                    }
+                });
+        final Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put(ParsedPersistenceUnit.UNIT_NAME, unitName);
+        metadata.put(ParsedPersistenceUnit.PROPERTIES, properties);
+        return (ParsedPersistenceUnit) Proxy.newProxyInstance(PersistenceUnitConfigurationsTest.class.getClassLoader(),
+                new Class<?>[] { ParsedPersistenceUnit.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getDefiningBundle".equals(method.getName())) {
+                            return bundle;
+                        }
+                        if ("getPersistenceXmlMetadata".equals(method.getName())) {
+                            return metadata;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private final List<String> changedUnits = new ArrayList<String>();
+
+    private PersistenceUnitConfigurations unitConfigurations;
+
+    @Before
+    public void before() {
+        unitConfigurations = new PersistenceUnitConfigurations(
+                new PersistenceUnitConfigurations.ConfigurationListener() {
+
+                    @Override
+                    public void configurationChanged(final String bundleSymbolicName, final String unitName) {
+                        changedUnits.add(bundleSymbolicName + "/" + unitName);
+                    }
+                });
+    }
+
+    @Test
+    public void testOverridesAreMergedWithPersistenceXmlProperties() {
+        Properties xmlProperties = new Properties();
+        xmlProperties.setProperty("a", "1");
+        xmlProperties.setProperty("b", "2");
+        ParsedPersistenceUnit ppu = createPersistenceUnit("unit", xmlProperties);
+        Assert.assertSame(xmlProperties, unitConfigurations.getProperties(ppu));
+        Assert.assertTrue(unitConfigurations.getOverrides(ppu).isEmpty());
+
+        unitConfigurations.update("pid", createConfiguration(" unit ", "b", "3", "c", Integer.valueOf(4)));
+        Assert.assertEquals(Arrays.asList("test.bundle/unit"), changedUnits);
+        Properties props = unitConfigurations.getProperties(ppu);
+        Assert.assertEquals("1", props.getProperty("a"));
+        Assert.assertEquals("3", props.getProperty("b"));
+        Assert.assertEquals("4", props.getProperty("c"));
+        Assert.assertEquals(3, props.size());
+        Assert.assertEquals("2", xmlProperties.getProperty("b"));
+        Assert.assertEquals(Integer.valueOf(4), unitConfigurations.getOverrides(ppu).get("c"));
+
+        // The same overrides again do not change the persistence unit
+        unitConfigurations.update("pid", createConfiguration("unit", "b", "3", "c", Integer.valueOf(4)));
+        Assert.assertEquals(1, changedUnits.size());
+    }
+
+    @Test
+    public void testPersistenceUnitWithoutPropertiesGetsOverrides() {
+        ParsedPersistenceUnit ppu = createPersistenceUnit("unit", null);
+        Assert.assertNull(unitConfigurations.getProperties(ppu));
+
+        unitConfigurations.update("pid", createConfiguration("unit", "a", "1"));
+        Assert.assertEquals("1", unitConfigurations.getProperties(ppu).getProperty("a"));
+    }
+
+    @Test
+    public void testConfigurationMovedToOtherUnit() {
+        ParsedPersistenceUnit ppu1 = createPersistenceUnit("unit1", new Properties());
+        ParsedPersistenceUnit ppu2 = createPersistenceUnit("unit2", new Properties());
+        unitConfigurations.update("pid", createConfiguration("unit1", "a", "1"));
+        unitConfigurations.update("pid", createConfiguration("unit2", "a", "1"));
+
+        Assert.assertEquals(Arrays.asList("test.bundle/unit1", "test.bundle/unit1", "test.bundle/unit2"),
+                changedUnits);
+        Assert.assertTrue(unitConfigurations.getOverrides(ppu1).isEmpty());
+        Assert.assertEquals(Collections.singletonMap("a", "1"), unitConfigurations.getOverrides(ppu2));
+    }
+
+    @Test
+    public void testDeletedConfigurationIsRemoved() {
+        ParsedPersistenceUnit ppu = createPersistenceUnit("unit", new Properties());
+        unitConfigurations.update("pid", createConfiguration("unit", "a", "1"));
+        unitConfigurations.delete("pid");
+        unitConfigurations.delete("pid");
+        unitConfigurations.delete("unknownPid");
+
+        Assert.assertEquals(Arrays.asList("test.bundle/unit", "test.bundle/unit"), changedUnits);
+        Assert.assertTrue(unitConfigurations.getOverrides(ppu).isEmpty());
+        Assert.assertNull(unitConfigurations.getProperties(ppu).getProperty("a"));
+    }
+
+    @Test
+    public void testConfigurationWithoutUnitIsRejected() {
+        Dictionary<String, Object> configuration = createConfiguration("unit");
+        configuration.remove(PersistenceUnitConfigurations.UNIT_NAME);
+        try {
+            unitConfigurations.update("pid", configuration);
+            Assert.fail("A configuration that does not identify a persistence unit must be rejected");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(PersistenceUnitConfigurations.UNIT_NAME, e.getMessage());
+        }
+        Assert.assertTrue(changedUnits.isEmpty());
+    }
+}
@@ -0,0 +1,106 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.jpa.container.JdbcStubs.DataSourceStub;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PooledDataSourceTest {
+
+    private DataSourceStub dataSourceStub;
+
+    private ScheduledExecutorService maintenanceExecutor;
+
+    private PooledDataSource pool;
+
+    @After
+    public void after() {
+        if (pool != null) {
+            pool.close();
+        }
+        maintenanceExecutor.shutdownNow();
+    }
+
+    @Before
+    public void before() {
+        dataSourceStub = new DataSourceStub();
+        maintenanceExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Test
+    public void testBorrowTimesOutWhenAllConnectionsAreInUse() throws SQLException {
+        pool = JdbcStubs.createPool(dataSourceStub, 1, 100, 0, maintenanceExecutor);
+        Connection connection = pool.getConnection();
+
+        long startTime = System.nanoTime();
+        try {
+            pool.getConnection();
+            Assert.fail("Borrowing from an exhausted pool must time out");
+        } catch (SQLException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Timeout while waiting for a connection of pool test"));
+        }
+        Assert.assertTrue((System.nanoTime() - startTime) >= TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertEquals(1, pool.getTimeoutCount());
+
+        connection.close();
+        Connection reusedConnection = pool.getConnection();
+        Assert.assertEquals(1, dataSourceStub.connections.size());
+        reusedConnection.close();
+    }
+
+    @Test
+    public void testBorrowWaitsForReturnedConnection() throws Exception {
+        pool = JdbcStubs.createPool(dataSourceStub, 1, 5000, 0, maintenanceExecutor);
+        final Connection connection = pool.getConnection();
+        Thread returnThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    connection.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        returnThread.start();
+
+        Connection reusedConnection = pool.getConnection();
+        Assert.assertTrue(connection.isClosed());
+        Assert.assertEquals(1, dataSourceStub.connections.size());
+        Assert.assertEquals(0, pool.getTimeoutCount());
+        reusedConnection.close();
+        returnThread.join();
+    }
+}
@@ -0,0 +1,164 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.everit.osgi.jpa.container.JdbcStubs.DataSourceStub;
+import org.everit.osgi.jpa.container.JdbcStubs.StatementStub;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the statement cache through the connections of a pool.
+ */
+public class PreparedStatementCacheTest {
+
+    private static final String SQL = "SELECT 1";
+
+    private DataSourceStub dataSourceStub;
+
+    private ScheduledExecutorService maintenanceExecutor;
+
+    private PooledDataSource pool;
+
+    @After
+    public void after() {
+        pool.close();
+        maintenanceExecutor.shutdownNow();
+    }
+
+    @Before
+    public void before() {
+        dataSourceStub = new DataSourceStub();
+        maintenanceExecutor = Executors.newSingleThreadScheduledExecutor();
+        pool = JdbcStubs.createPool(dataSourceStub, 1, 1000, 1, maintenanceExecutor);
+    }
+
+    private StatementStub getPhysicalStatement(final int index) {
+        return dataSourceStub.connections.get(0).statements.get(index);
+    }
+
+    @Test
+    public void testCachedStatementIsResetBeforeReuse() throws SQLException {
+        Connection connection = pool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(SQL);
+        statement.setMaxRows(5);
+        statement.setFetchSize(100);
+        statement.setString(1, "value");
+        statement.addBatch();
+        statement.close();
+        connection.close();
+
+        StatementStub physicalStatement = getPhysicalStatement(0);
+        Assert.assertFalse(physicalStatement.closed);
+        Assert.assertEquals(0, physicalStatement.maxRows);
+        Assert.assertEquals(0, physicalStatement.fetchSize);
+        Assert.assertTrue(physicalStatement.calls.contains("clearParameters"));
+        Assert.assertTrue(physicalStatement.calls.contains("clearBatch"));
+
+        connection = pool.getConnection();
+        PreparedStatement reusedStatement = connection.prepareStatement(SQL);
+        Assert.assertEquals(0, reusedStatement.getMaxRows());
+        Assert.assertEquals(1, dataSourceStub.connections.get(0).statements.size());
+        Assert.assertEquals(1, pool.getStatementCacheHitCount());
+        Assert.assertEquals(1, pool.getStatementCacheMissCount());
+        reusedStatement.close();
+        connection.close();
+    }
+
+    @Test
+    public void testStatementWithUnrestorableChangeIsNotCached() throws SQLException {
+        Connection connection = pool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(SQL);
+        statement.setCursorName("cursor");
+        statement.close();
+
+        Assert.assertTrue(getPhysicalStatement(0).closed);
+        connection.prepareStatement(SQL).close();
+        Assert.assertEquals(2, dataSourceStub.connections.get(0).statements.size());
+        Assert.assertEquals(0, pool.getStatementCacheHitCount());
+        connection.close();
+    }
+
+    @Test
+    public void testStatementWithLargeMaxRowsIsNotCached() throws Exception {
+        Method setLargeMaxRows;
+        try {
+            setLargeMaxRows = PreparedStatement.class.getMethod("setLargeMaxRows", long.class);
+        } catch (NoSuchMethodException e) {
+            // JDBC 4.2 is not available on this JVM
+            return;
+        }
+        Connection connection = pool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(SQL);
+        setLargeMaxRows.invoke(statement, 5L);
+        statement.close();
+
+        Assert.assertTrue(getPhysicalStatement(0).closed);
+        connection.prepareStatement(SQL).close();
+        Assert.assertEquals(0, pool.getStatementCacheHitCount());
+        connection.close();
+    }
+
+    @Test
+    public void testOpenResultSetsAreClosedBeforeCaching() throws SQLException {
+        Connection connection = pool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(SQL);
+        statement.executeQuery();
+        ResultSet resultSet = statement.executeQuery();
+        statement.close();
+
+        StatementStub physicalStatement = getPhysicalStatement(0);
+        Assert.assertFalse(physicalStatement.closed);
+        // The first result set was closed by the driver when the statement was executed again
+        Assert.assertFalse(physicalStatement.resultSets.get(0).closed);
+        Assert.assertTrue(physicalStatement.resultSets.get(1).closed);
+        Assert.assertTrue(resultSet.isClosed());
+        connection.close();
+    }
+
+    @Test
+    public void testUnclosedStatementIsClosedWhenConnectionIsReturned() throws SQLException {
+        Connection connection = pool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(SQL);
+        statement.setMaxRows(5);
+        connection.close();
+
+        Assert.assertTrue(statement.isClosed());
+        Assert.assertEquals(0, getPhysicalStatement(0).maxRows);
+        try {
+            statement.executeQuery();
+            Assert.fail("The statement of a returned connection must not be usable");
+        } catch (SQLException e) {
+            Assert.assertEquals("Statement is closed", e.getMessage());
+        }
+    }
+}
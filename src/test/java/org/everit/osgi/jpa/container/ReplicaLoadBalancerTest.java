@@ -0,0 +1,86 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReplicaLoadBalancerTest {
+
+    private static List<RoutingDataSource.Replica> createReplicas(final int count) {
+        List<RoutingDataSource.Replica> replicas = new ArrayList<RoutingDataSource.Replica>();
+        for (int i = 0; i < count; i++) {
+            replicas.add(new RoutingDataSource.Replica(null, null));
+        }
+        return replicas;
+    }
+
+    @Test
+    public void testRoundRobinStartsWithNextReplica() {
+        ReplicaLoadBalancer loadBalancer = ReplicaLoadBalancer.create(null);
+        List<RoutingDataSource.Replica> replicas = createReplicas(3);
+        RoutingDataSource.Replica first = replicas.get(0);
+        RoutingDataSource.Replica second = replicas.get(1);
+        RoutingDataSource.Replica third = replicas.get(2);
+
+        Assert.assertEquals(Arrays.asList(first, second, third), loadBalancer.order(replicas));
+        Assert.assertEquals(Arrays.asList(second, third, first), loadBalancer.order(replicas));
+        Assert.assertEquals(Arrays.asList(third, first, second), loadBalancer.order(replicas));
+        Assert.assertEquals(Arrays.asList(first, second, third), loadBalancer.order(replicas));
+    }
+
+    @Test
+    public void testRandomOrderContainsAllReplicas() {
+        ReplicaLoadBalancer loadBalancer = ReplicaLoadBalancer.create(ReplicaLoadBalancer.RANDOM);
+        List<RoutingDataSource.Replica> replicas = createReplicas(5);
+        for (int i = 0; i < 20; i++) {
+            List<RoutingDataSource.Replica> order = loadBalancer.order(replicas);
+            Assert.assertEquals(replicas.size(), order.size());
+            Assert.assertEquals(new HashSet<RoutingDataSource.Replica>(replicas),
+                    new HashSet<RoutingDataSource.Replica>(order));
+        }
+    }
+
+    @Test
+    public void testNoReplicas() {
+        Assert.assertEquals(Collections.emptyList(),
+                ReplicaLoadBalancer.create(ReplicaLoadBalancer.LEAST_CONNECTIONS).order(createReplicas(0)));
+    }
+
+    @Test
+    public void testLoadBalancerIsSelectedByName() {
+        ReplicaLoadBalancer.create(" roundrobin ");
+        ReplicaLoadBalancer.create("LeastConnections");
+        try {
+            ReplicaLoadBalancer.create("fastest");
+            Assert.fail("An unknown load balancer must be rejected");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Unknown replica load balancer: fastest"));
+        }
+    }
+}
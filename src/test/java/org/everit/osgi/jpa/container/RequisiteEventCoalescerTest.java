@@ -0,0 +1,233 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.aries.jpa.container.parsing.ParsedPersistenceUnit;
+import org.everit.osgi.util.core.requisite.MultiRequisiteListener;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+
+public class RequisiteEventCoalescerTest {
+
+    /**
+     * Records the transitions that the coalescer passes on. The start of the unit named "blocking" waits until
+     * {@link #releaseApply} is counted down.
+     */
+    private static class RecordingListener implements MultiRequisiteListener<ParsedPersistenceUnit> {
+
+        private final BlockingQueue<String> transitions = new LinkedBlockingQueue<String>();
+
+        private final CountDownLatch applyStarted = new CountDownLatch(1);
+
+        private final CountDownLatch releaseApply = new CountDownLatch(1);
+
+        @Override
+        public void startDependentObject(final ParsedPersistenceUnit dependentObject,
+                final Map<String, ServiceReference> references) {
+            if ("blocking".equals(dependentObject.getPersistenceXmlMetadata().get(ParsedPersistenceUnit.UNIT_NAME))) {
+                applyStarted.countDown();
+                try {
+                    releaseApply.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            transitions.add("start" + references.keySet());
+        }
+
+        @Override
+        public void stopDependentObject(final ParsedPersistenceUnit dependentObject) {
+            transitions.add("stop");
+        }
+    }
+
+    private static final long QUIET_PERIOD = 50;
+
+    /**
+     * The time that surely passes the quiet period and the scheduling of the transition.
+     */
+    private static final long SETTLE_TIME = QUIET_PERIOD * 4;
+
+    @SuppressWarnings("unchecked")
+    private static <T> T createStub(final Class<T> type, final Map<String, Object> results) {
+        return (T) Proxy.newProxyInstance(RequisiteEventCoalescerTest.class.getClassLoader(), new Class<?>[] { type },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        String methodName = method.getName();
+                        if ("equals".equals(methodName)) {
+                            return proxy == args[0];
+                        }
+                        if ("hashCode".equals(methodName)) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if ("toString".equals(methodName)) {
+                            return type.getSimpleName() + "@" + System.identityHashCode(proxy);
+                        }
+                        return results.get(methodName);
+                    }
+                });
+    }
+
+    private RecordingListener listener;
+
+    private ContainerMetrics containerMetrics;
+
+    private RequisiteEventCoalescer coalescer;
+
+    private ParsedPersistenceUnit createPersistenceUnit(final String unitName) {
+        Map<String, Object> bundleResults = new HashMap<String, Object>();
+        bundleResults.put("getSymbolicName", "test.bundle");
+        bundleResults.put("getVersion", new Version(1, 0, 0));
+        Map<String, Object> ppuResults = new HashMap<String, Object>();
+        ppuResults.put("getDefiningBundle", createStub(Bundle.class, bundleResults));
+        ppuResults.put("getPersistenceXmlMetadata",
+                Collections.<String, Object> singletonMap(ParsedPersistenceUnit.UNIT_NAME, unitName));
+        ParsedPersistenceUnit ppu = createStub(ParsedPersistenceUnit.class, ppuResults);
+        containerMetrics.addPersistenceUnits(Collections.singletonList(ppu), 0);
+        return ppu;
+    }
+
+    private Map<String, ServiceReference> createReferences(final String requisiteId) {
+        return Collections.singletonMap(requisiteId,
+                createStub(ServiceReference.class, Collections.<String, Object> emptyMap()));
+    }
+
+    private void assertNoTransition() throws InterruptedException {
+        Assert.assertNull(listener.transitions.poll(SETTLE_TIME, TimeUnit.MILLISECONDS));
+    }
+
+    private void assertTransition(final String expected) throws InterruptedException {
+        Assert.assertEquals(expected, listener.transitions.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Before
+    public void before() {
+        listener = new RecordingListener();
+        containerMetrics = new ContainerMetrics(false, null, null);
+        coalescer = new RequisiteEventCoalescer(listener, QUIET_PERIOD, containerMetrics);
+    }
+
+    @After
+    public void after() {
+        listener.releaseApply.countDown();
+        coalescer.close();
+    }
+
+    @Test
+    public void testBurstIsCollapsedToLastTransition() throws InterruptedException {
+        ParsedPersistenceUnit ppu = createPersistenceUnit("unit");
+        Map<String, ServiceReference> references = createReferences("dataSource");
+        coalescer.startDependentObject(ppu, references);
+        coalescer.stopDependentObject(ppu);
+        coalescer.startDependentObject(ppu, references);
+        coalescer.stopDependentObject(ppu);
+        coalescer.startDependentObject(ppu, createReferences("otherDataSource"));
+
+        assertTransition("start[otherDataSource]");
+        assertNoTransition();
+        Assert.assertEquals(4, containerMetrics.getPersistenceUnitMetrics(ppu).getSuppressedTransitionCount());
+    }
+
+    @Test
+    public void testStopStartIsCollapsedToRestart() throws InterruptedException {
+        ParsedPersistenceUnit ppu = createPersistenceUnit("unit");
+        coalescer.startDependentObject(ppu, createReferences("dataSource"));
+        assertTransition("start[dataSource]");
+
+        coalescer.stopDependentObject(ppu);
+        coalescer.startDependentObject(ppu, createReferences("otherDataSource"));
+
+        assertTransition("stop");
+        assertTransition("start[otherDataSource]");
+        assertNoTransition();
+    }
+
+    @Test
+    public void testStartWithSameReferencesIsSuppressed() throws InterruptedException {
+        ParsedPersistenceUnit ppu = createPersistenceUnit("unit");
+        Map<String, ServiceReference> references = createReferences("dataSource");
+        coalescer.startDependentObject(ppu, references);
+        assertTransition("start[dataSource]");
+
+        coalescer.stopDependentObject(ppu);
+        coalescer.startDependentObject(ppu, references);
+        assertNoTransition();
+
+        coalescer.startDependentObject(ppu, new HashMap<String, ServiceReference>(references));
+        assertNoTransition();
+        Assert.assertEquals(3, containerMetrics.getPersistenceUnitMetrics(ppu).getSuppressedTransitionCount());
+    }
+
+    @Test
+    public void testCancelDuringApplyWaitsAndForgetsState() throws InterruptedException {
+        final ParsedPersistenceUnit ppu = createPersistenceUnit("blocking");
+        Map<String, ServiceReference> references = createReferences("dataSource");
+        coalescer.startDependentObject(ppu, references);
+        Assert.assertTrue(listener.applyStarted.await(1, TimeUnit.SECONDS));
+
+        Thread cancelThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                coalescer.cancel(ppu);
+            }
+        });
+        cancelThread.start();
+        cancelThread.join(SETTLE_TIME);
+        Assert.assertTrue("cancel must wait for the running transition", cancelThread.isAlive());
+
+        listener.releaseApply.countDown();
+        cancelThread.join(1000);
+        Assert.assertFalse(cancelThread.isAlive());
+        assertTransition("start[dataSource]");
+
+        // The applied references are forgotten, so the same start is passed on again
+        coalescer.startDependentObject(ppu, references);
+        assertTransition("start[dataSource]");
+    }
+
+    @Test
+    public void testCancelDropsPendingTransition() throws InterruptedException {
+        ParsedPersistenceUnit ppu = createPersistenceUnit("unit");
+        coalescer.startDependentObject(ppu, createReferences("dataSource"));
+        coalescer.cancel(ppu);
+        assertNoTransition();
+    }
+}
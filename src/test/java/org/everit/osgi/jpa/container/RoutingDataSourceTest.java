@@ -0,0 +1,240 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.everit.osgi.jpa.container.JdbcStubs.DataSourceStub;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Tests the routing of the connections. The replicas are passed to the tracker callbacks directly instead of being
+ * tracked in a framework.
+ */
+public class RoutingDataSourceTest {
+
+    private static final String SQL = "SELECT 1";
+
+    private static DataSource createDataSource(final InvocationHandler handler) {
+        return (DataSource) Proxy.newProxyInstance(RoutingDataSourceTest.class.getClassLoader(),
+                new Class<?>[] { DataSource.class }, handler);
+    }
+
+    private static DataSource createFailingDataSource() {
+        return createDataSource(new InvocationHandler() {
+
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws SQLException {
+                throw new SQLException("Replica is down");
+            }
+        });
+    }
+
+    private final Map<ServiceReference, DataSource> servicesByReference = new HashMap<ServiceReference, DataSource>();
+
+    /**
+     * The objects that the tracker callback returned for the replicas.
+     */
+    private final Map<ServiceReference, Object> trackedObjectsByReference = new HashMap<ServiceReference, Object>();
+
+    private DataSourceStub primaryStub;
+
+    private long nextServiceId = 1;
+
+    private ServiceReference addReplica(final RoutingDataSource routingDataSource, final DataSource dataSource) {
+        final long serviceId = nextServiceId++;
+        ServiceReference reference = (ServiceReference) Proxy.newProxyInstance(
+                RoutingDataSourceTest.class.getClassLoader(), new Class<?>[] { ServiceReference.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        String methodName = method.getName();
+                        if ("getProperty".equals(methodName) && Constants.SERVICE_ID.equals(args[0])) {
+                            return serviceId;
+                        }
+                        if ("hashCode".equals(methodName)) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if ("equals".equals(methodName)) {
+                            return proxy == args[0];
+                        }
+                        return null;
+                    }
+                });
+        servicesByReference.put(reference, dataSource);
+        trackedObjectsByReference.put(reference, routingDataSource.addingService(reference));
+        return reference;
+    }
+
+    @Before
+    public void before() {
+        primaryStub = new DataSourceStub();
+    }
+
+    private RoutingDataSource createRoutingDataSource(final String loadBalancer) {
+        BundleContext context = (BundleContext) Proxy.newProxyInstance(RoutingDataSourceTest.class.getClassLoader(),
+                new Class<?>[] { BundleContext.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getService".equals(method.getName())) {
+                            return servicesByReference.get(args[0]);
+                        }
+                        return JdbcStubs.defaultValue(method.getReturnType());
+                    }
+                });
+        return new RoutingDataSource("unit", createDataSource(primaryStub), context, null,
+                ReplicaLoadBalancer.create(loadBalancer));
+    }
+
+    private Connection openReadOnlyConnection(final RoutingDataSource routingDataSource) throws SQLException {
+        Connection connection = routingDataSource.getConnection();
+        connection.setReadOnly(true);
+        connection.prepareStatement(SQL);
+        return connection;
+    }
+
+    @Test
+    public void testReadOnlyConnectionIsOpenedOnReplica() throws SQLException {
+        RoutingDataSource routingDataSource = createRoutingDataSource(null);
+        DataSourceStub replicaStub = new DataSourceStub();
+        addReplica(routingDataSource, createDataSource(replicaStub));
+
+        Connection connection = routingDataSource.getConnection();
+        connection.setReadOnly(true);
+        Assert.assertTrue(connection.isReadOnly());
+        Assert.assertEquals(0, replicaStub.connections.size());
+
+        connection.prepareStatement(SQL);
+        Assert.assertEquals(1, replicaStub.connections.size());
+        Assert.assertEquals(0, primaryStub.connections.size());
+        Assert.assertEquals(1, routingDataSource.getReplicaConnectionCount());
+        try {
+            connection.setReadOnly(false);
+            Assert.fail("A connection of a replica must not be switched to read-write");
+        } catch (SQLException e) {
+            Assert.assertTrue(e.getMessage().endsWith("cannot be switched to read-write"));
+        }
+        connection.close();
+        Assert.assertTrue(replicaStub.connections.get(0).closed);
+    }
+
+    @Test
+    public void testOtherConnectionsAreOpenedOnPrimary() throws SQLException {
+        RoutingDataSource routingDataSource = createRoutingDataSource(null);
+        DataSourceStub replicaStub = new DataSourceStub();
+        addReplica(routingDataSource, createDataSource(replicaStub));
+
+        Connection readWriteConnection = routingDataSource.getConnection();
+        readWriteConnection.prepareStatement(SQL);
+        Connection lateReadOnlyConnection = routingDataSource.getConnection();
+        lateReadOnlyConnection.prepareStatement(SQL);
+        lateReadOnlyConnection.setReadOnly(true);
+        lateReadOnlyConnection.prepareStatement(SQL);
+
+        Assert.assertEquals(2, primaryStub.connections.size());
+        Assert.assertEquals(0, replicaStub.connections.size());
+        Assert.assertEquals(2, routingDataSource.getPrimaryConnectionCount());
+        readWriteConnection.close();
+        lateReadOnlyConnection.close();
+    }
+
+    @Test
+    public void testDefaultsAreAnsweredWithoutOpeningConnection() throws SQLException {
+        RoutingDataSource routingDataSource = createRoutingDataSource(null);
+        Connection connection = routingDataSource.getConnection();
+        Assert.assertTrue(connection.getAutoCommit());
+        Assert.assertEquals(Connection.TRANSACTION_READ_COMMITTED, connection.getTransactionIsolation());
+        connection.setAutoCommit(false);
+        Assert.assertFalse(connection.getAutoCommit());
+        connection.close();
+
+        // Only the connection that the defaults were read from was opened
+        Assert.assertEquals(1, primaryStub.connections.size());
+        Assert.assertTrue(primaryStub.connections.get(0).closed);
+        Assert.assertEquals(0, routingDataSource.getPrimaryConnectionCount());
+    }
+
+    @Test
+    public void testFailedReplicaIsSkipped() throws SQLException {
+        RoutingDataSource routingDataSource = createRoutingDataSource(null);
+        addReplica(routingDataSource, createFailingDataSource());
+        DataSourceStub replicaStub = new DataSourceStub();
+        addReplica(routingDataSource, createDataSource(replicaStub));
+
+        openReadOnlyConnection(routingDataSource).close();
+        openReadOnlyConnection(routingDataSource).close();
+        Assert.assertEquals(2, replicaStub.connections.size());
+        Assert.assertEquals(1, routingDataSource.getFailoverCount());
+        Assert.assertEquals(0, primaryStub.connections.size());
+    }
+
+    @Test
+    public void testPrimaryIsUsedWhenNoReplicaGivesConnection() throws SQLException {
+        RoutingDataSource routingDataSource = createRoutingDataSource(null);
+        ServiceReference replicaReference = addReplica(routingDataSource, createFailingDataSource());
+
+        openReadOnlyConnection(routingDataSource).close();
+        Assert.assertEquals(1, primaryStub.connections.size());
+        Assert.assertEquals(1, routingDataSource.getFailoverCount());
+
+        routingDataSource.removedService(replicaReference, trackedObjectsByReference.get(replicaReference));
+        Assert.assertEquals(0, routingDataSource.getReplicaCount());
+        openReadOnlyConnection(routingDataSource).close();
+        Assert.assertEquals(2, primaryStub.connections.size());
+        Assert.assertEquals(1, routingDataSource.getFailoverCount());
+    }
+
+    @Test
+    public void testLeastConnectionsPrefersReplicaWithFewerOpenConnections() throws SQLException {
+        RoutingDataSource routingDataSource = createRoutingDataSource(ReplicaLoadBalancer.LEAST_CONNECTIONS);
+        DataSourceStub firstReplicaStub = new DataSourceStub();
+        addReplica(routingDataSource, createDataSource(firstReplicaStub));
+        DataSourceStub secondReplicaStub = new DataSourceStub();
+        addReplica(routingDataSource, createDataSource(secondReplicaStub));
+
+        Connection firstConnection = openReadOnlyConnection(routingDataSource);
+        openReadOnlyConnection(routingDataSource).close();
+        Assert.assertEquals(1, firstReplicaStub.connections.size());
+        Assert.assertEquals(1, secondReplicaStub.connections.size());
+
+        // Round-robin would start with the first replica again, but that one still has an open connection
+        openReadOnlyConnection(routingDataSource).close();
+        Assert.assertEquals(1, firstReplicaStub.connections.size());
+        Assert.assertEquals(2, secondReplicaStub.connections.size());
+        firstConnection.close();
+    }
+}
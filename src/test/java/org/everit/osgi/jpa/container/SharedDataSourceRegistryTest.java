@@ -0,0 +1,178 @@
+package org.everit.osgi.jpa.container;
+
+/*
+ * Copyright (c) 2011, Everit Kft.
+ *
+ * All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.everit.osgi.jpa.container.SharedDataSourceRegistry.DataSourceCreator;
+import org.everit.osgi.jpa.container.SharedDataSourceRegistry.SharedDataSource;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.jdbc.DataSourceFactory;
+
+public class SharedDataSourceRegistryTest {
+
+    /**
+     * Creates closeable DataSources and records how many of them were created and closed. Fails the creations while
+     * {@link #failure} is set.
+     */
+    private static class RecordingCreator implements DataSourceCreator {
+
+        private final List<AtomicInteger> closeCounts = new ArrayList<AtomicInteger>();
+
+        private SQLException failure;
+
+        @Override
+        public DataSource createDataSource() throws SQLException {
+            if (failure != null) {
+                throw failure;
+            }
+            final AtomicInteger closeCount = new AtomicInteger();
+            closeCounts.add(closeCount);
+            return (DataSource) Proxy.newProxyInstance(SharedDataSourceRegistryTest.class.getClassLoader(),
+                    new Class<?>[] { DataSource.class, Closeable.class }, new InvocationHandler() {
+
+                        @Override
+                        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                            if ("close".equals(method.getName())) {
+                                closeCount.incrementAndGet();
+                            } else if ("toString".equals(method.getName())) {
+                                return "DataSourceStub";
+                            }
+                            return null;
+                        }
+                    });
+        }
+    }
+
+    private static ServiceReference createDataSourceFactoryReference(final long serviceId) {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(Constants.SERVICE_ID, serviceId);
+        properties.put(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, "org.h2.Driver");
+        return (ServiceReference) Proxy.newProxyInstance(SharedDataSourceRegistryTest.class.getClassLoader(),
+                new Class<?>[] { ServiceReference.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getProperty".equals(method.getName())) {
+                            return properties.get(args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static Properties createJdbcProperties(final String url) {
+        Properties properties = new Properties();
+        properties.setProperty(DataSourceFactory.JDBC_URL, url);
+        return properties;
+    }
+
+    private RecordingCreator creator;
+
+    private Map<String, String> key;
+
+    private SharedDataSourceRegistry registry;
+
+    @Before
+    public void before() {
+        creator = new RecordingCreator();
+        key = SharedDataSourceRegistry.createKey(createDataSourceFactoryReference(1),
+                createJdbcProperties("jdbc:h2:mem:test"), null);
+        registry = new SharedDataSourceRegistry();
+    }
+
+    @Test
+    public void testDataSourceIsSharedUntilLastRelease() throws SQLException {
+        SharedDataSource first = registry.acquire(key, creator);
+        SharedDataSource second = registry.acquire(new HashMap<String, String>(key), creator);
+        Assert.assertSame(first.getDataSource(), second.getDataSource());
+        Assert.assertEquals(1, creator.closeCounts.size());
+
+        first.close();
+        first.close();
+        Assert.assertEquals(0, creator.closeCounts.get(0).get());
+
+        second.close();
+        Assert.assertEquals(1, creator.closeCounts.get(0).get());
+        Assert.assertNull(second.getDataSource());
+
+        SharedDataSource third = registry.acquire(key, creator);
+        Assert.assertEquals(2, creator.closeCounts.size());
+        third.close();
+        Assert.assertEquals(1, creator.closeCounts.get(1).get());
+    }
+
+    @Test
+    public void testFailedCreationIsReleased() throws SQLException {
+        SQLException failure = new SQLException("Cannot connect");
+        creator.failure = failure;
+        try {
+            registry.acquire(key, creator);
+            Assert.fail("The failure of the creator must be passed on");
+        } catch (SQLException e) {
+            Assert.assertSame(failure, e);
+        }
+
+        // The failed entry was released so the next acquisition tries again
+        creator.failure = null;
+        SharedDataSource sharedDataSource = registry.acquire(key, creator);
+        Assert.assertNotNull(sharedDataSource.getDataSource());
+        Assert.assertEquals(1, creator.closeCounts.size());
+        sharedDataSource.close();
+        Assert.assertEquals(1, creator.closeCounts.get(0).get());
+    }
+
+    @Test
+    public void testKeyContainsConnectionAndPoolSettingsOnly() {
+        Properties unitProps = new Properties();
+        unitProps.setProperty(ConnectionPoolConfiguration.MAX_SIZE, " 5 ");
+        unitProps.setProperty("openjpa.Log", "none");
+        Map<String, String> unitKey = SharedDataSourceRegistry.createKey(createDataSourceFactoryReference(1),
+                createJdbcProperties("jdbc:h2:mem:test "), unitProps);
+        Assert.assertEquals("5", unitKey.get(ConnectionPoolConfiguration.MAX_SIZE));
+        Assert.assertEquals("jdbc:h2:mem:test", unitKey.get("jdbc:" + DataSourceFactory.JDBC_URL));
+        Assert.assertFalse(unitKey.containsKey("openjpa.Log"));
+        Assert.assertFalse(unitKey.equals(key));
+
+        unitProps.remove(ConnectionPoolConfiguration.MAX_SIZE);
+        Assert.assertEquals(key, SharedDataSourceRegistry.createKey(createDataSourceFactoryReference(1),
+                createJdbcProperties("jdbc:h2:mem:test"), unitProps));
+        Assert.assertFalse(key.equals(SharedDataSourceRegistry.createKey(createDataSourceFactoryReference(2),
+                createJdbcProperties("jdbc:h2:mem:test"), null)));
+    }
+}